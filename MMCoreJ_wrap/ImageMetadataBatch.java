@@ -0,0 +1,91 @@
+package mmcorej;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Metadata of a batch of images popped from the circular buffer in a single
+ * call (see CMMCore.popNextImages).
+ *
+ * The tags of all images cross from native code as one string, in which
+ * each tag is key, KEY_END, value, TAG_END and each image ends with
+ * IMAGE_END.  They are only turned into JSONObjects on request, so that
+ * callers that need a few tags per image (or none) do not pay for the rest.
+ */
+public final class ImageMetadataBatch {
+   static final char KEY_END = '\u001f';
+   static final char TAG_END = '\u001e';
+   static final char IMAGE_END = '\u001d';
+
+   private final String data_;
+   // start of the tags of image i; starts_[size()] is the end of the data
+   private final int[] starts_;
+
+   ImageMetadataBatch(String data) {
+      data_ = data;
+      int count = 0;
+      for (int i = data.indexOf(IMAGE_END); i >= 0; i = data.indexOf(IMAGE_END, i + 1)) {
+         count++;
+      }
+      starts_ = new int[count + 1];
+      int start = 0;
+      for (int n = 0; n < count; n++) {
+         starts_[n] = start;
+         start = data.indexOf(IMAGE_END, start) + 1;
+      }
+      starts_[count] = start;
+   }
+
+   /**
+    * @return the number of images in the batch
+    */
+   public int size() {
+      return starts_.length - 1;
+   }
+
+   /**
+    * Looks up a single tag without building the tags of the image.
+    * @param image - index of the image in the batch
+    * @param key - tag name
+    * @return the value, or null if the image has no such tag
+    */
+   public String getTag(int image, String key) {
+      int end = starts_[image + 1] - 1;
+      int tag = starts_[image];
+      while (tag < end) {
+         int keyEnd = data_.indexOf(KEY_END, tag);
+         int tagEnd = data_.indexOf(TAG_END, keyEnd);
+         if (keyEnd - tag == key.length() && data_.startsWith(key, tag)) {
+            return data_.substring(keyEnd + 1, tagEnd);
+         }
+         tag = tagEnd + 1;
+      }
+      return null;
+   }
+
+   /**
+    * Adds the tags of one image to a JSONObject, as strings.
+    * @param image - index of the image in the batch
+    * @param tags - receives the tags
+    */
+   public void putTags(int image, JSONObject tags) throws JSONException {
+      int end = starts_[image + 1] - 1;
+      int tag = starts_[image];
+      while (tag < end) {
+         int keyEnd = data_.indexOf(KEY_END, tag);
+         int tagEnd = data_.indexOf(TAG_END, keyEnd);
+         tags.put(data_.substring(tag, keyEnd), data_.substring(keyEnd + 1, tagEnd));
+         tag = tagEnd + 1;
+      }
+   }
+
+   /**
+    * @param image - index of the image in the batch
+    * @return the tags of one image, as strings
+    */
+   public JSONObject toJSON(int image) throws JSONException {
+      JSONObject tags = new JSONObject();
+      putTags(image, tags);
+      return tags;
+   }
+}
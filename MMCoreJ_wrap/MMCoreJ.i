@@ -681,6 +681,10 @@
 
    private String getMultiCameraChannel(JSONObject tags, int cameraChannelIndex) {
 	  try {
+	  SystemStateTags.Snapshot snapshot = SystemStateTags.getSnapshot(tags);
+	  if (snapshot != null) {
+		 tags = snapshot.getState();
+	  }
 	  String camera = tags.getString("Core-Camera");
 	  String physCamKey = camera + "-Physical Camera " + (1 + cameraChannelIndex);
 	  if (tags.has(physCamKey)) {
@@ -700,8 +704,11 @@
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md, int cameraChannelIndex) throws java.lang.Exception {
       TaggedImage image = createTaggedImage(pixels, md);
-      JSONObject tags = image.tags;
-      
+      addCameraChannelTags(image.tags, cameraChannelIndex);
+      return image;
+   }
+
+   private void addCameraChannelTags(JSONObject tags, int cameraChannelIndex) throws java.lang.Exception {
       if (!tags.has("CameraChannelIndex")) {
          tags.put("CameraChannelIndex", cameraChannelIndex);
          tags.put("ChannelIndex", cameraChannelIndex);
@@ -713,18 +720,58 @@
             tags.put("Channel",physicalCamera);
          }
       }
-      return image;
    }
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md) throws java.lang.Exception {
       JSONObject tags = metadataToMap(md);
-      PropertySetting setting;
-      Configuration config = getSystemStateCache();
-      for (int i = 0; i < config.size(); ++i) {
-         setting = config.getSetting(i);
-         String key = setting.getDeviceLabel() + "-" + setting.getPropertyName();
-         String value = setting.getPropertyValue();
-          tags.put(key, value);
+      addSystemStateTags(tags);
+      return new TaggedImage(pixels, tags);
+   }
+
+   /**
+    * When set, images returned by getTaggedImage(), popNextTaggedImage() and
+    * related functions carry a SystemStateTags.VERSION_KEY tag that refers to
+    * the system state instead of one tag per device property.  The state is
+    * then only converted to tags when it changes, and
+    * SystemStateTags.expanded() returns the full tags.  Off by default; the
+    * Micro-Manager options dialog turns it on.
+    */
+   public void setDeltaSystemStateTags(boolean delta) {
+      deltaSystemStateTags_ = delta;
+   }
+
+   public boolean isDeltaSystemStateTags() {
+      return deltaSystemStateTags_;
+   }
+
+   private volatile boolean deltaSystemStateTags_ = false;
+   private final Object systemStateLock_ = new Object();
+   private String systemStateData_;
+   private SystemStateTags.Snapshot systemState_;
+
+   private void addSystemStateTags(JSONObject tags) throws java.lang.Exception {
+      // The state cache is read in one call, and only converted to tags
+      // when it differs from the last time
+      String data = getSystemStateCacheTags();
+      SystemStateTags.Snapshot snapshot;
+      synchronized (systemStateLock_) {
+         if (!data.equals(systemStateData_)) {
+            JSONObject newState = new JSONObject();
+            new ImageMetadataBatch(data).putTags(0, newState);
+            systemState_ = SystemStateTags.register(newState);
+            systemStateData_ = data;
+         }
+         snapshot = systemState_;
+      }
+      if (deltaSystemStateTags_) {
+         // the image holds on to its state
+         tags.put(SystemStateTags.VERSION_KEY, snapshot);
+      } else {
+         JSONObject state = snapshot.getState();
+         for (java.util.Iterator<String> keys = state.keys(); keys.hasNext();) {
+            String key = keys.next();
+            tags.put(key, state.get(key));
+         }
       }
       tags.put("BitDepth", getImageBitDepth());
       tags.put("PixelSizeUm", getPixelSizeUm(true));
@@ -749,8 +796,27 @@
       try {
          tags.put("Binning", getProperty(getCameraDevice(), "Binning"));
       } catch (Exception ex) {}
-      
-      return new TaggedImage(pixels, tags);	
+   }
+
+   /*
+    * Returns a new array of the type popNextImage() returns for the current
+    * camera settings.
+    */
+   private Object newPixelArray() {
+      int size = (int) (getImageWidth() * getImageHeight());
+      switch ((int) getBytesPerPixel()) {
+         case 1:
+            return new byte[size];
+         case 2:
+            return new short[size];
+         case 4:
+            if (getNumberOfComponents() == 1)
+               return new float[size];
+            return new byte[size * 4];
+         case 8:
+            return new short[size * 4];
+      }
+      return null;
    }
 
    public TaggedImage getTaggedImage(int cameraChannelIndex) throws java.lang.Exception {
@@ -789,6 +855,89 @@
       return popNextTaggedImage(0);
    }
 
+   /**
+    * Pops up to pixels.length images from the circular buffer in a single
+    * native call, copying image i into pixels[i].  Returns as soon as the
+    * buffer is empty, possibly with an empty batch; unlike popNextImage() this
+    * does not throw when no image is available.  When popping an image fails
+    * after others were popped, the batch of those images is returned; only
+    * a failure on the first image throws.
+    *
+    * The arrays can be reused from call to call.  Each must be of the type
+    * popNextImage() returns for the current camera (byte[] for 8 bit and RGB32,
+    * short[] for 16 bit and RGB64, float[] for 32 bit images) and hold at least
+    * one image.
+    *
+    * @param cameraChannelIndex - channel of a multi-camera
+    * @param pixels - arrays receiving the images
+    * @return metadata of the popped images; its size is the number of images
+    */
+   public ImageMetadataBatch popNextImages(int cameraChannelIndex, Object[] pixels) throws java.lang.Exception {
+      return new ImageMetadataBatch(popNextImagesToArrays(cameraChannelIndex, pixels));
+   }
+
+   /**
+    * Pops up to maxImages images from the circular buffer in a single native
+    * call, copying them back to back into a direct buffer, starting at its
+    * position.  The position is advanced past the last image.  Stops early
+    * when the circular buffer is empty or the buffer has no room for another
+    * image (getImageBufferSize() bytes).
+    *
+    * @param cameraChannelIndex - channel of a multi-camera
+    * @param buffer - direct buffer receiving the pixels in native byte order
+    * @param maxImages - maximum number of images to pop
+    * @return metadata of the popped images; its size is the number of images
+    */
+   public ImageMetadataBatch popNextImages(int cameraChannelIndex, java.nio.ByteBuffer buffer, int maxImages) throws java.lang.Exception {
+      int room = buffer.remaining();
+      ImageMetadataBatch batch = new ImageMetadataBatch(popNextImagesToBuffer(
+            cameraChannelIndex, Math.min(maxImages, room / Math.max(1, getImageBufferSize())),
+            buffer, buffer.position()));
+      buffer.position(buffer.position() + (int) (batch.size() * getImageBufferSize()));
+      return batch;
+   }
+
+   /**
+    * Pops up to maxImages images as TaggedImages with a single native call for
+    * the pixels, and reads the system state for the tags once per batch
+    * instead of once per image.  Returns an empty list when the circular buffer
+    * is empty.
+    */
+   public List<TaggedImage> popNextTaggedImages(int cameraChannelIndex, int maxImages) throws java.lang.Exception {
+      int count = (int) Math.min(maxImages, getRemainingImageCount());
+      List<TaggedImage> images = new ArrayList<TaggedImage>(Math.max(0, count));
+      if (count <= 0) {
+         return images;
+      }
+      Object[] pixels = new Object[count];
+      for (int i = 0; i < count; i++) {
+         pixels[i] = newPixelArray();
+      }
+      ImageMetadataBatch batch = popNextImages(cameraChannelIndex, pixels);
+      if (batch.size() == 0) {
+         return images;
+      }
+      JSONObject state = new JSONObject();
+      addSystemStateTags(state);
+      List<String> stateKeys = new ArrayList<String>();
+      for (java.util.Iterator<String> it = state.keys(); it.hasNext();) {
+         stateKeys.add(it.next());
+      }
+      for (int i = 0; i < batch.size(); i++) {
+         JSONObject tags = batch.toJSON(i);
+         for (String key : stateKeys) {
+            tags.put(key, state.get(key));
+         }
+         addCameraChannelTags(tags, cameraChannelIndex);
+         images.add(new TaggedImage(pixels[i], tags));
+      }
+      return images;
+   }
+
+   public List<TaggedImage> popNextTaggedImages(int maxImages) throws java.lang.Exception {
+      return popNextTaggedImages(0, maxImages);
+   }
+
    // convenience functions follow
    
    /*
@@ -1057,6 +1206,209 @@ namespace std {
 }
 
 
+//
+// Batched image retrieval
+//
+// popNextImagesToArrays() and popNextImagesToBuffer() pop several images
+// from the circular buffer in one JNI call, copying the pixels into Java
+// arrays or a direct ByteBuffer supplied by the caller, and return the
+// metadata of all images as one string (see ImageMetadataBatch).  They are
+// used through CMMCore.popNextImages() and popNextTaggedImages().
+//
+
+%{
+// Java arguments that the batch functions need to access through JNI
+struct PixelArraysArg {
+   JNIEnv* jenv;
+   jobjectArray arrays;
+};
+
+struct DirectBufferArg {
+   char* address;
+   jlong capacity;
+};
+
+static void ThrowJavaException(JNIEnv* jenv, const char* className, const char* msg)
+{
+   jclass excep = jenv->FindClass(className);
+   if (excep)
+      jenv->ThrowNew(excep, msg);
+}
+
+// Appends the single tags of md in the format read by ImageMetadataBatch
+static void AppendMetadata(std::string& batch, const Metadata& md)
+{
+   std::vector<std::string> keys = md.GetKeys();
+   for (std::vector<std::string>::const_iterator it = keys.begin(); it != keys.end(); ++it)
+   {
+      try
+      {
+         std::string value = md.GetSingleTag(it->c_str()).GetValue();
+         batch += *it;
+         batch += '\x1f';
+         batch += value;
+         batch += '\x1e';
+      }
+      catch (...)
+      {
+         // array tags are skipped, as in CMMCore.metadataToMap()
+      }
+   }
+   batch += '\x1d';
+}
+%}
+
+%typemap(jni) PixelArraysArg* "jobjectArray"
+%typemap(jtype) PixelArraysArg* "Object[]"
+%typemap(jstype) PixelArraysArg* "Object[]"
+%typemap(javain) PixelArraysArg* "$javainput"
+%typemap(in) PixelArraysArg* (PixelArraysArg temp)
+{
+   if ($input == 0)
+   {
+      ThrowJavaException(jenv, "java/lang/NullPointerException", "Pixel arrays are null");
+      return $null;
+   }
+   temp.jenv = jenv;
+   temp.arrays = $input;
+   $1 = &temp;
+}
+
+%typemap(jni) DirectBufferArg* "jobject"
+%typemap(jtype) DirectBufferArg* "java.nio.ByteBuffer"
+%typemap(jstype) DirectBufferArg* "java.nio.ByteBuffer"
+%typemap(javain) DirectBufferArg* "$javainput"
+%typemap(in) DirectBufferArg* (DirectBufferArg temp)
+{
+   temp.address = (char*) JCALL1(GetDirectBufferAddress, jenv, $input);
+   temp.capacity = JCALL1(GetDirectBufferCapacity, jenv, $input);
+   if (temp.address == 0 || temp.capacity < 0)
+   {
+      ThrowJavaException(jenv, "java/lang/IllegalArgumentException", "Buffer is not direct");
+      return $null;
+   }
+   $1 = &temp;
+}
+
+%javamethodmodifiers CMMCore::popNextImagesToArrays "private";
+%javamethodmodifiers CMMCore::popNextImagesToBuffer "private";
+%javamethodmodifiers CMMCore::getSystemStateCacheTags "private";
+
+%extend CMMCore {
+   // Pops one image into each of the arrays, stopping early when the buffer
+   // is empty.  Arrays are checked before any image is popped, so that no
+   // image is lost when one of them is unsuitable.  An error while popping
+   // is only thrown when no image was popped yet, otherwise the images
+   // popped so far are returned.
+   std::string popNextImagesToArrays(unsigned channel, PixelArraysArg* dest) throw (CMMError)
+   {
+      JNIEnv* jenv = dest->jenv;
+      std::string batch;
+      const jsize count = jenv->GetArrayLength(dest->arrays);
+      const long imageSize = $self->getImageBufferSize();
+      const char* elementClasses[] = {"[B", "[S", "[I", "[F", "[J", "[D"};
+      const int elementSizes[] = {1, 2, 4, 4, 8, 8};
+      for (jsize i = 0; i < count; i++)
+      {
+         jobject array = jenv->GetObjectArrayElement(dest->arrays, i);
+         long bytes = -1;
+         for (int t = 0; array != 0 && bytes < 0 && t < 6; t++)
+         {
+            jclass cls = jenv->FindClass(elementClasses[t]);
+            if (jenv->IsInstanceOf(array, cls))
+               bytes = (long) jenv->GetArrayLength((jarray) array) * elementSizes[t];
+            jenv->DeleteLocalRef(cls);
+         }
+         jenv->DeleteLocalRef(array);
+         if (bytes < imageSize)
+         {
+            ThrowJavaException(jenv, "java/lang/IllegalArgumentException",
+                  "Pixel arrays must be primitive arrays that hold an image");
+            return batch;
+         }
+      }
+      for (jsize i = 0; i < count && $self->getRemainingImageCount() > 0; i++)
+      {
+         Metadata md;
+         void* pixels;
+         try
+         {
+            pixels = $self->popNextImageMD(channel, 0, md);
+         }
+         catch (CMMError&)
+         {
+            if (i == 0)
+               throw;
+            break;
+         }
+         jobject array = jenv->GetObjectArrayElement(dest->arrays, i);
+         void* target = jenv->GetPrimitiveArrayCritical((jarray) array, 0);
+         if (target == 0)
+         {
+            jenv->DeleteLocalRef(array);
+            return batch; // OutOfMemoryError is pending
+         }
+         memcpy(target, pixels, imageSize);
+         jenv->ReleasePrimitiveArrayCritical((jarray) array, target, 0);
+         jenv->DeleteLocalRef(array);
+         AppendMetadata(batch, md);
+      }
+      return batch;
+   }
+
+   // Pops up to maxImages images into the direct buffer, back to back
+   // starting at offset, stopping early when the buffer is empty or full.
+   // Errors are handled as in popNextImagesToArrays().
+   std::string popNextImagesToBuffer(unsigned channel, long maxImages,
+         DirectBufferArg* dest, long offset) throw (CMMError)
+   {
+      std::string batch;
+      const long imageSize = $self->getImageBufferSize();
+      for (long i = 0; i < maxImages && $self->getRemainingImageCount() > 0; i++)
+      {
+         if (offset < 0 || offset + imageSize > dest->capacity)
+            break;
+         Metadata md;
+         void* pixels;
+         try
+         {
+            pixels = $self->popNextImageMD(channel, 0, md);
+         }
+         catch (CMMError&)
+         {
+            if (i == 0)
+               throw;
+            break;
+         }
+         memcpy(dest->address + offset, pixels, imageSize);
+         offset += imageSize;
+         AppendMetadata(batch, md);
+      }
+      return batch;
+   }
+
+   // The system state cache as the tags of a single image, in the format
+   // read by ImageMetadataBatch, with keys of the form device-property
+   std::string getSystemStateCacheTags() throw (CMMError)
+   {
+      Configuration config = $self->getSystemStateCache();
+      std::string tags;
+      for (size_t i = 0; i < config.size(); ++i)
+      {
+         PropertySetting setting = config.getSetting(i);
+         tags += setting.getDeviceLabel();
+         tags += '-';
+         tags += setting.getPropertyName();
+         tags += '\x1f';
+         tags += setting.getPropertyValue();
+         tags += '\x1e';
+      }
+      tags += '\x1d';
+      return tags;
+   }
+}
+
+
 %include "../MMDevice/MMDeviceConstants.h"
 %include "../MMCore/Configuration.h"
 %include "../MMCore/MMCore.h"
@@ -0,0 +1,307 @@
+package mmcorej;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Typed, reference-counted pixel storage, used by image storage to keep the
+ * pixels of TaggedImages.
+ *
+ * A PixelBuffer is backed either by an ordinary Java array (byte[], short[]
+ * or int[]) or by a direct (off-heap) ByteBuffer in native byte order.
+ * Direct buffers keep pixels outside the Java heap and can be handed to a
+ * FileChannel without conversion.
+ *
+ * Ownership: direct buffers are private to the image storage that created
+ * them (see TaggedImageStorageRamFast) and never leave it.  TaggedImages
+ * always carry their pixels as array in pix, so code along the acquisition
+ * path (cache, display, storage, processors) can rely on pix being set.
+ *
+ * Reference counting: a new PixelBuffer has a count of one.  Every holder
+ * that keeps the buffer beyond the call in which it received it should call
+ * retain(), and release() when done.  When the count drops to zero the
+ * direct memory is handed to the Recycler (if any) and the buffer may no
+ * longer be used.  Array backed buffers can be used without paying attention
+ * to the count.
+ */
+public final class PixelBuffer {
+
+   public enum Type {
+      BYTE(1), SHORT(2), INT(4);
+
+      private final int bytesPerPixel_;
+
+      Type(int bytesPerPixel) {
+         bytesPerPixel_ = bytesPerPixel;
+      }
+
+      public int getBytesPerPixel() {
+         return bytesPerPixel_;
+      }
+   }
+
+   /**
+    * Receives the memory of direct buffers whose reference count dropped to
+    * zero, e.g. to return it to a pool.
+    */
+   public interface Recycler {
+      public void recycle(ByteBuffer buffer);
+   }
+
+   public static final ByteOrder NATIVE_ORDER = ByteOrder.nativeOrder();
+
+   private final Type type_;
+   private final int numPixels_;
+   private final Object array_;
+   private volatile ByteBuffer direct_;
+   private final Recycler recycler_;
+   private final AtomicInteger refCount_ = new AtomicInteger(1);
+
+   private PixelBuffer(Type type, int numPixels, Object array,
+         ByteBuffer direct, Recycler recycler) {
+      type_ = type;
+      numPixels_ = numPixels;
+      array_ = array;
+      direct_ = direct;
+      recycler_ = recycler;
+   }
+
+   /**
+    * Wraps a pixel array without copying it.
+    * @param array byte[], short[] or int[]
+    */
+   public static PixelBuffer wrap(Object array) {
+      if (array instanceof byte[]) {
+         return new PixelBuffer(Type.BYTE, ((byte[]) array).length, array, null, null);
+      } else if (array instanceof short[]) {
+         return new PixelBuffer(Type.SHORT, ((short[]) array).length, array, null, null);
+      } else if (array instanceof int[]) {
+         return new PixelBuffer(Type.INT, ((int[]) array).length, array, null, null);
+      }
+      throw new IllegalArgumentException("Unsupported pixel array: " +
+            (array == null ? "null" : array.getClass().getName()));
+   }
+
+   /**
+    * Allocates a zero-filled direct buffer.
+    */
+   public static PixelBuffer allocateDirect(Type type, int numPixels) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(numPixels * type.getBytesPerPixel());
+      return new PixelBuffer(type, numPixels, null, buffer.order(NATIVE_ORDER), null);
+   }
+
+   /**
+    * Uses existing direct memory (e.g. taken from a pool) as pixel storage.
+    * @param buffer direct buffer of at least numPixels * bytes per pixel bytes
+    * @param recycler receives the buffer when the reference count reaches
+    *        zero, may be null
+    */
+   public static PixelBuffer fromDirect(Type type, int numPixels,
+         ByteBuffer buffer, Recycler recycler) {
+      if (!buffer.isDirect()) {
+         throw new IllegalArgumentException("Buffer is not direct");
+      }
+      if (buffer.capacity() < numPixels * type.getBytesPerPixel()) {
+         throw new IllegalArgumentException("Buffer is too small");
+      }
+      return new PixelBuffer(type, numPixels, null, buffer.order(NATIVE_ORDER), recycler);
+   }
+
+   /**
+    * Copies a pixel array into a new direct buffer.
+    * @param array byte[], short[] or int[]
+    */
+   public static PixelBuffer copyToDirect(Object array) {
+      PixelBuffer heap = wrap(array);
+      PixelBuffer direct = allocateDirect(heap.type_, heap.numPixels_);
+      direct.copyFrom(array);
+      return direct;
+   }
+
+   public Type getType() {
+      return type_;
+   }
+
+   public int getNumPixels() {
+      return numPixels_;
+   }
+
+   public int getByteCount() {
+      return numPixels_ * type_.getBytesPerPixel();
+   }
+
+   public boolean isDirect() {
+      return array_ == null;
+   }
+
+   /**
+    * @return the backing array of a heap buffer, null for direct buffers
+    */
+   public Object getArray() {
+      return array_;
+   }
+
+   /**
+    * Returns the pixels as a Java array.  For heap buffers this is the
+    * backing array itself, for direct buffers a new copy.
+    */
+   public Object toArray() {
+      if (array_ != null) {
+         return array_;
+      }
+      Object array;
+      switch (type_) {
+         case BYTE:
+            array = new byte[numPixels_];
+            break;
+         case SHORT:
+            array = new short[numPixels_];
+            break;
+         default:
+            array = new int[numPixels_];
+      }
+      copyTo(array);
+      return array;
+   }
+
+   /**
+    * Copies the pixels into an existing array of matching type and size.
+    */
+   public void copyTo(Object array) {
+      if (array_ != null) {
+         System.arraycopy(array_, 0, array, 0, numPixels_);
+         return;
+      }
+      switch (type_) {
+         case BYTE:
+            asByteBuffer().get((byte[]) array, 0, numPixels_);
+            break;
+         case SHORT:
+            asShortBuffer().get((short[]) array, 0, numPixels_);
+            break;
+         default:
+            asIntBuffer().get((int[]) array, 0, numPixels_);
+      }
+   }
+
+   /**
+    * Overwrites the pixels with the content of an array of matching type.
+    */
+   public void copyFrom(Object array) {
+      if (array_ != null) {
+         System.arraycopy(array, 0, array_, 0, numPixels_);
+         return;
+      }
+      switch (type_) {
+         case BYTE:
+            asByteBuffer().put((byte[]) array, 0, numPixels_);
+            break;
+         case SHORT:
+            asShortBuffer().put((short[]) array, 0, numPixels_);
+            break;
+         default:
+            asIntBuffer().put((int[]) array, 0, numPixels_);
+      }
+   }
+
+   /**
+    * Returns a new native-order view of the pixel bytes, positioned at zero
+    * and limited to getByteCount().  Each call returns an independent view,
+    * so views can be used from different threads.  For heap buffers this is
+    * only possible without copying when the array is a byte[]; otherwise the
+    * pixels are copied into a new heap ByteBuffer.
+    */
+   public ByteBuffer asByteBuffer() {
+      if (array_ == null) {
+         ByteBuffer view = directBuffer().duplicate().order(NATIVE_ORDER);
+         view.clear();
+         view.limit(getByteCount());
+         return view;
+      }
+      if (array_ instanceof byte[]) {
+         return ByteBuffer.wrap((byte[]) array_);
+      }
+      ByteBuffer copy = ByteBuffer.allocate(getByteCount()).order(NATIVE_ORDER);
+      if (array_ instanceof short[]) {
+         copy.asShortBuffer().put((short[]) array_);
+      } else {
+         copy.asIntBuffer().put((int[]) array_);
+      }
+      return copy;
+   }
+
+   /**
+    * Returns a new view of the pixels as shorts (SHORT buffers only).
+    */
+   public ShortBuffer asShortBuffer() {
+      if (type_ != Type.SHORT) {
+         throw new IllegalStateException("Not a 16-bit pixel buffer");
+      }
+      if (array_ != null) {
+         return ShortBuffer.wrap((short[]) array_);
+      }
+      return asByteBuffer().asShortBuffer();
+   }
+
+   /**
+    * Returns a new view of the pixels as ints (INT buffers only).
+    */
+   public IntBuffer asIntBuffer() {
+      if (type_ != Type.INT) {
+         throw new IllegalStateException("Not a 32-bit pixel buffer");
+      }
+      if (array_ != null) {
+         return IntBuffer.wrap((int[]) array_);
+      }
+      return asByteBuffer().asIntBuffer();
+   }
+
+   /**
+    * Increments the reference count.
+    * @return this
+    */
+   public PixelBuffer retain() {
+      while (true) {
+         int count = refCount_.get();
+         if (count <= 0) {
+            throw new IllegalStateException("PixelBuffer has already been released");
+         }
+         if (refCount_.compareAndSet(count, count + 1)) {
+            return this;
+         }
+      }
+   }
+
+   /**
+    * Decrements the reference count, freeing (or recycling) direct memory
+    * when it reaches zero.
+    */
+   public void release() {
+      int count = refCount_.decrementAndGet();
+      if (count == 0) {
+         ByteBuffer direct = direct_;
+         direct_ = null;
+         if (direct != null && recycler_ != null) {
+            recycler_.recycle(direct);
+         }
+      } else if (count < 0) {
+         refCount_.incrementAndGet();
+         throw new IllegalStateException("PixelBuffer released too often");
+      }
+   }
+
+   public int getRefCount() {
+      return refCount_.get();
+   }
+
+   private ByteBuffer directBuffer() {
+      ByteBuffer direct = direct_;
+      if (direct == null) {
+         throw new IllegalStateException("PixelBuffer has already been released");
+      }
+      return direct;
+   }
+}
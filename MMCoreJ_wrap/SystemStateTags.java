@@ -0,0 +1,163 @@
+package mmcorej;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Versions of the system state (device property values) that are referenced
+ * by image tags instead of being copied into them.
+ *
+ * When CMMCore.setDeltaSystemStateTags(true) is in effect, the VERSION_KEY
+ * tag of an image holds a Snapshot, the immutable state at the time the
+ * image was taken.  The tags keep their snapshot alive, so the state stays
+ * available however long the image is queued or stored.  A Snapshot is a
+ * Number and is written out as its version; tags that were copied as text
+ * find the snapshot by version for as long as any image still holds it.
+ *
+ * The tags are not expanded up front.  Code that needs the device
+ * properties, e.g. storage writing the tags to disk or the metadata display,
+ * calls expanded() on the tags it is about to use.
+ */
+public final class SystemStateTags {
+   public static final String VERSION_KEY = "SystemStateVersion";
+
+   /**
+    * An immutable system state.  Its numeric value is the version.
+    */
+   public static final class Snapshot extends Number {
+      private static final long serialVersionUID = 1L;
+      private final long version_;
+      private final transient JSONObject state_;
+
+      private Snapshot(long version, JSONObject state) {
+         version_ = version;
+         state_ = state;
+      }
+
+      public long getVersion() {
+         return version_;
+      }
+
+      /**
+       * @return the device properties, not to be modified
+       */
+      public JSONObject getState() {
+         return state_;
+      }
+
+      @Override
+      public int intValue() {
+         return (int) version_;
+      }
+
+      @Override
+      public long longValue() {
+         return version_;
+      }
+
+      @Override
+      public float floatValue() {
+         return version_;
+      }
+
+      @Override
+      public double doubleValue() {
+         return version_;
+      }
+
+      @Override
+      public String toString() {
+         return Long.toString(version_);
+      }
+   }
+
+   private static final class SnapshotReference extends WeakReference<Snapshot> {
+      final long version_;
+
+      SnapshotReference(Snapshot snapshot, ReferenceQueue<Snapshot> queue) {
+         super(snapshot, queue);
+         version_ = snapshot.getVersion();
+      }
+   }
+
+   private static long lastVersion_ = 0;
+   private static final Map<Long, SnapshotReference> versions_ =
+         new HashMap<Long, SnapshotReference>();
+   private static final ReferenceQueue<Snapshot> released_ =
+         new ReferenceQueue<Snapshot>();
+
+   private SystemStateTags() {
+   }
+
+   /**
+    * Registers a new state.  The state must not be modified afterwards.
+    * @return the snapshot referring to it
+    */
+   static synchronized Snapshot register(JSONObject state) {
+      // forget the versions no image refers to anymore
+      for (SnapshotReference ref = (SnapshotReference) released_.poll();
+            ref != null; ref = (SnapshotReference) released_.poll()) {
+         versions_.remove(ref.version_);
+      }
+      lastVersion_++;
+      Snapshot snapshot = new Snapshot(lastVersion_, state);
+      versions_.put(lastVersion_, new SnapshotReference(snapshot, released_));
+      return snapshot;
+   }
+
+   /**
+    * @return the snapshot with the given version, or null if no image
+    *         refers to it anymore
+    */
+   public static synchronized Snapshot get(long version) {
+      SnapshotReference ref = versions_.get(version);
+      return ref == null ? null : ref.get();
+   }
+
+   /**
+    * @return the snapshot the tags refer to, or null if they refer to none
+    *         or to one that is no longer known
+    */
+   public static Snapshot getSnapshot(JSONObject tags) throws JSONException {
+      if (tags == null || !tags.has(VERSION_KEY)) {
+         return null;
+      }
+      Object value = tags.get(VERSION_KEY);
+      if (value instanceof Snapshot) {
+         return (Snapshot) value;
+      }
+      return get(tags.getLong(VERSION_KEY));
+   }
+
+   /**
+    * Returns the full tags: tags itself if they refer to no state (or to one
+    * that is no longer known), otherwise a copy in which the reference is
+    * replaced by the properties of the state.  As with full system state
+    * tags, property values take precedence over tags of the same name.
+    * The tags passed in are not modified.
+    */
+   public static JSONObject expanded(JSONObject tags) throws JSONException {
+      Snapshot snapshot = getSnapshot(tags);
+      if (snapshot == null) {
+         return tags;
+      }
+      JSONObject full = new JSONObject();
+      for (Iterator<String> keys = tags.keys(); keys.hasNext();) {
+         String key = keys.next();
+         if (!key.equals(VERSION_KEY)) {
+            full.put(key, tags.get(key));
+         }
+      }
+      JSONObject state = snapshot.getState();
+      for (Iterator<String> keys = state.keys(); keys.hasNext();) {
+         String key = keys.next();
+         full.put(key, state.get(key));
+      }
+      return full;
+   }
+}
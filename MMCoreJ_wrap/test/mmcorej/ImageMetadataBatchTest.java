@@ -0,0 +1,64 @@
+package mmcorej;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageMetadataBatchTest {
+   private static String tag(String key, String value) {
+      return key + ImageMetadataBatch.KEY_END + value + ImageMetadataBatch.TAG_END;
+   }
+
+   private static final String BATCH =
+         tag("Camera", "Cam1") + tag("ElapsedTime-ms", "10.5")
+         + ImageMetadataBatch.IMAGE_END
+         + ImageMetadataBatch.IMAGE_END
+         + tag("Camera", "Cam2") + tag("Binning", "")
+         + ImageMetadataBatch.IMAGE_END;
+
+   @Test
+   public void emptyBatchHasNoImages() {
+      assertEquals(0, new ImageMetadataBatch("").size());
+   }
+
+   @Test
+   public void imagesAreCounted() {
+      assertEquals(3, new ImageMetadataBatch(BATCH).size());
+   }
+
+   @Test
+   public void singleTagsAreFound() throws Exception {
+      ImageMetadataBatch batch = new ImageMetadataBatch(BATCH);
+      assertEquals("Cam1", batch.getTag(0, "Camera"));
+      assertEquals("10.5", batch.getTag(0, "ElapsedTime-ms"));
+      assertNull(batch.getTag(0, "Binning"));
+      // a key that is a prefix of another key does not match it
+      assertNull(batch.getTag(0, "Elapsed"));
+      assertNull(batch.getTag(1, "Camera"));
+      assertEquals("Cam2", batch.getTag(2, "Camera"));
+      assertEquals("", batch.getTag(2, "Binning"));
+   }
+
+   @Test
+   public void tagsBecomeJSON() throws Exception {
+      ImageMetadataBatch batch = new ImageMetadataBatch(BATCH);
+      JSONObject first = batch.toJSON(0);
+      assertEquals(2, first.length());
+      assertEquals("Cam1", first.getString("Camera"));
+      assertEquals("10.5", first.getString("ElapsedTime-ms"));
+      assertEquals(0, batch.toJSON(1).length());
+      JSONObject last = batch.toJSON(2);
+      assertEquals(2, last.length());
+      assertEquals("Cam2", last.getString("Camera"));
+      assertEquals("", last.getString("Binning"));
+   }
+
+   @Test
+   public void putTagsKeepsExistingTags() throws Exception {
+      JSONObject tags = new JSONObject();
+      tags.put("Frame", 3);
+      new ImageMetadataBatch(BATCH).putTags(2, tags);
+      assertEquals(3, tags.getInt("Frame"));
+      assertEquals("Cam2", tags.getString("Camera"));
+   }
+}
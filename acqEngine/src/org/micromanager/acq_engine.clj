@@ -20,7 +20,7 @@
      [ChannelSpec-to-map MultiStagePosition-to-map attempt-all core
       data-object-to-map do-when double-vector get-camera-roi
       get-current-time-str get-msp get-msp-z-position get-pixel-type
-      get-property get-property-value get-system-config-cached gui json-to-data
+      get-property get-property-value get-system-config-cached gui
       load-mm log map-config mmc rekey set-msp-z-position store-mmcore
       str-vector when-lets with-core-setting]]
     [org.micromanager.sequence-generator :only [generate-acq-sequence]])
@@ -31,7 +31,7 @@
     [ij ImagePlus]
     [java.io EOFException] ; abused to indicate canceled burst image collection
     [java.net InetAddress UnknownHostException]
-    [java.util Date UUID]
+    [java.util ArrayDeque Date UUID]
     [java.util.concurrent CountDownLatch LinkedBlockingQueue TimeUnit]
     [mmcorej Configuration Metadata TaggedImage]
     [org.json JSONArray JSONObject]
@@ -79,11 +79,11 @@
 (defn elapsed-time [state]
   (if (state :start-time) (- (jvm-time-ms) (state :start-time)) 0))
 
-(defn core-time-from-tags [tags]
-  (try (Double/parseDouble (tags "ElapsedTime-ms")) (catch Exception e nil)))
+(defn core-time-from-tags [^JSONObject tags]
+  (try (Double/parseDouble (.getString tags "ElapsedTime-ms")) (catch Exception e nil)))
 
-(defn burst-time [tags state]
-  (when (and (:burst-time-offset state) (get tags "ElapsedTime-ms"))
+(defn burst-time [^JSONObject tags state]
+  (when (and (:burst-time-offset state) (.has tags "ElapsedTime-ms"))
     (+ (core-time-from-tags tags)
        (:burst-time-offset state))))
 
@@ -145,26 +145,25 @@
     (when-let [runnables (event :runnables)]
       {"AttachedTasks" (JSONArray. (map str runnables))})))
 
-(defn annotate-image [img event state elapsed-time-ms]
-  {:pix (:pix img)
-   :tags
-   (merge-with #(or %2 %1) ; only overwrite tags if generated tag is not nil
-     (:tags img)
-     (generate-metadata event state)
-     {"ElapsedTime-ms" elapsed-time-ms}
-     )}) ;; include any existing metadata
-
-(defn unwrap-tagged-image
-  "Take a TaggedImage (as from core) and return a clojure data object,
-   with keys :pix and :tags."
-  [^TaggedImage tagged-image]
-  {:pix (.pix tagged-image)
-   :tags (json-to-data (.tags tagged-image))})
-
-(defn make-TaggedImage
-  "Take a clojure map with keys :pix and :tags and generate a TaggedImage."
-  [annotated-img]
-  (TaggedImage. (:pix annotated-img) (JSONObject. (:tags annotated-img))))
+(defn put-tags!
+  "Put the entries of a map into a JSONObject, skipping nil values so
+   that existing tags are only overwritten by generated ones."
+  [^JSONObject tags m]
+  (doseq [[k v] m]
+    (when-not (nil? v)
+      (.put tags ^String k ^Object v)))
+  tags)
+
+(defn annotate-image
+  "Add the metadata for an event to the tags of a TaggedImage (as from
+   core), keeping any existing metadata. The tags are modified in place
+   rather than converted to clojure data and back, which for small images
+   costs more than the readout. Returns the image."
+  [^TaggedImage img event state elapsed-time-ms]
+  (doto (.tags img)
+    (put-tags! (generate-metadata event state))
+    (put-tags! {"ElapsedTime-ms" elapsed-time-ms}))
+  img)
 
 ;; hardware error handling
 
@@ -379,7 +378,27 @@
 
 (defn pop-burst-image
   [timeout-ms]
-  (unwrap-tagged-image (pop-tagged-image-timeout timeout-ms)))
+  (pop-tagged-image-timeout timeout-ms))
+
+(def burst-batch-size 64)
+
+(defn burst-image-source
+  "Returns a zero-arg function that returns the next of n burst images.
+   Waits for one image as pop-burst-image does, then takes whatever else
+   is waiting in the circular buffer (up to the images still expected)
+   with a single batched core call."
+  [n timeout-ms]
+  (let [pending (ArrayDeque.)
+        remaining (atom n)]
+    (fn []
+      (when (.isEmpty pending)
+        (.add pending (pop-tagged-image-timeout timeout-ms))
+        (swap! remaining dec)
+        (when (pos? @remaining)
+          (let [more (. mmc popNextTaggedImages (int (min @remaining burst-batch-size)))]
+            (.addAll pending more)
+            (swap! remaining - (.size more)))))
+      (.poll pending))))
 
 (defn queuify
   "Runs zero-arg function n times on a new thread. Returns
@@ -405,7 +424,7 @@
 
 (defn pop-burst-images
   [n timeout-ms]
-  (queuify n 10 #(pop-burst-image timeout-ms)))
+  (queuify n 10 (burst-image-source n timeout-ms)))
 
 (defn make-multicamera-channel [raw-channel-index camera-channel num-camera-channels]
   (+ camera-channel (* num-camera-channels (or raw-channel-index 0))))
@@ -444,16 +463,17 @@
   (do (prn x)
       x))
 
-(defn tag-burst-image [image burst-events camera-channel-names camera-index-tag
-                       image-number-offset]
+(defn tag-burst-image [^TaggedImage image burst-events camera-channel-names
+                       camera-index-tag image-number-offset]
   (swap! state assoc-if-nil :burst-time-offset
          (- (elapsed-time @state)
-            (core-time-from-tags (image :tags))))
-  (let [cam-chan (if-let [cam-chan-str (get-in image [:tags camera-index-tag])]
-                   (Long/parseLong cam-chan-str)
+            (core-time-from-tags (.tags image))))
+  (let [tags (.tags image)
+        cam-chan (if (.has tags camera-index-tag)
+                   (Long/parseLong (.getString tags camera-index-tag))
                    0)
         image-number (+ image-number-offset
-                        (Long/parseLong (get-in image [:tags "ImageNumber"])))
+                        (Long/parseLong (.getString tags "ImageNumber")))
         burst-event (nth burst-events image-number)
         camera-channel-name (nth camera-channel-names cam-chan)
         num-camera-channels (count camera-channel-names)
@@ -465,7 +485,7 @@
                            super-channel-name
                            camera-channel-name num-camera-channels)
                 (assoc :camera-channel-index cam-chan))
-        time-stamp (burst-time (:tags image) @state)]
+        time-stamp (burst-time tags @state)]
     (annotate-image image event @state time-stamp)))
 
 (defn send-tagged-image
@@ -497,10 +517,8 @@
                           (if (.getCause e) ; unwrap rethrown exception
                             (throw (.getCause e))
                             (throw e))))]
-            (-> image
-              (tag-burst-image burst-events camera-channel-names camera-index-tag
-                               image-number-offset)
-              make-TaggedImage))))
+            (tag-burst-image image burst-events camera-channel-names camera-index-tag
+                             image-number-offset))))
       (finally (burst-cleanup)))))
 
 (defn collect-burst-images [event out-queue settings]
@@ -513,12 +531,12 @@
       (produce-burst-images burst-events camera-channel-names pop-timeout-ms out-queue))))
 
 (defn collect-snap-image [event out-queue]
-  (let [image (unwrap-tagged-image (core getTaggedImage (event :camera-channel-index)))]
+  (let [image (core getTaggedImage (event :camera-channel-index))]
     (select-keys event [:position-index :frame-index
                         :slice-index :channel-index])
     (when out-queue
       (send-tagged-image out-queue
-            (make-TaggedImage (annotate-image image event @state (elapsed-time @state)))))
+            (annotate-image image event @state (elapsed-time @state))))
     image))
 
 (defn return-config []
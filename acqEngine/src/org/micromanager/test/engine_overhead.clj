@@ -0,0 +1,77 @@
+(ns org.micromanager.test.engine-overhead
+  "Measure the per-image overhead of tagging images in the acquisition
+   engine. Needs no hardware: (report) prints microseconds per image for
+   in-place annotation and for the former JSON to clojure data round trip."
+  (:import (mmcorej TaggedImage)
+           (org.json JSONObject))
+  (:require [org.micromanager.acq-engine :as engine]
+            [org.micromanager.mm :as mm]))
+
+;; test images
+
+(defn core-tags
+  "Tags resembling those the core attaches to each image: the system state
+   cache and the per-image tags, all as strings."
+  [num-properties]
+  (let [tags (JSONObject.)]
+    (dotimes [i num-properties]
+      (.put tags (str "Device" (quot i 10) "-Property" (mod i 10)) ^Object (str i)))
+    (doseq [[k v] {"Camera" "Camera" "ElapsedTime-ms" "12.5" "ImageNumber" "0"
+                   "Binning" "1" "BitDepth" "16" "PixelType" "GRAY16"
+                   "Width" "64" "Height" "64" "ROI" "0-0-64-64"}]
+      (.put tags ^String k ^Object v))
+    tags))
+
+(defn test-images
+  "n small images sharing their pixels, each with its own tags."
+  [n num-properties]
+  (let [pix (short-array (* 64 64))]
+    (vec (repeatedly n #(TaggedImage. pix (core-tags num-properties))))))
+
+(def test-event
+  {:camera "Camera" :camera-channel-index 0
+   :channel {:name "DAPI"} :channel-index 0
+   :exposure 10.0 :frame-index 0 :next-frame-index 1
+   :slice 0.0 :slice-index 0 :position-index 0
+   :metadata {"Dichroic-Label" "400DCLP" "Emission-Label" "Chroma-HQ465"}})
+
+(def test-state
+  {:binning 1 :bit-depth 16 :init-width 64 :init-height 64
+   :pixel-size-um 0.1 :pixel-type "GRAY16" :source "Camera"})
+
+;; annotation
+
+(defn round-trip-annotate
+  "The engine's former path: tags converted to clojure data, merged with
+   the generated metadata, and converted back to a new JSONObject."
+  [^TaggedImage img event state elapsed-time-ms]
+  (TaggedImage. (.pix img)
+    (JSONObject.
+      (merge-with #(or %2 %1)
+        (mm/json-to-data (.tags img))
+        (engine/generate-metadata event state)
+        {"ElapsedTime-ms" elapsed-time-ms}))))
+
+(defn time-per-image-us
+  "Annotate n fresh images with annotate-fn and return the mean time per
+   image in microseconds."
+  [annotate-fn n num-properties]
+  (let [images (test-images n num-properties)
+        start (System/nanoTime)]
+    (doseq [img images]
+      (annotate-fn img test-event test-state 12.5))
+    (/ (- (System/nanoTime) start) 1000.0 n)))
+
+(defn best-time-per-image-us
+  "Best of several runs, the first ones warming up the JIT."
+  [annotate-fn n num-properties]
+  (apply min (repeatedly 5 #(time-per-image-us annotate-fn n num-properties))))
+
+(defn report
+  ([] (report 2000 [0 100 500]))
+  ([n property-counts]
+    (doseq [num-properties property-counts]
+      (println (format "%4d properties: in place %7.1f us/image, round trip %7.1f us/image"
+                       num-properties
+                       (best-time-per-image-us engine/annotate-image n num-properties)
+                       (best-time-per-image-us round-trip-annotate n num-properties))))))
@@ -0,0 +1,74 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BenchmarkFiles.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Scratch directories for the benchmarks that write files.  They are made in
+ * the directory named by the mm.benchmark.dir system property, or else on
+ * the tmpfs at /dev/shm where there is one, so that the benchmarks measure
+ * our code rather than the disk.
+ */
+public final class BenchmarkFiles {
+   private BenchmarkFiles() {
+   }
+
+   public static File getBaseDirectory() {
+      String dir = System.getProperty("mm.benchmark.dir", "");
+      if (dir.length() > 0) {
+         return new File(dir);
+      }
+      File shm = new File("/dev/shm");
+      if (shm.isDirectory() && shm.canWrite()) {
+         return shm;
+      }
+      return new File(System.getProperty("java.io.tmpdir"));
+   }
+
+   /**
+    * @return a new, empty directory
+    */
+   public static File createDirectory(String prefix) throws IOException {
+      File dir = File.createTempFile(prefix, "", getBaseDirectory());
+      if (!dir.delete() || !dir.mkdir()) {
+         throw new IOException("Failed to create directory " + dir);
+      }
+      return dir;
+   }
+
+   /**
+    * Deletes a file, or a directory and everything in it.
+    */
+   public static void delete(File file) {
+      if (file == null) {
+         return;
+      }
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            delete(child);
+         }
+      }
+      file.delete();
+   }
+}
@@ -0,0 +1,154 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BenchmarkReportComparison.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compares two JMH reports in JSON format, e.g. of the last release and of
+ * the current tree, and lists the benchmarks that became slower or faster.
+ *
+ * A benchmark counts as changed when its score moved by more than the
+ * threshold (5% unless given) and by more than the error margins of both
+ * runs.  The exit status is 1 if any benchmark became slower.
+ *
+ * Usage: BenchmarkReportComparison baseline.json current.json [threshold%]
+ */
+public final class BenchmarkReportComparison {
+   private static final class Score {
+      final double score;
+      final double error;
+      final String unit;
+      final boolean higherIsBetter;
+
+      Score(JSONObject result) throws JSONException {
+         JSONObject metric = result.getJSONObject("primaryMetric");
+         score = metric.getDouble("score");
+         double error = metric.optDouble("scoreError", 0);
+         this.error = Double.isNaN(error) ? 0 : error;
+         unit = metric.getString("scoreUnit");
+         higherIsBetter = "thrpt".equals(result.getString("mode"));
+      }
+   }
+
+   private BenchmarkReportComparison() {
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println("Usage: BenchmarkReportComparison baseline.json current.json [threshold%]");
+         System.exit(2);
+      }
+      double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.05;
+      Map<String, Score> baseline = readReport(new File(args[0]));
+      Map<String, Score> current = readReport(new File(args[1]));
+
+      int slower = 0, faster = 0, missing = 0;
+      for (Map.Entry<String, Score> entry : current.entrySet()) {
+         Score now = entry.getValue();
+         Score then = baseline.get(entry.getKey());
+         if (then == null || !then.unit.equals(now.unit) || then.score == 0) {
+            System.out.println(String.format("%-90s %12.3f %s (new)",
+                    entry.getKey(), now.score, now.unit));
+            continue;
+         }
+         double change = (now.score - then.score) / then.score;
+         boolean significant = Math.abs(change) > threshold
+                 && Math.abs(now.score - then.score) > now.error + then.error;
+         String verdict = "";
+         if (significant) {
+            boolean better = (change > 0) == now.higherIsBetter;
+            verdict = better ? "faster" : "SLOWER";
+            if (better) {
+               faster++;
+            } else {
+               slower++;
+            }
+         }
+         System.out.println(String.format("%-90s %12.3f -> %12.3f %s %+7.1f%% %s",
+                 entry.getKey(), then.score, now.score, now.unit, 100 * change,
+                 verdict));
+      }
+      for (String key : baseline.keySet()) {
+         if (!current.containsKey(key)) {
+            missing++;
+         }
+      }
+      System.out.println(String.format(
+              "%d slower, %d faster, %d of %d baseline benchmarks not run",
+              slower, faster, missing, baseline.size()));
+      System.exit(slower > 0 ? 1 : 0);
+   }
+
+   /**
+    * @return the scores in a report, by benchmark name and parameters
+    */
+   private static Map<String, Score> readReport(File file)
+           throws IOException, JSONException {
+      JSONArray results = new JSONArray(readFile(file));
+      Map<String, Score> scores = new LinkedHashMap<String, Score>();
+      for (int i = 0; i < results.length(); i++) {
+         JSONObject result = results.getJSONObject(i);
+         StringBuilder key = new StringBuilder(result.getString("benchmark").
+                 replace("org.micromanager.benchmark.", ""));
+         JSONObject params = result.optJSONObject("params");
+         if (params != null) {
+            // sorted, so that the keys of both reports match
+            Map<String, Object> sorted = new TreeMap<String, Object>();
+            Iterator<?> names = params.keys();
+            while (names.hasNext()) {
+               String name = (String) names.next();
+               sorted.put(name, params.get(name));
+            }
+            key.append(sorted);
+         }
+         key.append(" ").append(result.getString("mode"));
+         scores.put(key.toString(), new Score(result));
+      }
+      return scores;
+   }
+
+   private static String readFile(File file) throws IOException {
+      Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+      try {
+         StringBuilder sb = new StringBuilder();
+         char[] buffer = new char[8192];
+         int n;
+         while ((n = reader.read(buffer)) > 0) {
+            sb.append(buffer, 0, n);
+         }
+         return sb.toString();
+      } finally {
+         reader.close();
+      }
+   }
+}
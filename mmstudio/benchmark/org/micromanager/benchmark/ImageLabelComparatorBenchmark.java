@@ -0,0 +1,97 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageLabelComparatorBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.MDUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Ordering of image labels, which storage does for every image it puts in
+ * or looks up in its maps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ImageLabelComparatorBenchmark {
+   @Param({"false", "true"})
+   public boolean slicesFirst;
+
+   private ImageLabelComparator comparator_;
+   private String[] labels_;
+   private TreeMap<String, Integer> map_;
+   private int next_ = 0;
+
+   @Setup
+   public void makeLabels() {
+      comparator_ = new ImageLabelComparator(slicesFirst, false);
+      // 4 channels, 10 slices, 25 frames, 4 positions, in random order
+      List<String> labels = new ArrayList<String>();
+      for (int p = 0; p < 4; p++) {
+         for (int f = 0; f < 25; f++) {
+            for (int s = 0; s < 10; s++) {
+               for (int c = 0; c < 4; c++) {
+                  labels.add(MDUtils.generateLabel(c, s, f, p));
+               }
+            }
+         }
+      }
+      Collections.shuffle(labels, new Random(0));
+      labels_ = labels.toArray(new String[labels.size()]);
+      map_ = new TreeMap<String, Integer>(comparator_);
+      for (int i = 0; i < labels_.length; i++) {
+         map_.put(labels_[i], i);
+      }
+   }
+
+   @Benchmark
+   public int compare() {
+      next_ = (next_ + 1) % (labels_.length - 1);
+      return comparator_.compare(labels_[next_], labels_[next_ + 1]);
+   }
+
+   @Benchmark
+   public Integer lookUp() {
+      next_ = (next_ + 1) % labels_.length;
+      return map_.get(labels_[next_]);
+   }
+
+   @Benchmark
+   public String[] sortDataSet() {
+      String[] labels = labels_.clone();
+      Arrays.sort(labels, comparator_);
+      return labels;
+   }
+}
@@ -0,0 +1,103 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MetadataBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Image metadata handling done for every image: parsing the tags the core
+ * sends as text, the MDUtils accessors used along the pipeline, copying and
+ * serializing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MetadataBenchmark {
+   @Param({"16", "256"})
+   public int propertyTags;
+
+   private JSONObject tags_;
+   private String text_;
+
+   @Setup
+   public void makeTags() throws Exception {
+      SyntheticImages images = new SyntheticImages(SyntheticImages.GRAY16, 512, 512, propertyTags);
+      tags_ = images.makeTags(1, 2, 3, 0);
+      text_ = tags_.toString();
+      tags_ = new JSONObject(text_);
+   }
+
+   @Benchmark
+   public JSONObject parse() throws Exception {
+      return new JSONObject(text_);
+   }
+
+   @Benchmark
+   public int parseAndGetIndices() throws Exception {
+      JSONObject tags = new JSONObject(text_);
+      return MDUtils.getChannelIndex(tags) + MDUtils.getFrameIndex(tags);
+   }
+
+   @Benchmark
+   public String getLabel() {
+      return MDUtils.getLabel(tags_);
+   }
+
+   @Benchmark
+   public void getIndices(Blackhole bh) throws Exception {
+      bh.consume(MDUtils.getChannelIndex(tags_));
+      bh.consume(MDUtils.getSliceIndex(tags_));
+      bh.consume(MDUtils.getFrameIndex(tags_));
+      bh.consume(MDUtils.getPositionIndex(tags_));
+   }
+
+   @Benchmark
+   public void getImageProperties(Blackhole bh) throws Exception {
+      bh.consume(MDUtils.getWidth(tags_));
+      bh.consume(MDUtils.getHeight(tags_));
+      bh.consume(MDUtils.getPixelType(tags_));
+      bh.consume(MDUtils.getExposureMs(tags_));
+      bh.consume(MDUtils.getElapsedTimeMs(tags_));
+   }
+
+   @Benchmark
+   public JSONObject copy() {
+      return MDUtils.copy(tags_);
+   }
+
+   @Benchmark
+   public String copyAndSerialize() {
+      // a changed copy has to be serialized from its members
+      JSONObject copy = MDUtils.copy(tags_);
+      return copy.toString();
+   }
+}
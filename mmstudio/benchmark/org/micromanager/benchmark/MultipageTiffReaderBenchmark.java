@@ -0,0 +1,86 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffReaderBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time to read an image (pixels and metadata) from a finished multipage
+ * TIFF data set, as a display or an analysis does when scrolling through
+ * frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MultipageTiffReaderBenchmark {
+   @Param({SyntheticImages.GRAY8, SyntheticImages.GRAY16})
+   public String pixelType;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   @Param({"16", "256"})
+   public int propertyTags;
+
+   private File dir_;
+   private TaggedImageStorageMultipageTiff storage_;
+   private int frame_ = 0;
+
+   @Setup(Level.Trial)
+   public void openDataSet() throws Exception {
+      SyntheticImages images = new SyntheticImages(pixelType, size, size, propertyTags);
+      TaggedImage[] frames = new TaggedImage[MultipageTiffWriterBenchmark.FRAMES];
+      for (int frame = 0; frame < frames.length; frame++) {
+         frames[frame] = images.makeImage(0, 0, frame, 0);
+      }
+      dir_ = BenchmarkFiles.createDirectory("MPTiffRead");
+      MultipageTiffWriterBenchmark.writeDataSet(dir_, images, frames);
+      storage_ = new TaggedImageStorageMultipageTiff(dir_.getPath(), false,
+              null, false, false, true);
+   }
+
+   @TearDown(Level.Trial)
+   public void deleteDataSet() {
+      if (storage_ != null) {
+         storage_.close();
+      }
+      BenchmarkFiles.delete(dir_);
+   }
+
+   @Benchmark
+   public TaggedImage readImage() {
+      frame_ = (frame_ + 1) % MultipageTiffWriterBenchmark.FRAMES;
+      return storage_.getImage(0, 0, frame_, 0);
+   }
+}
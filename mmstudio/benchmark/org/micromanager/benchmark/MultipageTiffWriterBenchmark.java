@@ -0,0 +1,109 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffWriterBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time per image to write a multipage TIFF data set: each invocation writes
+ * a data set of FRAMES images and finishes it, so the score includes the
+ * image's share of the index map, display settings and OME-XML.  Data sets
+ * are deleted after each invocation, to keep tmpfs from filling up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MultipageTiffWriterBenchmark {
+   static final int FRAMES = 32;
+
+   @Param({SyntheticImages.GRAY8, SyntheticImages.GRAY16})
+   public String pixelType;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   @Param({"16", "256"})
+   public int propertyTags;
+
+   private SyntheticImages images_;
+   private TaggedImage[] frames_;
+   private File dir_;
+
+   @Setup(Level.Trial)
+   public void makeImages() {
+      images_ = new SyntheticImages(pixelType, size, size, propertyTags);
+   }
+
+   // metadata is made afresh for each data set, because storage adds tags
+   @Setup(Level.Invocation)
+   public void prepareDataSet() throws Exception {
+      frames_ = new TaggedImage[FRAMES];
+      for (int frame = 0; frame < FRAMES; frame++) {
+         frames_[frame] = images_.makeImage(0, 0, frame, 0);
+      }
+      dir_ = BenchmarkFiles.createDirectory("MPTiffWrite");
+   }
+
+   @TearDown(Level.Invocation)
+   public void deleteDataSet() {
+      BenchmarkFiles.delete(dir_);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(FRAMES)
+   public void writeDataSet() throws Exception {
+      writeDataSet(dir_, images_, frames_);
+   }
+
+   /**
+    * Writes the images as a single-position data set, the way an acquisition
+    * does: fast storage mode, without a separate metadata file.
+    */
+   static void writeDataSet(File dir, SyntheticImages images, TaggedImage[] frames)
+           throws Exception {
+      TaggedImageStorageMultipageTiff storage = new TaggedImageStorageMultipageTiff(
+              dir.getPath(), true,
+              images.makeSummaryMetadata("Benchmark", 1, 1, frames.length, 1),
+              false, false, true);
+      try {
+         for (TaggedImage image : frames) {
+            storage.putImage(image);
+         }
+         storage.finished();
+      } finally {
+         storage.close();
+      }
+   }
+}
@@ -0,0 +1,95 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelKernelBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.PixelStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The ImageUtils pixel kernels that run on every displayed or processed
+ * image: statistics for the histograms, minimum and maximum, and background
+ * subtraction.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PixelKernelBenchmark {
+   @Param({SyntheticImages.GRAY8, SyntheticImages.GRAY16})
+   public String pixelType;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   private Object pixels_;
+   private Object background_;
+   private PixelStatistics statistics_;
+
+   @Setup
+   public void makePixels() {
+      pixels_ = new SyntheticImages(pixelType, size, size, 0).getPixels();
+      // a different seed, so that subtraction does not produce zeros
+      background_ = new SyntheticImages(pixelType, size + 1, size + 1, 0).getPixels();
+      if (pixels_ instanceof byte[]) {
+         background_ = Arrays.copyOf((byte[]) background_, size * size);
+      } else {
+         background_ = Arrays.copyOf((short[]) background_, size * size);
+      }
+      statistics_ = new PixelStatistics();
+   }
+
+   @Benchmark
+   public PixelStatistics computeStatistics() {
+      return ImageUtils.computeStatistics(pixels_, size, size, statistics_, false);
+   }
+
+   @Benchmark
+   public PixelStatistics computeStatisticsParallel() {
+      return ImageUtils.computeStatistics(pixels_, size, size, statistics_, true);
+   }
+
+   @Benchmark
+   public int[] getMinMax() {
+      return ImageUtils.getMinMax(pixels_);
+   }
+
+   @Benchmark
+   public int findArrayMax() {
+      return ImageUtils.findArrayMax(pixels_);
+   }
+
+   @Benchmark
+   public Object subtractPixelArrays() {
+      if (pixels_ instanceof byte[]) {
+         return ImageUtils.subtractPixelArrays((byte[]) pixels_, (byte[]) background_);
+      }
+      return ImageUtils.subtractPixelArrays((short[]) pixels_, (short[]) background_);
+   }
+}
@@ -0,0 +1,94 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ProcessorStackBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.ProcessorStack;
+import org.micromanager.api.DataProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time for an image to pass through a chain of data processors that do
+ * nothing to it, i.e. the cost of handing images from thread to thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ProcessorStackBenchmark {
+   @Param({"1", "3"})
+   public int processors;
+
+   private BlockingQueue<TaggedImage> input_;
+   private BlockingQueue<TaggedImage> output_;
+   private List<DataProcessor<TaggedImage>> processors_;
+   private TaggedImage image_;
+
+   public static class IdentityProcessor extends DataProcessor<TaggedImage> {
+      @Override
+      protected void process() {
+         TaggedImage image = poll();
+         if (image != null) {
+            produce(image);
+         }
+      }
+   }
+
+   @Setup(Level.Trial)
+   public void startProcessors() throws Exception {
+      image_ = new SyntheticImages(SyntheticImages.GRAY16, 512, 512, 16).makeImage(0, 0, 0, 0);
+      processors_ = new ArrayList<DataProcessor<TaggedImage>>();
+      for (int i = 0; i < processors; i++) {
+         processors_.add(new IdentityProcessor());
+      }
+      input_ = new LinkedBlockingQueue<TaggedImage>(1);
+      output_ = ProcessorStack.run(input_, processors_);
+   }
+
+   @TearDown(Level.Trial)
+   public void stopProcessors() throws InterruptedException {
+      for (DataProcessor<TaggedImage> processor : processors_) {
+         processor.requestStop();
+      }
+      for (DataProcessor<TaggedImage> processor : processors_) {
+         processor.join();
+      }
+   }
+
+   @Benchmark
+   public TaggedImage handOff() throws InterruptedException {
+      input_.put(image_);
+      return output_.take();
+   }
+}
@@ -0,0 +1,85 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RamStorageBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.TaggedImageStorageRamFast;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time to put an image into RAM storage.  The benchmark cycles through
+ * FRAMES labels, so each image replaces an earlier one and the memory used
+ * stays bounded, while the storage still copies every image.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RamStorageBenchmark {
+   private static final int FRAMES = 8;
+
+   @Param({SyntheticImages.GRAY8, SyntheticImages.GRAY16, SyntheticImages.RGB32})
+   public String pixelType;
+
+   @Param({"512", "2048"})
+   public int size;
+
+   @Param({"16", "256"})
+   public int propertyTags;
+
+   private TaggedImageStorageRamFast storage_;
+   private TaggedImage[] frames_;
+   private int frame_ = 0;
+
+   @Setup(Level.Trial)
+   public void createStorage() throws Exception {
+      SyntheticImages images = new SyntheticImages(pixelType, size, size, propertyTags);
+      frames_ = new TaggedImage[FRAMES];
+      for (int frame = 0; frame < FRAMES; frame++) {
+         frames_[frame] = images.makeImage(0, 0, frame, 0);
+      }
+      long imageBytes = (long) size * size * SyntheticImages.getBytesPerPixel(pixelType);
+      // room for every frame twice over, and no spilling to disk
+      storage_ = new TaggedImageStorageRamFast(
+              images.makeSummaryMetadata("Benchmark", 1, 1, FRAMES, 1),
+              2 * FRAMES * imageBytes, 0, null);
+   }
+
+   @TearDown(Level.Trial)
+   public void closeStorage() {
+      storage_.close();
+   }
+
+   @Benchmark
+   public void putImage() throws Exception {
+      storage_.putImage(frames_[frame_]);
+      frame_ = (frame_ + 1) % FRAMES;
+   }
+}
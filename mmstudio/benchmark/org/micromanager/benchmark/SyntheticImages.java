@@ -0,0 +1,182 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SyntheticImages.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.benchmark;
+
+import java.util.Random;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+
+/**
+ * Generates images and metadata shaped like those of an acquisition, for the
+ * benchmarks.  Pixels are noise around a mid-range background, and the
+ * metadata holds the usual acquisition tags plus the given number of device
+ * property tags.  Everything is generated from fixed seeds, so runs on
+ * different versions see the same data.
+ */
+public final class SyntheticImages {
+   public static final String GRAY8 = "GRAY8";
+   public static final String GRAY16 = "GRAY16";
+   public static final String RGB32 = "RGB32";
+
+   private final String pixelType_;
+   private final int width_;
+   private final int height_;
+   private final int numPropertyTags_;
+   private final Object pixels_;
+
+   /**
+    * @param pixelType - GRAY8, GRAY16 or RGB32
+    * @param width - image width in pixels
+    * @param height - image height in pixels
+    * @param numPropertyTags - number of device property tags in the metadata
+    *        of each image, in addition to the acquisition tags
+    */
+   public SyntheticImages(String pixelType, int width, int height,
+           int numPropertyTags) {
+      pixelType_ = pixelType;
+      width_ = width;
+      height_ = height;
+      numPropertyTags_ = numPropertyTags;
+      pixels_ = makePixels(pixelType, width * height, new Random(width * 31 + height));
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   public String getPixelType() {
+      return pixelType_;
+   }
+
+   /**
+    * @return the pixel array all images share: byte[] for GRAY8 and RGB32,
+    *         short[] for GRAY16
+    */
+   public Object getPixels() {
+      return pixels_;
+   }
+
+   public static int getBytesPerPixel(String pixelType) {
+      if (GRAY8.equals(pixelType)) {
+         return 1;
+      } else if (GRAY16.equals(pixelType)) {
+         return 2;
+      } else if (RGB32.equals(pixelType)) {
+         return 4;
+      }
+      throw new IllegalArgumentException("Unsupported pixel type " + pixelType);
+   }
+
+   private static Object makePixels(String pixelType, int numPixels, Random random) {
+      if (GRAY16.equals(pixelType)) {
+         short[] pixels = new short[numPixels];
+         for (int i = 0; i < numPixels; i++) {
+            pixels[i] = (short) (2000 + random.nextInt(400));
+         }
+         return pixels;
+      }
+      byte[] pixels = new byte[numPixels * getBytesPerPixel(pixelType)];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (byte) (100 + random.nextInt(50));
+      }
+      return pixels;
+   }
+
+   /**
+    * @return summary metadata for a data set of the given dimensions
+    */
+   public JSONObject makeSummaryMetadata(String prefix, int numChannels,
+           int numSlices, int numFrames, int numPositions) throws JSONException {
+      JSONObject summary = new JSONObject();
+      summary.put("Prefix", prefix);
+      summary.put("Width", width_);
+      summary.put("Height", height_);
+      MDUtils.setPixelTypeFromString(summary, pixelType_);
+      summary.put("BitDepth", GRAY16.equals(pixelType_) ? 12 : 8);
+      MDUtils.setNumChannels(summary, numChannels);
+      summary.put("Slices", numSlices);
+      summary.put("Frames", numFrames);
+      summary.put("Positions", numPositions);
+      summary.put("SlicesFirst", true);
+      summary.put("TimeFirst", false);
+      MDUtils.setPixelSizeUm(summary, 0.1);
+      MDUtils.setZStepUm(summary, 1.0);
+      MDUtils.setIntervalMs(summary, 100.0);
+      summary.put("Comment", "Synthetic data set");
+      JSONArray names = new JSONArray();
+      JSONArray colors = new JSONArray();
+      for (int c = 0; c < numChannels; c++) {
+         names.put("Channel " + c);
+         colors.put(0xffffff);
+      }
+      summary.put("ChNames", names);
+      summary.put("ChColors", colors);
+      return summary;
+   }
+
+   /**
+    * @return the metadata of one image of a data set
+    */
+   public JSONObject makeTags(int channel, int slice, int frame, int position)
+           throws JSONException {
+      JSONObject tags = new JSONObject();
+      MDUtils.setChannelIndex(tags, channel);
+      MDUtils.setSliceIndex(tags, slice);
+      MDUtils.setFrameIndex(tags, frame);
+      MDUtils.setPositionIndex(tags, position);
+      MDUtils.setWidth(tags, width_);
+      MDUtils.setHeight(tags, height_);
+      MDUtils.setPixelTypeFromString(tags, pixelType_);
+      MDUtils.setChannelName(tags, "Channel " + channel);
+      MDUtils.setPositionName(tags, "Pos" + position);
+      MDUtils.setExposureMs(tags, 10.0);
+      MDUtils.setElapsedTimeMs(tags, frame * 100.0 + channel + slice);
+      MDUtils.setXPositionUm(tags, 1000.0 + position);
+      MDUtils.setYPositionUm(tags, 2000.0 + position);
+      MDUtils.setZPositionUm(tags, slice * 1.0);
+      MDUtils.setImageTime(tags, "2016-01-01 00:00:00 +0000");
+      tags.put("BitDepth", GRAY16.equals(pixelType_) ? 12 : 8);
+      tags.put("Binning", 1);
+      tags.put("Camera", "Camera");
+      tags.put("ImageNumber", Integer.toString(frame));
+      for (int i = 0; i < numPropertyTags_; i++) {
+         tags.put("Device" + (i / 16) + "-Property" + (i % 16),
+                 Integer.toString(i * 7));
+      }
+      return tags;
+   }
+
+   /**
+    * @return an image with freshly made metadata; all images share the same
+    *         pixel array, which storage and processing only read
+    */
+   public TaggedImage makeImage(int channel, int slice, int frame, int position)
+           throws JSONException {
+      return new TaggedImage(pixels_, makeTags(channel, slice, frame, position));
+   }
+}
@@ -29,6 +29,7 @@ import java.io.Writer;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 
 /**
  * A JSONObject is an unordered collection of name/value pairs. Its
@@ -80,6 +81,13 @@ import java.util.Map;
  * <li>Comments written in the slashshlash, slashstar, and hash conventions
  *     will be ignored.</li>
  * </ul>
+ * <p>
+ * A JSONObject constructed from a string that strictly conforms to the JSON
+ * syntax only checks the string, and parses it when it is first accessed.
+ * Nested objects are parsed when they are accessed in turn. Until the object
+ * is changed, or a nested JSONObject or JSONArray is obtained from it (which
+ * could be changed), the string serves as its external form, so that passing
+ * metadata through unchanged does not cost a parse or a serialization.
  * @author JSON.org
  * @version 2
  */
@@ -124,9 +132,75 @@ public class JSONObject {
 
 
     /**
-     * The hash map where the JSONObject's properties are kept.
+     * The hash map where the JSONObject's properties are kept, or null until
+     * the source text has been parsed.
      */
-    private HashMap<String, Object> myHashMap;
+    private volatile HashMap<String, Object> myHashMap;
+
+
+    /**
+     * The text the JSONObject was constructed from, in the range start to
+     * end, as long as it is the external form of the JSONObject; else null.
+     */
+    private volatile String mySource;
+    private final int myStart;
+    private final int myEnd;
+
+
+    /**
+     * Keys of numbers that are read often and are usually strings, as in
+     * the image tags from the core (see org.micromanager.api.MMTags). The
+     * numeric values of these strings are kept once converted.
+     */
+    private static final String[] CACHED_NUMBER_KEYS = {
+        "Width", "Height", "BitDepth", "Binning", "IJType",
+        "ChannelIndex", "SliceIndex", "FrameIndex", "PositionIndex",
+        "Channels", "Slices", "Frames", "Positions", "Slice", "Frame",
+        "ElapsedTime-ms", "Exposure-ms", "XPositionUm", "YPositionUm",
+        "ZPositionUm", "PixelSizeUm", "PixelSize_um", "z-step_um",
+        "Interval_ms"
+    };
+    private static final HashMap<String, Integer> CACHED_NUMBER_SLOTS =
+            new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < CACHED_NUMBER_KEYS.length; i += 1) {
+            CACHED_NUMBER_SLOTS.put(CACHED_NUMBER_KEYS[i], i);
+        }
+    }
+
+
+    /**
+     * A string and its numeric value.
+     */
+    private static final class CachedNumber {
+        final String string;
+        final double value;
+
+        CachedNumber(String string, double value) {
+            this.string = string;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Numeric values of CACHED_NUMBER_KEYS, or null until one is converted.
+     * Entries are only valid for the string they were converted from.
+     */
+    private volatile CachedNumber[] myNumbers;
+
+
+    /**
+     * Buffer of each thread for toString, kept unless it grew large.
+     */
+    private static final int MAX_KEPT_BUFFER = 65536;
+    private static final ThreadLocal<StringBuilder> BUFFER =
+            new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
 
 
     /**
@@ -143,6 +217,8 @@ public class JSONObject {
      */
     public JSONObject() {
         this.myHashMap = new HashMap<String, Object>();
+        this.myStart = 0;
+        this.myEnd = 0;
     }
 
 
@@ -169,6 +245,25 @@ public class JSONObject {
      */
     public JSONObject(JSONTokener x) throws JSONException {
         this();
+        parse(x);
+    }
+
+
+    /**
+     * Construct a JSONObject from a range of text that has been checked by
+     * JSONScanner.skipObject, to be parsed when it is accessed.
+     * @param source    The text.
+     * @param start     The index of the <code>{</code>.
+     * @param end       The index after the <code>}</code>.
+     */
+    JSONObject(String source, int start, int end) {
+        this.mySource = source;
+        this.myStart = start;
+        this.myEnd = end;
+    }
+
+
+    private void parse(JSONTokener x) throws JSONException {
         char c;
         String key;
 
@@ -229,6 +324,8 @@ public class JSONObject {
      */
     public JSONObject(Map<String, ?> map) {
         this.myHashMap = new HashMap<String, Object>(map);
+        this.myStart = 0;
+        this.myEnd = 0;
     }
 
 
@@ -241,7 +338,51 @@ public class JSONObject {
      * @exception JSONException If there is a syntax error in the source string.
      */
     public JSONObject(String string) throws JSONException {
-        this(new JSONTokener(string));
+        int length = string.length();
+        int start = JSONScanner.skipWhitespace(string, 0, length);
+        int end = start < length && string.charAt(start) == '{' ?
+                JSONScanner.skipObject(string, start, length) : -1;
+        if (end > 0 && JSONScanner.skipWhitespace(string, end, length) == length) {
+            this.mySource = string;
+            this.myStart = start;
+            this.myEnd = end;
+        } else {
+            this.myHashMap = new HashMap<String, Object>();
+            this.myStart = 0;
+            this.myEnd = 0;
+            parse(new JSONTokener(string));
+        }
+    }
+
+
+    /**
+     * Get the hash map, parsing the source text if that has not been done.
+     */
+    private HashMap<String, Object> map() {
+        HashMap<String, Object> map = this.myHashMap;
+        if (map == null) {
+            synchronized (this) {
+                map = this.myHashMap;
+                if (map == null) {
+                    map = new HashMap<String, Object>();
+                    JSONScanner.parseMembers(this.mySource, this.myStart,
+                            this.myEnd, map);
+                    this.myHashMap = map;
+                }
+            }
+        }
+        return map;
+    }
+
+
+    /**
+     * Get the hash map to change it. The source text no longer represents
+     * the JSONObject afterwards.
+     */
+    private HashMap<String, Object> changeMap() {
+        HashMap<String, Object> map = map();
+        this.mySource = null;
+        return map;
     }
 
 
@@ -323,8 +464,12 @@ public class JSONObject {
     public double getDouble(String key) throws JSONException {
         Object o = get(key);
         try {
-            return o instanceof Number ?
-                    ((Number)o).doubleValue() : Double.parseDouble((String)o);
+            if (o instanceof Number) {
+                return ((Number)o).doubleValue();
+            }
+            Integer slot = CACHED_NUMBER_SLOTS.get(key);
+            return slot == null ? Double.parseDouble((String)o) :
+                    getCachedNumber(slot, (String)o);
         } catch (Exception e) {
             throw new JSONException("JSONObject[" + quote(key) +
                 "] is not a number.");
@@ -332,6 +477,24 @@ public class JSONObject {
     }
 
 
+    private double getCachedNumber(int slot, String string) {
+        CachedNumber[] numbers = this.myNumbers;
+        if (numbers != null) {
+            CachedNumber n = numbers[slot];
+            if (n != null && n.string == string) {
+                return n.value;
+            }
+        }
+        double value = Double.parseDouble(string);
+        if (numbers == null) {
+            numbers = new CachedNumber[CACHED_NUMBER_KEYS.length];
+            this.myNumbers = numbers;
+        }
+        numbers[slot] = new CachedNumber(string, value);
+        return value;
+    }
+
+
     /**
      * Get the int value associated with a key. If the number value is too
      * large for an int, it will be clipped.
@@ -418,7 +581,7 @@ public class JSONObject {
      * @return      true if the key exists in the JSONObject.
      */
     public boolean has(String key) {
-        return this.myHashMap.containsKey(key);
+        return map().containsKey(key);
     }
 
 
@@ -440,7 +603,21 @@ public class JSONObject {
      * @return An iterator of the keys.
      */
     public Iterator<String> keys() {
-        return this.myHashMap.keySet().iterator();
+        final Iterator<String> keys = map().keySet().iterator();
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public String next() {
+                return keys.next();
+            }
+
+            public void remove() {
+                keys.remove();
+                mySource = null;
+            }
+        };
     }
 
 
@@ -450,7 +627,7 @@ public class JSONObject {
      * @return The number of keys in the JSONObject.
      */
     public int length() {
-        return this.myHashMap.size();
+        return map().size();
     }
 
 
@@ -503,7 +680,15 @@ public class JSONObject {
      * @return      An object which is the value, or null if there is no value.
      */
     public Object opt(String key) {
-        return key == null ? null : this.myHashMap.get(key);
+        if (key == null) {
+            return null;
+        }
+        Object o = map().get(key);
+        if (o instanceof JSONObject || o instanceof JSONArray) {
+            // might be changed by the caller
+            this.mySource = null;
+        }
+        return o;
     }
 
 
@@ -767,7 +952,7 @@ public class JSONObject {
         }
         if (value != null) {
             testValidity(value);
-            this.myHashMap.put(key, value);
+            changeMap().put(key, value);
         } else {
             remove(key);
         }
@@ -805,12 +990,28 @@ public class JSONObject {
         if (string == null || string.length() == 0) {
             return "\"\"";
         }
+        StringBuilder sb = new StringBuilder(string.length() + 4);
+        quote(string, sb);
+        return sb.toString();
+    }
+
+
+    /**
+     * Append a string in double quotes with backslash sequences in all the
+     * right places, as produced by quote(String).
+     * @param string A String
+     * @param sb Receives the quoted string.
+     */
+    static void quote(String string, StringBuilder sb) {
+        if (string == null || string.length() == 0) {
+            sb.append("\"\"");
+            return;
+        }
 
         char         b;
         char         c = 0;
         int          i;
         int          len = string.length();
-        StringBuffer sb = new StringBuffer(len + 4);
         String       t;
 
         sb.append('"');
@@ -847,14 +1048,13 @@ public class JSONObject {
             default:
                 if (c < ' ') {
                     t = "000" + Integer.toHexString(c);
-                    sb.append("\\u" + t.substring(t.length() - 4));
+                    sb.append("\\u").append(t, t.length() - 4, t.length());
                 } else {
                     sb.append(c);
                 }
             }
         }
         sb.append('"');
-        return sb.toString();
     }
 
     /**
@@ -864,7 +1064,7 @@ public class JSONObject {
      * or null if there was no value.
      */
     public Object remove(String key) {
-        return this.myHashMap.remove(key);
+        return changeMap().remove(key);
     }
 
     /**
@@ -921,24 +1121,58 @@ public class JSONObject {
      *  with <code>}</code>&nbsp;<small>(right brace)</small>.
      */
     public String toString() {
+        String source = this.mySource;
+        if (source != null) {
+            return source.substring(this.myStart, this.myEnd);
+        }
+        StringBuilder sb = BUFFER.get();
+        // nested calls, e.g. from a JSONArray, get their own buffer
+        BUFFER.remove();
         try {
-            Iterator<?>     keys = keys();
-            StringBuffer sb = new StringBuffer("{");
-
-            while (keys.hasNext()) {
-                if (sb.length() > 1) {
-                    sb.append(',');
-                }
-                Object o = keys.next();
-                sb.append(quote(o.toString()));
-                sb.append(':');
-                sb.append(valueToString(this.myHashMap.get(o)));
-            }
-            sb.append('}');
+            sb.setLength(0);
+            append(sb);
             return sb.toString();
         } catch (Exception e) {
             return null;
+        } finally {
+            if (sb.capacity() <= MAX_KEPT_BUFFER) {
+                BUFFER.set(sb);
+            }
+        }
+    }
+
+
+    /**
+     * Append the JSON text of this JSONObject, as produced by toString(),
+     * to a buffer.
+     * @param sb Receives the text.
+     * @throws JSONException If the object contains an invalid number.
+     */
+    void append(StringBuilder sb) throws JSONException {
+        String source = this.mySource;
+        if (source != null) {
+            sb.append(source, this.myStart, this.myEnd);
+            return;
         }
+        boolean b = false;
+        sb.append('{');
+        for (Entry<String, Object> e : map().entrySet()) {
+            if (b) {
+                sb.append(',');
+            }
+            quote(e.getKey(), sb);
+            sb.append(':');
+            Object v = e.getValue();
+            if (v instanceof JSONObject) {
+                ((JSONObject)v).append(sb);
+            } else if (v instanceof String) {
+                quote((String)v, sb);
+            } else {
+                sb.append(valueToString(v));
+            }
+            b = true;
+        }
+        sb.append('}');
     }
 
 
@@ -986,7 +1220,7 @@ public class JSONObject {
             o = keys.next();
             sb.append(quote(o.toString()));
             sb.append(": ");
-            sb.append(valueToString(this.myHashMap.get(o), indentFactor,
+            sb.append(valueToString(map().get(o), indentFactor,
                     indent));
         } else {
             while (keys.hasNext()) {
@@ -1001,7 +1235,7 @@ public class JSONObject {
                 }
                 sb.append(quote(o.toString()));
                 sb.append(": ");
-                sb.append(valueToString(this.myHashMap.get(o), indentFactor,
+                sb.append(valueToString(map().get(o), indentFactor,
                         newindent));
             }
             if (sb.length() > 1) {
@@ -1088,18 +1322,21 @@ public class JSONObject {
       */
      public Writer write(Writer writer) throws JSONException {
         try {
+            String source = this.mySource;
+            if (source != null) {
+                writer.write(source, this.myStart, this.myEnd - this.myStart);
+                return writer;
+            }
             boolean  b = false;
-            Iterator<?> keys = keys();
             writer.write('{');
 
-            while (keys.hasNext()) {
+            for (Entry<String, Object> e : map().entrySet()) {
                 if (b) {
                     writer.write(',');
                 }
-                Object k = keys.next();
-                writer.write(quote(k.toString()));
+                writer.write(quote(e.getKey()));
                 writer.write(':');
-                Object v = this.myHashMap.get(k);
+                Object v = e.getValue();
                 if (v instanceof JSONObject) {
                     ((JSONObject)v).write(writer);
                 } else if (v instanceof JSONArray) {
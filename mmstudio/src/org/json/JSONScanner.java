@@ -0,0 +1,381 @@
+package org.json;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.util.Map;
+
+/**
+ * A JSONScanner works directly on JSON text that strictly conforms to the
+ * JSON syntax rules, without the extensions a JSONTokener tolerates.
+ * The <code>skip</code> methods check a value without building anything,
+ * so that a JSONObject can validate its source text when it is constructed
+ * and parse it only when it is first accessed. They return -1 if the text
+ * is not strict JSON, in which case it is left to a JSONTokener to accept or
+ * reject it.
+ * <p>
+ * Values are parsed to the same objects a JSONTokener would produce.
+ * @author JSON.org
+ * @version 2
+ */
+final class JSONScanner {
+
+    private JSONScanner() {
+    }
+
+
+    /**
+     * Skip JSON whitespace.
+     * @param s     The text.
+     * @param i     The index to start at.
+     * @param end   The end of the text to scan.
+     * @return      The index of the first other character, or end.
+     */
+    static int skipWhitespace(String s, int i, int end) {
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            i += 1;
+        }
+        return i;
+    }
+
+
+    /**
+     * Skip a value.
+     * @param s     The text.
+     * @param i     The index of the first character of the value.
+     * @param end   The end of the text to scan.
+     * @return      The index after the value, or -1 if it is not strict JSON.
+     */
+    static int skipValue(String s, int i, int end) {
+        if (i >= end) {
+            return -1;
+        }
+        switch (s.charAt(i)) {
+        case '{':
+            return skipObject(s, i, end);
+        case '[':
+            return skipArray(s, i, end);
+        case '"':
+            return skipString(s, i, end);
+        case 't':
+            return skipWord(s, i, end, "true");
+        case 'f':
+            return skipWord(s, i, end, "false");
+        case 'n':
+            return skipWord(s, i, end, "null");
+        default:
+            return skipNumber(s, i, end);
+        }
+    }
+
+
+    /**
+     * Skip an object.
+     * @param s     The text.
+     * @param i     The index of the <code>{</code>.
+     * @param end   The end of the text to scan.
+     * @return      The index after the <code>}</code>, or -1 if the object
+     *  is not strict JSON.
+     */
+    static int skipObject(String s, int i, int end) {
+        i = skipWhitespace(s, i + 1, end);
+        if (i < end && s.charAt(i) == '}') {
+            return i + 1;
+        }
+        for (;;) {
+            if (i >= end || s.charAt(i) != '"') {
+                return -1;
+            }
+            i = skipString(s, i, end);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(s, i, end);
+            if (i >= end || s.charAt(i) != ':') {
+                return -1;
+            }
+            i = skipValue(s, skipWhitespace(s, i + 1, end), end);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(s, i, end);
+            if (i >= end) {
+                return -1;
+            }
+            char c = s.charAt(i);
+            if (c == '}') {
+                return i + 1;
+            }
+            if (c != ',') {
+                return -1;
+            }
+            i = skipWhitespace(s, i + 1, end);
+        }
+    }
+
+
+    private static int skipArray(String s, int i, int end) {
+        i = skipWhitespace(s, i + 1, end);
+        if (i < end && s.charAt(i) == ']') {
+            return i + 1;
+        }
+        for (;;) {
+            i = skipValue(s, i, end);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(s, i, end);
+            if (i >= end) {
+                return -1;
+            }
+            char c = s.charAt(i);
+            if (c == ']') {
+                return i + 1;
+            }
+            if (c != ',') {
+                return -1;
+            }
+            i = skipWhitespace(s, i + 1, end);
+        }
+    }
+
+
+    private static int skipString(String s, int i, int end) {
+        for (i += 1; i < end; i += 1) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            }
+            if (c < ' ') {
+                return -1;
+            }
+            if (c == '\\') {
+                i += 1;
+                if (i >= end) {
+                    return -1;
+                }
+                c = s.charAt(i);
+                if (c == 'u') {
+                    if (i + 4 >= end) {
+                        return -1;
+                    }
+                    for (int j = 1; j <= 4; j += 1) {
+                        if (Character.digit(s.charAt(i + j), 16) < 0) {
+                            return -1;
+                        }
+                    }
+                    i += 4;
+                } else if ("\"\\/bfnrt".indexOf(c) < 0) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+
+    private static int skipWord(String s, int i, int end, String word) {
+        int wordEnd = i + word.length();
+        return wordEnd <= end && s.startsWith(word, i) ? wordEnd : -1;
+    }
+
+
+    private static int skipNumber(String s, int i, int end) {
+        if (i < end && s.charAt(i) == '-') {
+            i += 1;
+        }
+        if (i < end && s.charAt(i) == '0') {
+            i += 1;
+        } else {
+            int digits = skipDigits(s, i, end);
+            if (digits == i) {
+                return -1;
+            }
+            i = digits;
+        }
+        if (i < end && s.charAt(i) == '.') {
+            int digits = skipDigits(s, i + 1, end);
+            if (digits == i + 1) {
+                return -1;
+            }
+            i = digits;
+        }
+        if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i += 1;
+            if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                i += 1;
+            }
+            int digits = skipDigits(s, i, end);
+            if (digits == i) {
+                return -1;
+            }
+            i = digits;
+        }
+        return i;
+    }
+
+
+    private static int skipDigits(String s, int i, int end) {
+        while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i += 1;
+        }
+        return i;
+    }
+
+
+    /**
+     * Parse the members of an object that has been skipped successfully.
+     * Objects among the values are not parsed, but refer to their text.
+     * @param s     The text.
+     * @param i     The index of the <code>{</code>.
+     * @param end   The index after the <code>}</code>.
+     * @param map   Receives the members.
+     */
+    static void parseMembers(String s, int i, int end, Map<String, Object> map) {
+        i = skipWhitespace(s, i + 1, end);
+        if (s.charAt(i) == '}') {
+            return;
+        }
+        for (;;) {
+            int keyEnd = skipString(s, i, end);
+            String key = parseString(s, i, keyEnd);
+            i = skipWhitespace(s, skipWhitespace(s, keyEnd, end) + 1, end);
+            int valueEnd = skipValue(s, i, end);
+            map.put(key, parseValue(s, i, valueEnd));
+            i = skipWhitespace(s, valueEnd, end);
+            if (s.charAt(i) == '}') {
+                return;
+            }
+            i = skipWhitespace(s, i + 1, end);
+        }
+    }
+
+
+    private static Object parseValue(String s, int i, int end) {
+        switch (s.charAt(i)) {
+        case '{':
+            return new JSONObject(s, i, end);
+        case '[':
+            return parseArray(s, i, end);
+        case '"':
+            return parseString(s, i, end);
+        case 't':
+            return Boolean.TRUE;
+        case 'f':
+            return Boolean.FALSE;
+        case 'n':
+            return JSONObject.NULL;
+        default:
+            return parseNumber(s.substring(i, end));
+        }
+    }
+
+
+    private static JSONArray parseArray(String s, int i, int end) {
+        JSONArray ja = new JSONArray();
+        i = skipWhitespace(s, i + 1, end);
+        if (s.charAt(i) == ']') {
+            return ja;
+        }
+        for (;;) {
+            int valueEnd = skipValue(s, i, end);
+            ja.put(parseValue(s, i, valueEnd));
+            i = skipWhitespace(s, valueEnd, end);
+            if (s.charAt(i) == ']') {
+                return ja;
+            }
+            i = skipWhitespace(s, i + 1, end);
+        }
+    }
+
+
+    private static String parseString(String s, int i, int end) {
+        int last = end - 1;
+        int escape = i + 1;
+        while (escape < last && s.charAt(escape) != '\\') {
+            escape += 1;
+        }
+        if (escape == last) {
+            return s.substring(i + 1, last);
+        }
+        StringBuilder sb = new StringBuilder(last - i);
+        sb.append(s, i + 1, escape);
+        for (int j = escape; j < last; j += 1) {
+            char c = s.charAt(j);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            j += 1;
+            c = s.charAt(j);
+            switch (c) {
+            case 'b':
+                sb.append('\b');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 'u':
+                sb.append((char)Integer.parseInt(s.substring(j + 1, j + 5), 16));
+                j += 4;
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    /*
+     * Integer if it fits, then Long, then Double, as in JSONTokener.
+     */
+    private static Object parseNumber(String s) {
+        if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+            try {
+                return Integer.valueOf(s);
+            } catch (NumberFormatException e) {
+                try {
+                    return Long.valueOf(s);
+                } catch (NumberFormatException f) {
+                    /* Too large, fall through */
+                }
+            }
+        }
+        return Double.valueOf(s);
+    }
+}
@@ -47,6 +47,9 @@ public class MMOptions {
    private static final String DELETE_OLD_CORELOGS = "DeleteOldCoreLogs";
    private static final String DELETE_CORELOG_AFTER_DAYS =
       "DeleteCoreLogAfterDays";
+   private static final String RAM_STORAGE_MEMORY_MB = "RamStorageMemoryMB";
+   private static final String RAM_STORAGE_SPILL_MB = "RamStorageSpillMB";
+   private static final String DELTA_SYSTEM_STATE_TAGS = "DeltaSystemStateTags";
 
    public boolean debugLogEnabled_;
    public boolean doNotAskForConfigFile_;
@@ -61,6 +64,9 @@ public class MMOptions {
    public boolean hideMDADisplay_;
    public boolean deleteOldCoreLogs_;
    public int deleteCoreLogAfterDays_;
+   public int ramStorageMemoryMB_;
+   public int ramStorageSpillMB_;
+   public boolean deltaSystemStateTags_;
 
    public MMOptions() {
       setDefaultValues();
@@ -82,6 +88,11 @@ public class MMOptions {
       hideMDADisplay_ = false;
       deleteOldCoreLogs_ = false;
       deleteCoreLogAfterDays_ = 7;
+      // 0: as much direct memory as the JVM allows
+      ramStorageMemoryMB_ = 0;
+      // writing images to a scratch file has to be asked for
+      ramStorageSpillMB_ = 0;
+      deltaSystemStateTags_ = false;
    }
 
    private Preferences getPrefNode() {
@@ -106,6 +117,9 @@ public class MMOptions {
       prefs.putBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       prefs.putBoolean(DELETE_OLD_CORELOGS, deleteOldCoreLogs_);
       prefs.putInt(DELETE_CORELOG_AFTER_DAYS, deleteCoreLogAfterDays_);
+      prefs.putInt(RAM_STORAGE_MEMORY_MB, ramStorageMemoryMB_);
+      prefs.putInt(RAM_STORAGE_SPILL_MB, ramStorageSpillMB_);
+      prefs.putBoolean(DELTA_SYSTEM_STATE_TAGS, deltaSystemStateTags_);
    }
 
    public void loadSettings() {
@@ -126,6 +140,12 @@ public class MMOptions {
          prefs.getBoolean(DELETE_OLD_CORELOGS, deleteOldCoreLogs_);
       deleteCoreLogAfterDays_ =
          prefs.getInt(DELETE_CORELOG_AFTER_DAYS, deleteCoreLogAfterDays_);
+      ramStorageMemoryMB_ =
+         prefs.getInt(RAM_STORAGE_MEMORY_MB, ramStorageMemoryMB_);
+      ramStorageSpillMB_ =
+         prefs.getInt(RAM_STORAGE_SPILL_MB, ramStorageSpillMB_);
+      deltaSystemStateTags_ =
+         prefs.getBoolean(DELTA_SYSTEM_STATE_TAGS, deltaSystemStateTags_);
    }
 
    public void resetSettings() throws BackingStoreException {
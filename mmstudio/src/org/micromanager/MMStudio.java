@@ -82,6 +82,8 @@ import org.micromanager.api.events.PropertiesChangedEvent;
 import org.micromanager.conf2.MMConfigFileException;
 import org.micromanager.conf2.MicroscopeModel;
 import org.micromanager.diagnostics.EDTHangLogger;
+import org.micromanager.diagnostics.PipelineTelemetry;
+import org.micromanager.diagnostics.PipelineTelemetryMXBean;
 import org.micromanager.dialogs.AcqControlDlg;
 import org.micromanager.dialogs.CalibrationListDlg;
 import org.micromanager.dialogs.MMIntroDlg;
@@ -404,6 +406,7 @@ public class MMStudio implements ScriptInterface {
       // Use parameters that ensure a stack trace dump within 10 seconds of an
       // EDT hang (and _no_ dump on hangs under 5.5 seconds)
       EDTHangLogger.startDefault(core_, 4500, 1000);
+      PipelineTelemetry.registerMBean();
 
       ReportingUtils.setCore(core_);
       logStartupProperties();
@@ -418,6 +421,7 @@ public class MMStudio implements ScriptInterface {
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
+      core_.setDeltaSystemStateTags(options_.deltaSystemStateTags_);
 
       engine_.setParentGUI(studio_);
 
@@ -730,6 +734,14 @@ public class MMStudio implements ScriptInterface {
    public boolean getSeparateFilesForPositionsMPTiff() {
       return options_.mpTiffSeparateFilesForPositions_;
    }
+
+   public long getRamStorageMemoryMB() {
+      return options_.ramStorageMemoryMB_;
+   }
+
+   public long getRamStorageSpillMB() {
+      return options_.ramStorageSpillMB_;
+   }
    
    @Override
    public boolean getHideMDADisplayOption() {
@@ -2951,4 +2963,9 @@ public class MMStudio implements ScriptInterface {
          display.getHistograms().autoscaleAllChannels();
       }
    }
+
+   @Override
+   public PipelineTelemetryMXBean getPipelineTelemetry() {
+      return PipelineTelemetry.getInstance();
+   }
 }
@@ -6,6 +6,8 @@ import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
 import org.micromanager.api.ImageCache;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PipelineTelemetry;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -37,6 +39,8 @@ public class DefaultTaggedImageSink  {
          public void run() {
             long t1 = System.currentTimeMillis();
             int imageCount = 0;
+            LatencyHistogram latency =
+                  PipelineTelemetry.getLatencyHistogram("Image cache");
             try {
                while (true) {
                   TaggedImage image = imageProducingQueue_.poll(1, TimeUnit.SECONDS);
@@ -45,8 +49,12 @@ public class DefaultTaggedImageSink  {
                         break;
                      }
                      ++imageCount;
+                     PipelineTelemetry.recordQueueDepth("Image sink",
+                           imageProducingQueue_.size());
                      try {
+                        long start = System.nanoTime();
                         imageCache_.putImage(image);
+                        latency.recordSince(start);
                      }
                      catch (OutOfMemoryError e) {
                         handleOutOfMemory(e, sinkFullCallback);
@@ -0,0 +1,209 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageCacheListenerQueue.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import mmcorej.TaggedImage;
+import org.micromanager.api.CoalescingImageCacheListener;
+import org.micromanager.api.ImageCacheListener;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PipelineTelemetry;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Delivers the images of an MMImageCache to one ImageCacheListener, so that
+ * a slow listener holds up neither the cache nor the other listeners.
+ *
+ * offer() never waits for the listener, so a slow listener can not slow
+ * down the acquisition.  A CoalescingImageCacheListener only ever has the
+ * newest image waiting: a new image replaces the images it has not received
+ * yet.  Other listeners receive every image; when CAPACITY images are
+ * waiting for such a listener a warning is logged, since the waiting images
+ * are held in memory until the listener catches up.
+ *
+ * Images are delivered in order, one at a time, on threads of a pool shared
+ * by all queues.
+ */
+class ImageCacheListenerQueue {
+   static final int CAPACITY = 64;
+
+   private static ExecutorService executor_;
+
+   private final ImageCacheListener listener_;
+   private final boolean coalescing_;
+   // name of the listener in the pipeline telemetry
+   private final String telemetryName_;
+   private final LatencyHistogram latency_;
+   private final ArrayDeque<TaggedImage> images_ = new ArrayDeque<TaggedImage>();
+   // System.nanoTime() at which each of images_ was offered
+   private final ArrayDeque<Long> offerTimes_ = new ArrayDeque<Long>();
+   private String finishedPath_;
+   private boolean finished_ = false;
+   private boolean finishPending_ = false;
+   private boolean closed_ = false;
+   private boolean delivering_ = false;
+
+   // statistics
+   private long received_ = 0;
+   private long coalesced_ = 0;
+   private int maxQueued_ = 0;
+   private long totalLatencyNs_ = 0;
+   private long maxLatencyNs_ = 0;
+   private long backlogs_ = 0;
+   // true while the current backlog has been reported
+   private boolean backlogReported_ = false;
+
+   ImageCacheListenerQueue(ImageCacheListener listener) {
+      listener_ = listener;
+      coalescing_ = listener instanceof CoalescingImageCacheListener;
+      telemetryName_ = "Listener " + listener.getClass().getName();
+      latency_ = PipelineTelemetry.getLatencyHistogram(telemetryName_);
+   }
+
+   ImageCacheListener getListener() {
+      return listener_;
+   }
+
+   /**
+    * Queues an image for the listener.  Never waits.
+    */
+   synchronized void offer(TaggedImage image) {
+      if (closed_ || finished_) {
+         return;
+      }
+      if (coalescing_) {
+         coalesced_ += images_.size();
+         PipelineTelemetry.addFramesCoalesced(images_.size());
+         images_.clear();
+         offerTimes_.clear();
+      } else if (images_.size() >= CAPACITY && !backlogReported_) {
+         backlogReported_ = true;
+         backlogs_++;
+         ReportingUtils.logMessage("Warning: " + images_.size()
+                 + " images waiting for slow image cache listener "
+                 + listener_.getClass().getName());
+      }
+      images_.add(image);
+      offerTimes_.add(System.nanoTime());
+      maxQueued_ = Math.max(maxQueued_, images_.size());
+      PipelineTelemetry.recordQueueDepth(telemetryName_, images_.size());
+      startDelivering();
+   }
+
+   /**
+    * Calls imagingFinished of the listener once all queued images have been
+    * delivered.
+    */
+   synchronized void finish(String path) {
+      if (closed_ || finished_) {
+         return;
+      }
+      finished_ = true;
+      finishPending_ = true;
+      finishedPath_ = path;
+      startDelivering();
+   }
+
+   /**
+    * Drops the queued images.  Nothing more is delivered to the listener.
+    */
+   synchronized void close() {
+      closed_ = true;
+      images_.clear();
+      offerTimes_.clear();
+   }
+
+   synchronized ImageCacheListenerStats getStats() {
+      long lagNs = offerTimes_.isEmpty() ? 0 : System.nanoTime() - offerTimes_.peek();
+      return new ImageCacheListenerStats(listener_.getClass().getName(),
+              coalescing_, received_, coalesced_, images_.size(), maxQueued_,
+              lagNs / 1000000.0,
+              received_ == 0 ? 0 : totalLatencyNs_ / 1000000.0 / received_,
+              maxLatencyNs_ / 1000000.0, backlogs_);
+   }
+
+   // called with the lock held
+   private void startDelivering() {
+      if (!delivering_) {
+         delivering_ = true;
+         getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+               deliver();
+            }
+         });
+      }
+   }
+
+   private void deliver() {
+      for (;;) {
+         TaggedImage image;
+         boolean finish = false;
+         String finishedPath = null;
+         synchronized (this) {
+            image = images_.poll();
+            if (image != null) {
+               long latency = System.nanoTime() - offerTimes_.poll();
+               received_++;
+               totalLatencyNs_ += latency;
+               maxLatencyNs_ = Math.max(maxLatencyNs_, latency);
+               latency_.record(latency);
+               PipelineTelemetry.recordQueueDepth(telemetryName_, images_.size());
+            } else if (finishPending_ && !closed_) {
+               finish = true;
+               finishedPath = finishedPath_;
+               finishPending_ = false;
+               closed_ = true;
+            } else {
+               // the listener has caught up
+               backlogReported_ = false;
+               delivering_ = false;
+               return;
+            }
+         }
+         try {
+            if (!finish) {
+               listener_.imageReceived(image);
+            } else {
+               listener_.imagingFinished(finishedPath);
+            }
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex, "Image cache listener failed");
+         }
+      }
+   }
+
+   private static synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         executor_ = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Image cache listener");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return executor_;
+   }
+}
@@ -0,0 +1,122 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageCacheListenerStats.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition;
+
+/**
+ * How far an ImageCacheListener lags behind its MMImageCache, as returned by
+ * MMImageCache.getListenerStats().  Latencies are measured from the time an
+ * image is put in the cache to the time it is handed to the listener.
+ */
+public final class ImageCacheListenerStats {
+   private final String listenerName_;
+   private final boolean coalescing_;
+   private final long imagesReceived_;
+   private final long imagesCoalesced_;
+   private final int imagesQueued_;
+   private final int maxImagesQueued_;
+   private final double lagMs_;
+   private final double meanLatencyMs_;
+   private final double maxLatencyMs_;
+   private final long backlogs_;
+
+   ImageCacheListenerStats(String listenerName, boolean coalescing,
+           long imagesReceived, long imagesCoalesced, int imagesQueued,
+           int maxImagesQueued, double lagMs, double meanLatencyMs,
+           double maxLatencyMs, long backlogs) {
+      listenerName_ = listenerName;
+      coalescing_ = coalescing;
+      imagesReceived_ = imagesReceived;
+      imagesCoalesced_ = imagesCoalesced;
+      imagesQueued_ = imagesQueued;
+      maxImagesQueued_ = maxImagesQueued;
+      lagMs_ = lagMs;
+      meanLatencyMs_ = meanLatencyMs;
+      maxLatencyMs_ = maxLatencyMs;
+      backlogs_ = backlogs;
+   }
+
+   /**
+    * @return class name of the listener
+    */
+   public String getListenerName() {
+      return listenerName_;
+   }
+
+   /**
+    * @return true if the listener only receives the newest image
+    */
+   public boolean isCoalescing() {
+      return coalescing_;
+   }
+
+   public long getImagesReceived() {
+      return imagesReceived_;
+   }
+
+   /**
+    * @return number of images replaced by newer ones before the listener
+    *         received them
+    */
+   public long getImagesCoalesced() {
+      return imagesCoalesced_;
+   }
+
+   /**
+    * @return number of images waiting for the listener
+    */
+   public int getImagesQueued() {
+      return imagesQueued_;
+   }
+
+   public int getMaxImagesQueued() {
+      return maxImagesQueued_;
+   }
+
+   /**
+    * @return time the oldest waiting image has been waiting, 0 if none
+    */
+   public double getLagMs() {
+      return lagMs_;
+   }
+
+   public double getMeanLatencyMs() {
+      return meanLatencyMs_;
+   }
+
+   public double getMaxLatencyMs() {
+      return maxLatencyMs_;
+   }
+
+   /**
+    * @return number of times ImageCacheListenerQueue.CAPACITY or more images
+    *         were waiting for the listener
+    */
+   public long getBacklogs() {
+      return backlogs_;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%s: %d received, %d coalesced, %d queued (max %d), "
+              + "lag %.1f ms, latency %.1f ms (max %.1f ms), %d backlogs",
+              listenerName_, imagesReceived_, imagesCoalesced_, imagesQueued_,
+              maxImagesQueued_, lagMs_, meanLatencyMs_, maxLatencyMs_, backlogs_);
+   }
+}
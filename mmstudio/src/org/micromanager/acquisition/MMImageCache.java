@@ -30,11 +30,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.LinkedHashMap;
 
 import javax.swing.SwingUtilities;
 
+import mmcorej.SystemStateTags;
 import mmcorej.TaggedImage;
 
 import org.json.JSONArray;
@@ -44,6 +44,8 @@ import org.json.JSONObject;
 import org.micromanager.api.ImageCache;
 import org.micromanager.api.ImageCacheListener;
 import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PipelineTelemetry;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
@@ -60,24 +62,33 @@ import org.micromanager.utils.ReportingUtils;
 public class MMImageCache implements ImageCache {
    public final List<ImageCacheListener> imageStorageListeners_ = 
            Collections.synchronizedList(new ArrayList<ImageCacheListener>());
+   // images are handed to each listener through a queue of its own
+   private final LinkedHashMap<ImageCacheListener, ImageCacheListenerQueue> listenerQueues_ =
+           new LinkedHashMap<ImageCacheListener, ImageCacheListenerQueue>();
    private TaggedImageStorage imageStorage_;
    private Set<String> changingKeys_;
    private JSONObject firstTags_;
    private int lastFrame_ = -1;
    private JSONObject lastTags_;
-   private final ExecutorService listenerExecutor_;
+   // system state whose device properties were last compared to firstTags_
+   private SystemStateTags.Snapshot lastCheckedState_;
+   private final LatencyHistogram storageLatency_ =
+           PipelineTelemetry.getLatencyHistogram("Storage");
 
    @Override
    public void addImageCacheListener(ImageCacheListener l) {
       synchronized (imageStorageListeners_) {
          imageStorageListeners_.add(l);
+         if (!listenerQueues_.containsKey(l)) {
+            listenerQueues_.put(l, new ImageCacheListenerQueue(l));
+         }
       }
    }
 
    @Override
    public ImageCacheListener[] getImageCacheListeners() {
       synchronized (imageStorageListeners_) {
-         return (ImageCacheListener[]) imageStorageListeners_.toArray();
+         return imageStorageListeners_.toArray(new ImageCacheListener[0]);
       }
    }
 
@@ -85,24 +96,45 @@ public class MMImageCache implements ImageCache {
    public void removeImageCacheListener(ImageCacheListener l) {
       synchronized (imageStorageListeners_) {
          imageStorageListeners_.remove(l);
+         if (!imageStorageListeners_.contains(l)) {
+            ImageCacheListenerQueue queue = listenerQueues_.remove(l);
+            if (queue != null) {
+               queue.close();
+            }
+         }
+      }
+   }
+
+   /**
+    * @return for each listener, how far it lags behind the images put in
+    *         the cache
+    */
+   public List<ImageCacheListenerStats> getListenerStats() {
+      List<ImageCacheListenerStats> stats = new ArrayList<ImageCacheListenerStats>();
+      for (ImageCacheListenerQueue queue : getListenerQueues()) {
+         stats.add(queue.getStats());
+      }
+      return stats;
+   }
+
+   private List<ImageCacheListenerQueue> getListenerQueues() {
+      synchronized (imageStorageListeners_) {
+         return new ArrayList<ImageCacheListenerQueue>(listenerQueues_.values());
       }
    }
 
    public MMImageCache(TaggedImageStorage imageStorage) {
       imageStorage_ = imageStorage;
       changingKeys_ = new HashSet<String>();
-      listenerExecutor_ = Executors.newFixedThreadPool(1);
    }
 
    public void finished() {
       imageStorage_.finished();
       String path = getDiskLocation();
-      synchronized (imageStorageListeners_) {
-         for (ImageCacheListener l : imageStorageListeners_) {
-            l.imagingFinished(path);
-         }
+      // after the images that are still queued
+      for (ImageCacheListenerQueue queue : getListenerQueues()) {
+         queue.finish(path);
       }
-      listenerExecutor_.shutdown();
    }
 
    public boolean isFinished() {
@@ -136,6 +168,10 @@ public class MMImageCache implements ImageCache {
       imageStorage_.close();
       synchronized (imageStorageListeners_) {
          imageStorageListeners_.clear();
+         for (ImageCacheListenerQueue queue : listenerQueues_.values()) {
+            queue.close();
+         }
+         listenerQueues_.clear();
       }
    }
 
@@ -193,9 +229,10 @@ public class MMImageCache implements ImageCache {
 
    public void putImage(final TaggedImage taggedImg) {
       try {
-         
          checkForChangingTags(taggedImg);
+         long start = System.nanoTime();
          imageStorage_.putImage(taggedImg);
+         storageLatency_.recordSince(start);
          
            synchronized (this) {
             lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImg.tags));
@@ -214,16 +251,8 @@ public class MMImageCache implements ImageCache {
             }
          }
 
-         synchronized (imageStorageListeners_) {
-            for (final ImageCacheListener l : imageStorageListeners_) {
-               listenerExecutor_.submit(
-                       new Runnable() {
-                          @Override
-                          public void run() {
-                             l.imageReceived(taggedImg);
-                          }
-                       });
-            }
+         for (ImageCacheListenerQueue queue : getListenerQueues()) {
+            queue.offer(taggedImg);
          }
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
@@ -249,27 +278,51 @@ public class MMImageCache implements ImageCache {
       return taggedImg;
    }
 
+   /**
+    * @return the tags of the image, including the device properties of the
+    *         system state the image refers to, if any
+    */
    public JSONObject getImageTags(int channel, int slice, int frame, int position) {
       String label = MDUtils.generateLabel(channel, slice, frame, position);
       JSONObject tags = null;
       if (tags == null) {
          tags = imageStorage_.getImageTags(channel, slice, frame, position);
       }
-      return tags;
+      try {
+         return SystemStateTags.expanded(tags);
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+         return tags;
+      }
    }
 
-   private void checkForChangingTags(TaggedImage taggedImg) {
+   // getImage() may be called from several threads at once, e.g. by exporters
+   private synchronized void checkForChangingTags(TaggedImage taggedImg) {
+      JSONObject tags = taggedImg.tags;
+      try {
+         // device properties are only compared when the state changes
+         SystemStateTags.Snapshot state = SystemStateTags.getSnapshot(tags);
+         if (state != null && (state != lastCheckedState_ || firstTags_ == null)) {
+            lastCheckedState_ = state;
+            tags = SystemStateTags.expanded(tags);
+         }
+      } catch (JSONException e) {
+         ReportingUtils.logError(e);
+      }
       if (firstTags_ == null) {
-         firstTags_ = taggedImg.tags;
+         firstTags_ = tags;
       } else {
-         Iterator<String> keys = taggedImg.tags.keys();
+         Iterator<String> keys = tags.keys();
          while (keys.hasNext()) {
             String key = keys.next();
+            if (key.equals(SystemStateTags.VERSION_KEY)) {
+               continue;
+            }
             try {
-               if (!taggedImg.tags.isNull(key)) {
+               if (!tags.isNull(key)) {
                   if (!firstTags_.has(key) || firstTags_.isNull(key)) {
                      changingKeys_.add(key);
-                  } else if (!taggedImg.tags.getString(key).contentEquals(firstTags_.getString(key))) {
+                  } else if (!tags.getString(key).contentEquals(firstTags_.getString(key))) {
                      changingKeys_.add(key);
                   }
                }
@@ -560,15 +560,23 @@ public class MultipageTiffReader {
    // terminates before properly closing, thereby preventing the multipage tiff
    // writer from putting in the index map, comments, channels, and OME XML in
    // the ImageDescription tag location 
+   // Only the IFDs are read, never the pixels. Labels come from the index map
+   // entries the writer adds as it goes, and only images without an entry on
+   // disk have their metadata read.
    private void fixIndexMap(long firstIFD, String fileName) throws IOException {
       long filePosition = firstIFD;
       indexMap_ = new HashMap<String, Long>();
-      long progBarMax = (fileChannel_.size() / 2L);
+      HashMap<Long, String> writtenLabels = readWrittenIndexMapEntries();
+      long fileSize = fileChannel_.size();
+      long progBarMax = (fileSize / 2L);
       final ProgressBar progressBar = new ProgressBar("Fixing " + fileName, 0, 
               progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
       progressBar.setRange(0, progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
       progressBar.setProgress(0);
       progressBar.setVisible(true);
+      // update the progress bar in steps of 1%, not for every image
+      final long progressStep = Math.max(1, progBarMax / 100);
+      long lastProgress = 0;
       long nextIFDOffsetLocation = 0;
       IFDData data;
       while (filePosition > 0) {
@@ -577,26 +585,35 @@ public class MultipageTiffReader {
             if (data.nextIFD == 0) {
                break;
             }
-            TaggedImage ti = readTaggedImage(data);
-            if (ti.tags == null || ti.tags.length() == 0) {  //Blank placeholder image, dont add to index map
-               filePosition = data.nextIFD;
-               nextIFDOffsetLocation = data.nextIFDOffsetLocation;
-               continue;
+            if (data.pixelOffset + data.bytesPerImage > fileSize
+                    || data.mdOffset + data.mdLength > fileSize) {
+               break; // image was not completely written
+            }
+            String label = writtenLabels.get(filePosition);
+            if (label == null) {
+               JSONObject md = readMetadata(data);
+               if (md == null) {  //Blank placeholder image, dont add to index map
+                  filePosition = data.nextIFD;
+                  nextIFDOffsetLocation = data.nextIFDOffsetLocation;
+                  continue;
+               }
+               label = MDUtils.getLabel(md);
+               if (label == null) {
+                  break;
+               }
             }
-            String label;
-            label = MDUtils.getLabel(ti.tags);
-            if (label == null ) {
-               break;
-            }          
             indexMap_.put(label, filePosition);
             
-            final int progress = (int) (filePosition/2L);
-            SwingUtilities.invokeLater(new Runnable() {
-               @Override
-               public void run() {
-                  progressBar.setProgress(progress);
-               }
-            });
+            if (filePosition / 2L - lastProgress >= progressStep) {
+               lastProgress = filePosition / 2L;
+               final int progress = (int) lastProgress;
+               SwingUtilities.invokeLater(new Runnable() {
+                  @Override
+                  public void run() {
+                     progressBar.setProgress(progress);
+                  }
+               });
+            }
             
             if (data.nextIFD <= filePosition || data.nextIFDOffsetLocation <= nextIFDOffsetLocation ) {
                break; //so no recoverable data is ever lost
@@ -633,6 +650,52 @@ public class MultipageTiffReader {
       createFileChannel(false);
    }
    
+   /*
+    * Reads the index map entries that the writer added while writing images,
+    * before the file was finished.  Returns labels by image (IFD) offset; no
+    * entries if the index map cannot be read.
+    */
+   private HashMap<Long, String> readWrittenIndexMapEntries() {
+      HashMap<Long, String> labels = new HashMap<Long, String>();
+      try {
+         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER, 8);
+         ByteBuffer header = readIntoBuffer(offset, 8);
+         if (header.getInt(0) != MultipageTiffWriter.INDEX_MAP_HEADER) {
+            return labels;
+         }
+         long numMappings = Math.min(unsignInt(header.getInt(4)),
+                 Math.max(0, (fileChannel_.size() - offset - 8) / 20));
+         ByteBuffer mapBuffer = readIntoBuffer(offset + 8, (int) (20 * numMappings));
+         for (int i = 0; i < numMappings; i++) {
+            long imageOffset = unsignInt(mapBuffer.getInt(i*20+16));
+            if (imageOffset == 0) {
+               break; // no more entries were written
+            }
+            labels.put(imageOffset, MDUtils.generateLabel(mapBuffer.getInt(i*20),
+                    mapBuffer.getInt(i*20+4), mapBuffer.getInt(i*20+8), mapBuffer.getInt(i*20+12)));
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Index map of " + file_.getName() + " unreadable, using image metadata");
+      }
+      return labels;
+   }
+
+   /*
+    * Reads the metadata of an image without its pixels.  Returns null for
+    * blank placeholder images and for metadata that cannot be parsed.
+    */
+   private JSONObject readMetadata(IFDData data) throws IOException {
+      if (data.mdLength == 0) {
+         return null;
+      }
+      try {
+         JSONObject md = new JSONObject(getString(readIntoBuffer(data.mdOffset, (int) data.mdLength)));
+         return md.length() == 0 ? null : md;
+      } catch (JSONException ex) {
+         return null;
+      }
+   }
+
    private int writeDisplaySettings(JSONArray settings, long filePosition) throws IOException {
       int numReservedBytes = settings.length() * MultipageTiffWriter.DISPLAY_SETTINGS_BYTES_PER_CHANNEL;
       ByteBuffer header = ByteBuffer.allocate(8).order(MultipageTiffWriter.BYTE_ORDER);
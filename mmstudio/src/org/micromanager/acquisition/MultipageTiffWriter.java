@@ -27,6 +27,7 @@ import ij.io.TiffDecoder;
 import ij.process.LUT;
 import java.awt.Color;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
@@ -44,6 +45,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.diagnostics.PipelineTelemetry;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
@@ -200,7 +202,7 @@ public class MultipageTiffWriter {
            public void run() {
              try {
                 buffer.rewind();
-                fileChannel_.write(buffer, position);
+                PipelineTelemetry.addBytesWritten(fileChannel_.write(buffer, position));
                 if (buffer.limit() == currentImageByteBufferCapacity_) {
                     currentImageByteBuffers_.offer(buffer);
                 }
@@ -217,7 +219,7 @@ public class MultipageTiffWriter {
            @Override
            public void run() {
              try {
-                fileChannel_.write(buffers);
+                PipelineTelemetry.addBytesWritten(fileChannel_.write(buffers));
                 for (ByteBuffer buffer:buffers) {
                     if (buffer.limit() == currentImageByteBufferCapacity_) {
                         currentImageByteBuffers_.offer(buffer);
@@ -314,6 +316,18 @@ public class MultipageTiffWriter {
     * OME/IJ metadata, and truncates the file to a reasonable length
     */
    public void close(String omeXML) throws IOException {
+      close(omeXML, null);
+   }
+
+   /**
+    * Like close(String), with the OME XML read from a file, which must be
+    * kept until writing has finished.
+    */
+   public void close(File omeXMLFile) throws IOException {
+      close(null, omeXMLFile);
+   }
+
+   private void close(String omeXML, File omeXMLFile) throws IOException {
       String summaryComment = "";
       try 
       {
@@ -328,7 +342,11 @@ public class MultipageTiffWriter {
 
       if (omeTiff_) {
          try {
-            writeImageDescription(omeXML, omeDescriptionTagPosition_);
+            if (omeXMLFile != null) {
+               writeImageDescription(omeXMLFile, omeDescriptionTagPosition_);
+            } else {
+               writeImageDescription(omeXML, omeDescriptionTagPosition_);
+            }
          } catch (Exception ex) {
             ReportingUtils.showError("Error writing OME metadata");
          }
@@ -355,7 +373,7 @@ public class MultipageTiffWriter {
       });
    }
    
-   public boolean hasSpaceForFullOMEMetadata(int length) {
+   public boolean hasSpaceForFullOMEMetadata(long length) {
       //5 MB extra padding..just to be safe
       int extraPadding = 5000000; 
       long size = length + SPACE_FOR_COMMENTS + numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
@@ -365,8 +383,11 @@ public class MultipageTiffWriter {
       return true;
    }
    
-   public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
-      int mdLength = img.tags.toString().length();
+   /**
+    * @param tags - tags that will be written with the image
+    */
+   public boolean hasSpaceToWrite(JSONObject tags, int omeMDLength) {
+      int mdLength = tags.toString().length();
       int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
       //5 MB extra padding...just to be safe...
       int extraPadding = 5000000; 
@@ -391,9 +412,14 @@ public class MultipageTiffWriter {
       writeBuffers();
    }
         
-   public void writeImage(TaggedImage img) throws IOException {
+   /**
+    * @param tags - tags to write, the image's own tags or a copy of them
+    *        expanded with the device properties they refer to
+    */
+   public void writeImage(TaggedImage img, JSONObject tags) throws IOException {
       if (writingExecutor_ != null) {
          int queueSize = writingExecutor_.getQueue().size();
+         PipelineTelemetry.recordQueueDepth("TIFF writing", queueSize);
          int attemptCount = 0;
          while (queueSize > 20) {
             if (attemptCount == 0) {
@@ -409,8 +435,8 @@ public class MultipageTiffWriter {
          }
       }
       long offset = filePosition_;
-      writeIFD(img);
-      addToIndexMap(MDUtils.getLabel(img.tags), offset);
+      writeIFD(img, tags);
+      addToIndexMap(MDUtils.getLabel(tags), offset);
       writeBuffers();
       //wait until image has finished writing to return
 //      int size = writingExecutor_.getQueue().size();
@@ -484,12 +510,12 @@ public class MultipageTiffWriter {
       fileChannelWrite(pixBuff, pixelOffset); 
    }
 
-   private void writeIFD(TaggedImage img) throws IOException {
+   private void writeIFD(TaggedImage img, JSONObject tags) throws IOException {
       char numEntries = ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
-      if (img.tags.has("Summary")) {
-         img.tags.remove("Summary");
+      if (tags.has("Summary")) {
+         tags.remove("Summary");
       }
-      byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
+      byte[] mdBytes = getBytesFromString(tags.toString() + " ");
       mdBytes[mdBytes.length - 1] = 0; // null terminate TIFF ASCII string
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
@@ -875,6 +901,55 @@ public class MultipageTiffWriter {
       filePosition_ += bytes.length;
    }
 
+   /*
+    * Copies the UTF-8 text of a file to the image description, without
+    * holding all of it in memory
+    */
+   private void writeImageDescription(final File textFile, long imageDescriptionTagOffset) throws IOException {
+      final long length = textFile.length();
+      final long position = filePosition_;
+      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
+      ifdCountAndValueBuffer.putInt(0, (int) (length + 1));
+      ifdCountAndValueBuffer.putInt(4, (int) position);
+      fileChannelWrite(ifdCountAndValueBuffer, imageDescriptionTagOffset + 4);
+
+      executeWritingTask(new Runnable() {
+         @Override
+         public void run() {
+            FileInputStream in = null;
+            try {
+               in = new FileInputStream(textFile);
+               FileChannel source = in.getChannel();
+               ByteBuffer buffer = ByteBuffer.allocate(65536);
+               long written = 0;
+               while (written < length && source.read(buffer) > 0) {
+                  buffer.flip();
+                  while (buffer.hasRemaining()) {
+                     written += fileChannel_.write(buffer, position + written);
+                  }
+                  buffer.clear();
+               }
+               PipelineTelemetry.addBytesWritten(written);
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            } finally {
+               if (in != null) {
+                  try {
+                     in.close();
+                  } catch (IOException ex) {
+                     ReportingUtils.logError(ex);
+                  }
+               }
+            }
+         }
+      });
+      // null terminate TIFF ASCII string
+      ByteBuffer terminator = allocateByteBuffer(1);
+      terminator.put(0, (byte) 0);
+      fileChannelWrite(terminator, position + length);
+      filePosition_ += length + 1;
+   }
+
    private byte[] getBytesFromString(String s) {
       try {
          return s.getBytes("UTF-8");
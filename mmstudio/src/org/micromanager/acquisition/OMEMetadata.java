@@ -21,7 +21,18 @@
 //
 package org.micromanager.acquisition;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.TreeMap;
 import loci.common.DateTools;
 import loci.common.services.ServiceFactory;
@@ -32,7 +43,6 @@ import ome.units.UNITS;
 import ome.units.quantity.Length;
 import ome.units.quantity.Time;
 import ome.xml.model.primitives.Color;
-import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 import ome.xml.model.primitives.Timestamp;
 import org.json.JSONArray;
@@ -42,25 +52,83 @@ import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
+/**
+ * OME metadata of a multipage TIFF data set.
+ *
+ * Everything but the TiffData and Plane elements, which make up most of the
+ * XML of large data sets, is kept in an OME model.  Those two are stored as
+ * fixed size records in a temporary file in the data set directory, and
+ * only streamed into the Pixels element of their series when the XML is
+ * written, so memory use does not grow with the number of planes.
+ */
 public class OMEMetadata {
 
    private IMetadata metadata_;
    private TaggedImageStorageMultipageTiff mptStorage_;
    private TreeMap<Integer, Indices> seriesIndices_ = new TreeMap<Integer, Indices>();
    private int numSlices_, numChannels_;
-   private TreeMap<String, Integer> tiffDataIndexMap_;
+   private PlaneStore planes_;
+   // TIFF files the TiffData elements refer to, indexed by UUID
+   private ArrayList<String> fileNames_ = new ArrayList<String>();
+   private ArrayList<String> fileUUIDs_ = new ArrayList<String>();
+   private HashMap<String, Integer> fileIndices_ = new HashMap<String, Integer>();
    
    private class Indices {
-      //specific to each series independent of file
-      int tiffDataIndex_ = -1;
       //specific to each series indpeendent of file
       int planeIndex_ = 0;
+      //records of the TiffData elements of the series, in order
+      int[] records_ = new int[256];
+      int numRecords_ = 0;
+      //record + 1 of each plane by frame, slice and channel; 0 if missing
+      int[] recordByPlane_ = new int[0];
+
+      void addRecord(int record) {
+         if (numRecords_ == records_.length) {
+            int[] records = new int[2 * records_.length];
+            System.arraycopy(records_, 0, records, 0, numRecords_);
+            records_ = records;
+         }
+         records_[numRecords_++] = record;
+      }
+
+      void setPlaneRecord(int channel, int slice, int frame, int record) {
+         if (channel < 0 || channel >= numChannels_ || slice < 0 || slice >= numSlices_
+                 || frame < 0) {
+            return;
+         }
+         int index = (frame * numSlices_ + slice) * numChannels_ + channel;
+         if (index >= recordByPlane_.length) {
+            int[] recordByPlane = new int[Math.max(index + 1, 2 * recordByPlane_.length)];
+            System.arraycopy(recordByPlane_, 0, recordByPlane, 0, recordByPlane_.length);
+            recordByPlane_ = recordByPlane;
+         }
+         recordByPlane_[index] = record + 1;
+      }
+
+      int getPlaneRecord(int channel, int slice, int frame) {
+         if (channel < 0 || channel >= numChannels_ || slice < 0 || slice >= numSlices_
+                 || frame < 0) {
+            return -1;
+         }
+         int index = (frame * numSlices_ + slice) * numChannels_ + channel;
+         return index < recordByPlane_.length ? recordByPlane_[index] - 1 : -1;
+      }
    }
    
-   public OMEMetadata(TaggedImageStorageMultipageTiff mpt) {
+   public OMEMetadata(TaggedImageStorageMultipageTiff mpt) throws IOException {
       mptStorage_ = mpt;
-      tiffDataIndexMap_ = new TreeMap<String,Integer>();
       metadata_ = MetadataTools.createOMEXMLMetadata();
+      // next to the data rather than in the system's temporary directory,
+      // which may not have room for the records of very large data sets
+      planes_ = new PlaneStore(new File(mpt.getDiskLocation()));
+   }
+
+   /**
+    * Deletes the temporary file of the TiffData and Plane elements. The XML
+    * can no longer be written afterwards.
+    */
+   public void close() {
+      planes_.close();
    }
    
    public static String getOMEStringPointerToMasterFile(String filename, String uuid)  {
@@ -78,14 +146,153 @@ public class OMEMetadata {
    @Override
    public String toString() {
       try {
-         OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
-         return service.getOMEXML(metadata_) + " ";
+         StringWriter out = new StringWriter();
+         writeXML(out);
+         return out.toString();
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
          return "";
       }
    }
 
+   /**
+    * Writes the XML, UTF-8 encoded, to a new temporary file in the data set
+    * directory, to be deleted by the caller.  If writing fails, the file is
+    * deleted here.
+    */
+   public File writeXMLToFile() throws IOException {
+      File file = File.createTempFile("OMEXMLMetadata", ".tmp", new File(mptStorage_.getDiskLocation()));
+      file.deleteOnExit();
+      boolean written = false;
+      try {
+         Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+         try {
+            writeXML(out);
+         } finally {
+            out.close();
+         }
+         written = true;
+      } finally {
+         if (!written) {
+            file.delete();
+         }
+      }
+      return file;
+   }
+
+   /*
+    * Writes the XML of the OME model, with the TiffData and Plane elements of
+    * each series inserted at the end of its Pixels element, where the model
+    * would put them.
+    */
+   private void writeXML(Writer out) throws IOException {
+      String model;
+      try {
+         OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
+         model = service.getOMEXML(metadata_);
+      } catch (Exception ex) {
+         throw new IOException("Couldn't generate OME XML: " + ex.getMessage());
+      }
+      planes_.flush();
+      int position = 0;
+      int pixelsCount = 0;
+      for (int start = model.indexOf("<Pixels "); start >= 0;
+              start = model.indexOf("<Pixels ", position)) {
+         int tagEnd = model.indexOf('>', start);
+         int series = getSeriesIndex(model.substring(start, tagEnd), pixelsCount);
+         pixelsCount++;
+         if (model.charAt(tagEnd - 1) == '/') {
+            // empty element
+            out.write(model, position, tagEnd - 1 - position);
+            out.write(">");
+            writePlanes(series, out);
+            out.write("</Pixels>");
+            position = tagEnd + 1;
+         } else {
+            int end = model.indexOf("</Pixels>", tagEnd);
+            out.write(model, position, end - position);
+            writePlanes(series, out);
+            position = end;
+         }
+      }
+      out.write(model, position, model.length() - position);
+      out.write(" ");
+   }
+
+   /*
+    * Series of a Pixels element from its ID (Pixels:series), or else from
+    * the order of the elements
+    */
+   private static int getSeriesIndex(String pixelsTag, int pixelsCount) {
+      int id = pixelsTag.indexOf(" ID=\"Pixels:");
+      if (id >= 0) {
+         int start = id + " ID=\"Pixels:".length();
+         int end = pixelsTag.indexOf('"', start);
+         try {
+            return Integer.parseInt(pixelsTag.substring(start, end));
+         } catch (NumberFormatException ex) {
+            // fall through
+         }
+      }
+      return pixelsCount;
+   }
+
+   private void writePlanes(int series, Writer out) throws IOException {
+      Indices indices = seriesIndices_.get(series);
+      if (indices == null) {
+         return;
+      }
+      PlaneRecord r = new PlaneRecord();
+      for (int i = 0; i < indices.numRecords_; i++) {
+         planes_.read(indices.records_[i], r);
+         out.write("<TiffData FirstC=\"" + r.channel + "\" FirstT=\"" + r.frame
+                 + "\" FirstZ=\"" + r.slice + "\" IFD=\"" + r.ifd
+                 + "\" PlaneCount=\"1\"><UUID FileName=\"" + escape(fileNames_.get(r.file)) + "\">"
+                 + escape(fileUUIDs_.get(r.file)) + "</UUID></TiffData>");
+      }
+      for (int i = 0; i < indices.numRecords_; i++) {
+         planes_.read(indices.records_[i], r);
+         if ((r.flags & PlaneRecord.PLANE) == 0) {
+            continue;
+         }
+         StringBuilder plane = new StringBuilder("<Plane");
+         if ((r.flags & PlaneRecord.DELTA_T) != 0) {
+            plane.append(" DeltaT=\"").append(r.deltaT).append("\" DeltaTUnit=\"ms\"");
+         }
+         if ((r.flags & PlaneRecord.EXPOSURE) != 0) {
+            plane.append(" ExposureTime=\"").append(r.exposure).append("\" ExposureTimeUnit=\"ms\"");
+         }
+         if ((r.flags & PlaneRecord.X) != 0) {
+            plane.append(" PositionX=\"").append(r.x).append("\" PositionXUnit=\"\u00b5m\"");
+         }
+         if ((r.flags & PlaneRecord.Y) != 0) {
+            plane.append(" PositionY=\"").append(r.y).append("\" PositionYUnit=\"\u00b5m\"");
+         }
+         if ((r.flags & PlaneRecord.Z) != 0) {
+            plane.append(" PositionZ=\"").append(r.z).append("\" PositionZUnit=\"\u00b5m\"");
+         }
+         plane.append(" TheC=\"").append(r.channel).append("\" TheT=\"").append(r.frame)
+                 .append("\" TheZ=\"").append(r.slice).append("\"/>");
+         out.write(plane.toString());
+      }
+   }
+
+   private static String escape(String s) {
+      return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+              .replace("\"", "&quot;").replace("'", "&apos;");
+   }
+
+   private int getFileIndex(String fileName, String uuid) {
+      Integer index = fileIndices_.get(uuid);
+      if (index == null) {
+         index = fileNames_.size();
+         fileNames_.add(fileName);
+         fileUUIDs_.add(uuid);
+         fileIndices_.put(uuid, index);
+      }
+      return index;
+   }
+
    public void setNumFrames(int seriesIndex, int numFrames) {
       metadata_.setPixelsSizeT(new PositiveInteger(numFrames), seriesIndex);
    }
@@ -93,8 +300,6 @@ public class OMEMetadata {
    private void startSeriesMetadata(JSONObject firstImageTags, int seriesIndex, String baseFileName) 
            throws JSONException, MMScriptException {
       Indices indices = new Indices();
-      indices.planeIndex_ = 0;
-      indices.tiffDataIndex_ = 0;
       seriesIndices_.put(seriesIndex, indices);  
       //Last one is samples per pixel
       JSONObject summaryMD = mptStorage_.getSummaryMetadata();
@@ -157,13 +362,18 @@ public class OMEMetadata {
     * Method called when numC*numZ*numT != total number of planes
     */
    public void fillInMissingTiffDatas(int frame, int position) {
+      Indices indices = seriesIndices_.get(position);
+      if (indices == null) {
+         return;
+      }
       try {
+      PlaneRecord substitute = new PlaneRecord();
       for (int slice = 0; slice < numSlices_; slice++) {
          for (int channel = 0; channel < numChannels_; channel++) {
             //make sure each tiffdata entry is present. If it is missing, link Tiffdata entry
             //to a a preveious IFD
-            Integer tiffDataIndex =  tiffDataIndexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));
-            if (tiffDataIndex == null) {
+            int record = indices.getPlaneRecord(channel, slice, frame);
+            if (record < 0) {
                //this plane was never added, so link to another IFD
                //find substitute channel, frame, slice
                int s = slice;
@@ -171,24 +381,22 @@ public class OMEMetadata {
                int frameSearchIndex = frame;
                //If some but not all channels have z stacks, find the closest slice for the given
                //channel that has an image.  Also if time point missing, go back until image is found
-               while (tiffDataIndex == null) {
-                  
-                              
-                  tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, s, frameSearchIndex, position));
-                  if (tiffDataIndex != null) {
+               while (record < 0) {
+                  record = indices.getPlaneRecord(channel, s, frameSearchIndex);
+                  if (record >= 0) {
                      break;
                   }
 
                   if (backIndex >= 0) {
-                     tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, backIndex, frameSearchIndex, position));
-                     if (tiffDataIndex != null) {                   
+                     record = indices.getPlaneRecord(channel, backIndex, frameSearchIndex);
+                     if (record >= 0) {
                         break;
                      }
                      backIndex--;
                   }
                   if (forwardIndex < numSlices_) {
-                     tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, forwardIndex, frameSearchIndex, position));
-                     if (tiffDataIndex != null) {                  
+                     record = indices.getPlaneRecord(channel, forwardIndex, frameSearchIndex);
+                     if (record >= 0) {
                         break;
                      }
                      forwardIndex++;
@@ -203,21 +411,17 @@ public class OMEMetadata {
                      }
                   }
                }
-               NonNegativeInteger ifd = metadata_.getTiffDataIFD(position, tiffDataIndex);
-               String filename = metadata_.getUUIDFileName(position, tiffDataIndex);
-               String uuid = metadata_.getUUIDValue(position, tiffDataIndex);
-               Indices indices = seriesIndices_.get(position);
-
-               metadata_.setTiffDataFirstZ(new NonNegativeInteger(slice), position, indices.tiffDataIndex_);
-               metadata_.setTiffDataFirstC(new NonNegativeInteger(channel), position, indices.tiffDataIndex_);
-               metadata_.setTiffDataFirstT(new NonNegativeInteger(frame), position, indices.tiffDataIndex_);
-
-               metadata_.setTiffDataIFD(ifd, position, indices.tiffDataIndex_);
-               metadata_.setUUIDFileName(filename, position, indices.tiffDataIndex_);
-               metadata_.setUUIDValue(uuid, position, indices.tiffDataIndex_);
-               metadata_.setTiffDataPlaneCount(new NonNegativeInteger(1), position, indices.tiffDataIndex_);
-
-               indices.tiffDataIndex_++;
+               if (record < 0) {
+                  continue; // no image of this channel at all
+               }
+               planes_.read(record, substitute);
+               PlaneRecord tiffData = new PlaneRecord();
+               tiffData.channel = channel;
+               tiffData.slice = slice;
+               tiffData.frame = frame;
+               tiffData.ifd = substitute.ifd;
+               tiffData.file = substitute.file;
+               indices.addRecord(planes_.add(tiffData));
             }
          }
       }
@@ -263,72 +467,57 @@ public class OMEMetadata {
 
       //Required tags: Channel, slice, and frame index
       try {
-         int slice = MDUtils.getSliceIndex(tags);
-         int frame = MDUtils.getFrameIndex(tags);
-         int channel = MDUtils.getChannelIndex(tags);
-             
-         // ifdCount is 0 when a new file started, tiff data plane count is 0 at a new position
-         metadata_.setTiffDataFirstZ(new NonNegativeInteger(slice), position, indices.tiffDataIndex_);         
-         metadata_.setTiffDataFirstC(new NonNegativeInteger(channel), position, indices.tiffDataIndex_);
-         metadata_.setTiffDataFirstT(new NonNegativeInteger(frame), position, indices.tiffDataIndex_);
-         metadata_.setTiffDataIFD(new NonNegativeInteger(ifdCount), position, indices.tiffDataIndex_);
-         metadata_.setUUIDFileName(currentFileName, position, indices.tiffDataIndex_);
-         metadata_.setUUIDValue(uuid, position, indices.tiffDataIndex_);
-         tiffDataIndexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), indices.tiffDataIndex_);
-         metadata_.setTiffDataPlaneCount(new NonNegativeInteger(1), position, indices.tiffDataIndex_);
-
-         metadata_.setPlaneTheZ(new NonNegativeInteger(slice), position, indices.planeIndex_);
-         metadata_.setPlaneTheC(new NonNegativeInteger(channel), position, indices.planeIndex_);
-         metadata_.setPlaneTheT(new NonNegativeInteger(frame), position, indices.planeIndex_);
-      } catch (JSONException ex) {
-         ReportingUtils.showError("Image Metadata missing ChannelIndex, SliceIndex, or FrameIndex");
-      } catch (Exception e) {
-         ReportingUtils.logError("Couldn't add to OME metadata");
-      }
+         PlaneRecord plane = new PlaneRecord();
+         plane.slice = MDUtils.getSliceIndex(tags);
+         plane.frame = MDUtils.getFrameIndex(tags);
+         plane.channel = MDUtils.getChannelIndex(tags);
+         // ifdCount is 0 when a new file started
+         plane.ifd = ifdCount;
+         plane.file = getFileIndex(currentFileName, uuid);
+         plane.flags = PlaneRecord.PLANE;
 
-      //Optional tags
-      try {
-
-         if (MDUtils.hasExposureMs(tags)) {
-            metadata_.setPlaneExposureTime(
-                  new Time(MDUtils.getExposureMs(tags), UNITS.MS),
-                  position, indices.planeIndex_);
-         }
-         if (MDUtils.hasXPositionUm(tags)) {
-            final Length xPosition =
-                  new Length(MDUtils.getXPositionUm(tags), UNITS.MICROM);
-            metadata_.setPlanePositionX(xPosition, position,
-                  indices.planeIndex_);
-            if (indices.planeIndex_ == 0) { //should be set at start, but dont have position coordinates then
-               metadata_.setStageLabelX(xPosition, position);
+         //Optional tags
+         try {
+            if (MDUtils.hasExposureMs(tags)) {
+               plane.exposure = MDUtils.getExposureMs(tags);
+               plane.flags |= PlaneRecord.EXPOSURE;
             }
-         }
-         if (MDUtils.hasYPositionUm(tags)) {
-            final Length yPosition =
-                  new Length(MDUtils.getYPositionUm(tags), UNITS.MICROM);
-            metadata_.setPlanePositionY(yPosition, position,
-                  indices.planeIndex_);
-            if (indices.planeIndex_ == 0) {
-               metadata_.setStageLabelY(yPosition, position);
+            if (MDUtils.hasXPositionUm(tags)) {
+               plane.x = MDUtils.getXPositionUm(tags);
+               plane.flags |= PlaneRecord.X;
+               if (indices.planeIndex_ == 0) { //should be set at start, but dont have position coordinates then
+                  metadata_.setStageLabelX(new Length(plane.x, UNITS.MICROM), position);
+               }
             }
-         }
-         if (MDUtils.hasZPositionUm(tags)) {
-            metadata_.setPlanePositionZ(
-                  new Length(MDUtils.getZPositionUm(tags), UNITS.MICROM),
-                  position, indices.planeIndex_);
-         }
-         if (MDUtils.hasElapsedTimeMs(tags)) {
-            metadata_.setPlaneDeltaT(
-                  new Time(MDUtils.getElapsedTimeMs(tags), UNITS.MS),
-                  position, indices.planeIndex_);
+            if (MDUtils.hasYPositionUm(tags)) {
+               plane.y = MDUtils.getYPositionUm(tags);
+               plane.flags |= PlaneRecord.Y;
+               if (indices.planeIndex_ == 0) {
+                  metadata_.setStageLabelY(new Length(plane.y, UNITS.MICROM), position);
+               }
+            }
+            if (MDUtils.hasZPositionUm(tags)) {
+               plane.z = MDUtils.getZPositionUm(tags);
+               plane.flags |= PlaneRecord.Z;
+            }
+            if (MDUtils.hasElapsedTimeMs(tags)) {
+               plane.deltaT = MDUtils.getElapsedTimeMs(tags);
+               plane.flags |= PlaneRecord.DELTA_T;
+            }
+         } catch (JSONException e) {
+            ReportingUtils.logError("Problem adding tags to OME Metadata");
          }
 
-      } catch (JSONException e) {
-         ReportingUtils.logError("Problem adding tags to OME Metadata");
+         int record = planes_.add(plane);
+         indices.addRecord(record);
+         indices.setPlaneRecord(plane.channel, plane.slice, plane.frame, record);
+      } catch (JSONException ex) {
+         ReportingUtils.showError("Image Metadata missing ChannelIndex, SliceIndex, or FrameIndex");
+      } catch (Exception e) {
+         ReportingUtils.logError("Couldn't add to OME metadata");
       }
 
       indices.planeIndex_++;
-      indices.tiffDataIndex_++;
    }
 
    private void setOMEDetectorMetadata(JSONObject tags) throws JSONException {
@@ -373,5 +562,92 @@ public class OMEMetadata {
 
       }
    }
+   /*
+    * A TiffData element and, if flags include PLANE, the Plane element of
+    * the same plane.
+    */
+   private static class PlaneRecord {
+      static final int SIZE = 64;
+      static final int PLANE = 1, EXPOSURE = 2, X = 4, Y = 8, Z = 16, DELTA_T = 32;
+
+      int flags, channel, slice, frame, ifd, file;
+      double exposure, x, y, z, deltaT;
+   }
+
+   /*
+    * PlaneRecords in a temporary file, written through a buffer and read back
+    * in blocks.
+    */
+   private static class PlaneStore {
+      private static final int RECORDS_PER_BLOCK = 1024;
+
+      private final File file_;
+      private RandomAccessFile raFile_;
+      private final ByteBuffer writeBuffer_ = ByteBuffer.allocate(RECORDS_PER_BLOCK * PlaneRecord.SIZE);
+      private final ByteBuffer readBuffer_ = ByteBuffer.allocate(RECORDS_PER_BLOCK * PlaneRecord.SIZE);
+      private int readBlock_ = -1;
+      private int numRecords_ = 0;
+      private int numWritten_ = 0;
+
+      PlaneStore(File directory) throws IOException {
+         file_ = File.createTempFile("OMEPlanes", ".tmp", directory);
+         file_.deleteOnExit();
+         raFile_ = new RandomAccessFile(file_, "rw");
+      }
+
+      int add(PlaneRecord r) throws IOException {
+         if (!writeBuffer_.hasRemaining()) {
+            flush();
+         }
+         writeBuffer_.putInt(r.flags).putInt(r.channel).putInt(r.slice).putInt(r.frame)
+                 .putInt(r.ifd).putInt(r.file).putDouble(r.exposure).putDouble(r.x)
+                 .putDouble(r.y).putDouble(r.z).putDouble(r.deltaT);
+         return numRecords_++;
+      }
+
+      void flush() throws IOException {
+         writeBuffer_.flip();
+         raFile_.getChannel().write(writeBuffer_, (long) numWritten_ * PlaneRecord.SIZE);
+         numWritten_ = numRecords_;
+         writeBuffer_.clear();
+         readBlock_ = -1;
+      }
+
+      void read(int index, PlaneRecord r) throws IOException {
+         if (index >= numWritten_) {
+            flush();
+         }
+         int block = index / RECORDS_PER_BLOCK;
+         if (block != readBlock_) {
+            readBuffer_.clear();
+            raFile_.getChannel().read(readBuffer_, (long) block * RECORDS_PER_BLOCK * PlaneRecord.SIZE);
+            readBlock_ = block;
+         }
+         readBuffer_.position((index % RECORDS_PER_BLOCK) * PlaneRecord.SIZE);
+         r.flags = readBuffer_.getInt();
+         r.channel = readBuffer_.getInt();
+         r.slice = readBuffer_.getInt();
+         r.frame = readBuffer_.getInt();
+         r.ifd = readBuffer_.getInt();
+         r.file = readBuffer_.getInt();
+         r.exposure = readBuffer_.getDouble();
+         r.x = readBuffer_.getDouble();
+         r.y = readBuffer_.getDouble();
+         r.z = readBuffer_.getDouble();
+         r.deltaT = readBuffer_.getDouble();
+      }
+
+      void close() {
+         try {
+            if (raFile_ != null) {
+               raFile_.close();
+               raFile_ = null;
+            }
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex);
+         }
+         file_.delete();
+      }
+   }
 }
 
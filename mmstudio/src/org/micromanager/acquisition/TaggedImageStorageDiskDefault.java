@@ -20,6 +20,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.*;
+import mmcorej.SystemStateTags;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -134,8 +135,11 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
             throw new IOException("Image saving failed: " + saveFile.getAbsolutePath());
          }
          
-         saveImageFile(img, md, dir_, fileName);
-         writeFrameMetadata(md);
+         // the files get the device properties of the system state the
+         // image refers to
+         JSONObject fullMd = SystemStateTags.expanded(md);
+         saveImageFile(img, fullMd, dir_, fileName);
+         writeFrameMetadata(fullMd);
          String label = MDUtils.getLabel(md);
          filenameTable_.put(label, fileName);
       } catch (Exception ex) {
@@ -24,19 +24,29 @@ package org.micromanager.acquisition;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import mmcorej.SystemStateTags;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -55,12 +65,16 @@ import org.micromanager.utils.ReportingUtils;
 public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage {
    
    private static final int SPACE_FOR_PARTIAL_OME_MD = 2000; //this should be more than enough
+   // Opening files is limited by file system latency (e.g. on network
+   // drives) rather than by the CPU, so use more threads than processors
+   private static final int OPENING_THREADS = 8;
+   private static ExecutorService openingExecutor_;
    
    private JSONObject summaryMetadata_;
    private String summaryMetadataString_ = null;
    private JSONObject displayAndComments_;
    private boolean newDataSet_;
-   private int lastFrameOpenedDataSet_ = -1;
+   private volatile int lastFrameOpenedDataSet_ = -1;
    private String directory_;
    final public boolean omeTiff_;
    final private boolean separateMetadataFile_;
@@ -85,8 +99,18 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    //map of position indices to objects associated with each
    private HashMap<Integer, FileSet> fileSets_;
    
-   //Map of image labels to file 
-   private TreeMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   //Map of image labels to file; files of existing data sets are added
+   //to it concurrently
+   private ConcurrentSkipListMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   
+   // Counts down the files of an existing data set still being opened in the
+   // background; null if none are
+   private volatile CountDownLatch filesOpening_;
+   private volatile boolean closing_ = false;
+   // files opened in the background that need their index map fixed; the
+   // user is asked on the EDT once the other files are open
+   private final List<File> filesToRepair_ =
+         Collections.synchronizedList(new ArrayList<File>());
   
    public TaggedImageStorageMultipageTiff(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws IOException {            
       this(dir, newDataSet, summaryMetadata, MMStudio.getInstance().getMetadataFileWithMultipageTiff(),
@@ -106,7 +130,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
       newDataSet_ = newDataSet;
       directory_ = dir;
-      tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator());
+      tiffReadersByLabel_ = new ConcurrentSkipListMap<String, MultipageTiffReader>(new ImageLabelComparator());
       setSummaryMetadata(summaryMetadata);
 
       // TODO: throw error if no existing dataset
@@ -152,69 +176,207 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       fixIndexMap_ = true;
    }
 
+   /*
+    * Opens the first file of the data set, which provides the summary
+    * metadata and display settings, and the others in parallel in the
+    * background.  Images can be requested as soon as the first file is
+    * indexed; methods that need all images wait for the rest.  Files of the
+    * background set that were not properly closed are offered for repair
+    * after the others have been opened.
+    */
    private void openExistingDataSet() {
       //Need to throw error if file not found
-      MultipageTiffReader reader = null;
       File dir = new File(directory_);
-
-      ProgressBar progressBar = new ProgressBar("Reading " + directory_, 0, dir.listFiles().length);
-      int numRead = 0;
-      progressBar.setProgress(numRead);
-      progressBar.setVisible(true);
+      List<File> files = new ArrayList<File>();
       for (File f : dir.listFiles()) {
          if (f.getName().endsWith(".tif") || f.getName().endsWith(".TIF")) {
-            reader = loadFile(f);
+            files.add(f);
          }
-         numRead++;
-         progressBar.setProgress(numRead);
       }
-      progressBar.setVisible(false);
+      Collections.sort(files);
 
+      final ProgressBar progressBar = new ProgressBar("Reading " + directory_, 0, files.size());
+      progressBar.setProgress(0);
+      progressBar.setVisible(true);
+      MultipageTiffReader reader = null;
+      int numRead = 0;
+      while (reader == null && numRead < files.size()) {
+         reader = loadFile(files.get(numRead), true);
+         numRead++;
+      }
+      progressBar.setProgress(numRead);
       if (reader != null) {
          setSummaryMetadata(reader.getSummaryMetadata(), true);
          displayAndComments_ = reader.getDisplayAndComments();
       }
+      if (numRead == files.size()) {
+         progressBar.setVisible(false);
+         return;
+      }
 
-      progressBar.setProgress(1);
-      progressBar.setVisible(false);
+      final List<File> remaining = files.subList(numRead, files.size());
+      final AtomicInteger filesRead = new AtomicInteger(numRead);
+      final CountDownLatch filesOpening = new CountDownLatch(remaining.size());
+      filesOpening_ = filesOpening;
+      for (final File f : remaining) {
+         getOpeningExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  if (!closing_) {
+                     loadFile(f, false);
+                  }
+               } finally {
+                  final int read = filesRead.incrementAndGet();
+                  filesOpening.countDown();
+                  SwingUtilities.invokeLater(new Runnable() {
+                     @Override
+                     public void run() {
+                        progressBar.setProgress(read);
+                        if (filesOpening.getCount() == 0) {
+                           progressBar.setVisible(false);
+                           repairFiles();
+                        }
+                     }
+                  });
+               }
+            }
+         });
+      }
    }
 
-   private MultipageTiffReader loadFile(File f) {
+   private static synchronized ExecutorService getOpeningExecutor() {
+      if (openingExecutor_ == null) {
+         openingExecutor_ = Executors.newFixedThreadPool(OPENING_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Multipage TIFF opening");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return openingExecutor_;
+   }
+
+   /*
+    * Waits until all files of an existing data set have been opened.
+    */
+   private void waitForFilesOpening() {
+      CountDownLatch filesOpening = filesOpening_;
+      if (filesOpening == null) {
+         return;
+      }
+      try {
+         filesOpening.await();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private boolean isOpeningFiles() {
+      CountDownLatch filesOpening = filesOpening_;
+      return filesOpening != null && filesOpening.getCount() > 0;
+   }
+
+   private synchronized void updateLastFrameOpened(int frameIndex) {
+      lastFrameOpenedDataSet_ = Math.max(frameIndex, lastFrameOpenedDataSet_);
+   }
+
+   /*
+    * Opens a file and indexes its images.  A file that was not properly
+    * closed is offered for repair right away if prompt is true, otherwise
+    * it is put aside for repairFiles().
+    */
+   private MultipageTiffReader loadFile(File f, boolean prompt) {
       MultipageTiffReader reader = null;
       try {
          try {
             reader = new MultipageTiffReader(f);
          }
          catch (InvalidIndexMapException e) {
-            // Prompt to repair it.
-            int choice = JOptionPane.showConfirmDialog(null,
-                  "This file cannot be opened bcause it appears to have \n" +
-                  "been improperly saved. Would you like Micro-Manger to attempt " +
-                  "to fix it?",
-                  "Micro-Manager", JOptionPane.YES_NO_OPTION);
-            if (choice != JOptionPane.YES_OPTION) {
+            if (!prompt) {
+               filesToRepair_.add(f);
+               return null;
+            }
+            reader = repairFile(f);
+            if (reader == null) {
                return null;
             }
-            // Attempt to repair it. This constructor automatically invokes
-            // the fixIndexMap method (and is the only constructor that
-            // opens files in read/write mode).
-            reader = new MultipageTiffReader(f, true);
-            reader.close();
-            // Open the file normally.
-            reader = new MultipageTiffReader(f);
          }
          Set<String> labels = reader.getIndexKeys();
+         int lastFrame = -1;
          for (String label : labels) {
             tiffReadersByLabel_.put(label, reader);
             int frameIndex = Integer.parseInt(label.split("_")[2]);
-            lastFrameOpenedDataSet_ = Math.max(frameIndex, lastFrameOpenedDataSet_);
+            lastFrame = Math.max(frameIndex, lastFrame);
          }
+         updateLastFrameOpened(lastFrame);
       } catch (IOException ex) {
          ReportingUtils.showError("Couldn't open file: " + f.toString());
       }
       return reader;
    }
 
+   /*
+    * Offers the files put aside while opening the data set for repair.
+    * Called on the EDT.
+    */
+   private void repairFiles() {
+      List<File> files;
+      synchronized (filesToRepair_) {
+         files = new ArrayList<File>(filesToRepair_);
+         filesToRepair_.clear();
+      }
+      for (File f : files) {
+         if (!closing_) {
+            loadFile(f, true);
+         }
+      }
+   }
+
+   /*
+    * Offers to fix the index map of a file that was not properly closed, and
+    * opens it if fixed.  The question is asked on the EDT.
+    */
+   private MultipageTiffReader repairFile(File f) throws IOException {
+      // Prompt to repair it.
+      final int[] choice = new int[1];
+      Runnable prompt = new Runnable() {
+         @Override
+         public void run() {
+            choice[0] = JOptionPane.showConfirmDialog(null,
+                  "This file cannot be opened bcause it appears to have \n" +
+                  "been improperly saved. Would you like Micro-Manger to attempt " +
+                  "to fix it?",
+                  "Micro-Manager", JOptionPane.YES_NO_OPTION);
+         }
+      };
+      if (SwingUtilities.isEventDispatchThread()) {
+         prompt.run();
+      } else {
+         try {
+            SwingUtilities.invokeAndWait(prompt);
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+         } catch (InvocationTargetException ex) {
+            ReportingUtils.logError(ex);
+            return null;
+         }
+      }
+      if (choice[0] != JOptionPane.YES_OPTION) {
+         return null;
+      }
+      // Attempt to repair it. This constructor automatically invokes
+      // the fixIndexMap method (and is the only constructor that
+      // opens files in read/write mode).
+      MultipageTiffReader reader = new MultipageTiffReader(f, true);
+      reader.close();
+      // Open the file normally.
+      return new MultipageTiffReader(f);
+   }
+
    @Override
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
       String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
@@ -225,6 +387,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
 
       MultipageTiffReader reader = tiffReadersByLabel_.get(label);
+      if (reader == null && isOpeningFiles()) {
+         if (SwingUtilities.isEventDispatchThread()) {
+            // the image may be in a file that is not indexed yet; rather than
+            // freezing the UI until all files are open, show nothing for now
+            return null;
+         }
+         waitForFilesOpening();
+         reader = tiffReadersByLabel_.get(label);
+      }
       if (reader == null) {
          return null;
       }
@@ -340,6 +511,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public Set<String> imageKeys() {
+      waitForFilesOpening();
       return tiffReadersByLabel_.keySet();
    }
 
@@ -360,6 +532,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          return;
       }
       ProgressBar progressBar = new ProgressBar("Finishing Files", 0, fileSets_.size());
+      File omeXMLFile = null;
       try {
          int count = 0;
          progressBar.setProgress(count);
@@ -383,15 +556,26 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          }
 
          //figure out where the full string of OME metadata can be stored 
-         String fullOMEXMLMetadata = omeMetadata_.toString();
-         int length = fullOMEXMLMetadata.length();
+         //the XML is assembled in a temporary file and copied from there
+         long length = 0;
+         try {
+            omeXMLFile = omeMetadata_.writeXMLToFile();
+            length = omeXMLFile.length();
+         } catch (IOException ex) {
+            //don't want errors in the OME metadata to keep the files from being finished
+            ReportingUtils.logError(ex, "Couldn't write OME metadata");
+         }
          String uuid = null, filename = null;
          FileSet master = null;
          for (FileSet p : fileSets_.values()) {
             if (p.hasSpaceForFullOMEXML(length)) {
                uuid = p.getCurrentUUID();
                filename = p.getCurrentFilename();
-               p.finished(fullOMEXMLMetadata);
+               if (omeXMLFile != null) {
+                  p.finished(omeXMLFile);
+               } else {
+                  p.finished("");
+               }
                master = p;
                count++;
                progressBar.setProgress(count);
@@ -405,9 +589,12 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             //simplest way to do this is to make a .ome text file 
              filename = "OMEXMLMetadata.ome";
              uuid = "urn:uuid:" + UUID.randomUUID().toString();
-             PrintWriter pw = new PrintWriter(directory_ + File.separator + filename);
-             pw.print(fullOMEXMLMetadata);
-             pw.close();
+             if (omeXMLFile != null &&
+                     omeXMLFile.renameTo(new File(directory_ + File.separator + filename))) {
+                omeXMLFile = null;
+             } else {
+                ReportingUtils.logError("Couldn't write " + filename);
+             }
          }
          
          String partialOME = OMEMetadata.getOMEStringPointerToMasterFile(filename, uuid);
@@ -416,10 +603,19 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             if (p == master) {
                continue;
             }
-            p.finished(partialOME);
+            try {
+               p.finished(partialOME);
+            } catch (IOException ex) {
+               //the other files are still finished
+               ReportingUtils.logError(ex);
+            }
             count++;
             progressBar.setProgress(count);
          }            
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+      }
+      finally {
          //shut down writing executor--pause here until all tasks have finished writing
          //so that no attempt is made to close the dataset (and thus the FileChannel)
          //before everything has finished writing
@@ -436,11 +632,13 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
                Thread.interrupted();
             }
          }
-      } catch (IOException ex) {
-         ReportingUtils.logError(ex);
-      }
-      finally {
          progressBar.setVisible(false);
+         if (omeXMLFile != null) {
+            omeXMLFile.delete();
+         }
+         if (omeMetadata_ != null) {
+            omeMetadata_.close();
+         }
       }
       finished_ = true;
    }
@@ -450,6 +648,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    @Override
    public void close() {
+      // files still to be opened are skipped, but those being opened
+      // must be closed as well
+      closing_ = true;
+      waitForFilesOpening();
       for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
          try {
             r.close();
@@ -466,6 +668,8 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public void setSummaryMetadata(JSONObject md) {
+      // the image map is rebuilt, so it must be complete
+      waitForFilesOpening();
       setSummaryMetadata(md, false);
    }
    
@@ -476,8 +680,8 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          summaryMetadataString_ = md.toString();
          boolean slicesFirst = summaryMetadata_.optBoolean("SlicesFirst", true);
          boolean timeFirst = summaryMetadata_.optBoolean("TimeFirst", false);
-         TreeMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
-         tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
+         ConcurrentSkipListMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
+         tiffReadersByLabel_ = new ConcurrentSkipListMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
          if (showProgress) {
             ProgressBar progressBar = new ProgressBar("Building image location map", 0, oldImageMap.keySet().size());
             progressBar.setProgress(0);
@@ -519,6 +723,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
           
    @Override   
    public void writeDisplaySettings() {
+      waitForFilesOpening();
       for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
          try {
             r.rewriteDisplaySettings(displayAndComments_.getJSONArray("Channels"));
@@ -540,6 +745,11 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    public int lastAcquiredFrame() {
       if (newDataSet_) {
          return lastFrame_;
+      } else if (isOpeningFiles() && summaryMetadata_ != null) {
+         // Until all files are indexed, allow for the frames announced in
+         // the summary metadata, so that a display opened meanwhile has
+         // room for images in files not indexed yet
+         return Math.max(lastFrameOpenedDataSet_, summaryMetadata_.optInt("Frames", 0) - 1);
       } else {
          return lastFrameOpenedDataSet_;
       }
@@ -615,11 +825,19 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          return currentTiffFilename_;
       }
       
-      public boolean hasSpaceForFullOMEXML(int mdLength) {
+      public boolean hasSpaceForFullOMEXML(long mdLength) {
          return tiffWriters_.getLast().hasSpaceForFullOMEMetadata(mdLength);
       }
       
       public void finished(String omeXML) throws IOException {
+         finished(omeXML, null);
+      }
+
+      public void finished(File omeXMLFile) throws IOException {
+         finished(null, omeXMLFile);
+      }
+
+      private void finished(String omeXML, File omeXMLFile) throws IOException {
          if (finished_) {
             return;
          }
@@ -636,7 +854,11 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          tiffWriters_.getLast().finish();
          //close all
          for (MultipageTiffWriter w : tiffWriters_) {
-            w.close(omeXML);
+            if (omeXMLFile != null) {
+               w.close(omeXMLFile);
+            } else {
+               w.close(omeXML);
+            }
          }
          finished_ = true;
       }
@@ -658,8 +880,18 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
       
       public void writeImage(TaggedImage img) throws IOException {
+         //the files get the device properties of the system state the image
+         //refers to, the image itself keeps the reference
+         JSONObject tags;
+         try {
+            tags = SystemStateTags.expanded(img.tags);
+         } catch (JSONException ex) {
+            ReportingUtils.logError(ex, "Couldn't add system state to image metadata");
+            tags = img.tags;
+         }
+
          //check if current writer is out of space, if so, make a new one
-         if (!tiffWriters_.getLast().hasSpaceToWrite(img, omeTiff_ ?  SPACE_FOR_PARTIAL_OME_MD : 0  )) {
+         if (!tiffWriters_.getLast().hasSpaceToWrite(tags, omeTiff_ ?  SPACE_FOR_PARTIAL_OME_MD : 0  )) {
             //write index map here but still need to call close() at end of acq
             tiffWriters_.getLast().finish();          
             
@@ -673,12 +905,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          //Add filename to image tags
          try {
             img.tags.put("FileName", currentTiffFilename_);
+            if (tags != img.tags) {
+               tags.put("FileName", currentTiffFilename_);
+            }
          } catch (JSONException ex) {
             ReportingUtils.logError("Error adding filename to metadata");
          }
 
          //write image
-         tiffWriters_.getLast().writeImage(img);  
+         tiffWriters_.getLast().writeImage(img, tags);  
                          
          if (expectedImageOrder_) {
             if (splitByXYPosition_) {
@@ -706,7 +941,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
                //reset in case acquisitin order is position then time and all files not split by position
                currentFrame_ = frame;
                
-               omeMetadata_.addImageTagsToOME(img.tags, ifdCount_, baseFilename_, currentTiffFilename_, currentTiffUUID_);
+               omeMetadata_.addImageTagsToOME(tags, ifdCount_, baseFilename_, currentTiffFilename_, currentTiffUUID_);
             } catch (Exception ex) {
                ReportingUtils.logError("Problem writing OME metadata");
             }
@@ -728,7 +963,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          
          try {
             if (separateMetadataFile_) {
-               writeToMetadataFile(img.tags);
+               writeToMetadataFile(tags);
             }
          } catch (JSONException ex) {
             ReportingUtils.logError("Problem with image metadata");
@@ -1,21 +1,33 @@
 
 package org.micromanager.acquisition;
 
-import java.nio.Buffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import mmcorej.PixelBuffer;
+import mmcorej.SystemStateTags;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.MMStudio;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.DirectBuffers;
 import org.micromanager.utils.ImageLabelComparator;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
-import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -23,13 +35,33 @@ import org.micromanager.utils.ReportingUtils;
  * @author arthur
  *
  * This class stores a collection of TaggedImages, all in ram.
+ *
+ * Pixels are kept in two tiers.  New images go to off-heap (direct) memory,
+ * up to a memory budget (by default as much as the JVM allows).  When the
+ * budget is used up, or the JVM refuses to hand out more direct memory, the
+ * least recently used planes are moved to a memory-mapped scratch file
+ * (limited by a spill budget), so that long time-lapses keep running instead
+ * of dying with an OutOfMemoryError.  When both tiers are full, the running
+ * acquisition is stopped and an error is shown; images that still arrive are
+ * logged as not stored.  The budgets default to the values set in the
+ * Options dialog; spilling to disk is off unless a spill budget is set there.
+ *
+ * Memory is accounted for when it is actually given back, i.e. when the last
+ * reference to a pixel buffer is released, not when an image is removed
+ * while a reader is still copying it.
  */
 public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
+   private static final long MB = 1024 * 1024;
+   // the scratch file is mapped in segments of at least this size
+   private static final long SPILL_SEGMENT_SIZE = 64 * MB;
    
    private class DirectTaggedImage {
-       Buffer pixelBuffer;
+       PixelBuffer pixelBuffer;
        ByteBuffer tagsBuffer;
+       // kept as a reference, the text of the tags only has its version
+       SystemStateTags.Snapshot systemState;
+       boolean spilled;
    }
    
    private class LRUCache<T,U> extends LinkedHashMap<T,U> {
@@ -45,6 +77,93 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
       }
    }
 
+   /**
+    * Scratch file, mapped into memory segment by segment.  Regions of planes
+    * that were overwritten or removed are handed back as the buffers are
+    * recycled, and are reused for the next planes of the same size before
+    * the file grows.  The file is deleted on close.
+    */
+   private static class SpillFile implements PixelBuffer.Recycler {
+      private final File file_;
+      private final RandomAccessFile raFile_;
+      private final FileChannel channel_;
+      private final List<MappedByteBuffer> segments_ = new ArrayList<MappedByteBuffer>();
+      // freed regions by size
+      private final Map<Integer, LinkedList<ByteBuffer>> freeRegions_ =
+            new HashMap<Integer, LinkedList<ByteBuffer>>();
+      private MappedByteBuffer current_;
+      private long fileSize_ = 0;
+      private long used_ = 0;
+      private boolean closed_ = false;
+
+      SpillFile(File dir) throws IOException {
+         file_ = File.createTempFile("MMRamStorage", ".tmp", dir);
+         file_.deleteOnExit();
+         raFile_ = new RandomAccessFile(file_, "rw");
+         channel_ = raFile_.getChannel();
+      }
+
+      synchronized ByteBuffer allocate(int bytes) throws IOException {
+         used_ += bytes;
+         LinkedList<ByteBuffer> free = freeRegions_.get(bytes);
+         if (free != null && !free.isEmpty()) {
+            return free.removeFirst();
+         }
+         if (current_ == null || current_.remaining() < bytes) {
+            long size = Math.max(SPILL_SEGMENT_SIZE, bytes);
+            try {
+               current_ = channel_.map(FileChannel.MapMode.READ_WRITE, fileSize_, size);
+            } catch (IOException ex) {
+               used_ -= bytes;
+               throw ex;
+            }
+            segments_.add(current_);
+            fileSize_ += size;
+         }
+         ByteBuffer region = current_.duplicate();
+         region.limit(region.position() + bytes);
+         current_.position(current_.position() + bytes);
+         return region.slice();
+      }
+
+      /**
+       * @return number of bytes in use by planes
+       */
+      synchronized long getUsed() {
+         return used_;
+      }
+
+      @Override
+      public synchronized void recycle(ByteBuffer region) {
+         if (closed_) {
+            return;
+         }
+         used_ -= region.capacity();
+         LinkedList<ByteBuffer> free = freeRegions_.get(region.capacity());
+         if (free == null) {
+            free = new LinkedList<ByteBuffer>();
+            freeRegions_.put(region.capacity(), free);
+         }
+         region.clear();
+         free.add(region);
+      }
+
+      synchronized void close() {
+         closed_ = true;
+         freeRegions_.clear();
+         segments_.clear();
+         current_ = null;
+         try {
+            raFile_.close();
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex);
+         }
+         // fails on Windows while mappings are alive, deleteOnExit takes
+         // care of it then
+         file_.delete();
+      }
+   }
+
    private boolean finished_ = false;
 
    private TreeMap<String, DirectTaggedImage> imageMap_;
@@ -54,12 +173,71 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    private int lastFrame_ = -1;
 
    private String diskLocation_;
+
+   // images whose pixels are in direct memory, least recently used first
+   private final LinkedHashMap<String, DirectTaggedImage> residentImages_ =
+         new LinkedHashMap<String, DirectTaggedImage>(16, 0.75f, true);
+   private long memoryBudget_;
+   private final long spillBudget_;
+   private final File spillDir_;
+   private long memoryUsed_ = 0;
+   private SpillFile spillFile_;
+   private boolean fullReported_ = false;
+
+   // gives back the direct memory of a plane once nobody uses it anymore
+   private final PixelBuffer.Recycler memoryRecycler_ = new PixelBuffer.Recycler() {
+      @Override
+      public void recycle(ByteBuffer buffer) {
+         synchronized (TaggedImageStorageRamFast.this) {
+            memoryUsed_ -= buffer.capacity();
+         }
+      }
+   };
    
    public TaggedImageStorageRamFast(JSONObject summaryMetadata) {
+      this(summaryMetadata, getDefaultMemoryBudget(), getDefaultSpillBudget(),
+            getDefaultSpillDirectory());
+   }
+
+   /**
+    * @param summaryMetadata summary metadata of the data set
+    * @param memoryBudget maximum number of bytes of pixel data kept in
+    *        direct memory, Long.MAX_VALUE for as much as the JVM allows
+    * @param spillBudget maximum number of bytes of pixel data written to the
+    *        scratch file, 0 to disable spilling
+    * @param spillDir directory for the scratch file
+    */
+   public TaggedImageStorageRamFast(JSONObject summaryMetadata,
+         long memoryBudget, long spillBudget, File spillDir) {
       imageMap_ = new TreeMap<String, DirectTaggedImage>(new ImageLabelComparator());
       setSummaryMetadata(summaryMetadata);
       displaySettings_ = new JSONObject();
       lruCache_ = new LRUCache<String, TaggedImage>(10);
+      memoryBudget_ = memoryBudget;
+      spillBudget_ = spillBudget;
+      spillDir_ = spillDir;
+   }
+
+   private static long getDefaultMemoryBudget() {
+      MMStudio studio = MMStudio.getInstance();
+      if (studio != null && studio.getRamStorageMemoryMB() > 0) {
+         return studio.getRamStorageMemoryMB() * MB;
+      }
+      // no limit of our own, the JVM's direct memory limit applies
+      return Long.MAX_VALUE;
+   }
+
+   private static long getDefaultSpillBudget() {
+      MMStudio studio = MMStudio.getInstance();
+      if (studio != null) {
+         return studio.getRamStorageSpillMB() * MB;
+      }
+      return 0;
+   }
+
+   private static File getDefaultSpillDirectory() {
+      return new File(System.getProperty("org.micromanager.ramstorage.dir",
+            System.getProperty("java.io.tmpdir")));
    }
 
    private ByteBuffer bufferFromJSON(JSONObject json) {
@@ -70,21 +248,146 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
       return new JSONObject(DirectBuffers.stringFromBuffer(byteBuffer));
    }
    
-   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws JSONException, MMScriptException{
+   // Called with the lock held
+   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws MMException {
+      PixelBuffer source = taggedImage.pix == null ? null : PixelBuffer.wrap(taggedImage.pix);
+      if (source == null) {
+         throw new MMException("Image has no pixels");
+      }
+      final int bytes = source.getByteCount();
       DirectTaggedImage direct = new DirectTaggedImage();
-      direct.tagsBuffer = bufferFromJSON(taggedImage.tags);
-      direct.pixelBuffer = DirectBuffers.bufferFromArray(taggedImage.pix);
+      try {
+         direct.systemState = SystemStateTags.getSnapshot(taggedImage.tags);
+      } catch (JSONException ex) {
+         throw new MMException(ex.getMessage());
+      }
+      try {
+         direct.tagsBuffer = bufferFromJSON(taggedImage.tags);
+      } catch (OutOfMemoryError e) {
+         // tags are small, moving some pixels out of memory makes room
+         spillResidentImages(16 * MB);
+         try {
+            direct.tagsBuffer = bufferFromJSON(taggedImage.tags);
+         } catch (OutOfMemoryError e2) {
+            throw new MMException("RAM storage is out of memory for image metadata");
+         }
+      }
+
+      if (memoryUsed_ + bytes > memoryBudget_) {
+         spillResidentImages(memoryUsed_ + bytes - memoryBudget_);
+      }
+      if (memoryUsed_ + bytes <= memoryBudget_) {
+         try {
+            direct.pixelBuffer = PixelBuffer.fromDirect(source.getType(),
+                  source.getNumPixels(), ByteBuffer.allocateDirect(bytes),
+                  memoryRecycler_);
+            direct.pixelBuffer.copyFrom(taggedImage.pix);
+            memoryUsed_ += bytes;
+            return direct;
+         } catch (OutOfMemoryError e) {
+            // the JVM allows less direct memory than our budget
+            // (-XX:MaxDirectMemorySize), so lower the budget and go to disk
+            ReportingUtils.logError("RAM storage: direct memory exhausted at " +
+                  (memoryUsed_ / MB) + " MB, moving images to " + spillDir_);
+            memoryBudget_ = memoryUsed_;
+         }
+      }
+      direct.pixelBuffer = spill(source);
+      direct.spilled = true;
       return direct;
    }
+
+   /*
+    * Copies pixels to the scratch file.  Called with the lock held.
+    */
+   private PixelBuffer spill(PixelBuffer source) throws MMException {
+      final int bytes = source.getByteCount();
+      long spillUsed = spillFile_ == null ? 0 : spillFile_.getUsed();
+      if (spillUsed + bytes > spillBudget_) {
+         throw new MMException("RAM storage is full (" + (memoryUsed_ / MB) +
+               " MB in memory, " + (spillUsed / MB) + " MB on disk)");
+      }
+      try {
+         if (spillFile_ == null) {
+            spillFile_ = new SpillFile(spillDir_);
+         }
+         ByteBuffer target = spillFile_.allocate(bytes);
+         PixelBuffer spilled = PixelBuffer.fromDirect(source.getType(),
+               source.getNumPixels(), target, spillFile_);
+         if (source.isDirect()) {
+            target.duplicate().put(source.asByteBuffer());
+         } else {
+            spilled.copyFrom(source.getArray());
+         }
+         return spilled;
+      } catch (IOException ex) {
+         throw new MMException("Unable to write to RAM storage scratch file in "
+               + spillDir_ + ": " + ex.getMessage());
+      }
+   }
+
+   /*
+    * Moves the least recently used planes from direct memory to the scratch
+    * file until at least the given number of bytes has been freed, or the
+    * scratch file is full.  Planes a reader is copying right now are left
+    * alone, moving them would not free their memory.  Called with the lock
+    * held.
+    */
+   private void spillResidentImages(long bytesToFree) {
+      final long target = memoryUsed_ - bytesToFree;
+      Iterator<DirectTaggedImage> it = residentImages_.values().iterator();
+      while (memoryUsed_ > target && it.hasNext()) {
+         DirectTaggedImage image = it.next();
+         if (image.pixelBuffer.getRefCount() > 1) {
+            continue;
+         }
+         PixelBuffer spilled;
+         try {
+            spilled = spill(image.pixelBuffer);
+         } catch (MMException ex) {
+            return;
+         }
+         // memoryRecycler_ accounts for the freed memory
+         image.pixelBuffer.release();
+         image.pixelBuffer = spilled;
+         image.spilled = true;
+         it.remove();
+      }
+   }
+
+   /*
+    * The memory (or scratch file region) is accounted for by the recyclers
+    * when the last reader has released the pixels.
+    */
+   private void removePixels(DirectTaggedImage image) {
+      image.pixelBuffer.release();
+   }
    
    private TaggedImage directTaggedImageToTaggedImage(DirectTaggedImage directImage) {
         if (directImage != null) {
+            PixelBuffer pixels;
+            ByteBuffer tags;
+            SystemStateTags.Snapshot systemState;
+            synchronized (this) {
+               if (directImage.pixelBuffer.getRefCount() == 0) {
+                  // removed by close()
+                  return null;
+               }
+               pixels = directImage.pixelBuffer.retain();
+               tags = directImage.tagsBuffer;
+               systemState = directImage.systemState;
+            }
             try {
-                return new TaggedImage(DirectBuffers.arrayFromBuffer(directImage.pixelBuffer),
-                                       JSONFromBuffer(directImage.tagsBuffer));
+                JSONObject json = JSONFromBuffer(tags);
+                if (systemState != null) {
+                   json.put(SystemStateTags.VERSION_KEY, systemState);
+                }
+                return new TaggedImage(pixels.toArray(), json);
             } catch (JSONException ex) {
                ReportingUtils.logError(ex);
                return null;
+            } finally {
+               pixels.release();
             }
         } else {
            return null;
@@ -95,14 +398,32 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    public void putImage(final TaggedImage taggedImage) throws MMException {
       String label = MDUtils.getLabel(taggedImage.tags);
       try {
-         // Allocate the direct tagged image before altering any data, in case
-         // OutOfMemoryError is thrown.
-         DirectTaggedImage directImage =
-               taggedImageToDirectTaggedImage(taggedImage);
+         synchronized (this) {
+            // Allocate the direct tagged image before altering any data, in
+            // case we run out of space.
+            DirectTaggedImage directImage =
+                  taggedImageToDirectTaggedImage(taggedImage);
 
-         lruCache_.put(label, taggedImage);
-         imageMap_.put(label, directImage);
+            lruCache_.put(label, taggedImage);
+            DirectTaggedImage oldImage = imageMap_.put(label, directImage);
+            if (oldImage != null) {
+               residentImages_.remove(label);
+               removePixels(oldImage);
+            }
+            if (!directImage.spilled) {
+               residentImages_.put(label, directImage);
+            }
+         }
          lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
+      } catch (MMException ex) {
+         if (!fullReported_) {
+            fullReported_ = true;
+            stopAcquisition();
+            ReportingUtils.showError(ex, "The acquisition has been stopped. " +
+                  "Use disk storage, or raise the RAM storage limits in the Options dialog.");
+         } else {
+            ReportingUtils.logError(ex, "Image " + label + " was not stored");
+         }
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
@@ -110,16 +431,22 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    @Override
     public TaggedImage getImage(int channel, int slice, int frame, int position) {
-        if (imageMap_ == null) {
-            return null;
-        }
-        String label = MDUtils.generateLabel(channel, slice, frame, position);
-        TaggedImage cachedImage = lruCache_.get(label);
-        if (cachedImage != null) {
-           return cachedImage;
-        } else { // cache miss
-           return directTaggedImageToTaggedImage(imageMap_.get(label));
+        DirectTaggedImage directImage;
+        synchronized (this) {
+           if (imageMap_ == null) {
+               return null;
+           }
+           String label = MDUtils.generateLabel(channel, slice, frame, position);
+           TaggedImage cachedImage = lruCache_.get(label);
+           if (cachedImage != null) {
+              return cachedImage;
+           }
+           directImage = imageMap_.get(label);
+           // keep the access order of the memory tier up to date
+           residentImages_.get(label);
         }
+        // cache miss, copying the pixels does not need the lock
+        return directTaggedImageToTaggedImage(directImage);
     }
 
    @Override
@@ -127,9 +454,23 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
       return this.getImage(channelIndex, sliceIndex, frameIndex, positionIndex).tags;
    }
 
+   /*
+    * Storing images that do not fit would lose them, so rather stop.
+    */
+   private static void stopAcquisition() {
+      MMStudio studio = MMStudio.getInstance();
+      if (studio != null && studio.getAcquisitionEngine() != null
+            && studio.getAcquisitionEngine().isAcquisitionRunning()) {
+         studio.getAcquisitionEngine().stop(true);
+      }
+   }
+
    @Override
-   public Set<String> imageKeys() {
-      return imageMap_.keySet();
+   public synchronized Set<String> imageKeys() {
+      // a copy, putImage() changes the map from the acquisition thread
+      TreeSet<String> keys = new TreeSet<String>(imageMap_.comparator());
+      keys.addAll(imageMap_.keySet());
+      return keys;
    }
 
    @Override
@@ -174,8 +515,16 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    }
 
    @Override
-   public void close() {
+   public synchronized void close() {
+      for (DirectTaggedImage image : imageMap_.values()) {
+         removePixels(image);
+      }
       imageMap_.clear();
+      residentImages_.clear();
+      if (spillFile_ != null) {
+         spillFile_.close();
+         spillFile_ = null;
+      }
       lruCache_.clear();
       summaryMetadata_ = null;
       displaySettings_ = null;
@@ -0,0 +1,30 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CoalescingImageCacheListener.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.api;
+
+/**
+ * An ImageCacheListener that only needs the most recent image, such as a
+ * display.  When images arrive faster than the listener handles them, images
+ * it has not received yet are replaced by newer ones instead of waiting for
+ * it, so imageReceived is not necessarily called for every image.
+ * imagingFinished is still called once, after the last image.
+ */
+public interface CoalescingImageCacheListener extends ImageCacheListener {
+}
@@ -24,6 +24,8 @@ package org.micromanager.api;
 import java.util.Collection;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PipelineTelemetry;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.ProcessorEnabledEvent;
 import org.micromanager.utils.ReportingUtils;
@@ -49,6 +51,12 @@ public abstract class DataProcessor<E> extends Thread {
    // This boolean controls whether or not this DataProcessor will receive
    // images.
    private boolean isEnabled_ = true;
+   // Telemetry: the time the datum being processed was received (processor
+   // thread only, 0 once its latency has been recorded), and the histogram
+   // of the times from poll to produce
+   private long pollTimeNs_ = 0;
+   private volatile LatencyHistogram latency_;
+   private volatile String telemetryName_;
 
    /**
     * The scripting interface (commonly known as the "gui" object).
@@ -183,6 +191,9 @@ public abstract class DataProcessor<E> extends Thread {
             if (tmpQueue != null) {
                E datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
                if (datum != null) {
+                  pollTimeNs_ = System.nanoTime();
+                  PipelineTelemetry.recordQueueDepth(getTelemetryName(),
+                          tmpQueue.size());
                   return datum;
                }
             }
@@ -205,6 +216,7 @@ public abstract class DataProcessor<E> extends Thread {
     */
    protected void drainTo(Collection<E> data) {
       input_.drainTo(data);
+      pollTimeNs_ = System.nanoTime();
    }
 
    /**
@@ -216,6 +228,8 @@ public abstract class DataProcessor<E> extends Thread {
     * Do not override this method (it should have been final).
     */
    protected void produce(E datum) {
+      // recorded once per datum received, also when several are produced
+      recordLatency(takePollTime());
       try {
          output_.put(datum);
       } catch (InterruptedException ex) {
@@ -223,6 +237,50 @@ public abstract class DataProcessor<E> extends Thread {
       }
    };
 
+   /*
+    * For processors that produce on another thread than the one that polled:
+    * posts datum and records its latency from receivedNs, a time obtained
+    * from takePollTime() on the processor thread (0 to record nothing).
+    */
+   void produce(E datum, long receivedNs) {
+      recordLatency(receivedNs);
+      try {
+         output_.put(datum);
+      } catch (InterruptedException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   /*
+    * Returns the time the datum being processed was received, and hands the
+    * recording of its latency to the caller.  Processor thread only.
+    */
+   long takePollTime() {
+      long pollTimeNs = pollTimeNs_;
+      pollTimeNs_ = 0;
+      return pollTimeNs;
+   }
+
+   private void recordLatency(long receivedNs) {
+      if (receivedNs == 0) {
+         return;
+      }
+      LatencyHistogram latency = latency_;
+      if (latency == null) {
+         latency = PipelineTelemetry.getLatencyHistogram(getTelemetryName());
+         latency_ = latency;
+      }
+      latency.recordSince(receivedNs);
+   }
+
+   private String getTelemetryName() {
+      if (telemetryName_ == null) {
+         String name = getClass().getSimpleName();
+         telemetryName_ = "Processor " + (name.length() > 0 ? name : getClass().getName());
+      }
+      return telemetryName_;
+   }
+
    /**
     * Returns true if stop has been requested.
     *
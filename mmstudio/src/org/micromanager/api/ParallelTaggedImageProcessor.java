@@ -0,0 +1,213 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ParallelTaggedImageProcessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.api;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.TaggedImageQueue;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * A DataProcessor for processors that turn one image into one image without
+ * keeping state from one image to the next (e.g. flat-fielding, flipping).
+ * Instead of overriding process(), override processImage().
+ *
+ * Several images are processed at the same time on a pool of worker threads
+ * shared by all parallel processors, and the results are passed on in the
+ * order in which the images arrived.  processImage() must therefore be safe
+ * to call from several threads at once.  Idle worker threads exit after a
+ * while, so the shared pool holds no threads when no images are processed.
+ */
+public abstract class ParallelTaggedImageProcessor extends DataProcessor<TaggedImage> {
+   private static final int NR_PROCESSORS = Runtime.getRuntime().availableProcessors();
+   private static final long WORKER_KEEP_ALIVE_S = 60;
+   private static ExecutorService workers_;
+
+   // results in arrival order, bounded so that at most getParallelism()
+   // images are waiting for or undergoing processing.  Ends with END once
+   // the processor has stopped.
+   private BlockingQueue<Pending> pending_;
+   private Thread collector_;
+
+   // the result of an image and the time the image was received
+   private static final class Pending {
+      final Future<TaggedImage> result_;
+      final long receivedNs_;
+
+      Pending(Future<TaggedImage> result, long receivedNs) {
+         result_ = result;
+         receivedNs_ = receivedNs;
+      }
+   }
+
+   // queued after the last result, stops the collector thread
+   private static final Pending END = new Pending(null, 0);
+
+   /**
+    * Override this method to process an image.  It is called from worker
+    * threads, possibly for several images at the same time, and is never
+    * called for TaggedImageQueue.POISON.
+    *
+    * @param image image to be processed
+    * @return the processed image; can be the input image if it was modified
+    *         in place
+    * @throws Exception the input image is then passed on unchanged
+    */
+   protected abstract TaggedImage processImage(TaggedImage image) throws Exception;
+
+   /**
+    * Maximum number of images this processor works on at the same time.
+    * The default is the number of processors of the machine.
+    */
+   protected int getParallelism() {
+      return NR_PROCESSORS;
+   }
+
+   /*
+    * Processes images until the processor is stopped, then lets the
+    * collector thread pass on the remaining results and exit.
+    */
+   @Override
+   public void run() {
+      super.run();
+      stopCollector();
+   }
+
+   /*
+    * Hands the next image to the worker pool and queues its result for the
+    * collector thread, which passes results on in order.
+    */
+   @Override
+   protected final void process() {
+      final TaggedImage image = poll();
+      if (image == null) {
+         return;
+      }
+      // the collector thread records the latency of this image
+      final long receivedNs = takePollTime();
+      startCollector();
+      Future<TaggedImage> result;
+      if (image == TaggedImageQueue.POISON) {
+         FutureTask<TaggedImage> done = new FutureTask<TaggedImage>(
+                 new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                 }, image);
+         done.run();
+         result = done;
+      } else {
+         result = getWorkers().submit(new Callable<TaggedImage>() {
+            @Override
+            public TaggedImage call() {
+               try {
+                  return processImage(image);
+               } catch (Exception ex) {
+                  ReportingUtils.logError(ex, getName() + " failed to process image");
+                  return image;
+               }
+            }
+         });
+      }
+      try {
+         pending_.put(new Pending(result, receivedNs));
+      } catch (InterruptedException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   private synchronized void startCollector() {
+      if (collector_ != null) {
+         return;
+      }
+      pending_ = new ArrayBlockingQueue<Pending>(
+              Math.max(1, getParallelism()));
+      final BlockingQueue<Pending> pending = pending_;
+      collector_ = new Thread(getName() + " output") {
+         @Override
+         public void run() {
+            while (true) {
+               try {
+                  Pending next = pending.take();
+                  if (next == END) {
+                     return;
+                  }
+                  produce(next.result_.get(), next.receivedNs_);
+               } catch (InterruptedException ex) {
+                  ReportingUtils.logError(ex);
+               } catch (ExecutionException ex) {
+                  // only Errors get here, the image is lost
+                  ReportingUtils.logError(ex.getCause(), getName() + " lost an image");
+               }
+            }
+         }
+      };
+      collector_.setDaemon(true);
+      collector_.start();
+   }
+
+   /*
+    * Called on the processor thread after its last call to process(), so
+    * END follows all results in the queue.
+    */
+   private void stopCollector() {
+      BlockingQueue<Pending> pending;
+      synchronized (this) {
+         if (collector_ == null) {
+            return;
+         }
+         pending = pending_;
+      }
+      try {
+         pending.put(END);
+      } catch (InterruptedException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   private static synchronized ExecutorService getWorkers() {
+      if (workers_ == null) {
+         ThreadPoolExecutor workers = new ThreadPoolExecutor(NR_PROCESSORS,
+                 NR_PROCESSORS, WORKER_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Image processor worker");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+         workers.allowCoreThreadTimeOut(true);
+         workers_ = workers;
+      }
+      return workers_;
+   }
+}
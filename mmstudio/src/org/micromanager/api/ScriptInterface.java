@@ -40,6 +40,7 @@ import org.json.JSONObject;
 import org.micromanager.dialogs.AcqControlDlg;
 import org.micromanager.positionlist.PositionListDlg;
 import org.micromanager.acquisition.MMAcquisition;
+import org.micromanager.diagnostics.PipelineTelemetryMXBean;
 import org.micromanager.utils.AutofocusManager;
 
 // For historical reasons, this exception class is not in the
@@ -863,4 +864,12 @@ public interface ScriptInterface {
     * "Auto" button had been clicked for each one.
     */
     public void autostretchCurrentWindow();
+
+   /**
+    * Return the timing of the acquisition pipeline: latencies of the data
+    * processors, image cache, storage, listeners and display, depths of the
+    * queues between them, bytes written and frames skipped by displays.
+    * The same statistics are available through JMX.
+    */
+   public PipelineTelemetryMXBean getPipelineTelemetry();
 }
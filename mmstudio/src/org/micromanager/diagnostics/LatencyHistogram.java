@@ -0,0 +1,128 @@
+// COPYRIGHT:    University of California, San Francisco, 2016
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies of one stage of the acquisition pipeline, in buckets of powers
+ * of two microseconds: bucket 0 counts latencies under 1 us, bucket i those
+ * from 2^(i-1) up to 2^i us, and the last bucket everything longer.
+ *
+ * Recording takes no locks, so it can be done for every image from any
+ * thread.
+ */
+public final class LatencyHistogram {
+   public static final int NUM_BUCKETS = 32;
+
+   private final String name_;
+   private final AtomicLongArray buckets_ = new AtomicLongArray(NUM_BUCKETS);
+   private final AtomicLong count_ = new AtomicLong();
+   private final AtomicLong totalNs_ = new AtomicLong();
+   private final AtomicLong maxNs_ = new AtomicLong();
+
+   LatencyHistogram(String name) {
+      name_ = name;
+   }
+
+   public String getName() {
+      return name_;
+   }
+
+   /**
+    * Records the time since startNs.
+    * @param startNs - System.nanoTime() at the start of the stage
+    */
+   public void recordSince(long startNs) {
+      record(System.nanoTime() - startNs);
+   }
+
+   public void record(long latencyNs) {
+      if (latencyNs < 0) {
+         latencyNs = 0;
+      }
+      long us = latencyNs / 1000;
+      int bucket = us == 0 ? 0 : 64 - Long.numberOfLeadingZeros(us);
+      buckets_.incrementAndGet(Math.min(bucket, NUM_BUCKETS - 1));
+      count_.incrementAndGet();
+      totalNs_.addAndGet(latencyNs);
+      long max = maxNs_.get();
+      while (latencyNs > max && !maxNs_.compareAndSet(max, latencyNs)) {
+         max = maxNs_.get();
+      }
+   }
+
+   public long getCount() {
+      return count_.get();
+   }
+
+   public double getMeanMs() {
+      long count = count_.get();
+      return count == 0 ? 0 : totalNs_.get() / 1e6 / count;
+   }
+
+   public double getMaxMs() {
+      return maxNs_.get() / 1e6;
+   }
+
+   /**
+    * @param fraction - e.g. 0.99 for the 99th percentile
+    * @return upper bound of the bucket that contains the percentile (or the
+    *         maximum, if lower), in ms
+    */
+   public double getPercentileMs(double fraction) {
+      long[] buckets = getBuckets();
+      long total = 0;
+      for (long n : buckets) {
+         total += n;
+      }
+      if (total == 0) {
+         return 0;
+      }
+      long rank = (long) Math.ceil(fraction * total);
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS - 1; i++) {
+         seen += buckets[i];
+         if (seen >= rank) {
+            return Math.min((1L << i) / 1000.0, getMaxMs());
+         }
+      }
+      return getMaxMs();
+   }
+
+   /**
+    * @return the counts of all buckets
+    */
+   public long[] getBuckets() {
+      long[] buckets = new long[NUM_BUCKETS];
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         buckets[i] = buckets_.get(i);
+      }
+      return buckets;
+   }
+
+   void reset() {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         buckets_.set(i, 0);
+      }
+      count_.set(0);
+      totalNs_.set(0);
+      maxNs_.set(0);
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%s: %d, mean %.3f ms, median < %.3f ms, 99%% < %.3f ms, max %.3f ms",
+              name_, getCount(), getMeanMs(), getPercentileMs(0.5),
+              getPercentileMs(0.99), getMaxMs());
+   }
+}
@@ -0,0 +1,310 @@
+// COPYRIGHT:    University of California, San Francisco, 2016
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Timing of the acquisition pipeline: latencies of its stages (data
+ * processors, image cache, storage, listeners, display), depths of the
+ * queues between them, bytes written to disk, frames the display skipped
+ * and garbage collections.
+ *
+ * The pipeline records into this class as images pass; recording is a few
+ * atomic operations, without locks.  The statistics can be read live through
+ * JMX (see PipelineTelemetryMXBean), from scripts through
+ * ScriptInterface.getPipelineTelemetry(), and are included in problem
+ * reports.
+ */
+public final class PipelineTelemetry implements PipelineTelemetryMXBean {
+   public static final String OBJECT_NAME = "org.micromanager:type=PipelineTelemetry";
+
+   private static final PipelineTelemetry instance_ = new PipelineTelemetry();
+
+   private final ConcurrentHashMap<String, LatencyHistogram> stages_ =
+           new ConcurrentHashMap<String, LatencyHistogram>();
+   private final ConcurrentHashMap<String, QueueDepth> queues_ =
+           new ConcurrentHashMap<String, QueueDepth>();
+   private final AtomicLong bytesWritten_ = new AtomicLong();
+   private final AtomicLong displayFramesShown_ = new AtomicLong();
+   private final AtomicLong displayFramesDropped_ = new AtomicLong();
+   private final AtomicLong framesCoalesced_ = new AtomicLong();
+   // garbage collections before the last reset
+   private volatile long gcCountAtReset_ = 0;
+   private volatile long gcTimeAtResetMs_ = 0;
+
+   // bytes written per second, over windows of at least a second
+   private final Object rateLock_ = new Object();
+   private long rateWindowStartNs_ = System.nanoTime();
+   private long rateWindowBytes_ = 0;
+   private double bytesPerSecond_ = 0;
+
+   private static final class QueueDepth {
+      final AtomicInteger current = new AtomicInteger();
+      final AtomicInteger max = new AtomicInteger();
+   }
+
+   private PipelineTelemetry() {
+   }
+
+   public static PipelineTelemetry getInstance() {
+      return instance_;
+   }
+
+   /**
+    * Makes the telemetry available through JMX.
+    */
+   public static void registerMBean() {
+      try {
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance_, name);
+         }
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Failed to register pipeline telemetry with JMX");
+      }
+   }
+
+   /**
+    * @param stage - name of a pipeline stage
+    * @return the histogram of the stage, to keep for recording its latencies
+    */
+   public static LatencyHistogram getLatencyHistogram(String stage) {
+      LatencyHistogram histogram = instance_.stages_.get(stage);
+      if (histogram == null) {
+         histogram = new LatencyHistogram(stage);
+         LatencyHistogram existing = instance_.stages_.putIfAbsent(stage, histogram);
+         if (existing != null) {
+            histogram = existing;
+         }
+      }
+      return histogram;
+   }
+
+   /**
+    * Records the current depth of a queue of the pipeline.
+    */
+   public static void recordQueueDepth(String queue, int depth) {
+      QueueDepth q = instance_.queues_.get(queue);
+      if (q == null) {
+         q = new QueueDepth();
+         QueueDepth existing = instance_.queues_.putIfAbsent(queue, q);
+         if (existing != null) {
+            q = existing;
+         }
+      }
+      q.current.set(depth);
+      int max = q.max.get();
+      while (depth > max && !q.max.compareAndSet(max, depth)) {
+         max = q.max.get();
+      }
+   }
+
+   public static void addBytesWritten(long bytes) {
+      instance_.bytesWritten_.addAndGet(bytes);
+      synchronized (instance_.rateLock_) {
+         long now = System.nanoTime();
+         long elapsed = now - instance_.rateWindowStartNs_;
+         if (elapsed >= 1000000000L) {
+            instance_.bytesPerSecond_ = instance_.rateWindowBytes_ * 1e9 / elapsed;
+            instance_.rateWindowStartNs_ = now;
+            instance_.rateWindowBytes_ = 0;
+         }
+         instance_.rateWindowBytes_ += bytes;
+      }
+   }
+
+   public static void addDisplayFrames(long shown, long dropped) {
+      instance_.displayFramesShown_.addAndGet(shown);
+      instance_.displayFramesDropped_.addAndGet(dropped);
+   }
+
+   public static void addFramesCoalesced(long frames) {
+      instance_.framesCoalesced_.addAndGet(frames);
+   }
+
+   @Override
+   public Map<String, Long> getStageCounts() {
+      Map<String, Long> counts = new TreeMap<String, Long>();
+      for (LatencyHistogram h : stages_.values()) {
+         counts.put(h.getName(), h.getCount());
+      }
+      return counts;
+   }
+
+   @Override
+   public Map<String, Double> getMeanLatenciesMs() {
+      Map<String, Double> latencies = new TreeMap<String, Double>();
+      for (LatencyHistogram h : stages_.values()) {
+         latencies.put(h.getName(), h.getMeanMs());
+      }
+      return latencies;
+   }
+
+   @Override
+   public Map<String, Double> getMedianLatenciesMs() {
+      return getPercentilesMs(0.5);
+   }
+
+   @Override
+   public Map<String, Double> get99thPercentileLatenciesMs() {
+      return getPercentilesMs(0.99);
+   }
+
+   private Map<String, Double> getPercentilesMs(double fraction) {
+      Map<String, Double> latencies = new TreeMap<String, Double>();
+      for (LatencyHistogram h : stages_.values()) {
+         latencies.put(h.getName(), h.getPercentileMs(fraction));
+      }
+      return latencies;
+   }
+
+   @Override
+   public Map<String, Double> getMaxLatenciesMs() {
+      Map<String, Double> latencies = new TreeMap<String, Double>();
+      for (LatencyHistogram h : stages_.values()) {
+         latencies.put(h.getName(), h.getMaxMs());
+      }
+      return latencies;
+   }
+
+   @Override
+   public Map<String, long[]> getLatencyHistograms() {
+      Map<String, long[]> histograms = new TreeMap<String, long[]>();
+      for (LatencyHistogram h : stages_.values()) {
+         histograms.put(h.getName(), h.getBuckets());
+      }
+      return histograms;
+   }
+
+   @Override
+   public Map<String, Integer> getQueueDepths() {
+      Map<String, Integer> depths = new TreeMap<String, Integer>();
+      for (Map.Entry<String, QueueDepth> e : queues_.entrySet()) {
+         depths.put(e.getKey(), e.getValue().current.get());
+      }
+      return depths;
+   }
+
+   @Override
+   public Map<String, Integer> getMaxQueueDepths() {
+      Map<String, Integer> depths = new TreeMap<String, Integer>();
+      for (Map.Entry<String, QueueDepth> e : queues_.entrySet()) {
+         depths.put(e.getKey(), e.getValue().max.get());
+      }
+      return depths;
+   }
+
+   @Override
+   public long getBytesWritten() {
+      return bytesWritten_.get();
+   }
+
+   @Override
+   public double getBytesWrittenPerSecond() {
+      synchronized (rateLock_) {
+         // nothing written for a while
+         if (System.nanoTime() - rateWindowStartNs_ > 2000000000L) {
+            return 0;
+         }
+         return bytesPerSecond_;
+      }
+   }
+
+   @Override
+   public long getDisplayFramesShown() {
+      return displayFramesShown_.get();
+   }
+
+   @Override
+   public long getDisplayFramesDropped() {
+      return displayFramesDropped_.get();
+   }
+
+   @Override
+   public long getFramesCoalesced() {
+      return framesCoalesced_.get();
+   }
+
+   @Override
+   public long getGcCount() {
+      return getTotalGcCount() - gcCountAtReset_;
+   }
+
+   @Override
+   public long getGcTimeMs() {
+      return getTotalGcTimeMs() - gcTimeAtResetMs_;
+   }
+
+   private static long getTotalGcCount() {
+      long count = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         count += Math.max(0, gc.getCollectionCount());
+      }
+      return count;
+   }
+
+   private static long getTotalGcTimeMs() {
+      long time = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         time += Math.max(0, gc.getCollectionTime());
+      }
+      return time;
+   }
+
+   @Override
+   public String getReport() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Stage latencies (count, mean, median, 99th percentile, max):");
+      for (String stage : new TreeMap<String, LatencyHistogram>(stages_).keySet()) {
+         sb.append("\n  ").append(stages_.get(stage));
+      }
+      sb.append("\nQueue depths (current, max):");
+      Map<String, Integer> depths = getQueueDepths();
+      Map<String, Integer> maxDepths = getMaxQueueDepths();
+      for (String queue : depths.keySet()) {
+         sb.append("\n  ").append(queue).append(": ").append(depths.get(queue)).
+            append(", ").append(maxDepths.get(queue));
+      }
+      sb.append(String.format("%nBytes written: %d (%.1f MB/s)",
+              getBytesWritten(), getBytesWrittenPerSecond() / 1e6));
+      sb.append(String.format("%nDisplay frames: %d shown, %d dropped; %d coalesced by listeners",
+              getDisplayFramesShown(), getDisplayFramesDropped(), getFramesCoalesced()));
+      sb.append(String.format("%nGarbage collections: %d, %d ms",
+              getGcCount(), getGcTimeMs()));
+      return sb.toString();
+   }
+
+   @Override
+   public void reset() {
+      for (LatencyHistogram h : stages_.values()) {
+         h.reset();
+      }
+      for (QueueDepth q : queues_.values()) {
+         q.current.set(0);
+         q.max.set(0);
+      }
+      bytesWritten_.set(0);
+      displayFramesShown_.set(0);
+      displayFramesDropped_.set(0);
+      framesCoalesced_.set(0);
+      gcCountAtReset_ = getTotalGcCount();
+      gcTimeAtResetMs_ = getTotalGcTimeMs();
+   }
+}
@@ -0,0 +1,31 @@
+// COPYRIGHT:    University of California, San Francisco, 2016
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics;
+
+class PipelineTelemetryInfoSection implements SystemInfo.SystemInfoSection {
+   private final String report_;
+
+   PipelineTelemetryInfoSection() {
+      String report;
+      try {
+         report = PipelineTelemetry.getInstance().getReport();
+      } catch (Exception e) {
+         report = "Pipeline telemetry unavailable: " + e.getMessage();
+      }
+      report_ = report;
+   }
+
+   public String getTitle() { return "Acquisition pipeline telemetry"; }
+
+   public String getReport() {
+      return report_;
+   }
+}
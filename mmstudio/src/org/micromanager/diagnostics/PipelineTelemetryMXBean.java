@@ -0,0 +1,62 @@
+// COPYRIGHT:    University of California, San Francisco, 2016
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.diagnostics;
+
+import java.util.Map;
+
+/**
+ * The acquisition pipeline telemetry as seen through JMX, registered as
+ * org.micromanager:type=PipelineTelemetry.  Latencies are in milliseconds;
+ * maps are keyed by stage or queue name.  See PipelineTelemetry.
+ */
+public interface PipelineTelemetryMXBean {
+   Map<String, Long> getStageCounts();
+   Map<String, Double> getMeanLatenciesMs();
+   Map<String, Double> getMedianLatenciesMs();
+   Map<String, Double> get99thPercentileLatenciesMs();
+   Map<String, Double> getMaxLatenciesMs();
+
+   /**
+    * @return per stage, the counts of LatencyHistogram buckets
+    */
+   Map<String, long[]> getLatencyHistograms();
+
+   Map<String, Integer> getQueueDepths();
+   Map<String, Integer> getMaxQueueDepths();
+
+   long getBytesWritten();
+   double getBytesWrittenPerSecond();
+
+   long getDisplayFramesShown();
+   /**
+    * @return images that reached a display but were skipped, because a newer
+    *         image was available by the time it could show them
+    */
+   long getDisplayFramesDropped();
+   /**
+    * @return images never handed to a CoalescingImageCacheListener, because
+    *         a newer image replaced them
+    */
+   long getFramesCoalesced();
+
+   long getGcCount();
+   long getGcTimeMs();
+
+   /**
+    * @return all of the above as text
+    */
+   String getReport();
+
+   /**
+    * Clears all statistics, e.g. before an acquisition.
+    */
+   void reset();
+}
@@ -61,6 +61,8 @@ public class OptionsDlg extends MMDialog {
 
    private final JTextField startupScriptFile_;
    private final JTextField bufSizeField_;
+   private final JTextField ramStorageMemoryField_;
+   private final JTextField ramStorageSpillField_;
    private JTextField logDeleteDaysField_;
    private final JComboBox comboDisplayBackground_;
 
@@ -204,6 +206,13 @@ public class OptionsDlg extends MMDialog {
       });
 
       bufSizeField_ = new JTextField(Integer.toString(opts_.circularBufferSizeMB_), 5);
+      ramStorageMemoryField_ = new JTextField(Integer.toString(opts_.ramStorageMemoryMB_), 5);
+      ramStorageMemoryField_.setToolTipText("Memory outside the Java heap used by RAM storage. " +
+            "0 uses as much as Java allows (-XX:MaxDirectMemorySize)");
+      ramStorageSpillField_ = new JTextField(Integer.toString(opts_.ramStorageSpillMB_), 5);
+      ramStorageSpillField_.setToolTipText("Images that do not fit in the RAM storage memory " +
+            "limit are written to a scratch file in the temporary directory, up to this size. " +
+            "0 turns this off");
 
       comboDisplayBackground_ = new JComboBox(guiColors_.styleOptions);
       comboDisplayBackground_.setMaximumRowCount(2);
@@ -329,6 +338,20 @@ public class OptionsDlg extends MMDialog {
          }
       });
   
+      final JCheckBox deltaSystemStateTagsCheckBox = new JCheckBox();
+      deltaSystemStateTagsCheckBox.setText("Store device properties once per change, not with every image");
+      deltaSystemStateTagsCheckBox.setToolTipText("<html>Images refer to the device properties instead of carrying a copy, "
+            + "which saves time on systems with many devices.<br>Files are not affected.  "
+            + "Plugins that read device properties from acquired images may need this turned off.</html>");
+      deltaSystemStateTagsCheckBox.setSelected(opts_.deltaSystemStateTags_);
+      deltaSystemStateTagsCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.deltaSystemStateTags_ = deltaSystemStateTagsCheckBox.isSelected();
+            core_.setDeltaSystemStateTags(opts_.deltaSystemStateTags_);
+         }
+      });
+
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
       syncExposureMainAndMDA.setSelected(opts_.syncExposureMainAndMDA_);
@@ -376,10 +399,19 @@ public class OptionsDlg extends MMDialog {
       add(bufSizeField_, "gapright related");
       add(new JLabel("MB"), "wrap");
 
+      add(new JLabel("RAM Storage Memory Limit:"), "split 3, gapright push");
+      add(ramStorageMemoryField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
+
+      add(new JLabel("RAM Storage Overflow to Disk:"), "split 3, gapright push");
+      add(ramStorageSpillField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
+
       add(new JSeparator(), "wrap");
 
       add(metadataFileWithMultipageTiffCheckBox, "wrap");
       add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      add(deltaSystemStateTagsCheckBox, "wrap");
 
       add(new JSeparator(), "wrap");
 
@@ -430,9 +462,15 @@ public class OptionsDlg extends MMDialog {
    private void closeRequested() {
       int seqBufSize;
       int deleteLogDays;
+      int ramStorageMemory;
+      int ramStorageSpill;
       try {
          seqBufSize =
             NumberUtils.displayStringToInt(bufSizeField_.getText());
+         ramStorageMemory =
+            NumberUtils.displayStringToInt(ramStorageMemoryField_.getText());
+         ramStorageSpill =
+            NumberUtils.displayStringToInt(ramStorageSpillField_.getText());
          deleteLogDays =
             NumberUtils.displayStringToInt(logDeleteDaysField_.getText());
       }
@@ -442,6 +480,8 @@ public class OptionsDlg extends MMDialog {
       }
 
       opts_.circularBufferSizeMB_ = seqBufSize;
+      opts_.ramStorageMemoryMB_ = ramStorageMemory;
+      opts_.ramStorageSpillMB_ = ramStorageSpill;
       opts_.startupScript_ = startupScriptFile_.getText();
       opts_.deleteCoreLogAfterDays_ = deleteLogDays;
       opts_.saveSettings();
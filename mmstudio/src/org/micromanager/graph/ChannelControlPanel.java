@@ -51,6 +51,7 @@ import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelStatistics;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -94,6 +95,7 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
    private int maxAfterRejectingOutliers_;
    private int pixelMin_ = 0;
    private int pixelMax_ = 255;
+   private final PixelStatistics pixelStats_ = new PixelStatistics();
    final private int maxIntensity_;
    final private int bitDepth_;
    private Color color_;
@@ -671,7 +673,9 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
          return;
       }
 
-      int[] rawHistogram = ip.getHistogram();
+      // single pass over the pixels; falls back to ImageJ for other types
+      PixelStatistics pixelStats = ImageUtils.computeStatistics(ip, pixelStats_, true);
+      int[] rawHistogram = (pixelStats != null) ? pixelStats.getHistogram() : ip.getHistogram();
       int imgWidth = img_.getWidth();
       int imgHeight = img_.getHeight();
 
@@ -50,7 +50,9 @@ import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
 import org.micromanager.utils.ContrastSettings;
 import org.micromanager.utils.HistogramUtils;
+import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelStatistics;
 
 /**
  * A single histogram and a few controls for manipulating image contrast 
@@ -89,6 +91,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
    private VirtualAcquisitionDisplay display_;
    private ImagePlus img_;
    private ImageCache cache_;
+   private final PixelStatistics pixelStats_ = new PixelStatistics();
    
    private static final byte[][] fireLUT_;
    static {
@@ -689,7 +692,12 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       if (img_ == null || img_.getProcessor() == null) {
          return;
       }
-      int[] rawHistogram = img_.getProcessor().getHistogram();
+      // a single pass over the pixels yields histogram, min, max, mean and
+      // standard deviation for 8- and 16-bit images
+      PixelStatistics pixelStats = ImageUtils.computeStatistics(
+              img_.getProcessor(), pixelStats_, true);
+      int[] rawHistogram = (pixelStats != null) ? pixelStats.getHistogram()
+              : img_.getProcessor().getHistogram();
       if (rawHistogram == null) { // Histogram is not implemented in ImageJ for FloatProcessor (GRAY32)
           ImageStatistics stats = img_.getStatistics(ImageStatistics.MIN_MAX);
           pixelMax_ = (int) stats.max;
@@ -742,11 +750,18 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       }
       if (drawHist) {
 
-         ImageStatistics stats = img_.getStatistics(ImageStatistics.MEAN | ImageStatistics.MIN_MAX | ImageStatistics.STD_DEV);
-         pixelMax_ = (int) stats.max;
-         pixelMin_ = (int) stats.min;
-         mean_ = stats.mean;
-         stdDev_ = stats.stdDev;
+         if (pixelStats != null) {
+            pixelMax_ = pixelStats.getMax();
+            pixelMin_ = pixelStats.getMin();
+            mean_ = pixelStats.getMean();
+            stdDev_ = pixelStats.getStdDev();
+         } else {
+            ImageStatistics stats = img_.getStatistics(ImageStatistics.MEAN | ImageStatistics.MIN_MAX | ImageStatistics.STD_DEV);
+            pixelMax_ = (int) stats.max;
+            pixelMin_ = (int) stats.min;
+            mean_ = stats.mean;
+            stdDev_ = stats.stdDev;
+         }
          
          //Draw histogram and stats
          histogramData.setData(histogram);
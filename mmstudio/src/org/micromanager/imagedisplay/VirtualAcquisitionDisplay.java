@@ -54,6 +54,7 @@ import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
 import javax.swing.SwingUtilities;
 
+import mmcorej.SystemStateTags;
 import mmcorej.TaggedImage;
 
 import org.json.JSONException;
@@ -64,9 +65,11 @@ import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
 import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
 import org.micromanager.api.events.PixelSizeChangedEvent;
 import org.micromanager.api.ImageCache;
-import org.micromanager.api.ImageCacheListener;
+import org.micromanager.api.CoalescingImageCacheListener;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.diagnostics.LatencyHistogram;
+import org.micromanager.diagnostics.PipelineTelemetry;
 import org.micromanager.events.DisplayCreatedEvent;
 import org.micromanager.events.EventManager;
 import org.micromanager.graph.HistogramControlsState;
@@ -84,7 +87,7 @@ import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
-public class VirtualAcquisitionDisplay implements ImageCacheListener {
+public class VirtualAcquisitionDisplay implements CoalescingImageCacheListener {
 
    /**
     * Given an ImagePlus, retrieve the associated VirtualAcquisitionDisplay.
@@ -196,8 +199,12 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
          @Override
          public void run() {
             JSONObject tags = null;
+            LatencyHistogram latency =
+                  PipelineTelemetry.getLatencyHistogram("Display");
             while (!shouldStopDisplayThread_.get()) {
                boolean haveValidImage = false;
+               // images taken from the queue; all but the last are skipped
+               int imagesTaken = 0;
                // Extract images from the queue until we get to the end.
                do {
                   try {
@@ -205,6 +212,9 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
                      // to send a new FPS update.
                      tags = imageTagsQueue_.poll(500, TimeUnit.MILLISECONDS);
                      haveValidImage = (tags != null);
+                     if (tags != null) {
+                        imagesTaken++;
+                     }
                      if (tags == null) {
                         try {
                            // We still need to generate an FPS update at 
@@ -233,6 +243,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
                   // Nothing to show. 
                   continue;
                }
+               PipelineTelemetry.addDisplayFrames(1, imagesTaken - 1);
       
                if (hyperImage_ != null && hyperImage_.getCanvas() != null) {
                   // Wait for the canvas to be available. If we don't do this,
@@ -253,7 +264,9 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
                   CanvasPaintPending.setPaintPending(
                         hyperImage_.getCanvas(), imageReceivedObject_);
                }
+               long start = System.nanoTime();
                showImage(tags, true);
+               latency.recordSince(start);
                imagesDisplayed_++;
                sendFPSUpdate(tags);
             } // End while loop
@@ -498,6 +511,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       }
       try {
          imageTagsQueue_.add(tags);
+         PipelineTelemetry.recordQueueDepth("Display", imageTagsQueue_.size());
       }
       catch (IllegalStateException e) {
          // The queue was full. This should never happen as the queue has
@@ -1205,7 +1219,13 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    public JSONObject getCurrentMetadata() {
       if (hyperImage_ != null) {
          JSONObject md = virtualStack_.getImageTags(hyperImage_.getCurrentSlice());
-         return md;
+         try {
+            // the device properties are only looked up for the image shown
+            return SystemStateTags.expanded(md);
+         } catch (JSONException ex) {
+            ReportingUtils.logError(ex);
+            return md;
+         }
       } else {
          return null;
       }
@@ -10,6 +10,7 @@ import ij.process.ShortProcessor;
 
 import java.awt.Color;
 import java.awt.Point;
+import java.awt.Rectangle;
 
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
@@ -645,6 +646,52 @@ public class ImageUtils {
       return null;
    }
 
+   /**
+    * Computes min, max, sum, sum of squares and histogram of a grayscale
+    * image in a single pass over the pixels.
+    * @param pixels byte[] or short[] pixel array
+    * @param width width of the image
+    * @param height height of the image
+    * @param result object to hold the results, may be null.  Passing the
+    *        same object for every frame avoids reallocating the histogram.
+    * @param parallel true to split large images across all processors
+    * @return result, or a new PixelStatistics if result was null
+    */
+   public static PixelStatistics computeStatistics(Object pixels, int width,
+           int height, PixelStatistics result, boolean parallel) {
+      if (result == null) {
+         result = new PixelStatistics();
+      }
+      result.compute(pixels, width, height, null, null, parallel);
+      return result;
+   }
+
+   /**
+    * Computes the statistics of the pixels inside the roi (and mask) of an
+    * ImageProcessor in a single pass, see above.
+    * @return result (or a new PixelStatistics if result was null), or null
+    *         if the processor is not 8- or 16-bit grayscale
+    */
+   public static PixelStatistics computeStatistics(ImageProcessor proc,
+           PixelStatistics result, boolean parallel) {
+      Object pixels = proc.getPixels();
+      if (!(pixels instanceof byte[] || pixels instanceof short[])
+              || proc instanceof ColorProcessor) {
+         return null;
+      }
+      if (result == null) {
+         result = new PixelStatistics();
+      }
+      Rectangle roi = proc.getRoi();
+      if (roi != null && roi.x == 0 && roi.y == 0 && roi.width == proc.getWidth()
+              && roi.height == proc.getHeight()) {
+         roi = null;
+      }
+      result.compute(pixels, proc.getWidth(), proc.getHeight(), roi,
+              roi == null ? null : proc.getMaskArray(), parallel);
+      return result;
+   }
+
    public static TaggedImage makeTaggedImage(ImageProcessor proc) {
       JSONObject tags = new JSONObject();
       try {
@@ -41,13 +41,39 @@ public class MDUtils {
       return (map.has(key) && !map.isNull(key));
    }
 
+   /**
+    * Returns an independent copy of the given metadata.  Unlike
+    * new JSONObject(map.toString()) this does not format and parse the
+    * metadata: nested JSONObjects and JSONArrays are copied, all other
+    * values (Strings, numbers, Booleans) are immutable and are shared.
+    */
    public static JSONObject copy(JSONObject map) {
       try {
-         return new JSONObject(map.toString());
+         JSONObject copy = new JSONObject();
+         Iterator<String> keys = map.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            copy.put(key, copyValue(map.opt(key)));
+         }
+         return copy;
       } catch (JSONException e) {
          return null;
       }
    }
+
+   private static Object copyValue(Object value) throws JSONException {
+      if (value instanceof JSONObject) {
+         return copy((JSONObject) value);
+      } else if (value instanceof JSONArray) {
+         JSONArray array = (JSONArray) value;
+         JSONArray copy = new JSONArray();
+         for (int i = 0; i < array.length(); i++) {
+            copy.put(copyValue(array.opt(i)));
+         }
+         return copy;
+      }
+      return value;
+   }
    
    public static int getPositionIndex(JSONObject map) throws JSONException {
       return map.getInt("PositionIndex");
@@ -0,0 +1,323 @@
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Statistics of a grayscale image (min, max, sum, sum of squares and the
+ * full histogram), all computed in a single pass over the pixels.
+ *
+ * Instances are meant to be reused: compute() only reallocates the histogram
+ * when the pixel type changes, so calling it for every displayed frame does
+ * not produce garbage.  The same holds for the partial results of the
+ * parallel computation, which are kept with the instance.  Use ImageUtils.computeStatistics() as entry point.
+ *
+ * Instances are not thread safe.
+ */
+public class PixelStatistics {
+   // Images with more pixels than this are split across processors when
+   // parallel computation is requested
+   private static final int MIN_PIXELS_PER_TASK = 1 << 19;
+   private static final int NR_PROCESSORS = Runtime.getRuntime().availableProcessors();
+   private static ExecutorService executor_;
+
+   private int[] histogram_;
+   private int min_;
+   private int max_;
+   private long count_;
+   private long sum_;
+   private double sumSq_;
+   // partial results of the parallel computation, one per band of rows
+   private PixelStatistics[] parts_ = new PixelStatistics[0];
+
+   public PixelStatistics() {
+      reset(0);
+   }
+
+   private void reset(int histogramSize) {
+      if (histogram_ == null || histogram_.length != histogramSize) {
+         histogram_ = new int[histogramSize];
+      } else {
+         java.util.Arrays.fill(histogram_, 0);
+      }
+      min_ = Integer.MAX_VALUE;
+      max_ = Integer.MIN_VALUE;
+      count_ = 0;
+      sum_ = 0;
+      sumSq_ = 0;
+   }
+
+   /**
+    * Computes the statistics of the given pixels, replacing previous results.
+    * @param pixels byte[] or short[] (interpreted as unsigned)
+    * @param width image width
+    * @param height image height
+    * @param roi region to include, or null for the whole image
+    * @param mask optional mask of roi.width * roi.height bytes, only pixels
+    *        with non-zero mask values are included; ignored when roi is null
+    * @param parallel true to split large images across processors
+    */
+   void compute(Object pixels, int width, int height, Rectangle roi,
+         byte[] mask, boolean parallel) {
+      final int x0, y0, w, h;
+      if (roi != null) {
+         Rectangle r = roi.intersection(new Rectangle(0, 0, width, height));
+         x0 = r.x;
+         y0 = r.y;
+         w = Math.max(0, r.width);
+         h = Math.max(0, r.height);
+         if (mask != null && (r.width != roi.width || r.height != roi.height
+               || mask.length < roi.width * roi.height)) {
+            // mask no longer lines up with the clipped roi
+            mask = null;
+         }
+      } else {
+         x0 = 0;
+         y0 = 0;
+         w = width;
+         h = height;
+         mask = null;
+      }
+      final int histogramSize;
+      if (pixels instanceof byte[]) {
+         histogramSize = 256;
+      } else if (pixels instanceof short[]) {
+         histogramSize = 65536;
+      } else {
+         throw new IllegalArgumentException("Statistics are only supported for 8- and 16-bit images");
+      }
+      reset(histogramSize);
+
+      final int nrTasks = parallel ?
+            Math.min(NR_PROCESSORS, (int) ((long) w * h / MIN_PIXELS_PER_TASK)) : 1;
+      if (nrTasks <= 1 || h < nrTasks) {
+         accumulate(pixels, width, x0, y0, w, 0, h, mask);
+         return;
+      }
+
+      // each task gets a band of rows and its own partial result, merged below
+      if (parts_.length < nrTasks) {
+         PixelStatistics[] parts = new PixelStatistics[nrTasks];
+         System.arraycopy(parts_, 0, parts, 0, parts_.length);
+         for (int i = parts_.length; i < nrTasks; i++) {
+            parts[i] = new PixelStatistics();
+         }
+         parts_ = parts;
+      }
+      List<Future<PixelStatistics>> futures = new ArrayList<Future<PixelStatistics>>(nrTasks);
+      final Object pix = pixels;
+      final byte[] msk = mask;
+      for (int i = 0; i < nrTasks; i++) {
+         final int rowStart = (int) ((long) h * i / nrTasks);
+         final int rowEnd = (int) ((long) h * (i + 1) / nrTasks);
+         final PixelStatistics part = parts_[i];
+         futures.add(getExecutor().submit(new Callable<PixelStatistics>() {
+            @Override
+            public PixelStatistics call() {
+               part.reset(histogramSize);
+               part.accumulate(pix, width, x0, y0, w, rowStart, rowEnd, msk);
+               return part;
+            }
+         }));
+      }
+      try {
+         for (Future<PixelStatistics> f : futures) {
+            merge(f.get());
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         // tasks may still be running, do not reuse their partial results
+         parts_ = new PixelStatistics[0];
+         reset(histogramSize);
+         accumulate(pixels, width, x0, y0, w, 0, h, mask);
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause(), "Parallel statistics failed");
+         parts_ = new PixelStatistics[0];
+         reset(histogramSize);
+         accumulate(pixels, width, x0, y0, w, 0, h, mask);
+      }
+   }
+
+   private static synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         executor_ = Executors.newFixedThreadPool(NR_PROCESSORS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Pixel statistics");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return executor_;
+   }
+
+   private void merge(PixelStatistics other) {
+      if (other.count_ == 0) {
+         return;
+      }
+      // bins outside [min, max] of the other are empty
+      for (int i = other.min_; i <= other.max_; i++) {
+         histogram_[i] += other.histogram_[i];
+      }
+      min_ = Math.min(min_, other.min_);
+      max_ = Math.max(max_, other.max_);
+      count_ += other.count_;
+      sum_ += other.sum_;
+      sumSq_ += other.sumSq_;
+   }
+
+   /*
+    * Only the histogram is updated in the inner loops, min, max, sum and sum
+    * of squares follow from the histogram afterwards, which keeps the per
+    * pixel work to a load and an increment.
+    */
+   private void accumulate(Object pixels, int width, int x0, int y0, int w,
+         int rowStart, int rowEnd, byte[] mask) {
+      final int[] hist = histogram_;
+      if (pixels instanceof byte[]) {
+         final byte[] pix = (byte[]) pixels;
+         for (int y = rowStart; y < rowEnd; y++) {
+            final int offset = (y0 + y) * width + x0;
+            if (mask == null) {
+               for (int x = 0; x < w; x++) {
+                  hist[pix[offset + x] & 0xff]++;
+               }
+            } else {
+               final int maskOffset = y * w;
+               for (int x = 0; x < w; x++) {
+                  if (mask[maskOffset + x] != 0) {
+                     hist[pix[offset + x] & 0xff]++;
+                  }
+               }
+            }
+         }
+      } else {
+         final short[] pix = (short[]) pixels;
+         for (int y = rowStart; y < rowEnd; y++) {
+            final int offset = (y0 + y) * width + x0;
+            if (mask == null) {
+               for (int x = 0; x < w; x++) {
+                  hist[pix[offset + x] & 0xffff]++;
+               }
+            } else {
+               final int maskOffset = y * w;
+               for (int x = 0; x < w; x++) {
+                  if (mask[maskOffset + x] != 0) {
+                     hist[pix[offset + x] & 0xffff]++;
+                  }
+               }
+            }
+         }
+      }
+      for (int i = 0; i < hist.length; i++) {
+         final int n = hist[i];
+         if (n > 0) {
+            if (i < min_) {
+               min_ = i;
+            }
+            max_ = i;
+            count_ += n;
+            sum_ += (long) n * i;
+            sumSq_ += (double) n * i * i;
+         }
+      }
+   }
+
+   /**
+    * @return histogram with one bin per gray value; owned by this object and
+    *         overwritten by the next computation
+    */
+   public int[] getHistogram() {
+      return histogram_;
+   }
+
+   /**
+    * @return minimum pixel value, or 0 if no pixels were included
+    */
+   public int getMin() {
+      return count_ > 0 ? min_ : 0;
+   }
+
+   /**
+    * @return maximum pixel value, or 0 if no pixels were included
+    */
+   public int getMax() {
+      return count_ > 0 ? max_ : 0;
+   }
+
+   public long getCount() {
+      return count_;
+   }
+
+   public long getSum() {
+      return sum_;
+   }
+
+   public double getSumOfSquares() {
+      return sumSq_;
+   }
+
+   public double getMean() {
+      return count_ > 0 ? (double) sum_ / count_ : 0;
+   }
+
+   /**
+    * @return sample standard deviation (same definition as ImageJ)
+    */
+   public double getStdDev() {
+      if (count_ < 2) {
+         return 0;
+      }
+      double variance = (count_ * sumSq_ - (double) sum_ * sum_) / count_ / (count_ - 1.0);
+      return variance > 0 ? Math.sqrt(variance) : 0;
+   }
+
+   /**
+    * @param fraction between 0 and 1
+    * @return smallest gray value such that at least the given fraction of
+    *         pixels are less than or equal to it
+    */
+   public int getPercentile(double fraction) {
+      if (count_ == 0) {
+         return 0;
+      }
+      long target = (long) Math.ceil(Math.max(0.0, Math.min(1.0, fraction)) * count_);
+      if (target < 1) {
+         target = 1;
+      }
+      long cumulative = 0;
+      for (int i = min_; i <= max_; i++) {
+         cumulative += histogram_[i];
+         if (cumulative >= target) {
+            return i;
+         }
+      }
+      return max_;
+   }
+
+   /**
+    * Same result as HistogramUtils.getMinAfterRejectingOutliers()
+    * @param fractionToReject fraction of pixels to ignore at the low end
+    */
+   public int getMinAfterRejectingOutliers(double fractionToReject) {
+      return new HistogramUtils(histogram_, (int) count_, fractionToReject).
+            getMinAfterRejectingOutliers();
+   }
+
+   /**
+    * Same result as HistogramUtils.getMaxAfterRejectingOutliers()
+    * @param fractionToReject fraction of pixels to ignore at the high end
+    */
+   public int getMaxAfterRejectingOutliers(double fractionToReject) {
+      return new HistogramUtils(histogram_, (int) count_, fractionToReject).
+            getMaxAfterRejectingOutliers();
+   }
+}
@@ -24,6 +24,7 @@
 package org.micromanager.utils;
 
 import java.awt.BorderLayout;
+import java.awt.GraphicsEnvironment;
 
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
@@ -35,17 +36,22 @@ import javax.swing.JProgressBar;
 public class ProgressBar extends JPanel {
    private static final long serialVersionUID = 1L;
    private JProgressBar progressBar;
+   // null when headless (e.g. when storage is used from benchmarks)
    private JFrame frame;
 
    public ProgressBar (String windowName, int start, int end) {
       super(new BorderLayout());
+
+      progressBar = new JProgressBar(start,end);
+      progressBar.setValue(0);
+      if (GraphicsEnvironment.isHeadless()) {
+         return;
+      }
       
       frame = new JFrame(windowName);
       frame.setDefaultCloseOperation (JFrame.DISPOSE_ON_CLOSE);
       frame.setBounds(0,0,150 + 6 * windowName.length() ,100);
 
-      progressBar = new JProgressBar(start,end);
-      progressBar.setValue(0);
       JPanel panel = new JPanel(new BorderLayout());
       panel.add(progressBar, BorderLayout.CENTER);
       add(panel, BorderLayout.CENTER);
@@ -66,7 +72,9 @@ public class ProgressBar extends JPanel {
 
    @Override
    public void setVisible(boolean visible) {
-      frame.setVisible(visible);
+      if (frame != null) {
+         frame.setVisible(visible);
+      }
    }
 
     public void setRange(int min, int max) {
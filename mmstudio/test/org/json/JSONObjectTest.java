@@ -0,0 +1,85 @@
+package org.json;
+
+import java.io.StringWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JSONObjectTest {
+   private static final String TAGS =
+         "{\"Width\":\"512\",\"Height\":512,\"ElapsedTime-ms\":\"12.5\","
+         + "\"Camera\":\"Cam \\\"A\\\"\\u00b5\",\"Big\":12345678901,\"Exp\":1e3,"
+         + "\"Flag\":true,\"None\":null,\"List\":[1,\"two\",{\"x\":0.5}],"
+         + "\"Summary\":{\"Slices\":3,\"Names\":[]}}";
+
+   @Test
+   public void parsesLikeTokener() throws JSONException {
+      JSONObject lazy = new JSONObject(TAGS);
+      JSONObject eager = new JSONObject(new JSONTokener(TAGS));
+      assertEquals(eager.length(), lazy.length());
+      for (String key : new String[] {"Width", "Height", "ElapsedTime-ms",
+            "Camera", "Big", "Exp", "Flag", "None"}) {
+         assertEquals(key, eager.get(key), lazy.get(key));
+         assertEquals(key, eager.get(key).getClass(), lazy.get(key).getClass());
+      }
+      assertEquals("Cam \"A\"\u00b5", lazy.getString("Camera"));
+      assertEquals(0.5, lazy.getJSONArray("List").getJSONObject(2).getDouble("x"), 0);
+      assertEquals(3, lazy.getJSONObject("Summary").getInt("Slices"));
+      assertEquals(0, lazy.getJSONObject("Summary").getJSONArray("Names").length());
+   }
+
+   @Test
+   public void keepsSourceUntilChanged() throws JSONException {
+      String source = " " + TAGS + "\n";
+      JSONObject tags = new JSONObject(source);
+      assertEquals(TAGS, tags.toString());
+      assertEquals(512, tags.getInt("Width"));
+      assertEquals(TAGS, tags.toString());
+      StringWriter writer = new StringWriter();
+      tags.write(writer);
+      assertEquals(TAGS, writer.toString());
+
+      tags.put("Width", 256);
+      assertEquals(256, new JSONObject(tags.toString()).getInt("Width"));
+      assertEquals(3, new JSONObject(tags.toString()).getJSONObject("Summary").getInt("Slices"));
+   }
+
+   @Test
+   public void changesToNestedValuesAreSerialized() throws JSONException {
+      JSONObject tags = new JSONObject(TAGS);
+      tags.getJSONObject("Summary").put("Slices", 7);
+      tags.getJSONArray("List").put(4);
+      JSONObject copy = new JSONObject(tags.toString());
+      assertEquals(7, copy.getJSONObject("Summary").getInt("Slices"));
+      assertEquals(4, copy.getJSONArray("List").length());
+   }
+
+   @Test
+   public void cachedNumbersFollowChanges() throws JSONException {
+      JSONObject tags = new JSONObject(TAGS);
+      assertEquals(12.5, tags.getDouble("ElapsedTime-ms"), 0);
+      assertEquals(12.5, tags.getDouble("ElapsedTime-ms"), 0);
+      tags.put("ElapsedTime-ms", "20");
+      assertEquals(20, tags.getDouble("ElapsedTime-ms"), 0);
+      assertEquals(20, tags.getInt("ElapsedTime-ms"));
+      tags.put("ElapsedTime-ms", "none");
+      try {
+         tags.getDouble("ElapsedTime-ms");
+         fail();
+      } catch (JSONException e) {
+      }
+   }
+
+   @Test
+   public void lenientTextIsStillAccepted() throws JSONException {
+      JSONObject lenient = new JSONObject("{'a':1, b:two, \"c\":0x10,}");
+      assertEquals(1, lenient.getInt("a"));
+      assertEquals("two", lenient.getString("b"));
+      assertEquals(16, lenient.getInt("c"));
+      assertEquals(1, new JSONObject(lenient.toString()).getInt("a"));
+   }
+
+   @Test(expected = JSONException.class)
+   public void syntaxErrorsAreReportedOnConstruction() throws JSONException {
+      new JSONObject("{\"a\":1");
+   }
+}
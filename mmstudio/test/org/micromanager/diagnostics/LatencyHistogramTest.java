@@ -0,0 +1,38 @@
+package org.micromanager.diagnostics;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+   @Test
+   public void bucketsArePowersOfTwoMicroseconds() {
+      LatencyHistogram h = new LatencyHistogram("Test");
+      h.record(500);        // under 1 us
+      h.record(1000);       // 1 us
+      h.record(3000);       // 2-4 us
+      h.record(-5);         // clock went backwards; counts as 0
+      h.record(Long.MAX_VALUE);
+      long[] buckets = h.getBuckets();
+      assertEquals(2, buckets[0]);
+      assertEquals(1, buckets[1]);
+      assertEquals(1, buckets[2]);
+      assertEquals(1, buckets[LatencyHistogram.NUM_BUCKETS - 1]);
+      assertEquals(5, h.getCount());
+   }
+
+   @Test
+   public void percentilesAreBucketBounds() {
+      LatencyHistogram h = new LatencyHistogram("Test");
+      assertEquals(0, h.getPercentileMs(0.5), 0);
+      for (int i = 1; i <= 100; i++) {
+         h.record(i * 10000L); // 0.01 .. 1 ms
+      }
+      assertEquals(0.512, h.getPercentileMs(0.5), 1e-9);
+      assertEquals(1.0, h.getPercentileMs(0.99), 1e-9);
+      assertEquals(1.0, h.getMaxMs(), 1e-9);
+      assertEquals(0.505, h.getMeanMs(), 1e-9);
+      h.reset();
+      assertEquals(0, h.getCount());
+      assertEquals(0, h.getMaxMs(), 0);
+   }
+}
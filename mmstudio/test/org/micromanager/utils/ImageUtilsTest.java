@@ -23,4 +23,80 @@ public class ImageUtilsTest {
       assertEquals(0x7fff, ImageUtils.unsignedValue((short) 0x7fff));
       assertEquals(0x8000, ImageUtils.unsignedValue((short) 0x8000));
    }
+
+   @Test
+   public void statisticsOfShortImageAreCorrect() {
+      short[] pixels = {1, 2, 3, 4, (short) 0xffff, 0};
+      PixelStatistics stats = ImageUtils.computeStatistics(pixels, 3, 2, null, false);
+      assertEquals(0, stats.getMin());
+      assertEquals(0xffff, stats.getMax());
+      assertEquals(6, stats.getCount());
+      assertEquals(10 + 0xffff, stats.getSum());
+      assertEquals((10 + 0xffff) / 6.0, stats.getMean(), 1e-9);
+      assertEquals(1, stats.getHistogram()[4]);
+      assertEquals(65536, stats.getHistogram().length);
+      assertEquals(2, stats.getPercentile(0.5));
+      assertEquals(0xffff, stats.getPercentile(1.0));
+   }
+
+   @Test
+   public void statisticsOfByteImageAreCorrect() {
+      byte[] pixels = {(byte) 0xff, 2, 2, 4};
+      PixelStatistics stats = ImageUtils.computeStatistics(pixels, 2, 2, null, false);
+      assertEquals(2, stats.getMin());
+      assertEquals(0xff, stats.getMax());
+      assertEquals(256, stats.getHistogram().length);
+      // sample standard deviation of {255, 2, 2, 4}
+      assertEquals(126.1702, stats.getStdDev(), 1e-3);
+   }
+
+   @Test
+   public void statisticsObjectIsReusable() {
+      PixelStatistics stats = new PixelStatistics();
+      ImageUtils.computeStatistics(new short[] {7, 9}, 2, 1, stats, false);
+      int[] histogram = stats.getHistogram();
+      ImageUtils.computeStatistics(new short[] {3, 5}, 2, 1, stats, false);
+      assertSame(histogram, stats.getHistogram());
+      assertEquals(0, histogram[7]);
+      assertEquals(3, stats.getMin());
+      assertEquals(5, stats.getMax());
+   }
+
+   @Test
+   public void parallelStatisticsMatchSerial() {
+      final int width = 1024;
+      final int height = 1536;
+      short[] pixels = new short[width * height];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) ((i * 7919) % 4099);
+      }
+      PixelStatistics serial = ImageUtils.computeStatistics(pixels, width, height, null, false);
+      PixelStatistics parallel = ImageUtils.computeStatistics(pixels, width, height, null, true);
+      assertEquals(serial.getMin(), parallel.getMin());
+      assertEquals(serial.getMax(), parallel.getMax());
+      assertEquals(serial.getSum(), parallel.getSum());
+      assertEquals(serial.getSumOfSquares(), parallel.getSumOfSquares(), 1e-3);
+      assertArrayEquals(serial.getHistogram(), parallel.getHistogram());
+   }
+
+   @Test
+   public void reusedParallelStatisticsForgetPreviousFrames() {
+      final int width = 1024;
+      final int height = 1536;
+      short[] first = new short[width * height];
+      short[] second = new short[width * height];
+      for (int i = 0; i < first.length; i++) {
+         first[i] = (short) (1000 + (i * 7919) % 4099);
+         second[i] = (short) ((i * 31) % 97);
+      }
+      PixelStatistics parallel = new PixelStatistics();
+      ImageUtils.computeStatistics(first, width, height, parallel, true);
+      ImageUtils.computeStatistics(second, width, height, parallel, true);
+      PixelStatistics serial = ImageUtils.computeStatistics(second, width, height, null, false);
+      assertEquals(serial.getMin(), parallel.getMin());
+      assertEquals(serial.getMax(), parallel.getMax());
+      assertEquals(serial.getCount(), parallel.getCount());
+      assertEquals(serial.getSum(), parallel.getSum());
+      assertArrayEquals(serial.getHistogram(), parallel.getHistogram());
+   }
 }
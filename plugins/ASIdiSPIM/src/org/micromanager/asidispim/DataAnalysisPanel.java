@@ -3,9 +3,9 @@ package org.micromanager.asidispim;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.WindowManager;
 //import ij.gui.NewImage;
+import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 
 import java.awt.Cursor;
@@ -15,6 +15,8 @@ import java.awt.event.ActionListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import javax.swing.JButton;
@@ -30,12 +32,15 @@ import javax.swing.SwingWorker;
 import net.miginfocom.swing.MigLayout;
 
 import org.json.JSONObject;
+import org.micromanager.MMStudio;
 import org.micromanager.api.MMWindow;
 import org.micromanager.asidispim.Data.AcquisitionModes;
 import org.micromanager.asidispim.Data.Devices;
 import org.micromanager.asidispim.Data.MyStrings;
 import org.micromanager.asidispim.Data.Prefs;
 import org.micromanager.asidispim.Data.Properties;
+import org.micromanager.asidispim.Utils.DeskewEngine;
+import org.micromanager.asidispim.Utils.ExportEngine;
 import org.micromanager.asidispim.Utils.ListeningJPanel;
 import org.micromanager.asidispim.Utils.MyDialogUtils;
 import org.micromanager.asidispim.Utils.PanelUtils;
@@ -78,6 +83,11 @@ public class DataAnalysisPanel extends ListeningJPanel {
                  "Export to Location",
                  System.getProperty("user.home") + "/Untitled",
                  false, (String[]) null);
+   public static FileDialogs.FileType DESKEW_DATA_SET 
+           = new FileDialogs.FileType("DESKEW_DATA_SET",
+                 "Deskew to Location",
+                 System.getProperty("user.home") + "/Untitled",
+                 false, (String[]) null);
    
    /**
     * 
@@ -153,6 +163,8 @@ public class DataAnalysisPanel extends ListeningJPanel {
               panelName_, Properties.Keys.PLUGIN_EXPORT_TRANSFORM_OPTION, 
               TRANSFORMOPTIONS[1]);
       transformSelect.setSelectedItem(transformOption);
+      transformSelect.setToolTipText("90\u00B0 rotations turn the whole image, "
+            + "exported stacks are as wide as the data are high");
       transformSelect.addActionListener(new ActionListener() {
          @Override
          public void actionPerformed(ActionEvent e) {
@@ -370,6 +382,63 @@ public class DataAnalysisPanel extends ListeningJPanel {
       return Math.tan(angle/180.0*Math.PI);
    }
    
+   /**
+    * direction in which the slices of a channel have to be shifted for deskew
+    * @param channel - 0-indexed channel number
+    * @param acqMode - acquisition mode, must be one of the stage scanning modes
+    * @param twoSided - true if both paths were acquired
+    * @param firstSideIsA - true if first side acquired was Path A
+    * @return -1 or 1
+    * @throws Exception if not stage scanning data
+    */
+   private int getDeskewDirection(int channel, AcquisitionModes.Keys acqMode,
+         boolean twoSided, boolean firstSideIsA) throws Exception {
+      int dir;
+      switch (acqMode) {
+      case STAGE_SCAN:
+         if (twoSided) {
+            dir = (channel % 2) * 2 - 1;  // -1 for path A which are odd channels, 1 for path B
+         } else {
+            // single-sided is path A for all channels
+            dir = -1;
+         }
+         // invert direction if we started with path B, regardless of single- or double-sided
+         if (!firstSideIsA) {
+            dir *= -1;
+         }
+         break;
+      case STAGE_SCAN_INTERLEAVED:
+      case STAGE_SCAN_UNIDIRECTIONAL:
+         // always the same direction
+         dir = -1;
+         break;
+      default:
+         // should never make it here
+         throw new Exception("Can only deskew stage scanning data");
+      }
+      if (deskewInvert_.isSelected()) {
+         dir *= -1;
+      }
+      return dir;
+   }
+   
+   /**
+    * Finds a not yet existing directory to hold deskewed data.
+    * @param root - directory chosen by the user
+    * @param title - desired name of the deskewed dataset
+    * @return full path of the directory
+    */
+   private String getDeskewDirectory(String root, String title) {
+      String baseName = title.replaceAll("[^a-zA-Z0-9_\\.\\-]", "_");
+      File dir = new File(root, baseName);
+      int i = 1;
+      while (dir.exists()) {
+         dir = new File(root, baseName + "_" + i);
+         i++;
+      }
+      return dir.getAbsolutePath();
+   }
+   
 public void runDeskew(final ListeningJPanel caller) {
       
       /**
@@ -380,9 +449,14 @@ public void runDeskew(final ListeningJPanel caller) {
        *
        */
       class DeskewTask extends SwingWorker<Void, Void> {
+         
+         private final String root_;
 
-         DeskewTask() {
-            // empty constructor for now 
+         /**
+          * @param root - directory for deskewed Micro-Manager datasets
+          */
+         DeskewTask(String root) {
+            root_ = root;
          };
 
          @Override
@@ -448,6 +522,45 @@ public void runDeskew(final ListeningJPanel caller) {
             final int nrImages = nrChannels * nrSlices * nrFrames;
             final String title = windowTitle + "-deskewed";
             final int width_expansion = (int) Math.abs(Math.ceil(dx*(nrSlices-1)));
+            final boolean interpolate = deskewInterpolate_.isSelected();
+            
+            final int[] dirs = new int[nrChannels];
+            for (int c=0; c<nrChannels; c++) {
+               dirs[c] = getDeskewDirection(c, acqMode, twoSided, firstSideIsA);
+            }
+            
+            if (mmW.isMMWindow()) {
+               // stream planes from storage into a new dataset on disk so that
+               // neither the original nor the deskewed data has to fit in memory
+               if (root_ == null) {
+                  throw new SaveTaskException("No directory chosen for the deskewed data");
+               }
+               final long nrBytes = (long) nrImages * Math.max(1, mmW.getNumberOfPositions())
+                     * (width + width_expansion) * height * ip.getBytesPerPixel();
+               final long available = new File(root_).getUsableSpace();
+               if (nrBytes > available) {
+                  throw new SaveTaskException("The deskewed data need " + (nrBytes >> 20)
+                        + " MB, but only " + (available >> 20) + " MB are free in " + root_);
+               }
+               final String dir = getDeskewDirectory(root_, title);
+               DeskewEngine engine = new DeskewEngine(mmW, dx, dirs, interpolate, 0);
+               IJ.showProgress(0.0);
+               engine.run(dir, new File(dir).getName(),
+                     new DeskewEngine.ProgressListener() {
+                  @Override
+                  public void planeDone(int nrDone, int nrTotal) {
+                     IJ.showProgress(nrDone, nrTotal);
+                  }
+               });
+               IJ.showProgress(1.0);
+               MMStudio.getInstance().openAcquisitionData(dir, false, true);
+               
+               long finishTime = System.currentTimeMillis();
+               ReportingUtils.logDebugMessage("Deskew operation took " + (finishTime - startTime) + 
+                     " milliseconds with total of " + (nrImages * mmW.getNumberOfPositions())
+                     + " images, saved to " + dir);
+               return null;
+            }
             
             // create duplicate stack to avoid manipulating original data
             // split into separate channels because have to treat each channel a bit differently
@@ -461,35 +574,9 @@ public void runDeskew(final ListeningJPanel caller) {
             
             ij.Prefs.set("resizer.zero", true);
             ij.plugin.CanvasResizer resize = new ij.plugin.CanvasResizer();
-            int dir;
             int nrImagesProcessed = 0;
             for (int c=0; c<nrChannels; c++) {  // loop over channels
-               switch (acqMode) {
-               case STAGE_SCAN:
-                  if (twoSided) {
-                     dir = (c % 2) * 2 - 1;  // -1 for path A which are odd channels, 1 for path B
-                  } else {
-                     // single-sided is path A for all channels
-                     dir = -1;
-                  }
-                  // invert direction if we started with path B, regardless of single- or double-sided
-                  if (!firstSideIsA) {
-                     dir *= -1;
-                  }
-                  break;
-               case STAGE_SCAN_INTERLEAVED:
-               case STAGE_SCAN_UNIDIRECTIONAL:
-                  // always the same direction
-                  dir = -1;
-                  break;
-               default:
-                  // should never make it here
-                  throw new Exception("Can only deskew stage scanning data");
-               }
-               if (deskewInvert_.isSelected()) {
-                  dir *= -1;
-               }
-               final boolean interpolate = deskewInterpolate_.isSelected();
+               final int dir = dirs[c];
                ImagePlus i = channels[c];
                i.setStack(resize.expandStack(i.getImageStack(), width + width_expansion, height, (dir < 0 ? width_expansion : 0), 0));
                for (int t=0; t<nrFrames; t++) {
@@ -545,7 +632,19 @@ public void runDeskew(final ListeningJPanel caller) {
       }
       
       // runDeskew() code goes here
-      (new DeskewTask()).execute();
+      // Micro-Manager datasets are deskewed to disk, let the user choose where
+      String root = null;
+      ImagePlus current = WindowManager.getCurrentImage();
+      if (current != null && new MMWindow(current).isMMWindow()) {
+         File result = FileDialogs.openDir(null,
+               "Please choose a directory root for the deskewed data",
+               DESKEW_DATA_SET);
+         if (result == null) {
+            return;
+         }
+         root = result.getAbsolutePath();
+      }
+      (new DeskewTask(root)).execute();
 
    }
    
@@ -604,9 +703,9 @@ public void runDeskew(final ListeningJPanel caller) {
                firstSideIsA = false;
             }
             
+            List<ExportEngine.Job> jobs = new ArrayList<ExportEngine.Job>();
             for (int position = 0; position < mmW.getNumberOfPositions(); position++) {
                
-               ImageProcessor iProc = ip.getProcessor();
                int nrSides = 0;
                if (mmW.getSummaryMetaData().getString("NumberOfSides").equals("2")) {
                   nrSides = 2;
@@ -649,49 +748,46 @@ public void runDeskew(final ListeningJPanel caller) {
                   new File(dir).mkdirs();
                }
 
-               int totalNr = mmW.getNumberOfChannels() * mmW.getNumberOfFrames() * mmW.getNumberOfSlices();
-               int counter = 0;
-
                for (int c = 0; c < mmW.getNumberOfChannels(); c++) {  // for each channel
+                  // optional transformation
+                  int rotation;
+                  switch (transformIndex_) {
+                  case 1:
+                     rotation = ExportEngine.ROTATE_RIGHT;
+                     break;
+                  case 2:
+                     rotation = ExportEngine.ROTATE_LEFT;
+                     break;
+                  case 3:
+                     rotation = ((c % 2) == 1) ? ExportEngine.ROTATE_RIGHT : ExportEngine.ROTATE_LEFT;
+                     break;
+                  case 4:
+                     rotation = ExportEngine.ROTATE_180;
+                     break;
+                  default:
+                     rotation = ExportEngine.ROTATE_NONE;
+                  }
                   for (int t = 0; t < mmW.getNumberOfFrames(); t++) {  // for each timepoint
-                     ImageStack stack = new ImageStack(iProc.getWidth(), iProc.getHeight());
-                     for (int i = 0; i < mmW.getNumberOfSlices(); i++) {
-                        ImageProcessor iProc2;
-                        iProc2 = mmW.getImageProcessor(c, i, t, position + 1);  // positions are 1-indexed
-
-                        // optional transformation
-                        switch (transformIndex_) {
-                        case 1: {
-                           iProc2.rotate(90);
-                           break;
-                        }
-                        case 2: {
-                           iProc2.rotate(-90);
-                           break;
-                        }
-                        case 3: {
-                           iProc2.rotate(((c % 2) == 1) ? 90 : -90);
-                           break;
-                        }
-                        case 4: {
-                           iProc2.rotate(180);
-                           break;
-                        }
-                        }
-                        stack.addSlice(iProc2);
-                        counter++;
-                        double rate = ((double) counter / (double) totalNr) * 100.0;
-                        setProgress((int) Math.round(rate));
-                     }
-                     ImagePlus ipN = new ImagePlus("tmp", stack);
-                     ipN.setCalibration(ip.getCalibration());
-                     ij.IJ.save(ipN, channelDirArray[c] + File.separator + "SPIM"
+                     jobs.add(new ExportEngine.Job(position, c, t, rotation,
+                           new File(channelDirArray[c] + File.separator + "SPIM"
                            + (((c % nrSides) == 0) ? (firstSideIsA ? "A" : "B") : (firstSideIsA ? "B" : "A"))
-                           + "-" + t + ".tif");
+                           + "-" + t + ".tif")));
                   }
                }
             }
             
+            // stacks of all positions, views and time points are written in parallel
+            Calibration cal = ip.getCalibration();
+            ExportEngine engine = new ExportEngine(mmW, cal.pixelWidth,
+                  cal.pixelHeight, cal.pixelDepth, cal.getUnit(), 0);
+            engine.run(jobs, new ExportEngine.ProgressListener() {
+               @Override
+               public void planeDone(int nrDone, int nrTotal) {
+                  double rate = ((double) nrDone / (double) nrTotal) * 100.0;
+                  setProgress((int) Math.round(rate));
+               }
+            });
+            
          } else 
          if (exportFormat_ == 1) {  // Multiview reconstruction
             throw new SaveTaskException("Should import Micro-Manager datasets "
@@ -0,0 +1,304 @@
+package org.micromanager.asidispim.Utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import mmcorej.TaggedImage;
+
+import org.json.JSONObject;
+import org.micromanager.api.MMWindow;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.micromanager.utils.MDUtils;
+
+/**
+ * Streaming deskew of stage scanning data.
+ *
+ * Planes are read one at a time from the image storage behind a Micro-Manager
+ * window, shifted on a pool of worker threads (one plane per task, so work is
+ * spread across slices and channels) and handed in order to a new multipage
+ * TIFF dataset.  The planes in flight are passed from the reading thread to
+ * the writing thread through a bounded queue, so only a bounded number of
+ * input and output planes are held in memory at any time, and the size of
+ * the dataset is limited by disk space rather than by the Java heap.
+ */
+public class DeskewEngine {
+
+   /**
+    * Receives progress updates, called on the thread executing run()
+    */
+   public interface ProgressListener {
+      public void planeDone(int nrDone, int nrTotal);
+   }
+
+   // a missing plane in the queue of planes to write
+   private static final Future<TaggedImage> MISSING = completedFuture();
+   // the end of the queue of planes to write
+   private static final Future<TaggedImage> END = completedFuture();
+
+   private final MMWindow source_;
+   private final double dx_;
+   private final int[] channelDirections_;
+   private final boolean interpolate_;
+   private final int nrThreads_;
+
+   /**
+    * @param source - Micro-Manager window whose data should be deskewed
+    * @param dx - shift in pixels between adjacent slices (always positive)
+    * @param channelDirections - direction of the shift (-1 or 1) for each channel
+    * @param interpolate - true to use linear interpolation for sub-pixel shifts
+    * @param nrThreads - number of worker threads, 0 to use all processors
+    */
+   public DeskewEngine(MMWindow source, double dx, int[] channelDirections,
+         boolean interpolate, int nrThreads) {
+      source_ = source;
+      dx_ = dx;
+      channelDirections_ = channelDirections;
+      interpolate_ = interpolate;
+      nrThreads_ = (nrThreads > 0) ? nrThreads :
+         Runtime.getRuntime().availableProcessors();
+   }
+
+   /**
+    * @param nrSlices - number of slices in each stack
+    * @return number of pixels by which the deskewed image is wider than the original
+    */
+   public int getWidthExpansion(int nrSlices) {
+      return (int) Math.abs(Math.ceil(dx_ * (nrSlices - 1)));
+   }
+
+   /**
+    * Deskews all positions, frames, channels and slices of the source into a
+    * new dataset.
+    * @param directory - directory for the new dataset, should not yet exist
+    * @param prefix - name of the new dataset
+    * @param listener - progress listener, may be null
+    * @throws Exception
+    */
+   public void run(String directory, String prefix, ProgressListener listener)
+         throws Exception {
+      final int nrPositions = Math.max(1, source_.getNumberOfPositions());
+      final int nrChannels = source_.getNumberOfChannels();
+      final int nrSlices = source_.getNumberOfSlices();
+      final int nrFrames = source_.getNumberOfFrames();
+      final int nrTotal = nrPositions * nrFrames * nrChannels * nrSlices;
+      if (channelDirections_.length < nrChannels) {
+         throw new IllegalArgumentException("Need deskew direction for every channel");
+      }
+      final int expansion = getWidthExpansion(nrSlices);
+      final int width = MDUtils.getWidth(source_.getSummaryMetaData());
+
+      JSONObject summary = new JSONObject(source_.getSummaryMetaData().toString());
+      MDUtils.setWidth(summary, width + expansion);
+      summary.put("Prefix", prefix);
+      summary.put("Directory", directory);
+
+      // reading and shifting are started on a reading thread (storage
+      // readers are not meant to be shared between threads), shifting is done
+      // on the pool, and writing is done on this thread.  The queue between
+      // them blocks the reader when the writer falls behind.
+      final ExecutorService pool = Executors.newFixedThreadPool(nrThreads_);
+      final BlockingQueue<Future<TaggedImage>> inFlight =
+            new ArrayBlockingQueue<Future<TaggedImage>>(2 * nrThreads_);
+      final Exception[] readError = new Exception[1];
+      Thread reader = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               readPlanes(pool, inFlight, nrPositions, nrFrames, nrChannels,
+                     nrSlices, width, expansion);
+            } catch (InterruptedException ex) {
+               // the writer failed
+               return;
+            } catch (Exception ex) {
+               readError[0] = ex;
+            }
+            try {
+               inFlight.put(END);
+            } catch (InterruptedException ex) {
+               // the writer failed
+            }
+         }
+      }, "Deskew reader");
+
+      // storage without its own writing thread, so that the queue above
+      // bounds everything waiting to be written
+      TaggedImageStorageMultipageTiff storage = new TaggedImageStorageMultipageTiff(
+            directory, true, summary, false, true, false);
+      int nrDone = 0;
+      reader.start();
+      try {
+         for (Future<TaggedImage> future = inFlight.take(); future != END;
+               future = inFlight.take()) {
+            if (future != MISSING) {
+               writeImage(storage, future);
+            }
+            nrDone++;
+            if (listener != null) {
+               listener.planeDone(nrDone, nrTotal);
+            }
+         }
+         if (readError[0] != null) {
+            throw readError[0];
+         }
+      } finally {
+         reader.interrupt();
+         reader.join();
+         for (Future<TaggedImage> f : inFlight) {
+            f.cancel(true);
+         }
+         pool.shutdown();
+         storage.finished();
+         storage.close();
+      }
+   }
+
+   private void readPlanes(ExecutorService pool,
+         BlockingQueue<Future<TaggedImage>> inFlight, int nrPositions,
+         int nrFrames, int nrChannels, int nrSlices, int width, int expansion)
+         throws Exception {
+      for (int p = 0; p < nrPositions; p++) {
+         for (int t = 0; t < nrFrames; t++) {
+            for (int c = 0; c < nrChannels; c++) {
+               for (int s = 0; s < nrSlices; s++) {
+                  final TaggedImage in = source_.getTaggedImage(c, s, t, p);
+                  if (in == null) {
+                     // missing plane, e.g. aborted acquisition
+                     inFlight.put(MISSING);
+                     continue;
+                  }
+                  // canvas is expanded on the left side when shifting left
+                  final double shift = (channelDirections_[c] < 0 ? expansion : 0)
+                        + dx_ * s * channelDirections_[c];
+                  final int outWidth = width + expansion;
+                  inFlight.put(pool.submit(new Callable<TaggedImage>() {
+                     @Override
+                     public TaggedImage call() throws Exception {
+                        return shiftImage(in, outWidth, shift);
+                     }
+                  }));
+               }
+            }
+         }
+      }
+   }
+
+   private static Future<TaggedImage> completedFuture() {
+      FutureTask<TaggedImage> future = new FutureTask<TaggedImage>(
+            new Callable<TaggedImage>() {
+               @Override
+               public TaggedImage call() {
+                  return null;
+               }
+            });
+      future.run();
+      return future;
+   }
+
+   private void writeImage(TaggedImageStorageMultipageTiff storage,
+         Future<TaggedImage> future) throws Exception {
+      TaggedImage img;
+      try {
+         img = future.get();
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof Exception) {
+            throw (Exception) ex.getCause();
+         }
+         throw ex;
+      }
+      storage.putImage(img);
+   }
+
+   private TaggedImage shiftImage(TaggedImage in, int outWidth, double shift)
+         throws Exception {
+      JSONObject tags = new JSONObject(in.tags.toString());
+      final int width = MDUtils.getWidth(tags);
+      final int height = MDUtils.getHeight(tags);
+      MDUtils.setWidth(tags, outWidth);
+      final Object pix;
+      if (in.pix instanceof byte[]) {
+         byte[] out = new byte[outWidth * height];
+         shiftRows((byte[]) in.pix, out, width, outWidth, height, shift);
+         pix = out;
+      } else if (in.pix instanceof short[]) {
+         short[] out = new short[outWidth * height];
+         shiftRows((short[]) in.pix, out, width, outWidth, height, shift);
+         pix = out;
+      } else {
+         throw new IllegalArgumentException("Can only deskew 8- and 16-bit grayscale images");
+      }
+      return new TaggedImage(pix, tags);
+   }
+
+   /**
+    * Places every row of the input at horizontal offset shift in the output
+    * row, pixels not covered by the input are set to zero.  Without
+    * interpolation the shift is rounded and rows are block copied, with
+    * interpolation each output pixel is a linear blend of its two neighbors.
+    */
+   private void shiftRows(byte[] in, byte[] out, int width, int outWidth,
+         int height, double shift) {
+      if (!interpolate_) {
+         final int offset = (int) Math.round(shift);
+         final int from = Math.max(0, -offset);
+         final int to = Math.min(width, outWidth - offset);
+         if (to <= from) {
+            return;
+         }
+         for (int y = 0; y < height; y++) {
+            System.arraycopy(in, y * width + from, out, y * outWidth + offset + from, to - from);
+         }
+         return;
+      }
+      final int offset = (int) Math.floor(shift);
+      final double f = shift - offset;
+      final double g = 1.0 - f;
+      for (int y = 0; y < height; y++) {
+         final int inRow = y * width;
+         final int outRow = y * outWidth;
+         for (int x = Math.max(0, offset); x < Math.min(outWidth, offset + width + 1); x++) {
+            // output x corresponds to input position (x - shift), which
+            // lies between input pixels i - 1 and i
+            final int i = x - offset;
+            final double right = (i < width) ? (in[inRow + i] & 0xff) : 0;
+            final double left = (i > 0) ? (in[inRow + i - 1] & 0xff) : 0;
+            out[outRow + x] = (byte) (int) (g * right + f * left + 0.5);
+         }
+      }
+   }
+
+   private void shiftRows(short[] in, short[] out, int width, int outWidth,
+         int height, double shift) {
+      if (!interpolate_) {
+         final int offset = (int) Math.round(shift);
+         final int from = Math.max(0, -offset);
+         final int to = Math.min(width, outWidth - offset);
+         if (to <= from) {
+            return;
+         }
+         for (int y = 0; y < height; y++) {
+            System.arraycopy(in, y * width + from, out, y * outWidth + offset + from, to - from);
+         }
+         return;
+      }
+      final int offset = (int) Math.floor(shift);
+      final double f = shift - offset;
+      final double g = 1.0 - f;
+      for (int y = 0; y < height; y++) {
+         final int inRow = y * width;
+         final int outRow = y * outWidth;
+         for (int x = Math.max(0, offset); x < Math.min(outWidth, offset + width + 1); x++) {
+            final int i = x - offset;
+            final double right = (i < width) ? (in[inRow + i] & 0xffff) : 0;
+            final double left = (i > 0) ? (in[inRow + i - 1] & 0xffff) : 0;
+            out[outRow + x] = (short) (int) (g * right + f * left + 0.5);
+         }
+      }
+   }
+
+}
@@ -0,0 +1,339 @@
+package org.micromanager.asidispim.Utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mmcorej.TaggedImage;
+
+import org.json.JSONObject;
+import org.micromanager.api.MMWindow;
+import org.micromanager.utils.MDUtils;
+
+/**
+ * Exports the stacks of a Micro-Manager dataset to individual TIFF files,
+ * one file per position, channel (view) and time point.
+ *
+ * Planes are read one at a time on the thread executing run() (storage
+ * readers are not meant to be shared between threads).  Every output file is
+ * transformed and streamed to its own TiffStackWriter by a task on a pool of
+ * worker threads, fed through a small queue, so transforming and writing
+ * proceed in parallel across views and positions while only a few planes per
+ * file are in memory.  When no rotation is requested the pixel arrays coming
+ * out of the image storage are handed to the writer untouched.  Planes
+ * missing from the dataset are written as blank planes at their own
+ * position, so the slices that follow keep their z.
+ *
+ * Rotations by 90 degrees turn the whole plane: the exported stack is as
+ * wide as the data are high and vice versa.  (Exports before this engine
+ * rotated within the original width x height canvas, cutting off the parts
+ * of the image that did not fit.)
+ */
+public class ExportEngine {
+
+   public static final int ROTATE_NONE = 0;
+   public static final int ROTATE_RIGHT = 90;
+   public static final int ROTATE_LEFT = -90;
+   public static final int ROTATE_180 = 180;
+
+   // planes queued for each output file
+   private static final int PLANES_IN_FLIGHT = 2;
+   // a missing plane in the queue of planes to write
+   private static final Object BLANK = new Object();
+   // the end of the queue of planes to write
+   private static final Object END = new Object();
+
+   /**
+    * Receives progress updates, may be called from any of the worker threads
+    */
+   public interface ProgressListener {
+      public void planeDone(int nrDone, int nrTotal);
+   }
+
+   /**
+    * Description of one output file
+    */
+   public static class Job {
+      final int position_;
+      final int channel_;
+      final int frame_;
+      final int rotation_;
+      final File file_;
+
+      /**
+       * @param position - 0-indexed position
+       * @param channel - 0-indexed channel
+       * @param frame - 0-indexed time point
+       * @param rotation - one of the ROTATE_ constants
+       * @param file - output file
+       */
+      public Job(int position, int channel, int frame, int rotation, File file) {
+         position_ = position;
+         channel_ = channel;
+         frame_ = frame;
+         rotation_ = rotation;
+         file_ = file;
+      }
+   }
+
+   private final MMWindow source_;
+   private final double pixelWidth_;
+   private final double pixelHeight_;
+   private final double pixelDepth_;
+   private final String unit_;
+   private final int nrThreads_;
+
+   /**
+    * @param source - Micro-Manager window whose data should be exported
+    * @param pixelWidth - x calibration of the data
+    * @param pixelHeight - y calibration of the data
+    * @param pixelDepth - z step of the data
+    * @param unit - calibration unit
+    * @param nrThreads - number of worker threads, 0 to use all processors
+    */
+   public ExportEngine(MMWindow source, double pixelWidth, double pixelHeight,
+         double pixelDepth, String unit, int nrThreads) {
+      source_ = source;
+      pixelWidth_ = pixelWidth;
+      pixelHeight_ = pixelHeight;
+      pixelDepth_ = pixelDepth;
+      unit_ = unit;
+      nrThreads_ = (nrThreads > 0) ? nrThreads :
+         Runtime.getRuntime().availableProcessors();
+   }
+
+   /**
+    * Runs all jobs and returns when every file has been written
+    * @param jobs - files to write
+    * @param listener - progress listener, may be null
+    * @throws Exception the first error encountered by any of the jobs
+    */
+   public void run(List<Job> jobs, final ProgressListener listener) throws Exception {
+      final JSONObject summary = source_.getSummaryMetaData();
+      final int width = MDUtils.getWidth(summary);
+      final int height = MDUtils.getHeight(summary);
+      final int bytesPerPixel = MDUtils.getBytesPerPixel(summary);
+      if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+         throw new Exception("Can only export 8- and 16-bit grayscale images");
+      }
+      final int nrSlices = source_.getNumberOfSlices();
+      final int nrTotal = jobs.size() * nrSlices;
+      final AtomicInteger nrDone = new AtomicInteger(0);
+
+      // files are written in batches of one file per worker thread, so the
+      // reader never waits for a file that has no worker yet
+      final int batchSize = Math.max(1, Math.min(nrThreads_, jobs.size()));
+      ExecutorService pool = Executors.newFixedThreadPool(batchSize);
+      try {
+         for (int first = 0; first < jobs.size(); first += batchSize) {
+            exportBatch(pool, jobs.subList(first, Math.min(jobs.size(), first + batchSize)),
+                  width, height, bytesPerPixel, nrSlices, nrDone, nrTotal, listener);
+         }
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   private void exportBatch(ExecutorService pool, List<Job> batch,
+         final int width, final int height, final int bytesPerPixel,
+         final int nrSlices, final AtomicInteger nrDone, final int nrTotal,
+         final ProgressListener listener) throws Exception {
+      List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>(batch.size());
+      List<Future<Void>> writers = new ArrayList<Future<Void>>(batch.size());
+      for (final Job job : batch) {
+         final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(PLANES_IN_FLIGHT);
+         queues.add(queue);
+         writers.add(pool.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+               writeStack(job, queue, width, height, bytesPerPixel, nrSlices,
+                     nrDone, nrTotal, listener);
+               return null;
+            }
+         }));
+      }
+      try {
+         for (int s = 0; s < nrSlices; s++) {
+            for (int j = 0; j < batch.size(); j++) {
+               if (Thread.interrupted()) {
+                  throw new InterruptedException();
+               }
+               Job job = batch.get(j);
+               TaggedImage img = source_.getTaggedImage(job.channel_, s, job.frame_, job.position_);
+               // keeps the following planes at their z
+               put(queues.get(j), writers.get(j), img == null ? BLANK : img.pix);
+            }
+         }
+         for (int j = 0; j < batch.size(); j++) {
+            put(queues.get(j), writers.get(j), END);
+         }
+         for (Future<Void> writer : writers) {
+            get(writer);
+         }
+      } finally {
+         for (Future<Void> writer : writers) {
+            writer.cancel(true);
+         }
+      }
+   }
+
+   /**
+    * Queues a plane for a writer, gives up with the writer's error when the
+    * writer stopped
+    */
+   private static void put(BlockingQueue<Object> queue, Future<Void> writer,
+         Object plane) throws Exception {
+      while (!queue.offer(plane, 100, TimeUnit.MILLISECONDS)) {
+         if (writer.isDone()) {
+            get(writer);
+            throw new Exception("Export stopped before all planes were written");
+         }
+      }
+   }
+
+   private static void get(Future<Void> writer) throws Exception {
+      try {
+         writer.get();
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof Exception) {
+            throw (Exception) ex.getCause();
+         }
+         throw ex;
+      }
+   }
+
+   private void writeStack(Job job, BlockingQueue<Object> queue, int width,
+         int height, int bytesPerPixel, int nrSlices, AtomicInteger nrDone,
+         int nrTotal, ProgressListener listener) throws Exception {
+      final boolean swap = (job.rotation_ == ROTATE_RIGHT || job.rotation_ == ROTATE_LEFT);
+      TiffStackWriter writer = new TiffStackWriter(job.file_,
+            swap ? height : width, swap ? width : height,
+            bytesPerPixel, nrSlices,
+            swap ? pixelHeight_ : pixelWidth_,
+            swap ? pixelWidth_ : pixelHeight_,
+            pixelDepth_, unit_);
+      boolean found = false;
+      Object outPixels = null;
+      try {
+         for (Object plane = queue.take(); plane != END; plane = queue.take()) {
+            if (plane == BLANK) {
+               writer.writeBlankPlane();
+            } else {
+               found = true;
+               if (job.rotation_ == ROTATE_NONE) {
+                  writer.writePlane(plane);
+               } else {
+                  // output array is reused for all planes of this stack
+                  if (outPixels == null) {
+                     outPixels = (bytesPerPixel == 1) ? new byte[width * height]
+                           : new short[width * height];
+                  }
+                  rotate(plane, outPixels, width, height, job.rotation_);
+                  writer.writePlane(outPixels);
+               }
+            }
+            if (listener != null) {
+               listener.planeDone(nrDone.incrementAndGet(), nrTotal);
+            }
+         }
+      } finally {
+         writer.close();
+      }
+      if (!found) {
+         job.file_.delete();
+         throw new Exception("No images found for position " + job.position_
+               + ", channel " + job.channel_ + ", frame " + job.frame_);
+      }
+   }
+
+   /**
+    * Rotates a width x height image by a multiple of 90 degrees.  For 90 and
+    * -90 degrees the output is height pixels wide and width pixels high.
+    * @param in - byte[] or short[] input pixels
+    * @param out - array of the same type and size as in
+    * @param width - width of the input
+    * @param height - height of the input
+    * @param rotation - one of the ROTATE_ constants, positive is clockwise
+    */
+   public static void rotate(Object in, Object out, int width, int height, int rotation) {
+      if (in instanceof byte[]) {
+         rotate((byte[]) in, (byte[]) out, width, height, rotation);
+      } else if (in instanceof short[]) {
+         rotate((short[]) in, (short[]) out, width, height, rotation);
+      } else {
+         throw new IllegalArgumentException("Can only export 8- and 16-bit grayscale images");
+      }
+   }
+
+   private static void rotate(byte[] in, byte[] out, int width, int height, int rotation) {
+      switch (rotation) {
+      case ROTATE_RIGHT:
+         // output pixel (x, y) comes from input (y, height - 1 - x)
+         for (int y = 0; y < height; y++) {
+            final int inRow = y * width;
+            final int outX = height - 1 - y;
+            for (int x = 0; x < width; x++) {
+               out[x * height + outX] = in[inRow + x];
+            }
+         }
+         break;
+      case ROTATE_LEFT:
+         // output pixel (x, y) comes from input (width - 1 - y, x)
+         for (int y = 0; y < height; y++) {
+            final int inRow = y * width;
+            for (int x = 0; x < width; x++) {
+               out[(width - 1 - x) * height + y] = in[inRow + x];
+            }
+         }
+         break;
+      case ROTATE_180:
+         final int last = width * height - 1;
+         for (int i = 0; i <= last; i++) {
+            out[last - i] = in[i];
+         }
+         break;
+      default:
+         System.arraycopy(in, 0, out, 0, width * height);
+      }
+   }
+
+   private static void rotate(short[] in, short[] out, int width, int height, int rotation) {
+      switch (rotation) {
+      case ROTATE_RIGHT:
+         for (int y = 0; y < height; y++) {
+            final int inRow = y * width;
+            final int outX = height - 1 - y;
+            for (int x = 0; x < width; x++) {
+               out[x * height + outX] = in[inRow + x];
+            }
+         }
+         break;
+      case ROTATE_LEFT:
+         for (int y = 0; y < height; y++) {
+            final int inRow = y * width;
+            for (int x = 0; x < width; x++) {
+               out[(width - 1 - x) * height + y] = in[inRow + x];
+            }
+         }
+         break;
+      case ROTATE_180:
+         final int last = width * height - 1;
+         for (int i = 0; i <= last; i++) {
+            out[last - i] = in[i];
+         }
+         break;
+      default:
+         System.arraycopy(in, 0, out, 0, width * height);
+      }
+   }
+
+}
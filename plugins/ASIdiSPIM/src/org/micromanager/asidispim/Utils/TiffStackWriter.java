@@ -0,0 +1,254 @@
+package org.micromanager.asidispim.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a grayscale z-stack to a single uncompressed TIFF file one plane at
+ * a time, so that the whole stack never has to be in memory.  Pixel data are
+ * written first and the IFDs are appended when the file is closed.  The
+ * ImageDescription tag uses the ImageJ conventions so that ImageJ, Fiji and
+ * mipav see a calibrated stack.
+ */
+public class TiffStackWriter {
+
+   private static final short TYPE_ASCII = 2;
+   private static final short TYPE_SHORT = 3;
+   private static final short TYPE_LONG = 4;
+   private static final short TYPE_RATIONAL = 5;
+   private static final long MAX_CLASSIC_TIFF_SIZE = 0xffffffffL;
+
+   private final RandomAccessFile raFile_;
+   private final FileChannel channel_;
+   private final int width_;
+   private final int height_;
+   private final int bytesPerPixel_;
+   private final int nrSlices_;
+   private final double pixelWidth_;
+   private final double pixelHeight_;
+   private final double pixelDepth_;
+   private final String unit_;
+   private final ByteBuffer planeBuffer_;
+   private ByteBuffer blankBuffer_ = null;
+   private int nrWritten_ = 0;
+
+   /**
+    * @param file - file to create, will be overwritten if it exists
+    * @param width - width of each plane in pixels
+    * @param height - height of each plane in pixels
+    * @param bytesPerPixel - 1 or 2
+    * @param nrSlices - number of planes that will be written
+    * @param pixelWidth - calibration in x, in units of unit
+    * @param pixelHeight - calibration in y, in units of unit
+    * @param pixelDepth - z step, in units of unit
+    * @param unit - calibration unit, e.g. "micron"
+    * @throws IOException
+    */
+   public TiffStackWriter(File file, int width, int height, int bytesPerPixel,
+         int nrSlices, double pixelWidth, double pixelHeight, double pixelDepth,
+         String unit) throws IOException {
+      if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+         throw new IllegalArgumentException("Only 8- and 16-bit images are supported");
+      }
+      if (nrSlices < 1) {
+         throw new IllegalArgumentException("Stack needs at least one plane");
+      }
+      if (8L + (long) width * height * bytesPerPixel * nrSlices > MAX_CLASSIC_TIFF_SIZE) {
+         throw new IOException("Stack is too large for a single TIFF file");
+      }
+      width_ = width;
+      height_ = height;
+      bytesPerPixel_ = bytesPerPixel;
+      nrSlices_ = nrSlices;
+      pixelWidth_ = pixelWidth;
+      pixelHeight_ = pixelHeight;
+      pixelDepth_ = pixelDepth;
+      unit_ = unit;
+      raFile_ = new RandomAccessFile(file, "rw");
+      raFile_.setLength(0);
+      channel_ = raFile_.getChannel();
+      // 8-bit planes are written straight from the pixel array, 16-bit
+      // planes need one conversion to big-endian bytes
+      planeBuffer_ = (bytesPerPixel == 2)
+            ? ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.BIG_ENDIAN)
+            : null;
+      ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+      header.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(0);
+      header.flip();
+      channel_.write(header, 0);
+      channel_.position(8);
+   }
+
+   /**
+    * Appends a plane to the stack.
+    * @param pixels - byte[] or short[] of width * height pixels
+    * @throws IOException
+    */
+   public void writePlane(Object pixels) throws IOException {
+      if (nrWritten_ >= nrSlices_) {
+         throw new IOException("More planes written than declared");
+      }
+      if (bytesPerPixel_ == 1) {
+         ByteBuffer buffer = ByteBuffer.wrap((byte[]) pixels);
+         while (buffer.hasRemaining()) {
+            channel_.write(buffer);
+         }
+      } else {
+         planeBuffer_.clear();
+         planeBuffer_.asShortBuffer().put((short[]) pixels);
+         planeBuffer_.limit(width_ * height_ * 2);
+         while (planeBuffer_.hasRemaining()) {
+            channel_.write(planeBuffer_);
+         }
+      }
+      nrWritten_++;
+   }
+
+   /**
+    * Appends a plane of zeros to the stack, in place of a missing plane.
+    * @throws IOException
+    */
+   public void writeBlankPlane() throws IOException {
+      if (nrWritten_ >= nrSlices_) {
+         throw new IOException("More planes written than declared");
+      }
+      if (blankBuffer_ == null) {
+         blankBuffer_ = ByteBuffer.allocateDirect(width_ * height_ * bytesPerPixel_);
+      }
+      blankBuffer_.clear();
+      while (blankBuffer_.hasRemaining()) {
+         channel_.write(blankBuffer_);
+      }
+      nrWritten_++;
+   }
+
+   /**
+    * Writes the image directories and closes the file.  Missing planes at
+    * the end (fewer written than declared) are filled with zeros.
+    * @throws IOException
+    */
+   public void close() throws IOException {
+      try {
+         while (nrWritten_ < nrSlices_) {
+            writeBlankPlane();
+         }
+         writeIFDs();
+      } finally {
+         raFile_.close();
+      }
+   }
+
+   private void writeIFDs() throws IOException {
+      final long planeSize = (long) width_ * height_ * bytesPerPixel_;
+      final byte[] description = getDescription();
+      final int nrFirstEntries = 13;
+      final int nrEntries = 12;
+      final long ifdStart = channel_.position() + (channel_.position() % 2);
+      // extra values shared by all IFDs are written right after the first one
+      final long firstIFDSize = 2 + nrFirstEntries * 12 + 4;
+      final long descriptionOffset = ifdStart + firstIFDSize;
+      final long xResOffset = descriptionOffset + description.length + (description.length % 2);
+      final long yResOffset = xResOffset + 8;
+      final long otherIFDsStart = yResOffset + 8;
+      final long ifdSize = 2 + nrEntries * 12 + 4;
+      if (otherIFDsStart + ifdSize * nrSlices_ > MAX_CLASSIC_TIFF_SIZE) {
+         throw new IOException("Stack is too large for a single TIFF file");
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate((int) (otherIFDsStart - ifdStart
+            + ifdSize * Math.max(0, nrSlices_ - 1))).order(ByteOrder.BIG_ENDIAN);
+      for (int slice = 0; slice < nrSlices_; slice++) {
+         final boolean first = (slice == 0);
+         final long nextIFD;
+         if (slice == nrSlices_ - 1) {
+            nextIFD = 0;
+         } else {
+            nextIFD = otherIFDsStart + ifdSize * slice;
+         }
+         buffer.putShort((short) (first ? nrFirstEntries : nrEntries));
+         putEntry(buffer, 254, TYPE_LONG, 1, 0);  // NewSubfileType
+         putEntry(buffer, 256, TYPE_LONG, 1, width_);  // ImageWidth
+         putEntry(buffer, 257, TYPE_LONG, 1, height_);  // ImageLength
+         putShortEntry(buffer, 258, bytesPerPixel_ * 8);  // BitsPerSample
+         putShortEntry(buffer, 262, 1);  // PhotometricInterpretation: black is zero
+         if (first) {
+            putEntry(buffer, 270, TYPE_ASCII, description.length, descriptionOffset);  // ImageDescription
+         }
+         putEntry(buffer, 273, TYPE_LONG, 1, 8 + planeSize * slice);  // StripOffsets
+         putShortEntry(buffer, 277, 1);  // SamplesPerPixel
+         putEntry(buffer, 278, TYPE_LONG, 1, height_);  // RowsPerStrip
+         putEntry(buffer, 279, TYPE_LONG, 1, planeSize);  // StripByteCounts
+         putEntry(buffer, 282, TYPE_RATIONAL, 1, xResOffset);  // XResolution
+         putEntry(buffer, 283, TYPE_RATIONAL, 1, yResOffset);  // YResolution
+         putShortEntry(buffer, 296, 1);  // ResolutionUnit: none, unit is in description
+         buffer.putInt((int) nextIFD);
+         if (first) {
+            buffer.put(description);
+            if (description.length % 2 == 1) {
+               buffer.put((byte) 0);
+            }
+            putRational(buffer, pixelWidth_);
+            putRational(buffer, pixelHeight_);
+         }
+      }
+      buffer.flip();
+      long position = ifdStart;
+      while (buffer.hasRemaining()) {
+         position += channel_.write(buffer, position);
+      }
+
+      ByteBuffer firstIFDOffset = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+      firstIFDOffset.putInt(0, (int) ifdStart);
+      channel_.write(firstIFDOffset, 4);
+   }
+
+   private byte[] getDescription() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("ImageJ=1.49\n");
+      sb.append("images=").append(nrSlices_).append("\n");
+      sb.append("slices=").append(nrSlices_).append("\n");
+      if (unit_ != null && !unit_.isEmpty()) {
+         sb.append("unit=").append(unit_).append("\n");
+      }
+      if (pixelDepth_ > 0) {
+         sb.append("spacing=").append(pixelDepth_).append("\n");
+      }
+      sb.append("loop=false\n");
+      sb.append('\0');
+      try {
+         return sb.toString().getBytes("US-ASCII");
+      } catch (java.io.UnsupportedEncodingException ex) {
+         return sb.toString().getBytes();
+      }
+   }
+
+   private static void putEntry(ByteBuffer buffer, int tag, short type, int count,
+         long value) {
+      buffer.putShort((short) tag);
+      buffer.putShort(type);
+      buffer.putInt(count);
+      buffer.putInt((int) value);
+   }
+
+   private static void putShortEntry(ByteBuffer buffer, int tag, int value) {
+      buffer.putShort((short) tag);
+      buffer.putShort(TYPE_SHORT);
+      buffer.putInt(1);
+      // SHORT values are left-justified in the 4 byte value field
+      buffer.putShort((short) value);
+      buffer.putShort((short) 0);
+   }
+
+   private static void putRational(ByteBuffer buffer, double pixelSize) {
+      // resolution is pixels per unit
+      final int denominator = 1000000;
+      final double resolution = (pixelSize > 0) ? 1.0 / pixelSize : 1.0;
+      buffer.putInt((int) Math.min(Integer.MAX_VALUE, Math.round(resolution * denominator)));
+      buffer.putInt(denominator);
+   }
+
+}
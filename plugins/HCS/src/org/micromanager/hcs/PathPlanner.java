@@ -0,0 +1,350 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           PathPlanner.java
+//PROJECT:        Micro-Manager
+//SUBSYSTEM:      high content screening
+//-----------------------------------------------------------------------------
+
+//COPYRIGHT:      UCSF, 100X Imaging Inc
+
+//LICENSE:        This file is distributed under the LGPL license.
+//                License text is included with the source distribution.
+
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.hcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
+
+/**
+ * Orders the wells and imaging sites produced by SBSPlate.generatePositions()
+ * so that the XY stage spends less time travelling between them.
+ *
+ * Wells stay contiguous (all sites of a well are imaged before moving on),
+ * only the order of the wells and the order of the sites within each well
+ * change.  Travel time is estimated with a trapezoidal velocity profile per
+ * axis, both axes moving at the same time, plus a settling time per move.
+ *
+ * The serpentine strategy only changes the order of the wells, the sites
+ * of each well keep the order in which they were generated (a snake or a
+ * raster pattern, as chosen in the Site Generator).
+ */
+public class PathPlanner {
+
+   public enum Strategy {
+      /** keep the order of the input */
+      PLATE_ORDER("Plate order"),
+      /** rows of wells in alternating direction, sites in grid order */
+      SERPENTINE("Serpentine"),
+      /** nearest neighbour tour improved by 2-opt, shortest distance */
+      SHORTEST_DISTANCE("Shortest distance"),
+      /** nearest neighbour tour improved by 2-opt, shortest stage time */
+      SHORTEST_TIME("Shortest time");
+
+      private final String name_;
+
+      Strategy(String name) {
+         name_ = name;
+      }
+
+      @Override
+      public String toString() {
+         return name_;
+      }
+   }
+
+   public static final double DEFAULT_SPEED = 10000.0; // um/s
+   public static final double DEFAULT_ACCELERATION = 50000.0; // um/s^2
+   public static final double DEFAULT_SETTLE_TIME = 20.0; // ms
+
+   private static final int MAX_2OPT_PASSES = 50;
+
+   private final double speedX_;
+   private final double speedY_;
+   private final double acceleration_;
+   private final double settleTimeMs_;
+
+   public PathPlanner() {
+      this(DEFAULT_SPEED, DEFAULT_SPEED, DEFAULT_ACCELERATION, DEFAULT_SETTLE_TIME);
+   }
+
+   /**
+    * @param speedX maximum speed of the X axis in um/s
+    * @param speedY maximum speed of the Y axis in um/s
+    * @param acceleration acceleration in um/s^2, 0 or less for constant speed
+    * @param settleTimeMs time to wait after each move in ms
+    */
+   public PathPlanner(double speedX, double speedY, double acceleration,
+           double settleTimeMs) {
+      if (speedX <= 0.0 || speedY <= 0.0) {
+         throw new IllegalArgumentException("Stage speed must be positive");
+      }
+      speedX_ = speedX;
+      speedY_ = speedY;
+      acceleration_ = acceleration;
+      settleTimeMs_ = Math.max(0.0, settleTimeMs);
+   }
+
+   /**
+    * Returns the wells in the order in which they should be visited.  The
+    * input is not modified, wells are returned as new WellPositionList
+    * objects sharing the MultiStagePositions of the input.
+    */
+   public WellPositionList[] optimize(WellPositionList[] wells, Strategy strategy) {
+      if (strategy == Strategy.PLATE_ORDER || wells.length == 0) {
+         return wells.clone();
+      }
+
+      // order of the wells
+      List<WellPositionList> wellOrder;
+      if (strategy == Strategy.SERPENTINE) {
+         wellOrder = serpentineWells(wells);
+      } else {
+         double[][] centers = new double[wells.length][];
+         for (int i = 0; i < wells.length; i++) {
+            centers[i] = getCenter(wells[i].getSitePositions());
+         }
+         boolean useTime = (strategy == Strategy.SHORTEST_TIME);
+         int[] tour = shortestPath(centers, 0, useTime);
+         wellOrder = new ArrayList<WellPositionList>(wells.length);
+         for (int idx : tour) {
+            wellOrder.add(wells[idx]);
+         }
+      }
+
+      // order of the sites, each well starts close to where the previous ended
+      WellPositionList[] result = new WellPositionList[wellOrder.size()];
+      double[] last = null;
+      for (int i = 0; i < result.length; i++) {
+         WellPositionList well = wellOrder.get(i);
+         MultiStagePosition[] sites = well.getSitePositions().getPositions();
+         List<MultiStagePosition> ordered;
+         if (strategy == Strategy.SERPENTINE) {
+            ordered = Arrays.asList(sites);
+         } else {
+            ordered = shortestSitePath(sites, last, strategy == Strategy.SHORTEST_TIME);
+         }
+         if (strategy != Strategy.SERPENTINE && last != null && ordered.size() > 1) {
+            MultiStagePosition first = ordered.get(0);
+            MultiStagePosition end = ordered.get(ordered.size() - 1);
+            if (cost(last[0], last[1], end.getX(), end.getY(), true)
+                    < cost(last[0], last[1], first.getX(), first.getY(), true)) {
+               Collections.reverse(ordered);
+            }
+         }
+         PositionList pl = new PositionList();
+         for (MultiStagePosition mps : ordered) {
+            pl.addPosition(mps);
+         }
+         WellPositionList wpl = new WellPositionList();
+         wpl.setLabel(well.getLabel());
+         wpl.setGridCoordinates(well.getRow(), well.getColumn());
+         wpl.setSitePositions(pl);
+         result[i] = wpl;
+         if (!ordered.isEmpty()) {
+            MultiStagePosition end = ordered.get(ordered.size() - 1);
+            last = new double[] {end.getX(), end.getY()};
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Estimated time in ms to move through all sites of all wells in the
+    * given order, starting at the first site.
+    */
+   public double estimateTravelTime(WellPositionList[] wells) {
+      double total = 0.0;
+      boolean first = true;
+      double x = 0.0;
+      double y = 0.0;
+      for (WellPositionList well : wells) {
+         PositionList pl = well.getSitePositions();
+         for (int i = 0; i < pl.getNumberOfPositions(); i++) {
+            MultiStagePosition mps = pl.getPosition(i);
+            if (!first) {
+               total += cost(x, y, mps.getX(), mps.getY(), true);
+            }
+            first = false;
+            x = mps.getX();
+            y = mps.getY();
+         }
+      }
+      return total;
+   }
+
+   /**
+    * Cost of a move, either the stage time in ms or the distance in um.
+    */
+   double cost(double x0, double y0, double x1, double y1, boolean useTime) {
+      double dx = Math.abs(x1 - x0);
+      double dy = Math.abs(y1 - y0);
+      if (!useTime) {
+         return Math.sqrt(dx * dx + dy * dy);
+      }
+      if (dx == 0.0 && dy == 0.0) {
+         return 0.0;
+      }
+      return 1000.0 * Math.max(axisTime(dx, speedX_), axisTime(dy, speedY_))
+              + settleTimeMs_;
+   }
+
+   // time in s for one axis to travel the given distance, starting and
+   // ending at rest
+   private double axisTime(double distance, double speed) {
+      if (distance == 0.0) {
+         return 0.0;
+      }
+      if (acceleration_ <= 0.0) {
+         return distance / speed;
+      }
+      if (distance < speed * speed / acceleration_) {
+         // triangular profile, top speed is never reached
+         return 2.0 * Math.sqrt(distance / acceleration_);
+      }
+      return distance / speed + speed / acceleration_;
+   }
+
+   private static List<WellPositionList> serpentineWells(WellPositionList[] wells) {
+      List<WellPositionList> sorted = new ArrayList<WellPositionList>(Arrays.asList(wells));
+      Collections.sort(sorted, new Comparator<WellPositionList>() {
+         @Override
+         public int compare(WellPositionList a, WellPositionList b) {
+            if (a.getRow() != b.getRow()) {
+               return a.getRow() < b.getRow() ? -1 : 1;
+            }
+            return a.getColumn() < b.getColumn() ? -1 : (a.getColumn() == b.getColumn() ? 0 : 1);
+         }
+      });
+      // reverse every other row of selected wells
+      List<WellPositionList> result = new ArrayList<WellPositionList>(sorted.size());
+      boolean reverse = false;
+      int start = 0;
+      while (start < sorted.size()) {
+         int end = start;
+         while (end < sorted.size() && sorted.get(end).getRow() == sorted.get(start).getRow()) {
+            end++;
+         }
+         List<WellPositionList> row = sorted.subList(start, end);
+         if (reverse) {
+            for (int i = row.size() - 1; i >= 0; i--) {
+               result.add(row.get(i));
+            }
+         } else {
+            result.addAll(row);
+         }
+         reverse = !reverse;
+         start = end;
+      }
+      return result;
+   }
+
+   private List<MultiStagePosition> shortestSitePath(MultiStagePosition[] sites,
+           double[] from, boolean useTime) {
+      List<MultiStagePosition> result = new ArrayList<MultiStagePosition>(sites.length);
+      if (sites.length == 0) {
+         return result;
+      }
+      double[][] points = new double[sites.length][];
+      int start = 0;
+      double best = Double.MAX_VALUE;
+      for (int i = 0; i < sites.length; i++) {
+         points[i] = new double[] {sites[i].getX(), sites[i].getY()};
+         if (from != null) {
+            double c = cost(from[0], from[1], points[i][0], points[i][1], useTime);
+            if (c < best) {
+               best = c;
+               start = i;
+            }
+         }
+      }
+      for (int idx : shortestPath(points, start, useTime)) {
+         result.add(sites[idx]);
+      }
+      return result;
+   }
+
+   /**
+    * Open path through all points beginning at the given start point: a
+    * nearest neighbour tour, improved with 2-opt moves until no move helps.
+    * @return indices of the points in visiting order
+    */
+   int[] shortestPath(double[][] points, int start, boolean useTime) {
+      final int n = points.length;
+      int[] path = new int[n];
+      boolean[] visited = new boolean[n];
+      path[0] = start;
+      visited[start] = true;
+      for (int i = 1; i < n; i++) {
+         double[] p = points[path[i - 1]];
+         int next = -1;
+         double best = Double.MAX_VALUE;
+         for (int j = 0; j < n; j++) {
+            if (!visited[j]) {
+               double c = cost(p[0], p[1], points[j][0], points[j][1], useTime);
+               if (c < best) {
+                  best = c;
+                  next = j;
+               }
+            }
+         }
+         path[i] = next;
+         visited[next] = true;
+      }
+
+      // 2-opt: reversing path[i+1..j] replaces edges (i,i+1) and (j,j+1)
+      // with (i,j) and (i+1,j+1); the end of the path is open
+      boolean improved = true;
+      for (int pass = 0; improved && pass < MAX_2OPT_PASSES; pass++) {
+         improved = false;
+         for (int i = 0; i < n - 2; i++) {
+            double[] a = points[path[i]];
+            double[] b = points[path[i + 1]];
+            double ab = cost(a[0], a[1], b[0], b[1], useTime);
+            for (int j = i + 2; j < n; j++) {
+               double[] c = points[path[j]];
+               double delta = cost(a[0], a[1], c[0], c[1], useTime) - ab;
+               if (j < n - 1) {
+                  double[] d = points[path[j + 1]];
+                  delta += cost(b[0], b[1], d[0], d[1], useTime)
+                          - cost(c[0], c[1], d[0], d[1], useTime);
+               }
+               if (delta < -1e-9) {
+                  for (int lo = i + 1, hi = j; lo < hi; lo++, hi--) {
+                     int tmp = path[lo];
+                     path[lo] = path[hi];
+                     path[hi] = tmp;
+                  }
+                  improved = true;
+                  b = points[path[i + 1]];
+                  ab = cost(a[0], a[1], b[0], b[1], useTime);
+               }
+            }
+         }
+      }
+      return path;
+   }
+
+   private static double[] getCenter(PositionList pl) {
+      int n = pl.getNumberOfPositions();
+      double x = 0.0;
+      double y = 0.0;
+      for (int i = 0; i < n; i++) {
+         x += pl.getPosition(i).getX();
+         y += pl.getPosition(i).getY();
+      }
+      return n > 0 ? new double[] {x / n, y / n} : new double[] {0.0, 0.0};
+   }
+}
@@ -76,6 +76,10 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    private final String SITE_ROWS       = "site_rows";
    private final String SITE_COLS       = "site_cols";
    private final String USE_SNAKE       = "use_snake";
+   private final String PATH_STRATEGY   = "path_strategy";
+   private final String STAGE_SPEED     = "stage_speed"; // um/s
+   private final String STAGE_ACCELERATION = "stage_acceleration"; // um/s^2
+   private final String STAGE_SETTLE_TIME  = "stage_settle_time"; // ms
 
    public static final String menuName = "HCS Site Generator";
    public static final String tooltipDescription =
@@ -87,6 +91,10 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    static private final String INFO = "Not available";
    private final JCheckBox chckbxThreePt_;
    private final JCheckBox useSnake_;
+   private final JComboBox pathCombo_;
+   private final JTextField stageSpeedField_;
+   private final JTextField stageAccelerationField_;
+   private final JTextField stageSettleTimeField_;
    private final ButtonGroup toolButtonGroup = new ButtonGroup();
    private JRadioButton rdbtnSelectWells_;
    private JRadioButton rdbtnMoveStage_;
@@ -157,7 +165,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
     */
    public SiteGenerator() {
       super();
-      setMinimumSize(new Dimension(600, 600));
+      setMinimumSize(new Dimension(600, 680));
       addWindowListener(new WindowAdapter() {
          @Override
          public void windowClosing(final WindowEvent e) {
@@ -332,9 +340,22 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       });
       getContentPane().add(useSnake_);
 
+      pathCombo_ = new JComboBox(PathPlanner.Strategy.values());
+      pathCombo_.setToolTipText("Order in which wells and sites are visited");
+      pathCombo_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            updateSnakeEnabled();
+         }
+      });
+      springLayout.putConstraint(SpringLayout.NORTH, pathCombo_, 377, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.WEST, pathCombo_, 6, SpringLayout.EAST, platePanel_);
+      springLayout.putConstraint(SpringLayout.EAST, pathCombo_, -4, SpringLayout.EAST, getContentPane());
+      getContentPane().add(pathCombo_);
+
       final JButton setPositionListButton = new JButton();
       springLayout.putConstraint(SpringLayout.WEST, setPositionListButton, 6, SpringLayout.EAST, platePanel_);
-      springLayout.putConstraint(SpringLayout.NORTH, setPositionListButton, 380, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, setPositionListButton, 405, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.SOUTH, setPositionListButton, 25, SpringLayout.NORTH, setPositionListButton);
       springLayout.putConstraint(SpringLayout.EAST, setPositionListButton, -4, SpringLayout.EAST, getContentPane());
       setPositionListButton.setIcon(SwingResourceManager.getIcon(SiteGenerator.class, "/org/micromanager/icons/table.png"));
@@ -352,9 +373,9 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       
       final JButton calibrateXyButton = new JButton();
       springLayout.putConstraint(SpringLayout.WEST, calibrateXyButton, 6, SpringLayout.EAST, platePanel_);
-      springLayout.putConstraint(SpringLayout.SOUTH, calibrateXyButton, 435, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.SOUTH, calibrateXyButton, 460, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.EAST, calibrateXyButton, -4, SpringLayout.EAST, getContentPane());
-      springLayout.putConstraint(SpringLayout.NORTH, calibrateXyButton, 410, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, calibrateXyButton, 435, SpringLayout.NORTH, getContentPane());
       calibrateXyButton.setIcon(SwingResourceManager.getIcon(SiteGenerator.class, "/org/micromanager/icons/cog.png"));
       calibrateXyButton.addActionListener(new ActionListener() {
          @Override
@@ -366,7 +387,7 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       getContentPane().add(calibrateXyButton);
 
       chckbxThreePt_ = new JCheckBox("Use 3-Point AF");
-      springLayout.putConstraint(SpringLayout.NORTH, chckbxThreePt_, 440, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, chckbxThreePt_, 465, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.WEST, chckbxThreePt_, 6, SpringLayout.EAST, platePanel_);
       springLayout.putConstraint(SpringLayout.EAST, chckbxThreePt_, -4, SpringLayout.EAST, getContentPane());
       chckbxThreePt_.addActionListener(new ActionListener() {
@@ -379,9 +400,9 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 
       JButton btnMarkPt = new JButton("Mark Point");
       springLayout.putConstraint(SpringLayout.SOUTH, chckbxThreePt_, -6, SpringLayout.NORTH, btnMarkPt);
-      springLayout.putConstraint(SpringLayout.NORTH, btnMarkPt, 470, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, btnMarkPt, 495, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.WEST, btnMarkPt, 6, SpringLayout.EAST, platePanel_);
-      springLayout.putConstraint(SpringLayout.SOUTH, btnMarkPt, 495, SpringLayout.NORTH, getContentPane());
+      springLayout.putConstraint(SpringLayout.SOUTH, btnMarkPt, 520, SpringLayout.NORTH, getContentPane());
       springLayout.putConstraint(SpringLayout.EAST, btnMarkPt, -4, SpringLayout.EAST, getContentPane());
       btnMarkPt.setIcon(SwingResourceManager.getIcon(SiteGenerator.class, "/org/micromanager/icons/plus.png"));
       btnMarkPt.addActionListener(new ActionListener() {
@@ -406,6 +427,36 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
          }
       });
       getContentPane().add(btnSetThreePt);
+
+      final JLabel stageLabel = new JLabel("Stage [um/s, um/s^2, ms]");
+      springLayout.putConstraint(SpringLayout.NORTH, stageLabel, 6, SpringLayout.SOUTH, btnSetThreePt);
+      springLayout.putConstraint(SpringLayout.WEST, stageLabel, 6, SpringLayout.EAST, platePanel_);
+      springLayout.putConstraint(SpringLayout.EAST, stageLabel, -4, SpringLayout.EAST, getContentPane());
+      getContentPane().add(stageLabel);
+
+      stageSpeedField_ = new JTextField();
+      stageSpeedField_.setToolTipText("Maximum speed of the XY stage in um/s, used to estimate travel times");
+      getContentPane().add(stageSpeedField_);
+      springLayout.putConstraint(SpringLayout.NORTH, stageSpeedField_, 2, SpringLayout.SOUTH, stageLabel);
+      springLayout.putConstraint(SpringLayout.SOUTH, stageSpeedField_, 22, SpringLayout.SOUTH, stageLabel);
+      springLayout.putConstraint(SpringLayout.WEST, stageSpeedField_, 6, SpringLayout.EAST, platePanel_);
+      springLayout.putConstraint(SpringLayout.EAST, stageSpeedField_, 56, SpringLayout.EAST, platePanel_);
+
+      stageAccelerationField_ = new JTextField();
+      stageAccelerationField_.setToolTipText("Acceleration of the XY stage in um/s^2, 0 for constant speed");
+      getContentPane().add(stageAccelerationField_);
+      springLayout.putConstraint(SpringLayout.NORTH, stageAccelerationField_, 2, SpringLayout.SOUTH, stageLabel);
+      springLayout.putConstraint(SpringLayout.SOUTH, stageAccelerationField_, 22, SpringLayout.SOUTH, stageLabel);
+      springLayout.putConstraint(SpringLayout.WEST, stageAccelerationField_, 6, SpringLayout.EAST, stageSpeedField_);
+      springLayout.putConstraint(SpringLayout.EAST, stageAccelerationField_, 56, SpringLayout.EAST, stageSpeedField_);
+
+      stageSettleTimeField_ = new JTextField();
+      stageSettleTimeField_.setToolTipText("Time the XY stage needs to settle after each move in ms");
+      getContentPane().add(stageSettleTimeField_);
+      springLayout.putConstraint(SpringLayout.NORTH, stageSettleTimeField_, 2, SpringLayout.SOUTH, stageLabel);
+      springLayout.putConstraint(SpringLayout.SOUTH, stageSettleTimeField_, 22, SpringLayout.SOUTH, stageLabel);
+      springLayout.putConstraint(SpringLayout.WEST, stageSettleTimeField_, 6, SpringLayout.EAST, stageAccelerationField_);
+      springLayout.putConstraint(SpringLayout.EAST, stageSettleTimeField_, 56, SpringLayout.EAST, stageAccelerationField_);
           
       statusLabel_ = new JLabel();
       springLayout.putConstraint(SpringLayout.SOUTH, platePanel_, -6, SpringLayout.NORTH, statusLabel_);
@@ -550,6 +601,10 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       prefs.put(SITE_ROWS, rowsField_.getText());
       prefs.put(SITE_COLS, columnsField_.getText());
       prefs.putBoolean(USE_SNAKE, useSnake_.isSelected());
+      prefs.put(PATH_STRATEGY, ((PathPlanner.Strategy) pathCombo_.getSelectedItem()).name());
+      prefs.put(STAGE_SPEED, stageSpeedField_.getText().replace(',','.'));
+      prefs.put(STAGE_ACCELERATION, stageAccelerationField_.getText().replace(',','.'));
+      prefs.put(STAGE_SETTLE_TIME, stageSettleTimeField_.getText().replace(',','.'));
    }
 
    protected final void loadSettings() {
@@ -561,10 +616,33 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
       rowsField_.setText(prefs.get(SITE_ROWS, "1"));
       columnsField_.setText(prefs.get(SITE_COLS, "1"));
       useSnake_.setSelected(prefs.getBoolean(USE_SNAKE, true));
+      try {
+         pathCombo_.setSelectedItem(PathPlanner.Strategy.valueOf(
+                 prefs.get(PATH_STRATEGY, PathPlanner.Strategy.PLATE_ORDER.name())));
+      } catch (IllegalArgumentException e) {
+         pathCombo_.setSelectedItem(PathPlanner.Strategy.PLATE_ORDER);
+      }
+      stageSpeedField_.setText(prefs.get(STAGE_SPEED, 
+              TextUtils.FMT0.format(PathPlanner.DEFAULT_SPEED)));
+      stageAccelerationField_.setText(prefs.get(STAGE_ACCELERATION, 
+              TextUtils.FMT0.format(PathPlanner.DEFAULT_ACCELERATION)));
+      stageSettleTimeField_.setText(prefs.get(STAGE_SETTLE_TIME, 
+              TextUtils.FMT0.format(PathPlanner.DEFAULT_SETTLE_TIME)));
+      updateSnakeEnabled();
+   }
+
+   /**
+    * The shortest path strategies choose the order of the sites themselves,
+    * the snake pattern only applies to plate order and serpentine
+    */
+   private void updateSnakeEnabled() {
+      PathPlanner.Strategy strategy = (PathPlanner.Strategy) pathCombo_.getSelectedItem();
+      useSnake_.setEnabled(strategy == PathPlanner.Strategy.PLATE_ORDER
+              || strategy == PathPlanner.Strategy.SERPENTINE);
    }
 
    private void setPositionList() {
-      WellPositionList[] wpl = platePanel_.getSelectedWellPositions();
+      WellPositionList[] wpl = orderWells(platePanel_.getSelectedWellPositions());
       PositionList platePl = new PositionList();
       for (WellPositionList wpl1 : wpl) {
          PositionList pl = PositionList.newInstance(wpl1.getSitePositions());
@@ -610,6 +688,38 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 
    }
 
+   /**
+    * Puts the wells and sites in the order selected in the path combo box
+    * and reports the estimated stage travel time
+    */
+   private WellPositionList[] orderWells(WellPositionList[] wells) {
+      PathPlanner.Strategy strategy = (PathPlanner.Strategy) pathCombo_.getSelectedItem();
+      if (strategy == PathPlanner.Strategy.PLATE_ORDER) {
+         return wells;
+      }
+      PathPlanner planner;
+      try {
+         double speed = Double.parseDouble(stageSpeedField_.getText().replace(',','.'));
+         planner = new PathPlanner(speed, speed,
+                 Double.parseDouble(stageAccelerationField_.getText().replace(',','.')),
+                 Double.parseDouble(stageSettleTimeField_.getText().replace(',','.')));
+      } catch (IllegalArgumentException e) {
+         // also catches NumberFormatException
+         displayError("Invalid stage speed, acceleration or settling time, "
+                 + "wells are visited in plate order");
+         return wells;
+      }
+      double before = planner.estimateTravelTime(wells);
+      WellPositionList[] ordered = planner.optimize(wells, strategy);
+      double after = planner.estimateTravelTime(ordered);
+      String msg = "Estimated stage travel time: " + TextUtils.FMT2.format(before / 1000.0)
+              + "s in plate order, " + TextUtils.FMT2.format(after / 1000.0) + "s with "
+              + strategy.toString().toLowerCase();
+      ReportingUtils.logMessage("HCS: " + msg);
+      statusLabel_.setText(msg);
+      return ordered;
+   }
+
    /**
     * Mark current position as one point in the 3-pt set
     */
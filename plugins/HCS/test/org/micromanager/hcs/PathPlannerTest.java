@@ -0,0 +1,164 @@
+package org.micromanager.hcs;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
+
+public class PathPlannerTest {
+   private static final double EPSILON = 1e-9;
+
+   @Test
+   public void distanceCostIsEuclidean() {
+      PathPlanner planner = new PathPlanner();
+      assertEquals(5.0, planner.cost(0.0, 0.0, 3.0, 4.0, false), EPSILON);
+      assertEquals(5.0, planner.cost(3.0, 4.0, 0.0, 0.0, false), EPSILON);
+      assertEquals(0.0, planner.cost(1.0, 1.0, 1.0, 1.0, false), EPSILON);
+   }
+
+   @Test
+   public void timeCostAtConstantSpeed() {
+      // 1 mm/s in x, 0.5 mm/s in y, no acceleration, 10 ms settling
+      PathPlanner planner = new PathPlanner(1000.0, 500.0, 0.0, 10.0);
+      assertEquals(1010.0, planner.cost(0.0, 0.0, 1000.0, 0.0, true), EPSILON);
+      // axes move at the same time, the slower one determines the time
+      assertEquals(2010.0, planner.cost(0.0, 0.0, 1000.0, 1000.0, true), EPSILON);
+      // no settling when the stage does not move
+      assertEquals(0.0, planner.cost(5.0, 5.0, 5.0, 5.0, true), EPSILON);
+   }
+
+   @Test
+   public void timeCostWithAcceleration() {
+      // top speed is reached after 1 s and 500 um
+      PathPlanner planner = new PathPlanner(1000.0, 1000.0, 1000.0, 0.0);
+      // trapezoidal profile: 1 s accelerating and braking, 1 s at top speed
+      assertEquals(3000.0, planner.cost(0.0, 0.0, 2000.0, 0.0, true), EPSILON);
+      // triangular profile: 0.5 s accelerating, 0.5 s braking
+      assertEquals(1000.0, planner.cost(0.0, 0.0, 0.0, 250.0, true), EPSILON);
+   }
+
+   @Test
+   public void shortestPathVisitsPointsOnALineInOrder() {
+      double[][] points = {{0.0, 0.0}, {3.0, 0.0}, {1.0, 0.0}, {2.0, 0.0}};
+      PathPlanner planner = new PathPlanner();
+      assertArrayEquals(new int[] {0, 2, 3, 1}, planner.shortestPath(points, 0, false));
+      assertArrayEquals(new int[] {1, 3, 2, 0}, planner.shortestPath(points, 1, true));
+   }
+
+   @Test
+   public void shortestPathOnAGridHasNoDetours() {
+      // 4 x 4 grid with unit spacing, listed column by column in reverse
+      double[][] points = new double[16][];
+      for (int i = 0; i < 16; i++) {
+         points[i] = new double[] {3 - i / 4, i % 4};
+      }
+      PathPlanner planner = new PathPlanner();
+      int[] path = planner.shortestPath(points, 0, false);
+      Set<Integer> visited = new HashSet<Integer>();
+      double length = 0.0;
+      for (int i = 0; i < path.length; i++) {
+         visited.add(path[i]);
+         if (i > 0) {
+            double[] a = points[path[i - 1]];
+            double[] b = points[path[i]];
+            length += planner.cost(a[0], a[1], b[0], b[1], false);
+         }
+      }
+      assertEquals(16, visited.size());
+      assertEquals(0, path[0]);
+      assertEquals(15.0, length, EPSILON);
+   }
+
+   @Test
+   public void plateOrderKeepsTheInput() {
+      WellPositionList[] wells = makePlate(2, 3, 2);
+      WellPositionList[] ordered = new PathPlanner().optimize(wells,
+              PathPlanner.Strategy.PLATE_ORDER);
+      assertArrayEquals(wells, ordered);
+   }
+
+   @Test
+   public void serpentineReversesEveryOtherRowOfWells() {
+      WellPositionList[] wells = makePlate(2, 3, 2);
+      WellPositionList[] ordered = new PathPlanner().optimize(wells,
+              PathPlanner.Strategy.SERPENTINE);
+      String[] labels = new String[ordered.length];
+      for (int i = 0; i < ordered.length; i++) {
+         labels[i] = ordered[i].getLabel();
+      }
+      assertArrayEquals(new String[] {"A1", "A2", "A3", "B3", "B2", "B1"}, labels);
+      // sites keep the order in which they were generated
+      for (WellPositionList well : ordered) {
+         WellPositionList original = findWell(wells, well.getLabel());
+         assertArrayEquals(original.getSitePositions().getPositions(),
+                 well.getSitePositions().getPositions());
+      }
+   }
+
+   @Test
+   public void shortestTimeKeepsWellsTogetherAndSavesTime() {
+      WellPositionList[] wells = makePlate(3, 4, 3);
+      // visit the wells in a scrambled order
+      WellPositionList[] scrambled = new WellPositionList[wells.length];
+      for (int i = 0; i < wells.length; i++) {
+         scrambled[i] = wells[(i * 5) % wells.length];
+      }
+      PathPlanner planner = new PathPlanner();
+      WellPositionList[] ordered = planner.optimize(scrambled,
+              PathPlanner.Strategy.SHORTEST_TIME);
+      assertEquals(wells.length, ordered.length);
+      Set<String> labels = new HashSet<String>();
+      for (WellPositionList well : ordered) {
+         labels.add(well.getLabel());
+         WellPositionList original = findWell(wells, well.getLabel());
+         assertEquals(new HashSet<MultiStagePosition>(Arrays.asList(
+                 original.getSitePositions().getPositions())),
+                 new HashSet<MultiStagePosition>(Arrays.asList(
+                 well.getSitePositions().getPositions())));
+      }
+      assertEquals(wells.length, labels.size());
+      assertTrue(planner.estimateTravelTime(ordered)
+              < planner.estimateTravelTime(scrambled));
+      assertTrue(planner.estimateTravelTime(ordered)
+              <= planner.estimateTravelTime(wells) + EPSILON);
+   }
+
+   /**
+    * Wells 9 mm apart with a row of sites 1 mm apart in each well
+    */
+   private static WellPositionList[] makePlate(int rows, int columns, int sites) {
+      WellPositionList[] wells = new WellPositionList[rows * columns];
+      for (int row = 0; row < rows; row++) {
+         for (int col = 0; col < columns; col++) {
+            PositionList pl = new PositionList();
+            for (int site = 0; site < sites; site++) {
+               MultiStagePosition mps = new MultiStagePosition("XY",
+                       col * 9000.0 + site * 1000.0, row * 9000.0, "Z", 0.0);
+               mps.setLabel("Site_" + site);
+               pl.addPosition(mps);
+            }
+            WellPositionList well = new WellPositionList();
+            well.setLabel("" + (char) ('A' + row) + (col + 1));
+            well.setGridCoordinates(row, col);
+            well.setSitePositions(pl);
+            wells[row * columns + col] = well;
+         }
+      }
+      return wells;
+   }
+
+   private static WellPositionList findWell(WellPositionList[] wells, String label) {
+      for (WellPositionList well : wells) {
+         if (well.getLabel().equals(label)) {
+            return well;
+         }
+      }
+      fail("No well " + label);
+      return null;
+   }
+}
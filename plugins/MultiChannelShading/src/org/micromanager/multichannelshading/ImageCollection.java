@@ -44,16 +44,21 @@ import org.micromanager.utils.ReportingUtils;
 public class ImageCollection {
    private final HashMap<String, ImagePlusInfo> background_;
    private final HashMap<String, HashMap<String, ImagePlusInfo>> flatFields_;
+   // corrections are derived from the images above, and dropped whenever
+   // those change
+   private final HashMap<String, ShadingCorrection> corrections_;
    
    private final String BASEIMAGE = "base";
    
    public ImageCollection() {
       background_ = new HashMap<String, ImagePlusInfo>();
       flatFields_ = new HashMap<String, HashMap<String, ImagePlusInfo>>();
+      corrections_ = new HashMap<String, ShadingCorrection>();
    }
    
-   public void setBackground(String file) throws MMException {
+   public synchronized void setBackground(String file) throws MMException {
       background_.clear();
+      corrections_.clear();
       if (!file.equals("")) {
          ij.io.Opener opener = new ij.io.Opener();
          ImagePlus ip = opener.openImage(file);
@@ -70,7 +75,7 @@ public class ImageCollection {
       return background_.get(BASEIMAGE);
    }
    
-   public ImagePlusInfo getBackground(int binning, Rectangle roi) 
+   public synchronized ImagePlusInfo getBackground(int binning, Rectangle roi) 
            throws MMException {
       String key = makeKey(binning, roi);
       if (background_.containsKey(key)) {
@@ -100,7 +105,7 @@ public class ImageCollection {
     * @param file
     * @throws MMException 
     */
-   public void addFlatField(String preset, String file) throws MMException {
+   public synchronized void addFlatField(String preset, String file) throws MMException {
       ij.io.Opener opener = new ij.io.Opener();
       ImagePlus ip = opener.openImage(file);
       if (ip == null) {
@@ -163,6 +168,7 @@ public class ImageCollection {
          newFlatField.put(BASEIMAGE, flatField);
          newFlatField.put(makeKey(1, fp.getRoi()), flatField);
          flatFields_.put(preset, newFlatField);
+         corrections_.clear();
       } catch (MMException ex) {
          ReportingUtils.logError("Shading plugin, addFlatField in ImageCollection: " + 
                  ex.getMessage());
@@ -173,15 +179,45 @@ public class ImageCollection {
       return flatFields_.get(preset).get(BASEIMAGE);
    }
 
-   public void clearFlatFields() {
+   public synchronized void clearFlatFields() {
       flatFields_.clear();
+      corrections_.clear();
    }
 
-   public void removeFlatField(String preset) {
+   public synchronized void removeFlatField(String preset) {
       flatFields_.remove(preset);
+      corrections_.clear();
    }
 
-   public ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
+   /**
+    * Returns the combined background and flatfield correction for images
+    * with the given binning and ROI.  Corrections are computed once and
+    * cached until the background or flatfield images change.
+    * @param preset - channel preset whose flatfield should be used, or null
+    *                 for background subtraction only
+    * @param binning
+    * @param roi
+    * @return correction, which does nothing when neither a background nor a
+    *         flatfield image is available
+    * @throws MMException
+    */
+   public synchronized ShadingCorrection getCorrection(String preset,
+           int binning, Rectangle roi) throws MMException {
+      String key = preset + "/" + makeKey(binning, roi);
+      ShadingCorrection correction = corrections_.get(key);
+      if (correction == null) {
+         ImagePlusInfo flatField = null;
+         if (preset != null && flatFields_.containsKey(preset)) {
+            flatField = getFlatField(preset, binning, roi);
+         }
+         correction = new ShadingCorrection(getBackground(binning, roi),
+                 flatField);
+         corrections_.put(key, correction);
+      }
+      return correction;
+   }
+
+   public synchronized ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
            throws MMException {
       String key = makeKey(binning, roi);
       if (flatFields_.get(preset).containsKey(key)) {
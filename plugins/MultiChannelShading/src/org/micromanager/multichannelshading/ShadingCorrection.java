@@ -0,0 +1,210 @@
+package org.micromanager.multichannelshading;
+
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Background subtraction and flatfield correction for one combination of
+ * channel preset, binning and ROI.
+ *
+ * The per-pixel background offsets and flatfield gains are extracted from
+ * the (derived) images once, so that correcting a frame is a single pass
+ * over its pixels into a new pixel array:
+ *    out = min(max, (in - offset) * gain)
+ * Results are identical to subtracting the background with
+ * ImageUtils.subtractImageProcessors and multiplying with the flatfield.
+ *
+ * Instances are immutable and can be used from several threads.
+ */
+public class ShadingCorrection {
+   // Images with more pixels than this are split across processors
+   private static final int MIN_PIXELS_PER_TASK = 1 << 19;
+   private static final int NR_PROCESSORS = Runtime.getRuntime().availableProcessors();
+   private static ExecutorService executor_;
+
+   private final int nrPixels_;
+   private final int[] offsets_;
+   private final float[] gains_;
+
+   /**
+    * @param background - background image, or null
+    * @param flatField - normalized flatfield image (see ImageCollection),
+    *                    or null
+    * @throws MMException when the images differ in size
+    */
+   public ShadingCorrection(ImagePlusInfo background, ImagePlusInfo flatField)
+           throws MMException {
+      int nrPixels = -1;
+      if (background != null) {
+         ImageProcessor proc = background.getProcessor();
+         nrPixels = proc.getWidth() * proc.getHeight();
+         offsets_ = new int[nrPixels];
+         for (int i = 0; i < nrPixels; i++) {
+            // float backgrounds are truncated, as in ImageUtils
+            offsets_[i] = (int) proc.getf(i);
+         }
+      } else {
+         offsets_ = null;
+      }
+      if (flatField != null) {
+         ImageProcessor proc = flatField.getProcessor();
+         int n = proc.getWidth() * proc.getHeight();
+         if (nrPixels >= 0 && n != nrPixels) {
+            throw new MMException("Error: Images are of unequal size");
+         }
+         nrPixels = n;
+         // flatfields are FloatProcessors that are never modified,
+         // so their pixels can be used directly
+         gains_ = (float[]) proc.getPixels();
+      } else {
+         gains_ = null;
+      }
+      nrPixels_ = nrPixels;
+   }
+
+   public boolean hasFlatField() {
+      return gains_ != null;
+   }
+
+   /**
+    * Corrects the given pixels.  The input is left untouched.
+    * @param pixels - byte[] or short[] of the size of the correction images
+    * @param parallel - true to split large images across processors
+    * @return corrected copy of the pixels, or the pixels themselves when
+    *         there are no correction images
+    * @throws MMException when the pixels do not match the correction
+    */
+   public Object apply(final Object pixels, boolean parallel) throws MMException {
+      final int length;
+      if (pixels instanceof byte[]) {
+         length = ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         length = ((short[]) pixels).length;
+      } else {
+         throw new MMException(
+                 "Cannot flatfield correct images other than 8 or 16 bit grayscale");
+      }
+      if (nrPixels_ < 0) {
+         return pixels;
+      }
+      if (length != nrPixels_) {
+         throw new MMException("Error: Images are of unequal size");
+      }
+      final Object result = (pixels instanceof byte[]) ? new byte[length]
+              : new short[length];
+
+      final int nrTasks = parallel ?
+              Math.min(NR_PROCESSORS, length / MIN_PIXELS_PER_TASK) : 1;
+      if (nrTasks <= 1) {
+         apply(pixels, result, 0, length);
+         return result;
+      }
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(nrTasks);
+      for (int i = 0; i < nrTasks; i++) {
+         final int from = (int) ((long) length * i / nrTasks);
+         final int to = (int) ((long) length * (i + 1) / nrTasks);
+         tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+               apply(pixels, result, from, to);
+               return null;
+            }
+         });
+      }
+      try {
+         for (Future<Void> f : getExecutor().invokeAll(tasks)) {
+            f.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new MMException("Interrupted during flatfield correction");
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause(), "Parallel flatfield correction failed");
+         throw new MMException("Flatfield correction failed");
+      }
+      return result;
+   }
+
+   private static synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         executor_ = Executors.newFixedThreadPool(NR_PROCESSORS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Shading correction");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return executor_;
+   }
+
+   private void apply(Object in, Object out, int from, int to) {
+      if (in instanceof byte[]) {
+         apply((byte[]) in, (byte[]) out, from, to);
+      } else {
+         apply((short[]) in, (short[]) out, from, to);
+      }
+   }
+
+   /*
+    * The arithmetic below mirrors the original two-step implementation
+    * (integer background subtraction clamped at zero, followed by a float
+    * multiplication that is clamped and truncated) so that results do not
+    * change.
+    */
+   private void apply(byte[] pix, byte[] out, int from, int to) {
+      final int[] off = offsets_;
+      final float[] gain = gains_;
+      final float max = 2 * Byte.MAX_VALUE;
+      if (off != null && gain != null) {
+         for (int i = from; i < to; i++) {
+            int v = (pix[i] & 0xff) - off[i];
+            float newValue = Math.max(0, v) * gain[i];
+            out[i] = (byte) (newValue > max ? max : newValue);
+         }
+      } else if (gain != null) {
+         for (int i = from; i < to; i++) {
+            float newValue = (pix[i] & 0xff) * gain[i];
+            out[i] = (byte) (newValue > max ? max : newValue);
+         }
+      } else {
+         for (int i = from; i < to; i++) {
+            int v = (pix[i] & 0xff) - off[i];
+            out[i] = (byte) Math.max(0, v);
+         }
+      }
+   }
+
+   private void apply(short[] pix, short[] out, int from, int to) {
+      final int[] off = offsets_;
+      final float[] gain = gains_;
+      final float max = 2 * Short.MAX_VALUE;
+      if (off != null && gain != null) {
+         for (int i = from; i < to; i++) {
+            int v = (pix[i] & 0xffff) - off[i];
+            float newValue = Math.max(0, v) * gain[i] + 0.5f;
+            out[i] = (short) (newValue > max ? max : newValue);
+         }
+      } else if (gain != null) {
+         for (int i = from; i < to; i++) {
+            float newValue = (pix[i] & 0xffff) * gain[i] + 0.5f;
+            out[i] = (short) (newValue > max ? max : newValue);
+         }
+      } else {
+         for (int i = from; i < to; i++) {
+            int v = (pix[i] & 0xffff) - off[i];
+            out[i] = (short) Math.max(0, v);
+         }
+      }
+   }
+}
@@ -22,18 +22,18 @@
 
 package org.micromanager.multichannelshading;
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import java.awt.Rectangle;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
 import mmcorej.Configuration;
 import mmcorej.PropertySetting;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.micromanager.acquisition.TaggedImageQueue;
-import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
+import org.micromanager.api.ParallelTaggedImageProcessor;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -42,10 +42,14 @@ import org.micromanager.utils.ReportingUtils;
  *
  * @author nico
  */
-public class ShadingProcessor extends DataProcessor<TaggedImage> {
+public class ShadingProcessor extends ParallelTaggedImageProcessor {
    private ShadingTableModel shadingTableModel_;
    private MultiChannelShadingMigForm myFrame_;
    private ImageCollection imageCollection_;
+   // property settings of the presets in the shading table, looked up in the
+   // core whenever the table changes rather than for every image
+   private volatile Map<String, Map<String, String>> presetSettings_ =
+           new LinkedHashMap<String, Map<String, String>>();
     
    
    @Override
@@ -57,64 +61,51 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
    }
    
    /**
-    * Polls for tagged images, and processes them if their size and type matches
+    * Processes tagged images if their size and type matches.  Called for 
+    * several images at the same time, so the correction is not split 
+    * further across processors
     * 
     */
    @Override
-   public void process() {
+   protected TaggedImage processImage(TaggedImage nextImage) {
       try {
-         TaggedImage nextImage = poll();
-         if (nextImage != TaggedImageQueue.POISON) {
-            try {
-
-               produce(processTaggedImage(nextImage));
-
-            } catch (Exception ex) {
-               produce(nextImage);
-               myFrame_.setStatus(ex.getMessage());
-               ReportingUtils.logError(ex);
-            }
-         } else {
-            // Must produce Poison (sentinel) image to terminate tagged image pipeline
-            produce(nextImage);
-         }
+         return processTaggedImage(nextImage, false);
       } catch (Exception ex) {
+         myFrame_.setStatus(ex.getMessage());
          ReportingUtils.logError(ex);
+         return nextImage;
       }
    }
 
    /**
-    * Executes flat-fielding
+    * Executes flat-fielding.  The pixels of the input image are corrected 
+    * into a new image, using a correction precomputed for the channel, 
+    * binning and ROI of the image
 
     * @param nextImage - image to be processed
-    * @return - Transformed tagged image, otherwise a copy of the input
+    * @return - Transformed tagged image, otherwise the input
     * @throws JSONException
     * @throws MMScriptException 
     */
    public  TaggedImage processTaggedImage(TaggedImage nextImage) throws 
            JSONException, MMScriptException, Exception {     
+      return processTaggedImage(nextImage, true);
+   }
+
+   private TaggedImage processTaggedImage(TaggedImage nextImage, 
+           boolean parallel) throws JSONException, MMScriptException, Exception {
       myFrame_.setStatus("Processing image...");
-      int width = MDUtils.getWidth(nextImage.tags);
-      int height = MDUtils.getHeight(nextImage.tags);
-      TaggedImage newImage;
       String type = MDUtils.getPixelType(nextImage.tags);
       
-      int ijType = ImagePlus.GRAY8;
-      if (type.equals("GRAY16")) {
-         ijType = ImagePlus.GRAY16;
-      }
-      
       // For now, this plugin only works with 8 or 16 bit grayscale images
-      if (! (ijType == ImagePlus.GRAY8 || ijType == ImagePlus.GRAY16) ) {
+      if (! (type.equals("GRAY8") || type.equals("GRAY16")) ) {
          String msg = "Cannot flatfield correct images other than 8 or 16 bit grayscale";
          myFrame_.setStatus(msg);
          ReportingUtils.logError(msg);
          return nextImage;
       }
       JSONObject newTags = nextImage.tags;
-      TaggedImage bgSubtracted = nextImage;
       
-      // subtract background
       int binning;
       try {
         binning = newTags.getInt("Binning");
@@ -124,106 +115,73 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
           binning = Integer.parseInt(binString.substring(0, 1));
       }
       Rectangle rect = ImageCollection.TagToRectangle(newTags.getString("ROI"));
-      ImagePlusInfo background = imageCollection_.getBackground(binning, 
-              rect);
-      if (background != null) {
-         ImageProcessor imp = ImageUtils.makeProcessor(nextImage);
-         ImageProcessor impBackground = background.getProcessor();
-         imp = ImageUtils.subtractImageProcessors(imp, impBackground);
-         bgSubtracted = new TaggedImage(imp.getPixels(), newTags);
-      }
-      
-      ImagePlusInfo flatFieldImage = getMatchingFlatFieldImage(newTags, binning, rect);       
+      ShadingCorrection correction = imageCollection_.getCorrection(
+              getMatchingPreset(newTags), binning, rect);
 
-      //do not calculate flat field if we don't have a matching channel
-      if (flatFieldImage == null) {
+      TaggedImage newImage = new TaggedImage(
+              correction.apply(nextImage.pix, parallel), newTags);
+
+      //flat field is not applied if we don't have a matching channel
+      if (!correction.hasFlatField()) {
          String msg = "No matching flatfield image found";
          myFrame_.setStatus(msg);
-         return bgSubtracted;
+         return newImage;
       }  
-      
-      if (ijType == ImagePlus.GRAY8) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) bgSubtracted.pix;
-         int length = oldPixels.length;
-         float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
-         for (int index = 0; index < length; index++){
-            float oldPixel = (float)((int)(oldPixels[index]) & 0x000000ff);
-            float newValue = oldPixel * flatFieldPixels[index];
-            if (newValue > 2 * Byte.MAX_VALUE) {
-               newValue = 2 * Byte.MAX_VALUE;
+      myFrame_.setStatus("Done");
+      return newImage;
+   }
+
+   /**
+    * Given the tags of the image currently being processed,
+    * find a matching preset from the channelgroup used by the tablemodel
+    * @param imgTags - image tags in JSON format
+    * @return matching preset, or null if none matches
+    */
+   String getMatchingPreset(JSONObject imgTags) {
+      for (Map.Entry<String, Map<String, String>> preset : 
+              presetSettings_.entrySet()) {
+         boolean presetMatch = true;
+         for (Map.Entry<String, String> setting : preset.getValue().entrySet()) {
+            String key = setting.getKey();
+            // if we do not have a settingMatch, this config can not match
+            // so stop testing this config
+            if (!imgTags.has(key)
+                    || !setting.getValue().equals(imgTags.optString(key))) {
+               presetMatch = false;
+               break;
             }
-            newPixels[index] = (byte) (newValue);
          }
-         newImage = new TaggedImage(newPixels, newTags);
-         myFrame_.setStatus("Done");
-         return newImage;
-       
-      } else if (ijType == ImagePlus.GRAY16) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) bgSubtracted.pix;
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++){
-            // shorts are signed in java so have to do this conversion to get 
-            // the right value
-            float oldPixel = (float)((int)(oldPixels[index]) & 0x0000ffff);
-            float newValue = (oldPixel * 
-                    flatFieldImage.getProcessor().getf(index)) + 0.5f;
-            if (newValue > 2 * Short.MAX_VALUE) {
-               newValue = 2 * Short.MAX_VALUE;
-            }
-            newPixels[index] = (short) newValue;
+         if (presetMatch) {
+            return preset.getKey();
          }
-         newImage = new TaggedImage(newPixels, newTags);
-         myFrame_.setStatus("Done");
-         return newImage;         
-         
-      } 
+      }
       
-      return nextImage;
-     
+      return null;
    }
+   
    /**
-    * Given the tags of the image currently being processed,
-    * find a matching preset from the channelgroup used by the tablemodel
-    * @param imgTags - image tags in JSON format
-    * @return matching flat field image
+    * Reads the property settings of the presets used in the shading table
+    * from the core
     */
-   ImagePlusInfo getMatchingFlatFieldImage(JSONObject imgTags, int binning, 
-           Rectangle rect) {
+   private void updatePresetSettings() {
       String channelGroup = shadingTableModel_.getChannelGroup();
-      String[] presets = shadingTableModel_.getUsedPresets();
-      for (String preset : presets) {
+      Map<String, Map<String, String>> presetSettings = 
+              new LinkedHashMap<String, Map<String, String>>();
+      for (String preset : shadingTableModel_.getUsedPresets()) {
          try {
             Configuration config = gui_.getMMCore().getConfigData(
                     channelGroup, preset);
-            boolean presetMatch = true;
-            for (int i = 0; i < config.size() && presetMatch; i++) {
-               boolean settingMatch = false;
+            Map<String, String> settings = new HashMap<String, String>();
+            for (int i = 0; i < config.size(); i++) {
                PropertySetting ps = config.getSetting(i);
-               String key = ps.getKey();
-               String value = ps.getPropertyValue();
-               Iterator<String> tagIterator = imgTags.keys();
-               while (tagIterator.hasNext() && !settingMatch) {
-                  String tagKey = tagIterator.next();
-                  String tagValue = imgTags.optString(tagKey);
-                  if (key.equals(tagKey) && value.equals(tagValue)) {
-                     settingMatch = true;
-                  }
-               }
-               // if we do not have a settingMatch, this config can not match
-               // so stop testing this config
-               presetMatch = settingMatch;
-            }
-            if (presetMatch) {
-               return imageCollection_.getFlatField(preset, binning, rect);
+               settings.put(ps.getKey(), ps.getPropertyValue());
             }
+            presetSettings.put(preset, settings);
          } catch (Exception ex) {
             ReportingUtils.logError(ex, "Exception in tag matching");
          }
       }
-      
-      return null;
+      presetSettings_ = presetSettings;
    }
    
    
@@ -233,6 +191,13 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
          imageCollection_ = new ImageCollection();
          myFrame_ = new MultiChannelShadingMigForm(this, gui_);
          shadingTableModel_ = myFrame_.getShadingTableModel();
+         shadingTableModel_.addTableModelListener(new TableModelListener() {
+            @Override
+            public void tableChanged(TableModelEvent e) {
+               updatePresetSettings();
+            }
+         });
+         updatePresetSettings();
          gui_.addMMBackgroundListener(myFrame_);
       }
       myFrame_.setVisible(true);
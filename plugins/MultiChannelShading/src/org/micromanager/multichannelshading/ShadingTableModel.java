@@ -119,6 +119,7 @@ public class ShadingTableModel extends AbstractTableModel {
             updateFlatFieldImage(row);
             break;
       }     
+      fireTableCellUpdated(row, column);
    }
    
    public void setChannelGroup(String newGroup) {
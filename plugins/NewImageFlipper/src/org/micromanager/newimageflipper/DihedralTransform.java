@@ -0,0 +1,225 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DihedralTransform.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.newimageflipper;
+
+import org.micromanager.newimageflipper.NewImageFlippingProcessor.Rotation;
+
+/**
+ * One of the eight combinations of mirroring and rotating by a multiple of
+ * 90 degrees, applied in a single pass.
+ *
+ * The result is the same as ImageProcessor.flipHorizontal() (if mirrored)
+ * followed by the clockwise rotation.  Any of these maps the index of an
+ * output pixel linearly onto the index of its input pixel:
+ *    in[origin + x * stepX + y * stepY] goes to out[y * outputWidth + x]
+ * so only origin and steps depend on the orientation.  Orientations that
+ * transpose the image walk through the input in columns, and are done in
+ * square blocks so that the input rows touched stay in the cache.
+ */
+public class DihedralTransform {
+   private static final int BLOCK_SIZE = 64;
+
+   private final int outputWidth_;
+   private final int outputHeight_;
+   private final int origin_;
+   private final int stepX_;
+   private final int stepY_;
+   private final boolean identity_;
+
+   /**
+    * @param mirror - whether to mirror (flip left-right) first
+    * @param rotation - clockwise rotation applied after mirroring
+    * @param width - width of the input images
+    * @param height - height of the input images
+    */
+   public DihedralTransform(boolean mirror, Rotation rotation, int width,
+           int height) {
+      final int lastRow = (height - 1) * width;
+      final int lastColumn = width - 1;
+      boolean transpose = (rotation == Rotation.R90 || rotation == Rotation.R270);
+      outputWidth_ = transpose ? height : width;
+      outputHeight_ = transpose ? width : height;
+      identity_ = !mirror && rotation == Rotation.R0;
+      switch (rotation) {
+         case R90:
+            origin_ = lastRow + (mirror ? lastColumn : 0);
+            stepX_ = -width;
+            stepY_ = mirror ? -1 : 1;
+            break;
+         case R180:
+            origin_ = lastRow + (mirror ? 0 : lastColumn);
+            stepX_ = mirror ? 1 : -1;
+            stepY_ = -width;
+            break;
+         case R270:
+            origin_ = mirror ? 0 : lastColumn;
+            stepX_ = width;
+            stepY_ = mirror ? 1 : -1;
+            break;
+         default:
+            origin_ = mirror ? lastColumn : 0;
+            stepX_ = mirror ? -1 : 1;
+            stepY_ = width;
+      }
+   }
+
+   public int getOutputWidth() {
+      return outputWidth_;
+   }
+
+   public int getOutputHeight() {
+      return outputHeight_;
+   }
+
+   /**
+    * @return true when the output equals the input
+    */
+   public boolean isIdentity() {
+      return identity_;
+   }
+
+   /**
+    * Writes the transformed input into out.
+    * @param in - byte[], short[], int[] or float[] input pixels
+    * @param out - array of the same type and size, not the input itself
+    */
+   public void apply(Object in, Object out) {
+      if (in instanceof byte[]) {
+         apply((byte[]) in, (byte[]) out);
+      } else if (in instanceof short[]) {
+         apply((short[]) in, (short[]) out);
+      } else if (in instanceof int[]) {
+         apply((int[]) in, (int[]) out);
+      } else if (in instanceof float[]) {
+         apply((float[]) in, (float[]) out);
+      } else {
+         throw new IllegalArgumentException("Unsupported pixel type");
+      }
+   }
+
+   /**
+    * Returns a new array with the transformed input.
+    * @param in - byte[], short[], int[] or float[] input pixels
+    */
+   public Object apply(Object in) {
+      Object out = java.lang.reflect.Array.newInstance(
+              in.getClass().getComponentType(), outputWidth_ * outputHeight_);
+      apply(in, out);
+      return out;
+   }
+
+   /*
+    * The four loops below differ only in the array type.
+    */
+   private void apply(byte[] in, byte[] out) {
+      if (stepX_ == 1) {
+         for (int y = 0; y < outputHeight_; y++) {
+            System.arraycopy(in, origin_ + y * stepY_, out, y * outputWidth_, outputWidth_);
+         }
+         return;
+      }
+      final int block = (stepX_ == -1) ? outputWidth_ : BLOCK_SIZE;
+      for (int by = 0; by < outputHeight_; by += BLOCK_SIZE) {
+         final int yEnd = Math.min(by + BLOCK_SIZE, outputHeight_);
+         for (int bx = 0; bx < outputWidth_; bx += block) {
+            final int xEnd = Math.min(bx + block, outputWidth_);
+            for (int y = by; y < yEnd; y++) {
+               int src = origin_ + y * stepY_ + bx * stepX_;
+               for (int dst = y * outputWidth_ + bx, end = y * outputWidth_ + xEnd;
+                       dst < end; dst++) {
+                  out[dst] = in[src];
+                  src += stepX_;
+               }
+            }
+         }
+      }
+   }
+
+   private void apply(short[] in, short[] out) {
+      if (stepX_ == 1) {
+         for (int y = 0; y < outputHeight_; y++) {
+            System.arraycopy(in, origin_ + y * stepY_, out, y * outputWidth_, outputWidth_);
+         }
+         return;
+      }
+      final int block = (stepX_ == -1) ? outputWidth_ : BLOCK_SIZE;
+      for (int by = 0; by < outputHeight_; by += BLOCK_SIZE) {
+         final int yEnd = Math.min(by + BLOCK_SIZE, outputHeight_);
+         for (int bx = 0; bx < outputWidth_; bx += block) {
+            final int xEnd = Math.min(bx + block, outputWidth_);
+            for (int y = by; y < yEnd; y++) {
+               int src = origin_ + y * stepY_ + bx * stepX_;
+               for (int dst = y * outputWidth_ + bx, end = y * outputWidth_ + xEnd;
+                       dst < end; dst++) {
+                  out[dst] = in[src];
+                  src += stepX_;
+               }
+            }
+         }
+      }
+   }
+
+   private void apply(int[] in, int[] out) {
+      if (stepX_ == 1) {
+         for (int y = 0; y < outputHeight_; y++) {
+            System.arraycopy(in, origin_ + y * stepY_, out, y * outputWidth_, outputWidth_);
+         }
+         return;
+      }
+      final int block = (stepX_ == -1) ? outputWidth_ : BLOCK_SIZE;
+      for (int by = 0; by < outputHeight_; by += BLOCK_SIZE) {
+         final int yEnd = Math.min(by + BLOCK_SIZE, outputHeight_);
+         for (int bx = 0; bx < outputWidth_; bx += block) {
+            final int xEnd = Math.min(bx + block, outputWidth_);
+            for (int y = by; y < yEnd; y++) {
+               int src = origin_ + y * stepY_ + bx * stepX_;
+               for (int dst = y * outputWidth_ + bx, end = y * outputWidth_ + xEnd;
+                       dst < end; dst++) {
+                  out[dst] = in[src];
+                  src += stepX_;
+               }
+            }
+         }
+      }
+   }
+
+   private void apply(float[] in, float[] out) {
+      if (stepX_ == 1) {
+         for (int y = 0; y < outputHeight_; y++) {
+            System.arraycopy(in, origin_ + y * stepY_, out, y * outputWidth_, outputWidth_);
+         }
+         return;
+      }
+      final int block = (stepX_ == -1) ? outputWidth_ : BLOCK_SIZE;
+      for (int by = 0; by < outputHeight_; by += BLOCK_SIZE) {
+         final int yEnd = Math.min(by + BLOCK_SIZE, outputHeight_);
+         for (int bx = 0; bx < outputWidth_; bx += block) {
+            final int xEnd = Math.min(bx + block, outputWidth_);
+            for (int y = by; y < yEnd; y++) {
+               int src = origin_ + y * stepY_ + bx * stepX_;
+               for (int dst = y * outputWidth_ + bx, end = y * outputWidth_ + xEnd;
+                       dst < end; dst++) {
+                  out[dst] = in[src];
+                  src += stepX_;
+               }
+            }
+         }
+      }
+   }
+}
@@ -20,69 +20,53 @@
 //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
 package org.micromanager.newimageflipper;
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
-import org.micromanager.acquisition.TaggedImageQueue;
-import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
+import org.micromanager.api.ParallelTaggedImageProcessor;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
-public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
+public class NewImageFlippingProcessor extends ParallelTaggedImageProcessor {
 
    static public enum Rotation {
 
       R0, R90, R180, R270
    }
-   String camera_;
-   boolean isMirrored_;
-   Rotation rotation_;
+   volatile String camera_;
+   volatile boolean isMirrored_;
+   volatile Rotation rotation_;
    NewImageFlipperControls controls_;
 
    /**
-    * Polls for tagged images, and processes them if they are from the selected 
-    * camera.
+    * Processes tagged images if they are from the selected camera.
+    * Called for several images at the same time.  Images that can not be
+    * transformed are passed on unchanged.
     * 
     */
    @Override
-   public void process() {
+   protected TaggedImage processImage(TaggedImage nextImage) {
       try {
-         TaggedImage nextImage = poll();
-         if (nextImage != TaggedImageQueue.POISON) {
-            try {
-               String camera = nextImage.tags.getString("Core-Camera");
-               if (!camera.equals(camera_)) {
-                  if (nextImage.tags.has("Camera")) {
-                     camera = nextImage.tags.getString("Camera");
-                  }
-               }
-               if (!camera.equals(camera_)) {
-                  produce(nextImage);
-                  return;
-
-               }
-
-               produce(proccessTaggedImage(nextImage, isMirrored_,
-                       rotation_));
-
-            } catch (JSONException ex) {
-               produce(TaggedImageQueue.POISON);
-               ReportingUtils.logError(ex);
-            } catch (MMScriptException ex) {
-               produce(TaggedImageQueue.POISON);
-               ReportingUtils.logError(ex);
+         String camera = nextImage.tags.getString("Core-Camera");
+         if (!camera.equals(camera_)) {
+            if (nextImage.tags.has("Camera")) {
+               camera = nextImage.tags.getString("Camera");
             }
-         } else {
-            // Must produce Poison (sentinel) image to terminate tagged image pipeline
-            produce(nextImage);
          }
-      } catch (Exception ex) {
+         if (!camera.equals(camera_)) {
+            return nextImage;
+         }
+
+         return proccessTaggedImage(nextImage, isMirrored_, rotation_);
+
+      } catch (JSONException ex) {
          ReportingUtils.logError(ex);
+         return nextImage;
+      } catch (MMScriptException ex) {
+         ReportingUtils.logError(ex);
+         return nextImage;
       }
    }
 
@@ -93,7 +77,8 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
     * @param nextImage - TaggedImage to be transformed
     * @param mirror - Whether or not to mirror
     * @param rotation - Rotation (R0, R90, R180, R270)
-    * @return - Transformed tagged image, otherwise a copy of the input
+    * @return - Transformed tagged image with new tags; the input image is
+    *           not modified
     * @throws JSONException
     * @throws MMScriptException 
     */
@@ -110,47 +95,39 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
          throw new MMScriptException("NewImageFlipper: Flipping would produce"
                  + " image of different size which can not be handled by Micro-Manager");
       }
-      
-      
-      String type = MDUtils.getPixelType(nextImage.tags);
-      int ijType = ImagePlus.GRAY8;
-      if (type.equals("GRAY16")) {
-         ijType = ImagePlus.GRAY16;
-      }
 
-      ImageProcessor proc = ImageUtils.makeProcessor(ijType, width, height, nextImage.pix);
-
-      if (mirror) {
-         proc.flipHorizontal();
-      }
+      DihedralTransform transform = new DihedralTransform(mirror, rotation, 
+              width, height);
       int rotationTag = 0;
       if (rotation == Rotation.R90) {
-         proc = proc.rotateRight();
          rotationTag = 90;
-      }
-      if (rotation == Rotation.R180) {
-         proc = proc.rotateRight();
-         proc = proc.rotateRight();
+      } else if (rotation == Rotation.R180) {
          rotationTag = 180;
-      }
-      if (rotation == Rotation.R270) {
-         proc = proc.rotateLeft();
+      } else if (rotation == Rotation.R270) {
          rotationTag = 270;
       }
-      JSONObject newTags = nextImage.tags;
+      Object pixels = nextImage.pix;
+      if (!transform.isIdentity() 
+              && java.lang.reflect.Array.getLength(pixels) != width * height) {
+         throw new IllegalArgumentException(
+                 "NewImageFlipper: Can only transform grayscale images");
+      }
+
+      // the input tags may still be used upstream, change a copy
+      JSONObject newTags = MDUtils.copy(nextImage.tags);
+      if (newTags == null) {
+         throw new JSONException("NewImageFlipper: Failed to copy image metadata");
+      }
       newTags.put("ImageFlipper-Rotation", rotationTag);
       newTags.put("ImageFlipper-Mirror", mirror ? "On" : "Off");
-      
-      // make sure that the produced image has the same width and height as the 
-      // original.
-      if ( (width != proc.getWidth()) || (height != proc.getHeight()) ) { 
-         throw new MMScriptException("NewImageFlipper: Flipping would produce"
-                 + " image of different size which can not be handled by Micro-Manager");
-      }
-      MDUtils.setWidth(newTags, proc.getWidth()); 
-      MDUtils.setHeight(newTags, proc.getHeight());
+      MDUtils.setWidth(newTags, transform.getOutputWidth()); 
+      MDUtils.setHeight(newTags, transform.getOutputHeight());
 
-      return new TaggedImage(proc.getPixels(), newTags);
+      if (transform.isIdentity()) {
+         // the pixels are passed on untouched
+         return new TaggedImage(pixels, newTags);
+      }
+      return new TaggedImage(transform.apply(pixels), newTags);
    }
 
    /**
@@ -248,6 +248,7 @@ public class Hub {
       if (zoomLevel_ <= -numZoomLevels_) {
          zoomLevel_ = -numZoomLevels_ + 1;
       }
+      cache_.setDisplayedLevel(zoomLevel_);
 
       if (zoomLevel_ != originalZoomLevel) {
          if (zoomLevel_ > originalZoomLevel) {
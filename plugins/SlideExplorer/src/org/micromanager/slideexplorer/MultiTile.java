@@ -1,12 +1,7 @@
 package org.micromanager.slideexplorer;
 
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import org.micromanager.utils.ImageUtils;
 
@@ -16,14 +11,20 @@ public class MultiTile {
     int type_;
     int width_;
     int height_;
-    String fileName_ = null;
+    final Point3D idx_;
+    final TileFile tileFile_;
+    // true when the tile file holds the current pixels of this tile
     boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
+    // number of users that need the pixels in memory, guarded by the
+    // MultiTileCache
+    int pins_ = 0;
 
-    MultiTile(int type, int width, int height) {
+    MultiTile(Point3D idx, int type, int width, int height, TileFile tileFile) {
+        idx_ = idx;
         type_ = type;
         width_ = width;
         height_ = height;
+        tileFile_ = tileFile;
     }
 
     public synchronized ImageProcessor getImage() {
@@ -45,6 +46,7 @@ public class MultiTile {
     public synchronized void setImage(ImageProcessor proc) {
         getImageReady();
         proc_.insert(proc, 0, 0);
+        cached_ = false;
     }
 
     private void createCleanImage() {
@@ -60,30 +62,23 @@ public class MultiTile {
         cached_ = false;
     }
 
+    /*
+     * Releases the pixels.  Modified tiles are queued for writing to the
+     * tile file, this does not wait for the disk.
+     */
     public synchronized void dropFromMemory() {
-        if (!cached_) {
-            cacheOnDisk();
+        if (!cached_ && proc_ != null) {
+            tileFile_.write(idx_, proc_.getPixels());
+            cached_ = true;
         }
 
         proc_ = null;
     }
 
-    private void cacheOnDisk() {
-        if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
-            }
-            fs.saveAsTiff(fileName_);
-            cached_ = true;
-        }
-    }
-
     private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
+        Object pixels = tileFile_.read(idx_);
+        if (pixels != null) {
+            proc_ = ImageUtils.makeProcessor(type_, width_, height_, pixels);
         } else { // Somehow the image got lost.
             proc_ = null;
             cached_ = false;
@@ -94,21 +89,4 @@ public class MultiTile {
     public String toString() {
         return "Tile";
     }
-    private static Random rand = null;
-
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
-        }
-        return rand.nextLong();
-    }
-
-    public void wipeFromDisk() {
-        if (fileName_ != null) {
-            File file = new File(fileName_);
-            if (file.exists()) {
-                file.delete();
-            }
-        }
-    }
 }
@@ -4,43 +4,122 @@ import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
+/*
+ * Pyramid of multitiles.  For every zoom level the most recently used tiles
+ * are kept in memory, up to a byte budget per level; the others live in a
+ * TileFile on disk.  Tiles whose pixels are in use are pinned, so that they
+ * are not dropped from memory while another thread works on them.
+ *
+ * New tiles are propagated right away only down to the zoom level on
+ * screen.  Coarser levels are updated in batches on background threads:
+ * parents are marked dirty, and every dirty parent is recomputed once from
+ * its four children, however many of them changed in the meantime.
+ */
 public class MultiTileCache {
 	
+	private static final long MAX_BUDGET_PER_LEVEL = 64L * 1024 * 1024;
+	// dirty tiles are collected for this long before a batch runs
+	private static final int BATCH_DELAY_MS = 100;
+	
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
 	private int type_ = -1;
+	private final long budgetPerLevel_;
+	private TileFile tileFile_;
+	private volatile int displayedLevel_ = 0;
+	
+	// tiles that need to be recomputed from their children, per zoom level
+	private final TreeMap<Integer,LinkedHashSet<Point3D>> dirtyTiles_ =
+			new TreeMap<Integer,LinkedHashSet<Point3D>>();
+	private boolean batchScheduled_ = false;
+	// held while dirty tiles are recomputed
+	private final Object propagationLock_ = new Object();
+	// shared by all caches, Hub creates a new cache for every session
+	private static final ScheduledExecutorService batchScheduler_ =
+			Executors.newSingleThreadScheduledExecutor(daemonThreads());
+	private static final ExecutorService propagationPool_ =
+			Executors.newFixedThreadPool(
+					Runtime.getRuntime().availableProcessors(), daemonThreads());
 	
 	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
+	// tiles in memory for each zoom level, least recently used first
+	protected HashMap<Integer,LinkedHashMap<Point3D,MultiTile>> residentTiles_ =
+			new HashMap<Integer,LinkedHashMap<Point3D,MultiTile>>();
 	
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
-
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+		budgetPerLevel_ = Math.min(MAX_BUDGET_PER_LEVEL,
+				Runtime.getRuntime().maxMemory() / (4 * Math.max(1, zoomLevels)));
+	}
+	
+	private static ThreadFactory daemonThreads() {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SlideExplorer pyramid");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	/*
+	 * Zoom level on screen (0 or negative).  Tiles down to this level are
+	 * updated before addImage returns.
+	 */
+	public void setDisplayedLevel(int level) {
+		displayedLevel_ = level;
 	}
 	
 	public void addImage(Point idx, ImageProcessor proc) {
-		if (type_ == -1) {
-			type_ = ImageUtils.getImageProcessorType(proc);
+		synchronized (this) {
+			if (type_ == -1) {
+				type_ = ImageUtils.getImageProcessorType(proc);
+			}
 		}
 		
-		MultiTile tile = getTile(idx);
-		tile.setImage(proc);
-		propagateTile(idx, tile);
+		MultiTile tile = pinMultiTile(new Point3D(idx, 0));
+		try {
+			tile.setImage(proc);
+			propagateTile(idx, tile);
+		} finally {
+			unpinMultiTile(tile);
+		}
 	}
 	
 	public ImageProcessor getImage(Point3D multiTileIndex) {
-		return getMultiTile(multiTileIndex).getImage();
+		if (hasDirtyTiles(multiTileIndex.k)) {
+			// e.g. after zooming out, bring the requested level up to date
+			propagateDirtyTiles(multiTileIndex.k);
+		}
+		MultiTile tile = pinMultiTile(multiTileIndex);
+		try {
+			return tile.getImage();
+		} finally {
+			unpinMultiTile(tile);
+		}
 	}
 	
 	public boolean hasImage(Point p) {
@@ -48,7 +127,13 @@ public class MultiTileCache {
 	}
 	
 	public boolean hasImage(Point3D p) {
-		return allTiles_.containsKey(p);
+		if (allTiles_.containsKey(p)) {
+			return true;
+		}
+		synchronized (dirtyTiles_) {
+			LinkedHashSet<Point3D> dirty = dirtyTiles_.get(p.k);
+			return dirty != null && dirty.contains(p);
+		}
 	}
 		
 	protected void propagateTile(Point idx, MultiTile multiTile) {
@@ -56,14 +141,139 @@ public class MultiTileCache {
 	}
 	
 	protected void propagateTile(Point3D idx, MultiTile multiTile) {
+		final int displayedLevel = displayedLevel_;
+		// the tile that was just updated stays pinned while it is copied
+		// into its parent
+		MultiTile pinned = null;
+		try {
+			while (idx.k>minZoomLevel_ && idx.k>displayedLevel) {
+				Point3D pidx = getParentIndex(idx);
+				Point pquad = getParentQuadrant(idx);
+				MultiTile parentTile = pinMultiTile(pidx);
+				try {
+					ImageProcessor proc = multiTile.getImage();
+					parentTile.insertQuadrantImage(pquad, proc);
+				} finally {
+					if (pinned != null) {
+						unpinMultiTile(pinned);
+					}
+					pinned = parentTile;
+				}
+				idx = pidx;
+				multiTile = parentTile;
+			}
+		} finally {
+			if (pinned != null) {
+				unpinMultiTile(pinned);
+			}
+		}
 		if (idx.k>minZoomLevel_) {
-			Point3D pidx = getParentIndex(idx);
-			Point pquad = getParentQuadrant(idx);
-			MultiTile parentTile = getMultiTile(pidx);
-			
-			ImageProcessor proc = multiTile.getImage();
-			parentTile.insertQuadrantImage(pquad, proc);
-			propagateTile(pidx, parentTile);
+			markDirty(getParentIndex(idx));
+			scheduleBatch();
+		}
+	}
+	
+	private void markDirty(Point3D idx) {
+		synchronized (dirtyTiles_) {
+			LinkedHashSet<Point3D> dirty = dirtyTiles_.get(idx.k);
+			if (dirty == null) {
+				dirty = new LinkedHashSet<Point3D>();
+				dirtyTiles_.put(idx.k, dirty);
+			}
+			dirty.add(idx);
+		}
+	}
+	
+	/*
+	 * True if tiles at the given level or any finer level are waiting to be
+	 * recomputed.
+	 */
+	private boolean hasDirtyTiles(int level) {
+		synchronized (dirtyTiles_) {
+			return !dirtyTiles_.tailMap(level).isEmpty();
+		}
+	}
+	
+	private void scheduleBatch() {
+		synchronized (dirtyTiles_) {
+			if (batchScheduled_) {
+				return;
+			}
+			batchScheduled_ = true;
+		}
+		batchScheduler_.schedule(new Runnable() {
+			public void run() {
+				synchronized (dirtyTiles_) {
+					batchScheduled_ = false;
+				}
+				propagateDirtyTiles(minZoomLevel_);
+			}
+		}, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/*
+	 * Recomputes dirty tiles level by level, from the finest level down to
+	 * (and including) toLevel.  Tiles of one level are recomputed in
+	 * parallel, each marks its parent dirty for the next level.
+	 */
+	private void propagateDirtyTiles(int toLevel) {
+		synchronized (propagationLock_) {
+			for (int k = -1; k >= toLevel; k--) {
+				List<Point3D> batch;
+				synchronized (dirtyTiles_) {
+					LinkedHashSet<Point3D> dirty = dirtyTiles_.remove(k);
+					if (dirty == null) {
+						continue;
+					}
+					batch = new ArrayList<Point3D>(dirty);
+				}
+				List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(batch.size());
+				for (final Point3D idx : batch) {
+					tasks.add(new Callable<Object>() {
+						public Object call() {
+							recomputeFromChildren(idx);
+							return null;
+						}
+					});
+				}
+				try {
+					for (Future<Object> f : propagationPool_.invokeAll(tasks)) {
+						try {
+							f.get();
+						} catch (ExecutionException e) {
+							ReportingUtils.logError(e.getCause());
+						}
+					}
+				} catch (InterruptedException e) {
+					ReportingUtils.logError(e);
+					return;
+				}
+				if (k>minZoomLevel_) {
+					for (Point3D idx : batch) {
+						markDirty(getParentIndex(idx));
+					}
+				}
+			}
+		}
+	}
+	
+	private void recomputeFromChildren(Point3D idx) {
+		MultiTile tile = pinMultiTile(idx);
+		try {
+			for (int q = 0; q < 4; q++) {
+				Point quad = new Point(q & 1, q >> 1);
+				Point3D cidx = new Point3D(2*idx.i + quad.x, 2*idx.j + quad.y, idx.k+1);
+				if (allTiles_.containsKey(cidx)) {
+					MultiTile child = pinMultiTile(cidx);
+					try {
+						tile.insertQuadrantImage(quad, child.getImage());
+					} finally {
+						unpinMultiTile(child);
+					}
+				}
+			}
+		} finally {
+			unpinMultiTile(tile);
 		}
 	}
 		
@@ -76,22 +286,60 @@ public class MultiTileCache {
 	}
 	
 	protected synchronized MultiTile getMultiTile(Point3D idx) {
-
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
-			}
+		if (tileFile_ == null) {
+			tileFile_ = new TileFile(type_, width_, height_);
 		}
-
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
+		MultiTile tile = allTiles_.get(idx);
+		if (tile == null) {
+			tile = new MultiTile(idx, type_, width_, height_, tileFile_);
 			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
+		}
+		
+		LinkedHashMap<Point3D,MultiTile> level = residentTiles_.get(idx.k);
+		if (level == null) {
+			level = new LinkedHashMap<Point3D,MultiTile>(16, 0.75f, true);
+			residentTiles_.put(idx.k, level);
+		}
+		if (level.get(idx) == null) {
+			level.put(idx, tile);
+			trimLevel(level);
+		}
+		return tile;
+	}
+	
+	/*
+	 * Returns the tile, in memory and counted against the budget of its
+	 * level, and keeps it there until unpinMultiTile is called.
+	 */
+	protected synchronized MultiTile pinMultiTile(Point3D idx) {
+		MultiTile tile = getMultiTile(idx);
+		tile.pins_++;
+		return tile;
+	}
+	
+	protected synchronized void unpinMultiTile(MultiTile tile) {
+		tile.pins_--;
+		LinkedHashMap<Point3D,MultiTile> level = residentTiles_.get(tile.idx_.k);
+		if (level != null) {
+			trimLevel(level);
+		}
+	}
+	
+	/*
+	 * Drops the least recently used tiles of a level that are not pinned
+	 * until the level fits its budget.
+	 */
+	private void trimLevel(LinkedHashMap<Point3D,MultiTile> level) {
+		long tileBytes = (long) width_ * height_ * TileFile.getBytesPerPixel(type_);
+		long maxTiles = Math.max(2, budgetPerLevel_ / tileBytes);
+		Iterator<MultiTile> it = level.values().iterator();
+		while (level.size() > maxTiles && it.hasNext()) {
+			// eldest first, the tile just added is last
+			MultiTile tile = it.next();
+			if (tile.pins_ == 0) {
+				tile.dropFromMemory();
+				it.remove();
+			}
 		}
 	}
 		
@@ -108,11 +356,19 @@ public class MultiTileCache {
 	}
 
 	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
-			multiTile.wipeFromDisk();
+		synchronized (propagationLock_) {
+			synchronized (dirtyTiles_) {
+				dirtyTiles_.clear();
+			}
+			synchronized (this) {
+				if (tileFile_ != null) {
+					tileFile_.close();
+					tileFile_ = null;
+				}
+				residentTiles_.clear();
+				allTiles_.clear();
+			}
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
 	}
 	
 	
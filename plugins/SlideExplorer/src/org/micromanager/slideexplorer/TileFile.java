@@ -0,0 +1,232 @@
+package org.micromanager.slideexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ij.ImagePlus;
+
+import org.micromanager.utils.ReportingUtils;
+
+/*
+ * Disk tier of the MultiTileCache.  Tiles are appended to a single scratch
+ * file as raw pixels by a background thread, and an in-memory index maps
+ * each tile to the offset of its most recent copy.  Space of superseded
+ * copies is not reclaimed; the file is deleted by close().
+ */
+public class TileFile {
+
+    private final int type_;
+    private final int bytesPerTile_;
+    private final int numPixels_;
+    private final HashMap<Point3D, Long> offsets_ = new HashMap<Point3D, Long>();
+    // tiles queued for writing, served to readers until they are on disk
+    private final HashMap<Point3D, Object> pending_ = new HashMap<Point3D, Object>();
+    private final ExecutorService writer_;
+    private File file_;
+    private RandomAccessFile raFile_;
+    private FileChannel channel_;
+    private long end_ = 0;
+    private ByteBuffer writeBuffer_;
+    private boolean closed_ = false;
+
+    /*
+     * type is one of the ImagePlus types GRAY8, GRAY16, GRAY32 or COLOR_RGB
+     */
+    TileFile(int type, int width, int height) {
+        type_ = type;
+        numPixels_ = width * height;
+        bytesPerTile_ = numPixels_ * getBytesPerPixel(type);
+        writer_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SlideExplorer tile writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static int getBytesPerPixel(int type) {
+        switch (type) {
+            case ImagePlus.GRAY8:
+                return 1;
+            case ImagePlus.GRAY16:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    /*
+     * Queues a tile for writing and returns immediately.  The pixel array
+     * must not be modified afterwards.
+     */
+    public synchronized void write(final Point3D idx, final Object pixels) {
+        if (closed_) {
+            return;
+        }
+        pending_.put(idx, pixels);
+        writer_.execute(new Runnable() {
+            public void run() {
+                writeNow(idx, pixels);
+            }
+        });
+    }
+
+    /*
+     * Returns a copy of the most recent pixels written for this tile, or
+     * null if the tile was never written.
+     */
+    public Object read(Point3D idx) {
+        Long offset;
+        FileChannel channel;
+        synchronized (this) {
+            Object pixels = pending_.get(idx);
+            if (pixels != null) {
+                return copy(pixels);
+            }
+            offset = offsets_.get(idx);
+            channel = channel_;
+            if (offset == null || channel == null) {
+                return null;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bytesPerTile_).order(ByteOrder.nativeOrder());
+        try {
+            // positional reads do not interfere with the writer
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            ReportingUtils.logError(e, "Unable to read SlideExplorer tile");
+            return null;
+        }
+        buffer.rewind();
+        return fromBuffer(buffer);
+    }
+
+    private void writeNow(Point3D idx, Object pixels) {
+        FileChannel channel;
+        try {
+            synchronized (this) {
+                if (closed_ || pending_.get(idx) != pixels) {
+                    // a newer copy is queued, or the file was closed
+                    return;
+                }
+                if (channel_ == null) {
+                    file_ = File.createTempFile("SlideExplorer", ".tiles");
+                    file_.deleteOnExit();
+                    raFile_ = new RandomAccessFile(file_, "rw");
+                    channel_ = raFile_.getChannel();
+                }
+                channel = channel_;
+            }
+            if (writeBuffer_ == null) {
+                writeBuffer_ = ByteBuffer.allocateDirect(bytesPerTile_).order(ByteOrder.nativeOrder());
+            }
+            writeBuffer_.clear();
+            toBuffer(pixels, writeBuffer_);
+            writeBuffer_.flip();
+            long offset = end_;
+            while (writeBuffer_.hasRemaining()) {
+                channel.write(writeBuffer_, offset + writeBuffer_.position());
+            }
+            end_ += bytesPerTile_;
+            synchronized (this) {
+                if (pending_.get(idx) == pixels) {
+                    pending_.remove(idx);
+                    offsets_.put(idx, offset);
+                }
+            }
+        } catch (IOException e) {
+            // the tile stays in pending_, so it is not lost
+            if (!closed_) {
+                ReportingUtils.logError(e, "Unable to write SlideExplorer tile");
+            }
+        }
+    }
+
+    private void toBuffer(Object pixels, ByteBuffer buffer) {
+        if (pixels instanceof byte[]) {
+            buffer.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) pixels);
+            buffer.position(numPixels_ * 2);
+        } else if (pixels instanceof float[]) {
+            buffer.asFloatBuffer().put((float[]) pixels);
+            buffer.position(numPixels_ * 4);
+        } else if (pixels instanceof int[]) {
+            buffer.asIntBuffer().put((int[]) pixels);
+            buffer.position(numPixels_ * 4);
+        }
+    }
+
+    private Object fromBuffer(ByteBuffer buffer) {
+        switch (type_) {
+            case ImagePlus.GRAY8: {
+                byte[] pixels = new byte[numPixels_];
+                buffer.get(pixels);
+                return pixels;
+            }
+            case ImagePlus.GRAY16: {
+                short[] pixels = new short[numPixels_];
+                buffer.asShortBuffer().get(pixels);
+                return pixels;
+            }
+            case ImagePlus.GRAY32: {
+                float[] pixels = new float[numPixels_];
+                buffer.asFloatBuffer().get(pixels);
+                return pixels;
+            }
+            default: {
+                int[] pixels = new int[numPixels_];
+                buffer.asIntBuffer().get(pixels);
+                return pixels;
+            }
+        }
+    }
+
+    private Object copy(Object pixels) {
+        if (pixels instanceof byte[]) {
+            return ((byte[]) pixels).clone();
+        } else if (pixels instanceof short[]) {
+            return ((short[]) pixels).clone();
+        } else if (pixels instanceof float[]) {
+            return ((float[]) pixels).clone();
+        } else if (pixels instanceof int[]) {
+            return ((int[]) pixels).clone();
+        }
+        return null;
+    }
+
+    /*
+     * Drops all tiles and deletes the file.
+     */
+    public void close() {
+        synchronized (this) {
+            closed_ = true;
+            pending_.clear();
+            offsets_.clear();
+            if (raFile_ != null) {
+                try {
+                    raFile_.close();
+                } catch (IOException e) {
+                    ReportingUtils.logError(e);
+                }
+                file_.delete();
+            }
+            raFile_ = null;
+            channel_ = null;
+        }
+        writer_.shutdown();
+    }
+}
@@ -25,9 +25,6 @@ package org.micromanager.splitview;
 
 import com.google.common.eventbus.Subscribe;
 
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -110,58 +107,48 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
          }
 
          if (taggedImage != null && taggedImage.tags != null) {
-            ImageProcessor tmpImg;
             int imgDepth = MDUtils.getDepth(taggedImage.tags);
             int width = MDUtils.getWidth(taggedImage.tags);
             int height = MDUtils.getHeight(taggedImage.tags);
             int channelIndex = MDUtils.getChannelIndex(taggedImage.tags);
 
-            //System.out.println("Processed one");
-
-            if (imgDepth == 1) {
-               tmpImg = new ByteProcessor(width, height);
-            } else if (imgDepth == 2) {
-               tmpImg = new ShortProcessor(width, height);
-            } else // TODO throw error
-            {
+            if (imgDepth != 1 && imgDepth != 2) {
+               // TODO throw error
                produce(taggedImage);
                return;
             }
 
-            tmpImg.setPixels(taggedImage.pix);
-
-            height = calculateHeight(height);
-            width = calculateWidth(width);
-
-            tmpImg.setRoi(0, 0, width, height);
-            
+            int newHeight = calculateHeight(height);
+            int newWidth = calculateWidth(width);
+            Object firstPixels;
+            Object secondPixels;
+            if (imgDepth == 1) {
+               firstPixels = new byte[newWidth * newHeight];
+               secondPixels = new byte[newWidth * newHeight];
+            } else {
+               firstPixels = new short[newWidth * newHeight];
+               secondPixels = new short[newWidth * newHeight];
+            }
+            split(taggedImage, width, height, 
+                    orientation_.equals(SplitViewFrame.LR), 
+                    firstPixels, secondPixels);
             
             // first channel
-
-            // Weird way of copying a JSONObject
-            JSONObject tags = new JSONObject(taggedImage.tags.toString());
-            MDUtils.setWidth(tags, width);
-            MDUtils.setHeight(tags, height);
+            JSONObject tags = MDUtils.copy(taggedImage.tags);
+            MDUtils.setWidth(tags, newWidth);
+            MDUtils.setHeight(tags, newHeight);
             MDUtils.setChannelIndex(tags, channelIndex * 2);
 
             tags.put("Channel", MDUtils.getChannelName(taggedImage.tags) + getChannelSuffix(channelIndex*2));
             
-            TaggedImage firstIm = new TaggedImage(tmpImg.crop().getPixels(), tags);
+            TaggedImage firstIm = new TaggedImage(firstPixels, tags);
 
             // second channel
-            JSONObject tags2 = new JSONObject(tags.toString());
+            JSONObject tags2 = MDUtils.copy(tags);
             tags2.put("Channel", MDUtils.getChannelName(taggedImage.tags)  + getChannelSuffix(channelIndex*2+1));
-
-            if (orientation_.equals(SplitViewFrame.LR)) {
-               tmpImg.setRoi(width, 0, width, height);
-            } else if (orientation_.equals(SplitViewFrame.TB)) {
-               tmpImg.setRoi(0, height, width, height);
-            }
-            MDUtils.setWidth(tags2, width);
-            MDUtils.setHeight(tags2, height);
             MDUtils.setChannelIndex(tags2, channelIndex * 2 + 1);
 
-            TaggedImage secondIm = new TaggedImage(tmpImg.crop().getPixels(), tags2);
+            TaggedImage secondIm = new TaggedImage(secondPixels, tags2);
 
             produce(secondIm);
             produce(firstIm);
@@ -175,6 +162,34 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
       }
    }
 
+   /**
+    * Copies the two halves of an image into the given arrays, row by row for
+    * left/right splits and as two contiguous blocks for top/bottom splits.
+    * When the width or height is odd, the last column or row is dropped.
+    * @param image - image to split
+    * @param width - width of the image
+    * @param height - height of the image
+    * @param leftRight - true to split into left and right halves, false for
+    *                    top and bottom
+    * @param first - receives the left or top half
+    * @param second - receives the right or bottom half
+    */
+   static void split(TaggedImage image, int width, int height, 
+           boolean leftRight, Object first, Object second) {
+      Object pix = image.pix;
+      if (leftRight) {
+         int half = width / 2;
+         for (int row = 0; row < height; row++) {
+            System.arraycopy(pix, row * width, first, row * half, half);
+            System.arraycopy(pix, row * width + half, second, row * half, half);
+         }
+      } else {
+         int size = width * (height / 2);
+         System.arraycopy(pix, 0, first, 0, size);
+         System.arraycopy(pix, size, second, 0, size);
+      }
+   }
+
    public int calculateWidth(int width) {
       int newWidth = width;
       if (orientation_.equals(SplitViewFrame.LR)) {
@@ -0,0 +1,398 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           CrossCorrelator.java
+//PROJECT:        Micro-Manager
+//SUBSYSTEM:      Tracker plugin
+//-----------------------------------------------------------------------------
+//
+//COPYRIGHT:      University of California, San Francisco, 2016
+//
+//LICENSE:        This file is distributed under the GPL license.
+//                License text is included with the source distribution.
+//
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package com.imaging100x.tracker;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Finds the shift of a region between two images by normalized
+ * cross-correlation, computed with FFTs.
+ *
+ * The region (template) in the previous image is correlated with a search
+ * window in the current image that extends maxOffset pixels around it.  Both
+ * are transformed together in one complex FFT (the template as imaginary
+ * part), multiplied, and transformed back, so the cost is O(N log N) in the
+ * size of the search window instead of proportional to the number of
+ * offsets times the template size.  Local sums of the search window, needed
+ * for normalization, come from summed-area tables.  The integer peak is
+ * refined to subpixel precision by fitting a parabola in x and in y.
+ *
+ * All buffers are kept between calls and only reallocated when the sizes
+ * change, so one instance can be used for every frame of a live stream.
+ * Instances are not thread safe.
+ */
+public class CrossCorrelator {
+   // transform buffers, rows of length fftWidth_
+   private int fftWidth_;
+   private int fftHeight_;
+   private double[] re_;
+   private double[] im_;
+   private double[] colRe_;
+   private double[] colIm_;
+   private FFT rowFFT_;
+   private FFT colFFT_;
+
+   // summed-area tables of the search window and its square
+   private double[] sat_;
+   private double[] sat2_;
+
+   // normalized correlation for offsets -maxOffset..maxOffset
+   private int maxOffset_;
+   private int mapSize_;
+   private float[] map_;
+
+   private double peak_;
+   private double shiftX_;
+   private double shiftY_;
+
+   /**
+    * Correlates the region roi of the previous image with the current image,
+    * for all offsets up to maxOffset pixels in x and y for which the shifted
+    * region lies within the current image.
+    *
+    * @param prev - pixels of the previous image
+    * @param cur - pixels of the current image
+    * @param width - width of both images
+    * @param roi - region of the previous image to be found in the current one
+    * @param maxOffset - largest shift searched, in pixels
+    * @return false if no offset could be evaluated
+    */
+   public boolean correlate(float[] prev, float[] cur, int width, Rectangle roi,
+           int maxOffset) {
+      final int height = cur.length / width;
+      final int tw = roi.width;
+      final int th = roi.height;
+      peak_ = Double.NaN;
+      shiftX_ = 0.0;
+      shiftY_ = 0.0;
+      allocateMap(maxOffset);
+      if (tw < 1 || th < 1 || roi.x < 0 || roi.y < 0 ||
+              roi.x + tw > width || roi.y + th > height) {
+         return false;
+      }
+
+      // search window in the current image
+      final int sx = Math.max(0, roi.x - maxOffset);
+      final int sy = Math.max(0, roi.y - maxOffset);
+      final int sw = Math.min(width, roi.x + tw + maxOffset) - sx;
+      final int sh = Math.min(height, roi.y + th + maxOffset) - sy;
+      allocate(nextPowerOf2(sw), nextPowerOf2(sh), sw, sh);
+
+      // template, with its mean removed so that the correlation needs no
+      // correction for the mean of the search window
+      final int n = tw * th;
+      double sumT = 0.0;
+      for (int i = 0; i < th; i++) {
+         int p = (roi.y + i) * width + roi.x;
+         for (int j = 0; j < tw; j++) {
+            sumT += prev[p + j];
+         }
+      }
+      final double meanT = sumT / n;
+      double varT = 0.0;
+      Arrays.fill(re_, 0.0);
+      Arrays.fill(im_, 0.0);
+      for (int i = 0; i < th; i++) {
+         int p = (roi.y + i) * width + roi.x;
+         int q = i * fftWidth_;
+         for (int j = 0; j < tw; j++) {
+            double t = prev[p + j] - meanT;
+            im_[q + j] = t;
+            varT += t * t;
+         }
+      }
+
+      // search window, and its summed-area tables
+      final int satWidth = sw + 1;
+      for (int i = 0; i < sh; i++) {
+         int p = (sy + i) * width + sx;
+         int q = i * fftWidth_;
+         int s = (i + 1) * satWidth;
+         double rowSum = 0.0;
+         double rowSum2 = 0.0;
+         for (int j = 0; j < sw; j++) {
+            double v = cur[p + j];
+            re_[q + j] = v;
+            rowSum += v;
+            rowSum2 += v * v;
+            sat_[s + j + 1] = sat_[s - satWidth + j + 1] + rowSum;
+            sat2_[s + j + 1] = sat2_[s - satWidth + j + 1] + rowSum2;
+         }
+      }
+
+      transform(false);
+      crossPowerSpectrum();
+      transform(true);
+
+      // re_[u * fftWidth_ + v] now holds the correlation of the template
+      // with the window at (v, u), i.e. at offset (v + sx - roi.x, u + sy - roi.y)
+      int bestK = 0;
+      int bestL = 0;
+      float best = Float.NEGATIVE_INFINITY;
+      final double scale = 1.0 / (fftWidth_ * fftHeight_);
+      for (int k = -maxOffset; k <= maxOffset; k++) {
+         int u = roi.y + k - sy;
+         if (u < 0 || u + th > sh) {
+            continue;
+         }
+         for (int l = -maxOffset; l <= maxOffset; l++) {
+            int v = roi.x + l - sx;
+            if (v < 0 || v + tw > sw) {
+               continue;
+            }
+            int a = u * satWidth + v;
+            int b = (u + th) * satWidth + v;
+            double sumI = sat_[b + tw] - sat_[a + tw] - sat_[b] + sat_[a];
+            double sumI2 = sat2_[b + tw] - sat2_[a + tw] - sat2_[b] + sat2_[a];
+            double varI = sumI2 - sumI * sumI / n;
+            double denom = Math.sqrt(varT * varI);
+            float c = denom > 0.0 ?
+                    (float) (re_[u * fftWidth_ + v] * scale / denom) : 0.0f;
+            map_[(k + maxOffset) * mapSize_ + l + maxOffset] = c;
+            if (c > best) {
+               best = c;
+               bestK = k;
+               bestL = l;
+            }
+         }
+      }
+      if (best == Float.NEGATIVE_INFINITY) {
+         return false;
+      }
+      peak_ = best;
+      shiftX_ = bestL + subpixel(getCorrelation(bestL - 1, bestK), best,
+              getCorrelation(bestL + 1, bestK));
+      shiftY_ = bestK + subpixel(getCorrelation(bestL, bestK - 1), best,
+              getCorrelation(bestL, bestK + 1));
+      return true;
+   }
+
+   /**
+    * @return the shift in x of the region, in pixels, from the last call
+    *         of correlate
+    */
+   public double getShiftX() {
+      return shiftX_;
+   }
+
+   /**
+    * @return the shift in y of the region, in pixels, from the last call
+    *         of correlate
+    */
+   public double getShiftY() {
+      return shiftY_;
+   }
+
+   /**
+    * @return the normalized correlation at the (integer) peak, between -1
+    *         and 1, or NaN if the last correlation failed
+    */
+   public double getPeakCorrelation() {
+      return peak_;
+   }
+
+   /**
+    * Normalized correlation from the last call of correlate.
+    * @param l - offset in x
+    * @param k - offset in y
+    * @return correlation, or NaN for offsets that were not evaluated
+    */
+   public float getCorrelation(int l, int k) {
+      if (map_ == null || Math.abs(l) > maxOffset_ || Math.abs(k) > maxOffset_) {
+         return Float.NaN;
+      }
+      return map_[(k + maxOffset_) * mapSize_ + l + maxOffset_];
+   }
+
+   /*
+    * Position of the vertex of the parabola through three equidistant
+    * points, relative to the middle one.
+    */
+   private static double subpixel(float left, float center, float right) {
+      if (Float.isNaN(left) || Float.isNaN(right)) {
+         return 0.0;
+      }
+      double curvature = left - 2.0 * center + right;
+      if (curvature >= 0.0) {
+         return 0.0;
+      }
+      double d = 0.5 * (left - right) / curvature;
+      return Math.max(-0.5, Math.min(0.5, d));
+   }
+
+   private void allocateMap(int maxOffset) {
+      int size = 2 * maxOffset + 1;
+      if (map_ == null || size != mapSize_) {
+         map_ = new float[size * size];
+         mapSize_ = size;
+         maxOffset_ = maxOffset;
+      }
+      Arrays.fill(map_, Float.NaN);
+   }
+
+   private void allocate(int fftWidth, int fftHeight, int sw, int sh) {
+      if (fftWidth != fftWidth_ || fftHeight != fftHeight_) {
+         fftWidth_ = fftWidth;
+         fftHeight_ = fftHeight;
+         re_ = new double[fftWidth * fftHeight];
+         im_ = new double[fftWidth * fftHeight];
+         colRe_ = new double[fftHeight];
+         colIm_ = new double[fftHeight];
+         rowFFT_ = new FFT(fftWidth);
+         colFFT_ = fftHeight == fftWidth ? rowFFT_ : new FFT(fftHeight);
+      }
+      int satSize = (sw + 1) * (sh + 1);
+      if (sat_ == null || sat_.length < satSize) {
+         sat_ = new double[satSize];
+         sat2_ = new double[satSize];
+      } else {
+         // only the first row and column need to be zero
+         Arrays.fill(sat_, 0, sw + 1, 0.0);
+         Arrays.fill(sat2_, 0, sw + 1, 0.0);
+         for (int i = 1; i <= sh; i++) {
+            sat_[i * (sw + 1)] = 0.0;
+            sat2_[i * (sw + 1)] = 0.0;
+         }
+      }
+   }
+
+   /*
+    * 2D transform: rows in place, then columns through a scratch buffer.
+    * The inverse is not scaled.
+    */
+   private void transform(boolean inverse) {
+      for (int i = 0; i < fftHeight_; i++) {
+         rowFFT_.transform(re_, im_, i * fftWidth_, inverse);
+      }
+      for (int j = 0; j < fftWidth_; j++) {
+         for (int i = 0, p = j; i < fftHeight_; i++, p += fftWidth_) {
+            colRe_[i] = re_[p];
+            colIm_[i] = im_[p];
+         }
+         colFFT_.transform(colRe_, colIm_, 0, inverse);
+         for (int i = 0, p = j; i < fftHeight_; i++, p += fftWidth_) {
+            re_[p] = colRe_[i];
+            im_[p] = colIm_[i];
+         }
+      }
+   }
+
+   /*
+    * With Z = FFT(S + iT) of the real window S and template T:
+    *    FFT(S)[f] = (Z[f] + conj(Z[-f])) / 2
+    *    FFT(T)[f] = (Z[f] - conj(Z[-f])) / 2i
+    * and the correlation is the inverse transform of conj(FFT(T)) FFT(S).
+    * Frequencies f and -f are handled together so that this is in place.
+    */
+   private void crossPowerSpectrum() {
+      for (int y = 0; y < fftHeight_; y++) {
+         int my = (fftHeight_ - y) & (fftHeight_ - 1);
+         for (int x = 0; x < fftWidth_; x++) {
+            int mx = (fftWidth_ - x) & (fftWidth_ - 1);
+            int p = y * fftWidth_ + x;
+            int q = my * fftWidth_ + mx;
+            if (q < p) {
+               continue;
+            }
+            double zr = re_[p], zi = im_[p];
+            double wr = re_[q], wi = im_[q];
+            // at f: S = (z + conj(w)) / 2, T = (z - conj(w)) / 2i
+            double sr = 0.5 * (zr + wr), si = 0.5 * (zi - wi);
+            double tr = 0.5 * (zi + wi), ti = -0.5 * (zr - wr);
+            // conj(T) S
+            double cr = tr * sr + ti * si;
+            double ci = tr * si - ti * sr;
+            re_[p] = cr;
+            im_[p] = ci;
+            // at -f both spectra are the complex conjugates
+            re_[q] = cr;
+            im_[q] = -ci;
+         }
+      }
+   }
+
+   private static int nextPowerOf2(int n) {
+      int p = 1;
+      while (p < n) {
+         p <<= 1;
+      }
+      return p;
+   }
+
+   /**
+    * In-place radix-2 complex FFT of one length, with precomputed twiddle
+    * factors and bit reversal permutation.
+    */
+   private static class FFT {
+      private final int n_;
+      private final double[] cos_;
+      private final double[] sin_;
+      private final int[] reverse_;
+
+      FFT(int n) {
+         n_ = n;
+         cos_ = new double[n / 2];
+         sin_ = new double[n / 2];
+         for (int i = 0; i < n / 2; i++) {
+            cos_[i] = Math.cos(2 * Math.PI * i / n);
+            sin_[i] = Math.sin(2 * Math.PI * i / n);
+         }
+         reverse_ = new int[n];
+         int bits = Integer.numberOfTrailingZeros(n);
+         for (int i = 0; i < n; i++) {
+            reverse_[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+         }
+      }
+
+      void transform(double[] re, double[] im, int offset, boolean inverse) {
+         for (int i = 0; i < n_; i++) {
+            int j = reverse_[i];
+            if (j > i) {
+               double t = re[offset + i];
+               re[offset + i] = re[offset + j];
+               re[offset + j] = t;
+               t = im[offset + i];
+               im[offset + i] = im[offset + j];
+               im[offset + j] = t;
+            }
+         }
+         final double sign = inverse ? 1.0 : -1.0;
+         for (int size = 2; size <= n_; size <<= 1) {
+            int half = size >> 1;
+            int step = n_ / size;
+            for (int start = offset; start < offset + n_; start += size) {
+               for (int m = 0, t = 0; m < half; m++, t += step) {
+                  double wr = cos_[t];
+                  double wi = sign * sin_[t];
+                  int a = start + m;
+                  int b = a + half;
+                  double xr = re[b] * wr - im[b] * wi;
+                  double xi = re[b] * wi + im[b] * wr;
+                  re[b] = re[a] - xr;
+                  im[b] = im[a] - xi;
+                  re[a] += xr;
+                  im[a] += xi;
+               }
+            }
+         }
+      }
+   }
+}
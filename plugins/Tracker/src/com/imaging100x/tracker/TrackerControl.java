@@ -84,6 +84,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private float[] pixelsPrev_ = null;
    private float[] pixelsCur_ = null;
    private int imWidth_ = 0;
+   private final CrossCorrelator correlator_ = new CrossCorrelator();
    private String stage_ = "XYStage";
    private Roi roi_;
    private ImageStack corrStack_;
@@ -527,10 +528,6 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
       corrStack_.addSlice(corrImproc);
 
-      // position of correlation maximum
-      int kMax = 0;
-      int lMax = 0;
-
       Rectangle r = roi_.getBounds();
       try {
          app_.getAcquisition(acqName_).getAcquisitionWindow().
@@ -540,43 +537,22 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       }
       //IJ.write("ROI pos: " + r.x + "," + r.y);
 
-      int width = r.width, height = r.height;
-      double corScale = width * height;
-
-      double maxCor = 0;
-      for (int k=-offsetPix_; k<offsetPix_; k += resolutionPix_) {
-         for (int l=-offsetPix_; l<offsetPix_; l += resolutionPix_) {
-
-            // calculate correlation
-            double sum = 0.0;
-            double meanPrev = 0.0;
-            double meanCur = 0.0;
-            for (int i = 0; i < height; i++) {
-               for (int j = 0; j < width; j++) {
-                  int row = r.y + i;
-                  int col = r.x + j;
-                  double pixPrev = pixelsPrev_[row * imWidth_ + col];
-                  double pixCur = pixelsCur_[(row + k) * imWidth_ + (col + l)];
-                  sum += pixPrev * pixCur;
-                  meanPrev += pixPrev;
-                  meanCur += pixCur;
-               }
-            }
-            sum /= corScale;
-            meanPrev /= corScale;
-            meanCur /= corScale;
-            sum /= meanPrev*meanCur;
-
-            int x = (l + offsetPix_) / resolutionPix_;
-            int y = (k + offsetPix_) / resolutionPix_;
-            corrImproc.setf(x + lCount * y, (float) sum);
-
-            // check for max value
-            if (sum > maxCor) {
-               maxCor = sum;
-               kMax = k;
-               lMax = l;
-            }
+      // position of correlation maximum, with subpixel precision
+      double kMax = 0.0;
+      double lMax = 0.0;
+      if (correlator_.correlate(pixelsPrev_, pixelsCur_, imWidth_, r, offsetPix_)) {
+         kMax = correlator_.getShiftY();
+         lMax = correlator_.getShiftX();
+      } else {
+         app_.logMessage("Tracking region lies outside the image");
+      }
+
+      // all offsets are evaluated, the resolution only applies to the display
+      for (int y = 0; y < kCount; y++) {
+         for (int x = 0; x < lCount; x++) {
+            float c = correlator_.getCorrelation(
+                    x * resolutionPix_ - offsetPix_, y * resolutionPix_ - offsetPix_);
+            corrImproc.setf(x + lCount * y, Float.isNaN(c) ? 0.0f : c);
          }
       }
 
@@ -654,7 +630,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
          } // relative motion
       } else {
          // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
+         roi_.setLocation(r.x + (int) Math.round(lMax), r.y + (int) Math.round(kMax));
 
          try {
             app_.getAcquisition(acqName_).getAcquisitionWindow().
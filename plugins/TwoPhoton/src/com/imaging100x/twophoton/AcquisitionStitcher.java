@@ -16,10 +16,16 @@ import java.awt.Font;
 import java.awt.Point;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import mmcorej.MMCoreJ;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
@@ -28,6 +34,7 @@ import org.json.JSONObject;
 import org.micromanager.MMStudio;
 import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.api.ImageCache;
+import org.micromanager.api.ImageCacheListener;
 import org.micromanager.utils.GUIUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
@@ -39,7 +46,7 @@ import org.micromanager.utils.ReportingUtils;
  *
  * @author Henry
  */
-public class AcquisitionStitcher {
+public class AcquisitionStitcher implements ImageCacheListener {
    
    private static final String ACQ_NAME = "Stitched";
    
@@ -52,6 +59,24 @@ public class AcquisitionStitcher {
    private boolean drawPosNames_, showGrid_;
    private int numCols_, numRows_;
    private int oldImageWidth_, oldImageHeight_, newImageWidth_ = -1, newImageHeight_ = -1;
+   private int overlapX_, overlapY_;
+   private MosaicStitcher mosaic_;
+   // data the "Stitched" window collects time points of (null if it shows
+   // a single one), and the number of time points added to it
+   private ImageCache stitchedCache_;
+   private int stitchedFrames_ = 0;
+   private boolean stitchEachFrame_ = false;
+   // time point waiting to be stitched by stitchThread_, or -1
+   private final AtomicInteger requestedFrame_ = new AtomicInteger(-1);
+   private final ExecutorService stitchThread_ = Executors.newSingleThreadExecutor(
+           new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Stitch time points");
+         t.setDaemon(true);
+         return t;
+      }
+   });
    private double pixelSize_ = 0;
    private Comparator gridSorter_;
    private double stitchedWindowZoom_ = 1;
@@ -74,8 +99,63 @@ public class AcquisitionStitcher {
    public void setStitchParameters(boolean drawPosNames, boolean showGrid, VirtualAcquisitionDisplay display) {
       drawPosNames_ = drawPosNames;
       showGrid_ = showGrid;
+      if (cache_ != null) {
+         cache_.removeImageCacheListener(this);
+      }
       display_ = display;
       cache_ = display_.getImageCache();
+      if (stitchEachFrame_) {
+         cache_.addImageCacheListener(this);
+      }
+   }
+
+   /**
+    * When set, every time point is stitched as soon as all of its images
+    * have arrived in the image cache of the display.
+    *
+    * @param stitchEachFrame
+    */
+   public void setStitchEachFrame(boolean stitchEachFrame) {
+      stitchEachFrame_ = stitchEachFrame;
+      if (cache_ != null) {
+         cache_.removeImageCacheListener(this);
+         if (stitchEachFrame) {
+            cache_.addImageCacheListener(this);
+         }
+      }
+   }
+
+   @Override
+   public void imageReceived(TaggedImage taggedImage) {
+      if (taggedImage == null || taggedImage.tags == null || display_ == null) {
+         return;
+      }
+      try {
+         JSONObject tags = taggedImage.tags;
+         if (MDUtils.getSliceIndex(tags) + 1 == display_.getNumSlices()
+                 && MDUtils.getPositionIndex(tags) + 1 == display_.getNumPositions()
+                 && MDUtils.getChannelIndex(tags) + 1 == display_.getNumChannels()) {
+            // Time point complete. If the previous one is still being
+            // stitched, only the latest one waiting is stitched next.
+            if (requestedFrame_.getAndSet(MDUtils.getFrameIndex(tags)) < 0) {
+               stitchThread_.execute(new Runnable() {
+                  @Override
+                  public void run() {
+                     int frame = requestedFrame_.getAndSet(-1);
+                     if (frame >= 0) {
+                        stitchFrame(frame, true);
+                     }
+                  }
+               });
+            }
+         }
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Stitcher could not read image indices");
+      }
+   }
+
+   @Override
+   public void imagingFinished(String path) {
    }
 
    public void createStitchedFromCurrentFrame() {
@@ -95,14 +175,21 @@ public class AcquisitionStitcher {
             //use last complete time point
             frameIndex--;
          }
+         stitchFrame(frameIndex, false);
+      } catch (Exception e) {
+         showError(e, "");
+      }
+   }
 
-
-         if (gui_.acquisitionExists(ACQ_NAME)) {
-            gui_.getAcquisition(ACQ_NAME).closeImageWindow();
-         }
-         gui_.openAcquisition(ACQ_NAME, "", 1, cache_.getNumDisplayChannels(), display_.getNumSlices(), true, false);
-
-
+   /*
+    * Stitches one time point into the "Stitched" acquisition.  With
+    * addToWindow set, the time point is added as next frame to the window
+    * opened for an earlier time point of the same data, if it is still open;
+    * otherwise the window is replaced.  Runs on a background thread.
+    */
+   private synchronized void stitchFrame(int frameIndex, boolean addToWindow) {
+      try {
+         int stitchedFrame = 0;
          for (int slice = 0; slice < display_.getNumSlices(); slice++) {
             for (int channel = 0; channel < cache_.getNumDisplayChannels(); channel++) {
                LinkedList<TaggedImage> batch = new LinkedList<TaggedImage>();
@@ -110,67 +197,39 @@ public class AcquisitionStitcher {
                   batch.add(cache_.getImage(channel, slice, frameIndex, position));
                }
                if (channel == 0 && slice == 0) {
+                  if (!isComplete(batch)) {
+                     ReportingUtils.logError("Stitcher: time point " + frameIndex +
+                             " is incomplete, not stitched");
+                     return;
+                  }
                   try {
                      calcGridDimensions(batch, cache_.getSummaryMetadata());
-
-                     gui_.initializeAcquisition(ACQ_NAME, newImageWidth_, newImageHeight_, 1,8);
-                     gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().promptToSave(false);
-                     imageWindow_ = gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getHyperImage().getWindow();
-
-
-                     //add windowclosing listener to record zoom and position
-                     if (stitchedWindowLocation_ == null) { //only need to add this listener once
-                        gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getImagePlus().addImageListener(new ImageListener() {
-
-                           public void imageOpened(ImagePlus ip) {
-                           }
-
-                           public void imageUpdated(ImagePlus ip) {
-                           }
-
-                           public void imageClosed(ImagePlus ip) {
-                              stitchedWindowLocation_ = imageWindow_.getLocation();
-                              stitchedWindowZoom_ = imageWindow_.getCanvas().getMagnification();
-
-                           }
-                        });
-                     }
-
-
-                     try {
-
-                        if (stitchedWindowLocation_ != null) {
-                           ImageWindow win = gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getImagePlus().getWindow();
-                           win.setLocation(stitchedWindowLocation_);
-
-                           //Apply same 
-                           ImageCanvas canvas = win.getCanvas();
-                           if (stitchedWindowZoom_ < canvas.getMagnification()) {
-                              while (stitchedWindowZoom_ < canvas.getMagnification()) {
-                                 canvas.zoomOut(canvas.getWidth() / 2, canvas.getHeight() / 2);
-                              }
-                           } else if (stitchedWindowZoom_ > canvas.getMagnification()) {
-                              while (stitchedWindowZoom_ > canvas.getMagnification()) {
-                                 canvas.zoomIn(canvas.getWidth() / 2, canvas.getHeight() / 2);
-                              }
-                           }
-                        }
-
-
-                     } catch (Exception e) {
-                        ReportingUtils.showError("Couldnt re use stitched window settings");
-                     }
-
                   } catch (JSONException ex) {
-                     ReportingUtils.showError("Couldn't calc grid dimensions");
+                     showError(ex, "Couldn't calc grid dimensions");
+                     return;
                   }
+                  boolean is16Bit = batch.getFirst().pix instanceof short[];
+                  if (addToWindow && isStitchedWindowOpen()) {
+                     stitchedFrame = stitchedFrames_;
+                  } else {
+                     openStitchedWindow(addToWindow ? display_.getNumFrames() : 1, is16Bit);
+                     // a window for a single time point is not added to
+                     stitchedCache_ = addToWindow ? cache_ : null;
+                  }
+               }
+               Object stitched = stitchBatch(batch);
+               if (stitched == null) {
+                  showError(null, "Couldn't stitch time point " + frameIndex +
+                          ", images are missing");
+                  return;
                }
-               gui_.getAcquisition(ACQ_NAME).insertImage(stitchBatch(batch), 0, channel, slice);
+               gui_.getAcquisition(ACQ_NAME).insertImage(stitched, stitchedFrame, channel, slice);
                //Add overlay
                addPositionNameAndGridOverlay(batch);
 
             }
          }
+         stitchedFrames_ = stitchedFrame + 1;
          GUIUtils.invokeAndWait(new Runnable() {
 
             @Override
@@ -189,22 +248,116 @@ public class AcquisitionStitcher {
 
 
       } catch (Exception e) {
-         ReportingUtils.showError(e);
+         showError(e, "");
+      }
+
+   }
+
+   /*
+    * @return true if the window of the "Stitched" acquisition was opened for
+    *         the current data set and has not been closed
+    */
+   private boolean isStitchedWindowOpen() throws MMScriptException {
+      return stitchedCache_ == cache_ && stitchedFrames_ > 0
+              && gui_.acquisitionExists(ACQ_NAME)
+              && !gui_.getAcquisition(ACQ_NAME).windowClosed();
+   }
+
+   /*
+    * Replaces the "Stitched" acquisition by a new one sized for the current
+    * grid, at the location and zoom of the previous window.
+    */
+   private void openStitchedWindow(int numFrames, boolean is16Bit) throws MMScriptException {
+      if (gui_.acquisitionExists(ACQ_NAME)) {
+         gui_.getAcquisition(ACQ_NAME).closeImageWindow();
+      }
+      gui_.openAcquisition(ACQ_NAME, "", numFrames, cache_.getNumDisplayChannels(), display_.getNumSlices(), true, false);
+      gui_.initializeAcquisition(ACQ_NAME, newImageWidth_, newImageHeight_,
+              is16Bit ? 2 : 1, is16Bit ? 16 : 8);
+      gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().promptToSave(false);
+      imageWindow_ = gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getHyperImage().getWindow();
+      stitchedFrames_ = 0;
+
+
+      //add windowclosing listener to record zoom and position
+      if (stitchedWindowLocation_ == null) { //only need to add this listener once
+         gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getImagePlus().addImageListener(new ImageListener() {
+
+            public void imageOpened(ImagePlus ip) {
+            }
+
+            public void imageUpdated(ImagePlus ip) {
+            }
+
+            public void imageClosed(ImagePlus ip) {
+               stitchedWindowLocation_ = imageWindow_.getLocation();
+               stitchedWindowZoom_ = imageWindow_.getCanvas().getMagnification();
+
+            }
+         });
+      }
+
+
+      try {
+
+         if (stitchedWindowLocation_ != null) {
+            ImageWindow win = gui_.getAcquisition(ACQ_NAME).getAcquisitionWindow().getImagePlus().getWindow();
+            win.setLocation(stitchedWindowLocation_);
+
+            //Apply same 
+            ImageCanvas canvas = win.getCanvas();
+            if (stitchedWindowZoom_ < canvas.getMagnification()) {
+               while (stitchedWindowZoom_ < canvas.getMagnification()) {
+                  canvas.zoomOut(canvas.getWidth() / 2, canvas.getHeight() / 2);
+               }
+            } else if (stitchedWindowZoom_ > canvas.getMagnification()) {
+               while (stitchedWindowZoom_ > canvas.getMagnification()) {
+                  canvas.zoomIn(canvas.getWidth() / 2, canvas.getHeight() / 2);
+               }
+            }
+         }
+
+
+      } catch (Exception e) {
+         showError(e, "Couldnt re use stitched window settings");
       }
+   }
 
+   /*
+    * Stitching runs on background threads, the error dialog is shown on the
+    * EDT.
+    */
+   private static void showError(final Throwable e, final String message) {
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            ReportingUtils.showError(e, message);
+         }
+      });
+   }
+
+   private static boolean isComplete(List<TaggedImage> batch) {
+      for (TaggedImage tile : batch) {
+         if (tile == null || tile.pix == null) {
+            return false;
+         }
+      }
+      return true;
    }
 
    private Object stitchBatch(LinkedList<TaggedImage> batch) {
       if (gridSorter_ == null) {
          gridSorter_ = makeGridSorter();
       }
+      if (!isComplete(batch)) {
+         return null;
+      }
       Collections.sort(batch, gridSorter_);
-      if (batch.getFirst().pix instanceof short[]) {
-         JOptionPane.showMessageDialog(null, "Henry hasn't added support for stitching of images with more than "
-                 + "8 bits per pixel because no one has needed it yet. Go talk to him and he will add this");
+      List<Object> tiles = new ArrayList<Object>(batch.size());
+      for (TaggedImage tile : batch) {
+         tiles.add(tile.pix);
       }
-
-      return stitchPixelsNoOverlap(batch);
+      return mosaic_.stitch(tiles);
    }
 
    private void addPositionNameAndGridOverlay(LinkedList<TaggedImage> batch) throws MMScriptException, JSONException {
@@ -218,8 +371,8 @@ public class AcquisitionStitcher {
          for (int x = 0; x < numCols_; x++) {
             for (int y = 0; y < numRows_; y++) {
                String posName = batch.get(x + y * numCols_).tags.getString("PositionName");
-               TextRoi text = new TextRoi(newImageWidth_ / numCols_ * x + 0.4 * oldImageWidth_,
-                       newImageHeight_ / numRows_ * y + 0.45 * oldImageHeight_, posName);
+               TextRoi text = new TextRoi(mosaic_.getStepX() * x + 0.4 * oldImageWidth_,
+                       mosaic_.getStepY() * y + 0.45 * oldImageHeight_, posName);
                overlay.add(text);
             }
          }
@@ -227,13 +380,16 @@ public class AcquisitionStitcher {
 
       if (showGrid_) {
          //draw vertical lines
+         // lines are drawn halfway through the overlap
          for (int i = 1; i < numCols_; i++) {
-            Line l = new Line(oldImageWidth_ * i, 0, oldImageWidth_ * i, newImageHeight_);
+            int x = mosaic_.getStepX() * i + overlapX_ / 2;
+            Line l = new Line(x, 0, x, newImageHeight_);
             overlay.add(l);
          }
          //draw horizontal lines
          for (int i = 1; i < numRows_; i++) {
-            Line l = new Line(0, oldImageHeight_ * i, newImageWidth_, oldImageHeight_ * i);
+            int y = mosaic_.getStepY() * i + overlapY_ / 2;
+            Line l = new Line(0, y, newImageWidth_, y);
             overlay.add(l);
          }
 
@@ -242,22 +398,6 @@ public class AcquisitionStitcher {
 
    }
 
-   private byte[] stitchPixelsNoOverlap(LinkedList<TaggedImage> batch) {
-      byte[] newPixels = new byte[oldImageHeight_ * oldImageWidth_ * numCols_ * numRows_];
-      for (int line = 0; line < (numCols_ * numRows_) * (oldImageHeight_); line++) {
-         int gridX = line % numCols_;
-         int gridY = (line / numCols_) / oldImageHeight_;
-         int oldImageLineNumber = (line / numCols_) % oldImageHeight_;
-         int tileIndex = gridY * numCols_ + gridX;
-         if (batch.get(tileIndex).pix == null) {
-            return null;
-         }
-         System.arraycopy(batch.get(tileIndex).pix, oldImageLineNumber * oldImageWidth_,
-                 newPixels, line * oldImageWidth_, oldImageWidth_);
-      }
-      return newPixels;
-   }
-
     private void calcGridDimensions(LinkedList<TaggedImage> batch, JSONObject summaryMD) throws JSONException {
         numCols_ = 0;
         numRows_ = 0;
@@ -284,10 +424,17 @@ public class AcquisitionStitcher {
 //                numCols_ = temp;
 //            }
         } catch (Exception ex) {
-            ReportingUtils.showError("Couldn't get grid size position list");
+            showError(ex, "Couldn't get grid size position list");
         }
-        newImageWidth_ = numCols_ * oldImageWidth_;
-        newImageHeight_ = numRows_ * oldImageHeight_;
+        // overlap of the grid the data was acquired with, if recorded
+        overlapX_ = Math.max(0, Math.min((oldImageWidth_ - 1) / 2,
+                summaryMD.optInt("GridPixelOverlapX", 0)));
+        overlapY_ = Math.max(0, Math.min((oldImageHeight_ - 1) / 2,
+                summaryMD.optInt("GridPixelOverlapY", 0)));
+        mosaic_ = new MosaicStitcher(oldImageWidth_, oldImageHeight_, numCols_, numRows_,
+                overlapX_, overlapY_);
+        newImageWidth_ = mosaic_.getWidth();
+        newImageHeight_ = mosaic_.getHeight();
     }
 
     //sort left to right, top to bottom
@@ -310,7 +457,7 @@ public class AcquisitionStitcher {
                     return col1 - col2;
 
                 } catch (JSONException ex) {
-                    ReportingUtils.showError("couldnt sort tile coordinates");
+                    showError(ex, "couldnt sort tile coordinates");
                     return 0;
                 }
             }
@@ -0,0 +1,244 @@
+package com.imaging100x.twophoton;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Places a grid of equally sized tiles into one mosaic image.
+ *
+ * Neighbouring tiles may overlap by a fixed number of pixels. Pixels in an
+ * overlap are a weighted average of the tiles covering them, with weights
+ * that fall off linearly towards the tile edges, so that seams are
+ * feathered out. Without overlap every row of a tile is copied as is.
+ *
+ * The mosaic is split into bands of rows that are filled in parallel. Each
+ * band reads all tiles covering it and writes only its own rows, so the
+ * tiles are read directly into the output without intermediate copies.
+ * The threads of the shared pool exit after a minute without work.
+ */
+public class MosaicStitcher {
+
+   private static final int NR_PROCESSORS = Runtime.getRuntime().availableProcessors();
+   // rows per band, small enough to balance the load between threads
+   private static final int ROWS_PER_BAND = 64;
+   private static final long THREAD_KEEP_ALIVE_S = 60;
+   private static ExecutorService executor_;
+
+   private final int tileWidth_, tileHeight_;
+   private final int numCols_, numRows_;
+   private final int overlapX_, overlapY_;
+   private final int width_, height_;
+   private final float[] weightX_, weightY_;
+
+   /**
+    * @param tileWidth - width of each tile in pixels
+    * @param tileHeight - height of each tile in pixels
+    * @param numCols - number of tiles in a row of the grid
+    * @param numRows - number of rows of the grid
+    * @param overlapX - overlap in pixels of horizontal neighbours, at least 0
+    *                   and less than half the tile width
+    * @param overlapY - overlap in pixels of vertical neighbours, at least 0
+    *                   and less than half the tile height
+    */
+   public MosaicStitcher(int tileWidth, int tileHeight, int numCols, int numRows,
+           int overlapX, int overlapY) {
+      if (overlapX < 0 || overlapY < 0 || 2 * overlapX >= tileWidth
+              || 2 * overlapY >= tileHeight) {
+         throw new IllegalArgumentException("Tile overlap out of range");
+      }
+      tileWidth_ = tileWidth;
+      tileHeight_ = tileHeight;
+      numCols_ = numCols;
+      numRows_ = numRows;
+      overlapX_ = overlapX;
+      overlapY_ = overlapY;
+      width_ = numCols * tileWidth - (numCols - 1) * overlapX;
+      height_ = numRows * tileHeight - (numRows - 1) * overlapY;
+      weightX_ = makeWeights(tileWidth, overlapX);
+      weightY_ = makeWeights(tileHeight, overlapY);
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * @return distance in pixels between the left edges of neighbouring tiles
+    */
+   public int getStepX() {
+      return tileWidth_ - overlapX_;
+   }
+
+   /**
+    * @return distance in pixels between the top edges of neighbouring tiles
+    */
+   public int getStepY() {
+      return tileHeight_ - overlapY_;
+   }
+
+   /**
+    * Stitches one plane.
+    *
+    * @param tiles - byte[] or short[] pixels of the tiles, left to right and
+    *                top to bottom
+    * @return the mosaic, of the same type as the tiles
+    */
+   public Object stitch(final List<Object> tiles) {
+      if (tiles.size() != numCols_ * numRows_) {
+         throw new IllegalArgumentException("Expected " + numCols_ * numRows_
+                 + " tiles, got " + tiles.size());
+      }
+      final Object mosaic;
+      if (tiles.get(0) instanceof byte[]) {
+         mosaic = new byte[width_ * height_];
+      } else if (tiles.get(0) instanceof short[]) {
+         mosaic = new short[width_ * height_];
+      } else {
+         throw new IllegalArgumentException("Only 8 and 16 bit tiles can be stitched");
+      }
+      for (Object tile : tiles) {
+         if (tile == null || tile.getClass() != mosaic.getClass()
+                 || java.lang.reflect.Array.getLength(tile) != tileWidth_ * tileHeight_) {
+            throw new IllegalArgumentException("Tiles differ in size or type");
+         }
+      }
+
+      List<Callable<Void>> bands = new ArrayList<Callable<Void>>();
+      for (int y = 0; y < height_; y += ROWS_PER_BAND) {
+         final int from = y;
+         final int to = Math.min(height_, y + ROWS_PER_BAND);
+         bands.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+               stitchRows(tiles, mosaic, from, to);
+               return null;
+            }
+         });
+      }
+      if (bands.size() == 1 || NR_PROCESSORS == 1) {
+         stitchRows(tiles, mosaic, 0, height_);
+         return mosaic;
+      }
+      try {
+         for (Future<Void> f : getExecutor().invokeAll(bands)) {
+            f.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while stitching", ex);
+      } catch (ExecutionException ex) {
+         throw new RuntimeException("Stitching failed", ex.getCause());
+      }
+      return mosaic;
+   }
+
+   private static synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         ThreadPoolExecutor executor = new ThreadPoolExecutor(NR_PROCESSORS,
+                 NR_PROCESSORS, THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Mosaic stitcher");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+         // do not keep idle threads around between stitching runs
+         executor.allowCoreThreadTimeOut(true);
+         executor_ = executor;
+      }
+      return executor_;
+   }
+
+   /*
+    * Weight of each pixel of a tile along one axis: 1 in the middle, falling
+    * linearly to near 0 over the overlap at both edges.
+    */
+   private static float[] makeWeights(int size, int overlap) {
+      float[] w = new float[size];
+      for (int i = 0; i < size; i++) {
+         int fromEdge = Math.min(i, size - 1 - i);
+         w[i] = fromEdge < overlap ? (fromEdge + 0.5f) / overlap : 1f;
+      }
+      return w;
+   }
+
+   private void stitchRows(List<Object> tiles, Object mosaic, int from, int to) {
+      final int stepX = getStepX();
+      final int stepY = getStepY();
+      final boolean blend = overlapX_ > 0 || overlapY_ > 0;
+      final float[] sum = blend ? new float[width_] : null;
+      final float[] weights = blend ? new float[width_] : null;
+      for (int y = from; y < to; y++) {
+         // rows of the grid covering this mosaic row
+         int lastRow = Math.min(numRows_ - 1, y / stepY);
+         int firstRow = lastRow;
+         while (firstRow > 0 && y - (firstRow - 1) * stepY < tileHeight_) {
+            firstRow--;
+         }
+         if (!blend) {
+            int tileY = y - lastRow * stepY;
+            for (int col = 0; col < numCols_; col++) {
+               System.arraycopy(tiles.get(lastRow * numCols_ + col), tileY * tileWidth_,
+                       mosaic, y * width_ + col * stepX, tileWidth_);
+            }
+            continue;
+         }
+         java.util.Arrays.fill(sum, 0f);
+         java.util.Arrays.fill(weights, 0f);
+         for (int row = firstRow; row <= lastRow; row++) {
+            int tileY = y - row * stepY;
+            float wy = weightY_[tileY];
+            for (int col = 0; col < numCols_; col++) {
+               accumulateRow(tiles.get(row * numCols_ + col), tileY * tileWidth_,
+                       col * stepX, wy, sum, weights);
+            }
+         }
+         int offset = y * width_;
+         if (mosaic instanceof byte[]) {
+            byte[] out = (byte[]) mosaic;
+            for (int x = 0; x < width_; x++) {
+               out[offset + x] = (byte) (int) (sum[x] / weights[x] + 0.5f);
+            }
+         } else {
+            short[] out = (short[]) mosaic;
+            for (int x = 0; x < width_; x++) {
+               out[offset + x] = (short) (int) (sum[x] / weights[x] + 0.5f);
+            }
+         }
+      }
+   }
+
+   private void accumulateRow(Object tile, int tileOffset, int x0, float wy,
+           float[] sum, float[] weights) {
+      final float[] wx = weightX_;
+      if (tile instanceof byte[]) {
+         byte[] pix = (byte[]) tile;
+         for (int x = 0; x < tileWidth_; x++) {
+            float w = wx[x] * wy;
+            sum[x0 + x] += w * (pix[tileOffset + x] & 0xff);
+            weights[x0 + x] += w;
+         }
+      } else {
+         short[] pix = (short[]) tile;
+         for (int x = 0; x < tileWidth_; x++) {
+            float w = wx[x] * wy;
+            sum[x0 + x] += w * (pix[tileOffset + x] & 0xffff);
+            weights[x0 + x] += w;
+         }
+      }
+   }
+}
@@ -132,7 +132,7 @@ private AcquisitionStitcher stitcher_ = new AcquisitionStitcher();
 private JButton stitchButton_;
 private JComboBox windowsToStitchCombo_;
 private ArrayList<VirtualAcquisitionDisplay> availableVADs_;
-private JCheckBox drawGrid_, drawPosNames_;
+private JCheckBox drawGrid_, drawPosNames_, stitchEachFrame_;
    
    /**
     * File filter class for Open/Save file choosers 
@@ -405,6 +405,9 @@ private JCheckBox drawGrid_, drawPosNames_;
       drawGrid_.setSelected(true); 
       row2.add(drawPosNames_);
       row2.add(drawGrid_);
+      stitchEachFrame_ = new JCheckBox("Every time point");
+      stitchEachFrame_.setToolTipText("Keep stitching each time point as soon as it is complete");
+      row2.add(stitchEachFrame_);
       stitchPanel_.add(row2);
       
       stitchButton_ = new JButton("Stitch: ");
@@ -416,6 +419,7 @@ private JCheckBox drawGrid_, drawPosNames_;
             if (index < availableVADs_.size()) {
                vadToStitch = availableVADs_.get(index);
             }
+            stitcher_.setStitchEachFrame(stitchEachFrame_.isSelected());
             stitcher_.setStitchParameters(drawPosNames_.isSelected(), drawGrid_.isSelected(),
                     vadToStitch);
             new Thread(new Runnable() {
@@ -0,0 +1,92 @@
+package com.imaging100x.twophoton;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MosaicStitcherTest {
+   private static final int TILE_WIDTH = 16;
+   // taller than one band, so that bands are stitched in parallel
+   private static final int TILE_HEIGHT = 100;
+
+   @Test
+   public void twoTilesWithoutOverlapAreCopied() {
+      MosaicStitcher stitcher = new MosaicStitcher(TILE_WIDTH, TILE_HEIGHT,
+              2, 1, 0, 0);
+      assertEquals(2 * TILE_WIDTH, stitcher.getWidth());
+      assertEquals(TILE_HEIGHT, stitcher.getHeight());
+      List<Object> tiles = new ArrayList<Object>();
+      tiles.add(cutTile(0, 0));
+      tiles.add(cutTile(TILE_WIDTH, 0));
+      short[] mosaic = (short[]) stitcher.stitch(tiles);
+      assertArrayEquals(cutScene(stitcher.getWidth(), stitcher.getHeight()), mosaic);
+   }
+
+   @Test
+   public void twoOverlappingTilesRestoreTheScene() {
+      // the second tile starts 12 pixels to the right of the first one
+      MosaicStitcher stitcher = new MosaicStitcher(TILE_WIDTH, TILE_HEIGHT,
+              2, 1, 4, 0);
+      assertEquals(12, stitcher.getStepX());
+      assertEquals(28, stitcher.getWidth());
+      List<Object> tiles = new ArrayList<Object>();
+      tiles.add(cutTile(0, 0));
+      tiles.add(cutTile(12, 0));
+      short[] mosaic = (short[]) stitcher.stitch(tiles);
+      assertArrayEquals(cutScene(stitcher.getWidth(), stitcher.getHeight()), mosaic);
+   }
+
+   @Test
+   public void twoVerticallyOverlappingTilesRestoreTheScene() {
+      // the second tile starts 90 rows below the first one
+      MosaicStitcher stitcher = new MosaicStitcher(TILE_WIDTH, TILE_HEIGHT,
+              1, 2, 0, 10);
+      assertEquals(90, stitcher.getStepY());
+      assertEquals(190, stitcher.getHeight());
+      List<Object> tiles = new ArrayList<Object>();
+      tiles.add(cutTile(0, 0));
+      tiles.add(cutTile(0, 90));
+      short[] mosaic = (short[]) stitcher.stitch(tiles);
+      assertArrayEquals(cutScene(stitcher.getWidth(), stitcher.getHeight()), mosaic);
+   }
+
+   @Test
+   public void overlapIsBlended() {
+      MosaicStitcher stitcher = new MosaicStitcher(4, 1, 2, 1, 1, 0);
+      List<Object> tiles = new ArrayList<Object>();
+      tiles.add(new byte[] {10, 10, 10, 10});
+      tiles.add(new byte[] {30, 30, 30, 30});
+      byte[] mosaic = (byte[]) stitcher.stitch(tiles);
+      // the shared pixel is at the edge of both tiles, so weighs equally
+      assertArrayEquals(new byte[] {10, 10, 10, 20, 30, 30, 30}, mosaic);
+   }
+
+   /*
+    * Pixel values of a scene that differ everywhere
+    */
+   private static short value(int x, int y) {
+      return (short) (y * 100 + x);
+   }
+
+   private static short[] cutTile(int x0, int y0) {
+      short[] tile = new short[TILE_WIDTH * TILE_HEIGHT];
+      for (int y = 0; y < TILE_HEIGHT; y++) {
+         for (int x = 0; x < TILE_WIDTH; x++) {
+            tile[y * TILE_WIDTH + x] = value(x0 + x, y0 + y);
+         }
+      }
+      return tile;
+   }
+
+   private static short[] cutScene(int width, int height) {
+      short[] scene = new short[width * height];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            scene[y * width + x] = value(x, y);
+         }
+      }
+      return scene;
+   }
+}
@@ -6,7 +6,6 @@ import ij.gui.Overlay;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.LUT;
-import java.util.Arrays;
 
 /**
  * Gives a visual feedback for the current density levels. Green indicates 
@@ -20,8 +19,14 @@ public class DensityMap  implements DensityMapMonitor, Runnable {
     
     ImagePlus theImage;
     
+    // Latest map received, and the copy that is displayed
+    float[] source;
+    int sourceWidth, sourceHeight;
     float[] density;
+    byte[] overlay;
     int width, height;
+    FloatProcessor densityProcessor;
+    ByteProcessor overlayProcessor;
     private float minGoodDensity = 1;
     private float maxGoodDensity = 2;
     
@@ -55,7 +60,8 @@ public class DensityMap  implements DensityMapMonitor, Runnable {
      * Reset the density map.
      * 
      */
-    public void clearMap() {
+    public synchronized void clearMap() {
+        source = null;
         density = null;
         if (theImage!=null)
             theImage.setHideOverlay(true);
@@ -101,35 +107,72 @@ public class DensityMap  implements DensityMapMonitor, Runnable {
     }
     
     /**
-     * This is called when the density map is changed. It updates the image overlay
-     * with the appropriate color code.
+     * This is called when the density map is changed. It only records the
+     * new map, which is copied and color coded by the mapping thread at most 
+     * once per update time, so that it can be called for every camera frame.
      * 
      * @param width
      * @param height
      * @param density 
      */
     @Override
-    public void densityMapChanged(int width, int height, float[] density) {
-        this.density = Arrays.copyOf(density, density.length);
-        this.width = width;
-        this.height = height;
+    public synchronized void densityMapChanged(int width, int height, float[] density) {
+        this.source = density;
+        this.sourceWidth = width;
+        this.sourceHeight = height;
         
-        // Create color overlay
-        byte[] overlay = new byte[density.length];
-        for (int i=0; i<density.length; i++) {
-            if (density[i]>0 && density[i]<minGoodDensity)
-                overlay[i]=2;
-            else if (density[i]<maxGoodDensity)
-                overlay[i]=1;
-            else
-                overlay[i]=3;
+        changed = true;
+    }
+    
+    /**
+     * Copies the latest density map and updates the color overlay in place.
+     * 
+     * @return false if the map was cleared in the meantime
+     */
+    boolean updateMap() {
+        float[] src, dens;
+        byte[] ov;
+        synchronized (this) {
+            src = source;
+            changed = false;
+            if (src == null || src.length != sourceWidth * sourceHeight)
+                return false;
+            if (density == null || sourceWidth != width || sourceHeight != height) {
+                width = sourceWidth;
+                height = sourceHeight;
+                density = new float[src.length];
+                overlay = new byte[src.length];
+                densityProcessor = null;
+            }
+            dens = density;
+            ov = overlay;
         }
         
-        densityOverlay = new Overlay(
-                new ImageRoi(0,0,
-                new ByteProcessor(width, height, overlay, buildLUT())));
+        // The source may be modified while copying, which only affects 
+        // the display
+        System.arraycopy(src, 0, dens, 0, dens.length);
         
-        changed = true;
+        // Color overlay
+        final float min = minGoodDensity;
+        final float max = maxGoodDensity;
+        for (int i=0; i<dens.length; i++) {
+            float d = dens[i];
+            if (d>0 && d<min)
+                ov[i]=2;
+            else if (d<max)
+                ov[i]=1;
+            else
+                ov[i]=3;
+        }
+        
+        if (densityProcessor == null) {
+            densityProcessor = new FloatProcessor(width,height,dens,null);
+            overlayProcessor = new ByteProcessor(width, height, ov, buildLUT());
+        } else {
+            densityProcessor.resetMinAndMax();
+        }
+        densityOverlay = new Overlay(new ImageRoi(0,0,overlayProcessor));
+        return true;
     }
     
     boolean visible = false;
@@ -162,11 +205,12 @@ public class DensityMap  implements DensityMapMonitor, Runnable {
         long lastTime = System.currentTimeMillis();
         while(!stopping) {
             
-            if (running && changed) {
+            if (running && changed && updateMap()) {
                 // Draw the density
-                FloatProcessor fp = new FloatProcessor(width,height,density,null);
-
-                theImage.setProcessor("Density Map",fp);
+                if (theImage.getProcessor() != densityProcessor)
+                    theImage.setProcessor("Density Map",densityProcessor);
+                else
+                    theImage.updateAndDraw();
 
                 theImage.setOverlay(densityOverlay);
                 theImage.setHideOverlay(false);
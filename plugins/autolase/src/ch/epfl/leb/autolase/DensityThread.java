@@ -1,9 +1,8 @@
 package ch.epfl.leb.autolase;
 
-import java.util.ArrayDeque;
 import java.util.List;
-import java.util.Queue;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,6 +13,10 @@ import java.util.logging.Logger;
  * to the maximum time a certain pixel is "on", or above a certain threshold. 
  * The density is calculated as a moving average (default 1s).
  * 
+ * All buffers are reused from frame to frame, so the interval can be made as
+ * short as the camera frame time. For large cameras, the density can be
+ * calculated on a coarser grid (@see #setBinning).
+ * 
  * The code only works for 2 bytes per pixel cameras for now. 
  * 
  * @author Thomas Pengo
@@ -34,7 +37,18 @@ public class DensityThread implements Runnable {
     long timeInterval = DEFAULT_WAIT_TIME;
     int fifoNumElems = NUM_ELEMS;
 
-    Queue<Double> density_fifo = new ArrayDeque<Double>(fifoNumElems);
+    int binning = 1;
+
+    // Moving average of the density, as a ring buffer with a running sum
+    double[] densityRing = new double[fifoNumElems];
+    int ringPos = 0;
+    int ringCount = 0;
+    double ringSum = 0;
+
+    // Reused from frame to frame
+    float[] accumulator = null;
+    boolean[] cellOn = null;
+    int gridWidth, gridHeight;
 
     List <DensityMonitor>  monitors = 
             Collections.synchronizedList(new ArrayList <DensityMonitor> ());
@@ -74,6 +88,23 @@ public class DensityThread implements Runnable {
     public void setTimeInterval(long timeInterval) {
         this.timeInterval = timeInterval;
     }
+
+    /**
+     * Calculates the density on a grid of binning x binning pixel cells
+     * instead of on every pixel. Takes effect on the next frame, which
+     * restarts the accumulator.
+     * 
+     * @param binning 
+     */
+    public void setBinning(int binning) {
+        if (binning < 1)
+            throw new IllegalArgumentException("Binning must be at least 1");
+        this.binning = binning;
+    }
+
+    public int getBinning() {
+        return binning;
+    }
     
     public void setCamera(Camera camera) {
         this.camera = camera;
@@ -105,11 +136,8 @@ public class DensityThread implements Runnable {
 
     @Override
     public void run() {
-        // Current image
-        float[] accumulator = null;
-
-        // Start timer
-        long lastTime = System.currentTimeMillis();
+        // Sample at a fixed rate, whatever the time spent processing
+        long nextTime = System.currentTimeMillis();
         
         while(!stopping) {            
             // Only works with 2 bpp
@@ -121,63 +149,34 @@ public class DensityThread implements Runnable {
                 // Get the current image
                 try {
                     short[] image = camera.getNewImage();
+                    int width = camera.getWidth();
+                    int height = camera.getHeight();
 
-                    // Reset accumulator if image size has changed
-                    if (image!=null && accumulator!=null && (image.length != accumulator.length))
-                        accumulator = null;
-                    
-                    // Threshold the image
-                    boolean[] curMask = new boolean[image.length];
-                    for (int i=0; i<curMask.length; i++)
-                        curMask[i]=image[i]>threshold;
-
-                    // Calculate accumulator
-                    if (accumulator == null) {
-                        // A_0 = I_0 > t; 
-                        accumulator = new float[image.length];
-                        for(int i=0; i<accumulator.length; i++)
-                            if (curMask[i])
-                                accumulator[i] = timeInterval;
-                    } else {
-                        // A_i = (I_i > t) (1 + A_i-1)
-                        for(int i=0; i<accumulator.length; i++)
-                            if (!curMask[i]) {
-                                accumulator[i] = 0;
-                            } else {
-                                accumulator[i]+=timeInterval;
-                            }
-                    }
+                    // Skip frames caught in the middle of a ROI change
+                    if (image!=null && image.length == width*height) {
+                        double curd = updateAccumulator(image, width, height);
+                        currentDensity = addToMovingAverage(curd);
 
-                    // Density measure: max(A_i)
-                    double curd = 0;
-                    for (int i=0; i<image.length; i++)
-                        if (accumulator[i]>curd)
-                            curd = accumulator[i];
-                    
-                    // Moving average estimate
-                    if (density_fifo.size() == fifoNumElems)
-                        density_fifo.remove();
-                    density_fifo.offer(curd);
-
-                    double mean_density = 0;
-                    for (Double d : density_fifo)
-                        mean_density+=d;
-                    mean_density /= density_fifo.size();
-
-                    currentDensity = mean_density;  
-                    
-                    for (DensityMonitor m : monitors)
-                        m.densityChanged(currentDensity);
-
-                    for (DensityMapMonitor m : mapMonitors)
-                        m.densityMapChanged(camera.getWidth(),camera.getHeight(),accumulator);
+                        for (DensityMonitor m : monitors)
+                            m.densityChanged(currentDensity);
+
+                        for (DensityMapMonitor m : mapMonitors)
+                            m.densityMapChanged(gridWidth,gridHeight,accumulator);
+                    }
 
                 } catch (Exception ex) {
                     Logger.getLogger(DensityThread.class.getName()).log(Level.SEVERE, null, ex);
                 }
             
+            nextTime += timeInterval;
+            long waitTime = nextTime - System.currentTimeMillis();
+            if (waitTime < 0) {
+                // Fell behind, do not try to catch up
+                nextTime -= waitTime;
+                waitTime = 0;
+            }
             try {
-                Thread.sleep(timeInterval);
+                Thread.sleep(waitTime);
             } catch (InterruptedException ex) {
                 Logger.getLogger(DensityThread.class.getName()).log(Level.SEVERE, null, ex);
                 
@@ -187,4 +186,112 @@ public class DensityThread implements Runnable {
         
         stopping = false;
     }
+
+    /**
+     * Thresholds the image, updates the accumulator and returns its maximum,
+     * all in a single pass over the pixels:
+     *     A_0 = (I_0 > t) dt,  A_i = (I_i > t) (dt + A_i-1),  d = max(A_i)
+     * With binning, a cell of the accumulator grid is "on" if any of its
+     * pixels is above the threshold.
+     * 
+     * @param image
+     * @param width
+     * @param height
+     * @return the maximum of the accumulator
+     */
+    double updateAccumulator(short[] image, int width, int height) {
+        final int bin = binning;
+        final int gw = (width + bin - 1) / bin;
+        final int gh = (height + bin - 1) / bin;
+        
+        // Reset accumulator if the grid has changed
+        if (accumulator == null || gw != gridWidth || gh != gridHeight) {
+            accumulator = new float[gw * gh];
+            cellOn = new boolean[gw];
+            gridWidth = gw;
+            gridHeight = gh;
+        }
+        
+        final float[] acc = accumulator;
+        final float dt = timeInterval;
+        final int t = threshold;
+        float max = 0;
+        
+        if (bin == 1) {
+            for (int i=0; i<acc.length; i++) {
+                // pixels are unsigned
+                if ((image[i] & 0xFFFF) > t) {
+                    float a = acc[i] + dt;
+                    acc[i] = a;
+                    if (a > max)
+                        max = a;
+                } else {
+                    acc[i] = 0;
+                }
+            }
+            return max;
+        }
+        
+        final boolean[] on = cellOn;
+        for (int cy=0; cy<gh; cy++) {
+            Arrays.fill(on, false);
+            int yEnd = Math.min(height, (cy + 1) * bin);
+            for (int y=cy*bin; y<yEnd; y++) {
+                int row = y * width;
+                for (int cx=0; cx<gw; cx++) {
+                    if (on[cx])
+                        continue;
+                    int xEnd = row + Math.min(width, (cx + 1) * bin);
+                    for (int i=row + cx*bin; i<xEnd; i++) {
+                        if ((image[i] & 0xFFFF) > t) {
+                            on[cx] = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            int offset = cy * gw;
+            for (int cx=0; cx<gw; cx++) {
+                if (on[cx]) {
+                    float a = acc[offset + cx] + dt;
+                    acc[offset + cx] = a;
+                    if (a > max)
+                        max = a;
+                } else {
+                    acc[offset + cx] = 0;
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds a density to the moving average and returns the new average.
+     * 
+     * @param d
+     * @return 
+     */
+    double addToMovingAverage(double d) {
+        if (densityRing.length != fifoNumElems) {
+            densityRing = new double[fifoNumElems];
+            ringPos = 0;
+            ringCount = 0;
+            ringSum = 0;
+        }
+        if (ringCount == densityRing.length)
+            ringSum -= densityRing[ringPos];
+        else
+            ringCount++;
+        densityRing[ringPos] = d;
+        ringSum += d;
+        ringPos = (ringPos + 1) % densityRing.length;
+        
+        // Recompute the sum once per round to avoid accumulating round-off
+        if (ringPos == 0) {
+            ringSum = 0;
+            for (int i=0; i<ringCount; i++)
+                ringSum += densityRing[i];
+        }
+        return ringSum / ringCount;
+    }
 }